@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import com.example.android.sunshine.app.data.TestCityGazetteer;
+import com.example.android.sunshine.app.data.TestFixedPointStorage;
+import com.example.android.sunshine.app.data.TestForecastArchive;
+import com.example.android.sunshine.app.data.TestForecastSnapshot;
+import com.example.android.sunshine.app.data.TestHourlyStorage;
+import com.example.android.sunshine.app.data.TestLocationSearch;
+import com.example.android.sunshine.app.data.TestWeatherBulkInserter;
+import com.example.android.sunshine.app.sync.TestForecastJsonParser;
+import com.example.android.sunshine.app.sync.TestMultiLocationSync;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    The benchmarks, which take too long and depend too much on the device to run with the
+    rest of the tests. Their methods start with "benchmark" rather than "test", so
+    FullTestSuite leaves them out, and they are only run when asked for:
+
+    adb shell am instrument -w -e class com.example.android.sunshine.app.BenchmarkSuite \
+        com.example.android.sunshine.app.test/android.test.InstrumentationTestRunner
+ */
+public class BenchmarkSuite extends TestSuite {
+    static final String BENCHMARK_PREFIX = "benchmark";
+
+    private static final Class<?>[] BENCHMARKED_CLASSES = {
+            TestWeatherBulkInserter.class,
+            TestForecastJsonParser.class,
+            TestMultiLocationSync.class,
+            TestForecastSnapshot.class,
+            TestHourlyStorage.class,
+            TestFixedPointStorage.class,
+            TestForecastArchive.class,
+            TestLocationSearch.class,
+            TestCityGazetteer.class,
+            TestForecastAdapter.class,
+            TestUnitFormatter.class,
+            TestWeatherConditions.class,
+    };
+
+    public static Test suite() throws Exception {
+        TestSuite suite = new TestSuite(BenchmarkSuite.class.getName());
+        for (Class<?> testClass : BENCHMARKED_CLASSES) {
+            List<String> names = new ArrayList<String>();
+            for (Method method : testClass.getMethods()) {
+                if (method.getName().startsWith(BENCHMARK_PREFIX)
+                        && method.getParameterTypes().length == 0
+                        && !Modifier.isStatic(method.getModifiers())) {
+                    names.add(method.getName());
+                }
+            }
+            // getMethods() has no order, and the benchmarks are easier to compare in one.
+            Collections.sort(names);
+            for (String name : names) {
+                TestCase test = (TestCase) testClass.newInstance();
+                test.setName(name);
+                suite.addTest(test);
+            }
+        }
+        return suite;
+    }
+
+    public BenchmarkSuite() {
+        super();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/*
+    Checks that DayFormatter names days the way Utility always has, that it hands back the
+    same strings without allocating once a day has been formatted, and that it starts over
+    when the locale changes or it is invalidated.
+ */
+public class TestDayFormatter extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDayFormatter.class.getSimpleName();
+
+    static final int DAYS = 14;
+    static final int ALLOCATION_TEST_ROUNDS = 1000;
+
+    private Locale mLocale;
+    private DayFormatter mFormatter;
+    private long[] mDates;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocale = Locale.getDefault();
+        mFormatter = DayFormatter.getInstance(mContext);
+        mFormatter.invalidate();
+        long now = System.currentTimeMillis();
+        mDates = new long[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            mDates[i] = now + i * DateUtils.DAY_IN_MILLIS;
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Locale.setDefault(mLocale);
+        mFormatter.invalidate();
+        super.tearDown();
+    }
+
+    public void testDayStrings() {
+        String today = mContext.getString(R.string.today);
+        assertEquals(today, mFormatter.getDayName(mDates[0]));
+        assertEquals(mContext.getString(R.string.tomorrow), mFormatter.getDayName(mDates[1]));
+        assertEquals(new SimpleDateFormat("EEEE").format(mDates[3]),
+                mFormatter.getDayName(mDates[3]));
+        assertEquals(new SimpleDateFormat("MMMM dd").format(mDates[3]),
+                mFormatter.getFormattedMonthDay(mDates[3]));
+
+        assertEquals("Error: today should read in full in the today layout",
+                mContext.getString(R.string.format_full_friendly_date, today,
+                        new SimpleDateFormat("MMMM dd").format(mDates[0])),
+                mFormatter.getFriendlyDayString(mDates[0], true));
+        assertEquals(today, mFormatter.getFriendlyDayString(mDates[0], false));
+        assertEquals(mFormatter.getDayName(mDates[6]),
+                mFormatter.getFriendlyDayString(mDates[6], false));
+        assertEquals("Error: a day past the coming week should have its date",
+                new SimpleDateFormat("EEE MMM dd").format(mDates[10]),
+                mFormatter.getFriendlyDayString(mDates[10], true));
+        assertEquals(mContext.getString(R.string.format_full_friendly_date,
+                mFormatter.getDayName(mDates[4]), mFormatter.getFormattedMonthDay(mDates[4])),
+                mFormatter.getFullFriendlyDayString(mDates[4]));
+
+        assertEquals(Utility.getFriendlyDayString(mContext, mDates[2], false),
+                mFormatter.getFriendlyDayString(mDates[2], false));
+    }
+
+    /*
+        Formats every day once, then counts what this thread allocates while it formats them
+        all again, many times over. Where the runtime doesn't count allocations the count stays
+        at zero, but the strings still have to be the very ones made the first time.
+     */
+    @SuppressWarnings("deprecation")
+    public void testFormattedDaysDontAllocate() {
+        String[] friendly = new String[DAYS];
+        String[] full = new String[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            friendly[i] = mFormatter.getFriendlyDayString(mDates[i], i == 0);
+            full[i] = mFormatter.getFullFriendlyDayString(mDates[i]);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long startNanos = System.nanoTime();
+        for (int round = 0; round < ALLOCATION_TEST_ROUNDS; round++) {
+            for (int i = 0; i < DAYS; i++) {
+                mFormatter.getFriendlyDayString(mDates[i], i == 0);
+                mFormatter.getFullFriendlyDayString(mDates[i]);
+                mFormatter.getDayName(mDates[i]);
+                mFormatter.getFormattedMonthDay(mDates[i]);
+            }
+        }
+        long nanos = System.nanoTime() - startNanos;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        int bytes = Debug.getThreadAllocSize();
+
+        int calls = ALLOCATION_TEST_ROUNDS * DAYS * 4;
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d calls: %.3f us a call, %d allocations, %d bytes", calls, nanos / 1e3 / calls,
+                allocations, bytes));
+        assertEquals("Error: a day that was formatted before shouldn't allocate", 0,
+                allocations);
+        for (int i = 0; i < DAYS; i++) {
+            assertSame(friendly[i], mFormatter.getFriendlyDayString(mDates[i], i == 0));
+            assertSame(full[i], mFormatter.getFullFriendlyDayString(mDates[i]));
+        }
+    }
+
+    public void testLocaleChangeStartsOver() {
+        String dayName = mFormatter.getDayName(mDates[3]);
+        mFormatter.invalidate();
+        String again = mFormatter.getDayName(mDates[3]);
+        assertNotSame("Error: an invalidated formatter should format the day again", dayName,
+                again);
+        assertEquals(dayName, again);
+
+        // The default locale is noticed without the broadcast.
+        Locale.setDefault(Locale.FRANCE);
+        assertEquals(new SimpleDateFormat("EEEE", Locale.FRANCE).format(mDates[3]),
+                mFormatter.getDayName(mDates[3]));
+        assertEquals(new SimpleDateFormat("EEE MMM dd", Locale.FRANCE).format(mDates[10]),
+                mFormatter.getFriendlyDayString(mDates[10], false));
+    }
+}
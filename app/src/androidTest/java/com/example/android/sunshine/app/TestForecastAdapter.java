@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.os.Looper;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.test.ActivityInstrumentationTestCase2;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.Printer;
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.AbsListView;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+    Checks that swapping in new rows tells the list about just the days that came, went or
+    changed. BenchmarkSuite measures what a refresh costs the main thread, and the frames it
+    drops, with the days diffed and with every row rebound the way the adapter used to. Then it
+    flings through a long list of rows, which are formatted before they are shown, and times
+    its frames.
+ */
+public class TestForecastAdapter extends ActivityInstrumentationTestCase2<MainActivity> {
+
+    public static final String LOG_TAG = TestForecastAdapter.class.getSimpleName();
+
+    static final int DAYS = 14;
+    static final int BENCHMARK_REFRESHES = 20;
+    // Long enough for the item animations of a refresh to finish before the next one.
+    static final long BENCHMARK_REFRESH_INTERVAL_MILLIS = 400;
+    static final int BENCHMARK_FLING_DAYS = 365;
+    static final int BENCHMARK_FLINGS = 10;
+
+    // In the order of ForecastFragment's FORECAST_COLUMNS.
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private final long mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+
+    public TestForecastAdapter() {
+        super(MainActivity.class);
+    }
+
+    /*
+        The forecast for the days from firstDay on, with the high of one of them raised.
+     */
+    private List<ForecastRow> buildRows(int firstDay, int raisedDay, double raisedBy) {
+        return ForecastRow.fromCursor(getInstrumentation().getTargetContext(),
+                buildCursor(firstDay, DAYS, raisedDay, raisedBy));
+    }
+
+    private Cursor buildCursor(int firstDay, int days, int raisedDay, double raisedBy) {
+        MatrixCursor cursor = new MatrixCursor(FORECAST_COLUMNS);
+        for (int day = firstDay; day < firstDay + days; day++) {
+            double high = 20 + day % 5 + (day == raisedDay ? raisedBy : 0);
+            cursor.addRow(new Object[]{day + 1, getDate(day), "Clear", high, 10 + day % 3,
+                    "99705", 800, 64.7488, -147.353});
+        }
+        return cursor;
+    }
+
+    private long getDate(int day) {
+        return mToday + day * DateUtils.DAY_IN_MILLIS;
+    }
+
+    private ForecastAdapter createAdapter(Context context) {
+        return new ForecastAdapter(context, new ForecastAdapter.ForecastAdapterOnClickHandler() {
+            @Override
+            public void onClick(Long date, ForecastAdapter.ForecastAdapterViewHolder vh) {
+            }
+        }, new View(context), AbsListView.CHOICE_MODE_NONE);
+    }
+
+    /*
+        Plays the events the adapter sends back over the dates it showed before, the way the
+        list does, and notes which of the dates it was told had changed.
+     */
+    static class RecordingObserver extends RecyclerView.AdapterDataObserver {
+        final List<Long> mDates = new ArrayList<Long>();
+        final Set<Long> mChangedDates = new HashSet<Long>();
+        int mFullChanges;
+        int mInserted;
+        int mRemoved;
+
+        @Override
+        public synchronized void onChanged() {
+            mFullChanges++;
+        }
+
+        @Override
+        public synchronized void onItemRangeChanged(int positionStart, int itemCount) {
+            for (int i = positionStart; i < positionStart + itemCount; i++) {
+                mChangedDates.add(mDates.get(i));
+            }
+        }
+
+        @Override
+        public synchronized void onItemRangeInserted(int positionStart, int itemCount) {
+            for (int i = 0; i < itemCount; i++) {
+                mDates.add(positionStart, null);
+            }
+            mInserted += itemCount;
+        }
+
+        @Override
+        public synchronized void onItemRangeRemoved(int positionStart, int itemCount) {
+            mDates.subList(positionStart, positionStart + itemCount).clear();
+            mRemoved += itemCount;
+        }
+
+        synchronized void reset(ForecastAdapter adapter) {
+            mDates.clear();
+            for (int i = 0; i < adapter.getItemCount(); i++) {
+                mDates.add(adapter.getItemId(i));
+            }
+            mChangedDates.clear();
+            mFullChanges = mInserted = mRemoved = 0;
+        }
+
+        synchronized boolean hasEvents() {
+            return mFullChanges + mInserted + mRemoved + mChangedDates.size() > 0;
+        }
+    }
+
+    public void testSwapNotifiesOnlyTheChangedDays() {
+        final Context context = getInstrumentation().getTargetContext();
+        final ForecastAdapter[] adapter = new ForecastAdapter[1];
+        final RecordingObserver observer = new RecordingObserver();
+        final List<ForecastRow> rows = buildRows(0, -1, 0);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                adapter[0] = createAdapter(context);
+                adapter[0].registerAdapterDataObserver(observer);
+                adapter[0].swapRows(rows);
+            }
+        });
+        assertEquals("Error: the first rows should be shown right away", DAYS,
+                adapter[0].getItemCount());
+        assertEquals(1, observer.mFullChanges);
+
+        // A day later: today has gone, a day was added at the end, and one high has changed.
+        observer.reset(adapter[0]);
+        final List<ForecastRow> nextRows = buildRows(1, 5, 2);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                adapter[0].swapRows(nextRows);
+                assertFalse("Error: the rows should be compared in the background",
+                        observer.hasEvents());
+            }
+        });
+        new PollingCheck() {
+            @Override
+            protected boolean check() {
+                return observer.hasEvents();
+            }
+        }.run();
+        getInstrumentation().waitForIdleSync();
+
+        synchronized (observer) {
+            assertEquals("Error: the list shouldn't be rebound as a whole", 0,
+                    observer.mFullChanges);
+            assertEquals(1, observer.mRemoved);
+            assertEquals(1, observer.mInserted);
+            assertEquals(DAYS, observer.mDates.size());
+            assertNull(observer.mDates.get(DAYS - 1));
+            Set<Long> expected = new HashSet<Long>();
+            expected.add(getDate(5));
+            assertEquals("Error: only the day whose high changed should be rebound", expected,
+                    observer.mChangedDates);
+        }
+        assertEquals(0, adapter[0].getPositionForDate(getDate(1)));
+        assertEquals(RecyclerView.NO_POSITION, adapter[0].getPositionForDate(getDate(0)));
+    }
+
+    public void testLaterSwapOvertakesAPendingDiff() {
+        final Context context = getInstrumentation().getTargetContext();
+        final ForecastAdapter[] adapter = new ForecastAdapter[1];
+        final List<List<ForecastRow>> swaps = new ArrayList<List<ForecastRow>>();
+        swaps.add(buildRows(0, -1, 0));
+        swaps.add(buildRows(1, -1, 0));
+        swaps.add(buildRows(3, -1, 0));
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                adapter[0] = createAdapter(context);
+                for (List<ForecastRow> rows : swaps) {
+                    adapter[0].swapRows(rows);
+                }
+            }
+        });
+        new PollingCheck() {
+            @Override
+            protected boolean check() {
+                return adapter[0].getPositionForDate(getDate(3)) == 0;
+            }
+        }.run();
+        getInstrumentation().waitForIdleSync();
+        assertEquals(DAYS, adapter[0].getItemCount());
+        assertEquals(getDate(3 + DAYS - 1), adapter[0].getItemId(DAYS - 1));
+
+        // Emptying the list doesn't wait for anything.
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                adapter[0].swapRows(null);
+            }
+        });
+        assertEquals(0, adapter[0].getItemCount());
+    }
+
+    /*
+        Shows a list of its own in the activity and refreshes it, first with a new cursor that
+        changes one day, then by rebinding every row as swapCursor did before it diffed. The
+        main thread's time is what its messages took while the refreshes went on, as its
+        looper logs them; a frame is dropped for every vsync a frame ran past.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void benchmarkRefresh() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            Log.i(LOG_TAG, "Frames can only be timed from Jelly Bean on");
+            return;
+        }
+        final ForecastAdapter adapter = showList(buildRows(0, -1, 0)).adapter;
+        long frameNanos = getFrameNanos();
+
+        MainThreadMonitor diffed = new MainThreadMonitor(frameNanos);
+        diffed.start();
+        for (int i = 0; i < BENCHMARK_REFRESHES; i++) {
+            final List<ForecastRow> rows = buildRows(0, i % DAYS, i + 1);
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    adapter.swapRows(rows);
+                }
+            });
+            Thread.sleep(BENCHMARK_REFRESH_INTERVAL_MILLIS);
+        }
+        diffed.stop();
+
+        MainThreadMonitor rebound = new MainThreadMonitor(frameNanos);
+        rebound.start();
+        for (int i = 0; i < BENCHMARK_REFRESHES; i++) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    adapter.notifyDataSetChanged();
+                }
+            });
+            Thread.sleep(BENCHMARK_REFRESH_INTERVAL_MILLIS);
+        }
+        rebound.stop();
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Per refresh of %d days: diffed %.2f ms on the main thread, %.2f frames dropped;"
+                        + " every row rebound %.2f ms, %.2f frames dropped",
+                DAYS, diffed.getBusyNanos() / 1e6 / BENCHMARK_REFRESHES,
+                (double) diffed.getDroppedFrames() / BENCHMARK_REFRESHES,
+                rebound.getBusyNanos() / 1e6 / BENCHMARK_REFRESHES,
+                (double) rebound.getDroppedFrames() / BENCHMARK_REFRESHES));
+    }
+
+    /*
+        Formats a year of days the way the loader does, shows them, and flings to the end of
+        the list and back. Binding a row is only setting its views, so what a fling costs is
+        the layout and drawing of the rows that scroll in.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void benchmarkFling() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            Log.i(LOG_TAG, "Frames can only be timed from Jelly Bean on");
+            return;
+        }
+        Cursor cursor = buildCursor(0, BENCHMARK_FLING_DAYS, -1, 0);
+        long startNanos = System.nanoTime();
+        List<ForecastRow> rows = ForecastRow.fromCursor(getInstrumentation().getTargetContext(),
+                cursor);
+        long formatNanos = System.nanoTime() - startNanos;
+        assertEquals(BENCHMARK_FLING_DAYS, rows.size());
+
+        final ShownList list = showList(rows);
+        long frameNanos = getFrameNanos();
+        final int velocity = list.recyclerView.getMaxFlingVelocity();
+
+        MainThreadMonitor monitor = new MainThreadMonitor(frameNanos);
+        monitor.start();
+        for (int i = 0; i < BENCHMARK_FLINGS; i++) {
+            final int direction = i % 2 == 0 ? 1 : -1;
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    list.recyclerView.fling(0, direction * velocity);
+                }
+            });
+            new PollingCheck(10000) {
+                @Override
+                protected boolean check() {
+                    return list.recyclerView.getScrollState() == RecyclerView.SCROLL_STATE_IDLE;
+                }
+            }.run();
+        }
+        monitor.stop();
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d rows formatted in %.1f us a row; %d flings: %d frames, %d dropped, "
+                        + "%.2f ms a frame on the main thread",
+                BENCHMARK_FLING_DAYS, formatNanos / 1e3 / BENCHMARK_FLING_DAYS, BENCHMARK_FLINGS,
+                monitor.getFrames(), monitor.getDroppedFrames(),
+                monitor.getBusyNanos() / 1e6 / Math.max(1, monitor.getFrames())));
+    }
+
+    static class ShownList {
+        RecyclerView recyclerView;
+        ForecastAdapter adapter;
+    }
+
+    /*
+        Puts a list of its own in the activity, showing the rows.
+     */
+    private ShownList showList(final List<ForecastRow> rows) {
+        final MainActivity activity = getActivity();
+        final ShownList list = new ShownList();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                list.recyclerView = new RecyclerView(activity);
+                list.recyclerView.setLayoutManager(new LinearLayoutManager(activity));
+                list.recyclerView.setHasFixedSize(true);
+                list.adapter = createAdapter(activity);
+                list.recyclerView.setAdapter(list.adapter);
+                list.adapter.swapRows(rows);
+                activity.setContentView(list.recyclerView);
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+        return list;
+    }
+
+    private long getFrameNanos() {
+        return (long) (1e9 / getActivity().getWindowManager().getDefaultDisplay()
+                .getRefreshRate());
+    }
+
+    /*
+        Adds up the time the main looper spends in its messages and the vsyncs its frames miss.
+        Its own frame callbacks are counted too, but they take next to nothing.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    class MainThreadMonitor implements Printer, Choreographer.FrameCallback {
+        private final long mFrameNanos;
+        private volatile boolean mRunning;
+        private long mMessageStartNanos;
+        private long mBusyNanos;
+        private long mLastFrameNanos;
+        private long mFrames;
+        private long mDroppedFrames;
+
+        MainThreadMonitor(long frameNanos) {
+            mFrameNanos = frameNanos;
+        }
+
+        void start() {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mRunning = true;
+                    Looper.getMainLooper().setMessageLogging(MainThreadMonitor.this);
+                    Choreographer.getInstance().postFrameCallback(MainThreadMonitor.this);
+                }
+            });
+        }
+
+        void stop() {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mRunning = false;
+                    Looper.getMainLooper().setMessageLogging(null);
+                    Choreographer.getInstance().removeFrameCallback(MainThreadMonitor.this);
+                }
+            });
+        }
+
+        @Override
+        public void println(String x) {
+            if (x.startsWith(">>>>>")) {
+                mMessageStartNanos = System.nanoTime();
+            } else if (x.startsWith("<<<<<") && mMessageStartNanos != 0) {
+                mBusyNanos += System.nanoTime() - mMessageStartNanos;
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) return;
+            if (mLastFrameNanos != 0) {
+                long missed = (frameTimeNanos - mLastFrameNanos + mFrameNanos / 2) / mFrameNanos
+                        - 1;
+                if (missed > 0) mDroppedFrames += missed;
+            }
+            mLastFrameNanos = frameTimeNanos;
+            mFrames++;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        long getBusyNanos() {
+            return mBusyNanos;
+        }
+
+        long getFrames() {
+            return mFrames;
+        }
+
+        long getDroppedFrames() {
+            return mDroppedFrames;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.Locale;
+import java.util.Random;
+
+/*
+    Checks that UnitFormatter formats every temperature and wind the way Utility did before it,
+    reading the unit preference and formatting each value, and that it follows a change of
+    units. Its benchmark, in BenchmarkSuite, times the two ways over the values a list or a
+    widget shows.
+ */
+public class TestUnitFormatter extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestUnitFormatter.class.getSimpleName();
+
+    static final int BENCHMARK_ROWS = 10000;
+
+    private static final double[] EDGE_TEMPERATURES = {0.0, -0.0, -0.4, -0.5, -0.6, 0.5,
+            0.49999999999999994, 2.5, -2.5, -17.5, -17.8, -150.5, 150.5, -200, 1e6,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    private static final float[] EDGE_DEGREES = {0f, 22.5f, 22.499998f, 67.5f, 112.5f, 157.5f,
+            202.5f, 247.5f, 292.5f, 337.5f, 337.49997f, 359.9f, 360f, 720f, -10f, Float.NaN};
+    private static final float[] EDGE_SPEEDS = {0f, -0f, 0.5f, 2.5f, -1f, 499.5f, 500.5f, 1e6f,
+            Float.NaN};
+
+    private SharedPreferences mPrefs;
+    private String mUnitsKey;
+    private String mUnits;
+    private UnitFormatter mFormatter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mUnitsKey = mContext.getString(R.string.pref_units_key);
+        mUnits = mPrefs.getString(mUnitsKey, mContext.getString(R.string.pref_units_metric));
+        mFormatter = UnitFormatter.getInstance(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        setUnits(mUnits);
+        super.tearDown();
+    }
+
+    /*
+        The listener hears of a change on the main thread, so this waits for it.
+     */
+    private void setUnits(String units) {
+        mPrefs.edit().putString(mUnitsKey, units).commit();
+        final boolean metric = units.equals(mContext.getString(R.string.pref_units_metric));
+        new PollingCheck() {
+            @Override
+            protected boolean check() {
+                return mFormatter.isMetric() == metric;
+            }
+        }.run();
+    }
+
+    /*
+        Utility.formatTemperature and Utility.getFormattedWind as they were.
+     */
+    private static boolean readIsMetric(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getString(context.getString(R.string.pref_units_key),
+                context.getString(R.string.pref_units_metric))
+                .equals(context.getString(R.string.pref_units_metric));
+    }
+
+    static String formatTemperatureEachTime(Context context, double temperature) {
+        if (!readIsMetric(context)) {
+            temperature = (temperature * 1.8) + 32;
+        }
+        return String.format(context.getString(R.string.format_temperature), temperature);
+    }
+
+    static String formatWindEachTime(Context context, float windSpeed, float degrees) {
+        int windFormat;
+        if (readIsMetric(context)) {
+            windFormat = R.string.format_wind_kmh;
+        } else {
+            windFormat = R.string.format_wind_mph;
+            windSpeed = .621371192237334f * windSpeed;
+        }
+        String direction = "Unknown";
+        if (degrees >= 337.5 || degrees < 22.5) {
+            direction = "N";
+        } else if (degrees >= 22.5 && degrees < 67.5) {
+            direction = "NE";
+        } else if (degrees >= 67.5 && degrees < 112.5) {
+            direction = "E";
+        } else if (degrees >= 112.5 && degrees < 157.5) {
+            direction = "SE";
+        } else if (degrees >= 157.5 && degrees < 202.5) {
+            direction = "S";
+        } else if (degrees >= 202.5 && degrees < 247.5) {
+            direction = "SW";
+        } else if (degrees >= 247.5 && degrees < 292.5) {
+            direction = "W";
+        } else if (degrees >= 292.5 && degrees < 337.5) {
+            direction = "NW";
+        }
+        return String.format(context.getString(windFormat), windSpeed, direction);
+    }
+
+    public void testTemperaturesMatchFormat() {
+        for (String units : new String[]{mContext.getString(R.string.pref_units_metric),
+                mContext.getString(R.string.pref_units_imperial)}) {
+            setUnits(units);
+            // Every twentieth of a degree, twice, so the second time comes from the table.
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = -2000; i <= 1200; i++) {
+                    double temperature = i / 20.0;
+                    assertEquals(units + " " + temperature,
+                            formatTemperatureEachTime(mContext, temperature),
+                            mFormatter.formatTemperature(temperature));
+                }
+                for (double temperature : EDGE_TEMPERATURES) {
+                    assertEquals(units + " " + temperature,
+                            formatTemperatureEachTime(mContext, temperature),
+                            Utility.formatTemperature(mContext, temperature));
+                }
+            }
+        }
+    }
+
+    public void testWindsMatchFormat() {
+        for (String units : new String[]{mContext.getString(R.string.pref_units_metric),
+                mContext.getString(R.string.pref_units_imperial)}) {
+            setUnits(units);
+            for (int speed = 0; speed <= 240; speed++) {
+                for (int degrees = -8; degrees <= 152; degrees++) {
+                    assertWindMatches(units, speed / 4f, degrees * 2.5f);
+                }
+            }
+            for (float speed : EDGE_SPEEDS) {
+                for (float degrees : EDGE_DEGREES) {
+                    assertWindMatches(units, speed, degrees);
+                }
+            }
+        }
+    }
+
+    private void assertWindMatches(String units, float speed, float degrees) {
+        assertEquals(units + " " + speed + " " + degrees,
+                formatWindEachTime(mContext, speed, degrees),
+                mFormatter.getFormattedWind(speed, degrees));
+    }
+
+    public void testUnitChangeIsFollowed() {
+        setUnits(mContext.getString(R.string.pref_units_imperial));
+        assertFalse(Utility.isMetric(mContext));
+        String freezing = Utility.formatTemperature(mContext, 0);
+        assertEquals(String.format(mContext.getString(R.string.format_temperature), 32.0),
+                freezing);
+
+        setUnits(mContext.getString(R.string.pref_units_metric));
+        assertTrue(Utility.isMetric(mContext));
+        assertFalse("Error: a change of units should change the temperature",
+                freezing.equals(Utility.formatTemperature(mContext, 0)));
+        assertEquals(String.format(mContext.getString(R.string.format_temperature), 10.0),
+                Utility.formatTemperature(mContext, 10.4));
+    }
+
+    /*
+        Formats the high and low of a row, as the list's loader and the widgets do, and a
+        wind, as the detail view does, for many made-up rows: first reading the preference
+        and formatting every value, then through UnitFormatter.
+     */
+    public void benchmarkFormatting() {
+        double[] highs = new double[BENCHMARK_ROWS];
+        double[] lows = new double[BENCHMARK_ROWS];
+        float[] speeds = new float[BENCHMARK_ROWS];
+        float[] directions = new float[BENCHMARK_ROWS];
+        Random random = new Random(42);
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            lows[i] = random.nextDouble() * 40 - 15;
+            highs[i] = lows[i] + random.nextDouble() * 15;
+            speeds[i] = random.nextFloat() * 60;
+            directions[i] = random.nextFloat() * 360;
+        }
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            formatTemperatureEachTime(mContext, highs[i]);
+            formatTemperatureEachTime(mContext, lows[i]);
+        }
+        long rowsBeforeNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            formatWindEachTime(mContext, speeds[i], directions[i]);
+        }
+        long windsBeforeNanos = System.nanoTime() - startNanos;
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            Utility.formatTemperature(mContext, highs[i]);
+            Utility.formatTemperature(mContext, lows[i]);
+        }
+        long rowsNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            Utility.getFormattedWind(mContext, speeds[i], directions[i]);
+        }
+        long windsNanos = System.nanoTime() - startNanos;
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "High and low of a row: %.2f us formatted each time, %.2f us from the table "
+                        + "(%.1fx); wind: %.2f us, %.2f us (%.1fx)",
+                rowsBeforeNanos / 1e3 / BENCHMARK_ROWS, rowsNanos / 1e3 / BENCHMARK_ROWS,
+                (double) rowsBeforeNanos / rowsNanos, windsBeforeNanos / 1e3 / BENCHMARK_ROWS,
+                windsNanos / 1e3 / BENCHMARK_ROWS, (double) windsBeforeNanos / windsNanos));
+    }
+}
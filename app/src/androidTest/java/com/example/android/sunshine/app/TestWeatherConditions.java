@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Locale;
+
+/*
+    Checks that WeatherConditions gives every condition id, and a few that aren't, the same
+    description, icon, art, art url and image Utility's chains of ranges did, with either art
+    pack. When run from BenchmarkSuite, it times the two ways over every id.
+ */
+public class TestWeatherConditions extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherConditions.class.getSimpleName();
+
+    static final int BENCHMARK_WARMUP_ROUNDS = 5;
+    static final int BENCHMARK_ROUNDS = 20;
+
+    private static final int[] OUT_OF_RANGE_IDS = {Integer.MIN_VALUE, -1000, -1,
+            WeatherConditions.MAX_WEATHER_ID + 1, 1000000, Integer.MAX_VALUE};
+
+    private SharedPreferences mPrefs;
+    private String mArtPackKey;
+    private String mArtPack;
+    private WeatherConditions mConditions;
+
+    // Keeps the benchmark's results alive, so none of its calls can be left out.
+    private int mSink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mArtPackKey = mContext.getString(R.string.pref_art_pack_key);
+        mArtPack = mPrefs.getString(mArtPackKey, null);
+        mConditions = WeatherConditions.getInstance(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (null == mArtPack) {
+            mPrefs.edit().remove(mArtPackKey).commit();
+        } else {
+            mPrefs.edit().putString(mArtPackKey, mArtPack).commit();
+        }
+        super.tearDown();
+    }
+
+    /*
+        Utility's weather condition helpers as they were.
+     */
+    static int getIconResourceByRanges(int weatherId) {
+        if (weatherId >= 200 && weatherId <= 232) {
+            return R.drawable.ic_storm;
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            return R.drawable.ic_light_rain;
+        } else if (weatherId >= 500 && weatherId <= 504) {
+            return R.drawable.ic_rain;
+        } else if (weatherId == 511) {
+            return R.drawable.ic_snow;
+        } else if (weatherId >= 520 && weatherId <= 531) {
+            return R.drawable.ic_rain;
+        } else if (weatherId >= 600 && weatherId <= 622) {
+            return R.drawable.ic_snow;
+        } else if (weatherId >= 701 && weatherId <= 761) {
+            return R.drawable.ic_fog;
+        } else if (weatherId == 761 || weatherId == 781) {
+            return R.drawable.ic_storm;
+        } else if (weatherId == 800) {
+            return R.drawable.ic_clear;
+        } else if (weatherId == 801) {
+            return R.drawable.ic_light_clouds;
+        } else if (weatherId >= 802 && weatherId <= 804) {
+            return R.drawable.ic_cloudy;
+        }
+        return -1;
+    }
+
+    static String getArtUrlByRanges(Context context, int weatherId) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String formatArtUrl = prefs.getString(context.getString(R.string.pref_art_pack_key),
+                context.getString(R.string.pref_art_pack_sunshine));
+        if (weatherId >= 200 && weatherId <= 232) {
+            return String.format(Locale.US, formatArtUrl, "storm");
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            return String.format(Locale.US, formatArtUrl, "light_rain");
+        } else if (weatherId >= 500 && weatherId <= 504) {
+            return String.format(Locale.US, formatArtUrl, "rain");
+        } else if (weatherId == 511) {
+            return String.format(Locale.US, formatArtUrl, "snow");
+        } else if (weatherId >= 520 && weatherId <= 531) {
+            return String.format(Locale.US, formatArtUrl, "rain");
+        } else if (weatherId >= 600 && weatherId <= 622) {
+            return String.format(Locale.US, formatArtUrl, "snow");
+        } else if (weatherId >= 701 && weatherId <= 761) {
+            return String.format(Locale.US, formatArtUrl, "fog");
+        } else if (weatherId == 761 || weatherId == 781) {
+            return String.format(Locale.US, formatArtUrl, "storm");
+        } else if (weatherId == 800) {
+            return String.format(Locale.US, formatArtUrl, "clear");
+        } else if (weatherId == 801) {
+            return String.format(Locale.US, formatArtUrl, "light_clouds");
+        } else if (weatherId >= 802 && weatherId <= 804) {
+            return String.format(Locale.US, formatArtUrl, "clouds");
+        }
+        return null;
+    }
+
+    static int getArtResourceByRanges(int weatherId) {
+        if (weatherId >= 200 && weatherId <= 232) {
+            return R.drawable.art_storm;
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            return R.drawable.art_light_rain;
+        } else if (weatherId >= 500 && weatherId <= 504) {
+            return R.drawable.art_rain;
+        } else if (weatherId == 511) {
+            return R.drawable.art_snow;
+        } else if (weatherId >= 520 && weatherId <= 531) {
+            return R.drawable.art_rain;
+        } else if (weatherId >= 600 && weatherId <= 622) {
+            return R.drawable.art_snow;
+        } else if (weatherId >= 701 && weatherId <= 761) {
+            return R.drawable.art_fog;
+        } else if (weatherId == 761 || weatherId == 781) {
+            return R.drawable.art_storm;
+        } else if (weatherId == 800) {
+            return R.drawable.art_clear;
+        } else if (weatherId == 801) {
+            return R.drawable.art_light_clouds;
+        } else if (weatherId >= 802 && weatherId <= 804) {
+            return R.drawable.art_clouds;
+        }
+        return -1;
+    }
+
+    static String getStringBySwitch(Context context, int weatherId) {
+        int stringId;
+        if (weatherId >= 200 && weatherId <= 232) {
+            stringId = R.string.condition_2xx;
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            stringId = R.string.condition_3xx;
+        } else switch (weatherId) {
+            case 500: stringId = R.string.condition_500; break;
+            case 501: stringId = R.string.condition_501; break;
+            case 502: stringId = R.string.condition_502; break;
+            case 503: stringId = R.string.condition_503; break;
+            case 504: stringId = R.string.condition_504; break;
+            case 511: stringId = R.string.condition_511; break;
+            case 520: stringId = R.string.condition_520; break;
+            case 531: stringId = R.string.condition_531; break;
+            case 600: stringId = R.string.condition_600; break;
+            case 601: stringId = R.string.condition_601; break;
+            case 602: stringId = R.string.condition_602; break;
+            case 611: stringId = R.string.condition_611; break;
+            case 612: stringId = R.string.condition_612; break;
+            case 615: stringId = R.string.condition_615; break;
+            case 616: stringId = R.string.condition_616; break;
+            case 620: stringId = R.string.condition_620; break;
+            case 621: stringId = R.string.condition_621; break;
+            case 622: stringId = R.string.condition_622; break;
+            case 701: stringId = R.string.condition_701; break;
+            case 711: stringId = R.string.condition_711; break;
+            case 721: stringId = R.string.condition_721; break;
+            case 731: stringId = R.string.condition_731; break;
+            case 741: stringId = R.string.condition_741; break;
+            case 751: stringId = R.string.condition_751; break;
+            case 761: stringId = R.string.condition_761; break;
+            case 762: stringId = R.string.condition_762; break;
+            case 771: stringId = R.string.condition_771; break;
+            case 781: stringId = R.string.condition_781; break;
+            case 800: stringId = R.string.condition_800; break;
+            case 801: stringId = R.string.condition_801; break;
+            case 802: stringId = R.string.condition_802; break;
+            case 803: stringId = R.string.condition_803; break;
+            case 804: stringId = R.string.condition_804; break;
+            case 900: stringId = R.string.condition_900; break;
+            case 901: stringId = R.string.condition_901; break;
+            case 902: stringId = R.string.condition_902; break;
+            case 903: stringId = R.string.condition_903; break;
+            case 904: stringId = R.string.condition_904; break;
+            case 905: stringId = R.string.condition_905; break;
+            case 906: stringId = R.string.condition_906; break;
+            case 951: stringId = R.string.condition_951; break;
+            case 952: stringId = R.string.condition_952; break;
+            case 953: stringId = R.string.condition_953; break;
+            case 954: stringId = R.string.condition_954; break;
+            case 955: stringId = R.string.condition_955; break;
+            case 956: stringId = R.string.condition_956; break;
+            case 957: stringId = R.string.condition_957; break;
+            case 958: stringId = R.string.condition_958; break;
+            case 959: stringId = R.string.condition_959; break;
+            case 960: stringId = R.string.condition_960; break;
+            case 961: stringId = R.string.condition_961; break;
+            case 962: stringId = R.string.condition_962; break;
+            default:
+                return context.getString(R.string.condition_unknown, weatherId);
+        }
+        return context.getString(stringId);
+    }
+
+    static String getImageUrlByRanges(int weatherId) {
+        if (weatherId >= 200 && weatherId <= 232) {
+            return "http://upload.wikimedia.org/wikipedia/commons/2/28/Thunderstorm_in_Annemasse,_France.jpg";
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            return "http://upload.wikimedia.org/wikipedia/commons/a/a0/Rain_on_leaf_504605006.jpg";
+        } else if (weatherId >= 500 && weatherId <= 504) {
+            return "http://upload.wikimedia.org/wikipedia/commons/6/6c/Rain-on-Thassos.jpg";
+        } else if (weatherId == 511) {
+            return "http://upload.wikimedia.org/wikipedia/commons/b/b8/Fresh_snow.JPG";
+        } else if (weatherId >= 520 && weatherId <= 531) {
+            return "http://upload.wikimedia.org/wikipedia/commons/6/6c/Rain-on-Thassos.jpg";
+        } else if (weatherId >= 600 && weatherId <= 622) {
+            return "http://upload.wikimedia.org/wikipedia/commons/b/b8/Fresh_snow.JPG";
+        } else if (weatherId >= 701 && weatherId <= 761) {
+            return "http://upload.wikimedia.org/wikipedia/commons/e/e6/Westminster_fog_-_London_-_UK.jpg";
+        } else if (weatherId == 761 || weatherId == 781) {
+            return "http://upload.wikimedia.org/wikipedia/commons/d/dc/Raised_dust_ahead_of_a_severe_thunderstorm_1.jpg";
+        } else if (weatherId == 800) {
+            return "http://upload.wikimedia.org/wikipedia/commons/7/7e/A_few_trees_and_the_sun_(6009964513).jpg";
+        } else if (weatherId == 801) {
+            return "http://upload.wikimedia.org/wikipedia/commons/e/e7/Cloudy_Blue_Sky_(5031259890).jpg";
+        } else if (weatherId >= 802 && weatherId <= 804) {
+            return "http://upload.wikimedia.org/wikipedia/commons/5/54/Cloudy_hills_in_Elis,_Greece_2.jpg";
+        }
+        return null;
+    }
+
+    public void testEveryIdMatchesRanges() {
+        for (int weatherId = 0; weatherId <= WeatherConditions.MAX_WEATHER_ID; weatherId++) {
+            assertIdMatches(weatherId);
+        }
+        for (int weatherId : OUT_OF_RANGE_IDS) {
+            assertIdMatches(weatherId);
+        }
+    }
+
+    private void assertIdMatches(int weatherId) {
+        assertEquals("Error: icon of " + weatherId, getIconResourceByRanges(weatherId),
+                Utility.getIconResourceForWeatherCondition(weatherId));
+        assertEquals("Error: art of " + weatherId, getArtResourceByRanges(weatherId),
+                Utility.getArtResourceForWeatherCondition(weatherId));
+        assertEquals("Error: image of " + weatherId, getImageUrlByRanges(weatherId),
+                Utility.getImageUrlForWeatherCondition(weatherId));
+        assertEquals("Error: description of " + weatherId,
+                getStringBySwitch(mContext, weatherId),
+                Utility.getStringForWeatherCondition(mContext, weatherId));
+    }
+
+    /*
+        Goes through every id with one pack, then the other, then the first again, so the urls
+        kept for a pack have to be dropped when it changes.
+     */
+    public void testArtUrlsFollowArtPack() {
+        String[] artPacks = {mContext.getString(R.string.pref_art_pack_sunshine),
+                mContext.getString(R.string.pref_art_pack_cute_dogs),
+                mContext.getString(R.string.pref_art_pack_sunshine)};
+        for (String artPack : artPacks) {
+            mPrefs.edit().putString(mArtPackKey, artPack).commit();
+            for (int weatherId = 0; weatherId <= WeatherConditions.MAX_WEATHER_ID; weatherId++) {
+                assertArtUrlMatches(artPack, weatherId);
+            }
+            for (int weatherId : OUT_OF_RANGE_IDS) {
+                assertArtUrlMatches(artPack, weatherId);
+            }
+        }
+    }
+
+    private void assertArtUrlMatches(String artPack, int weatherId) {
+        assertEquals("Error: art url of " + weatherId + " in " + artPack,
+                getArtUrlByRanges(mContext, weatherId),
+                Utility.getArtUrlForWeatherCondition(mContext, weatherId));
+    }
+
+    public void testArtUrlIsKept() {
+        String storm = mConditions.getArtUrl(200);
+        assertSame("Error: the art url should only be made once for a pack", storm,
+                mConditions.getArtUrl(232));
+        assertEquals(storm, mConditions.getArtUrl(781));
+        assertNull(mConditions.getArtUrl(900));
+    }
+
+    /*
+        Looks up everything there is for every id, the way a row of the list, a widget or a
+        notification does, with a few warm-up rounds before the timed ones, first through the
+        chains of ranges and then through the table.
+     */
+    public void benchmarkLookup() {
+        for (int round = 0; round < BENCHMARK_WARMUP_ROUNDS; round++) {
+            lookUpByRanges();
+            lookUpInTable();
+        }
+
+        long startNanos = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            lookUpByRanges();
+        }
+        long rangesNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            lookUpInTable();
+        }
+        long tableNanos = System.nanoTime() - startNanos;
+
+        int lookups = BENCHMARK_ROUNDS * (WeatherConditions.MAX_WEATHER_ID + 1);
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Every lookup for an id: %.1f ns by ranges, %.1f ns from the table (%.1fx) [%d]",
+                (double) rangesNanos / lookups, (double) tableNanos / lookups,
+                (double) rangesNanos / tableNanos, mSink));
+    }
+
+    private void lookUpByRanges() {
+        for (int weatherId = 0; weatherId <= WeatherConditions.MAX_WEATHER_ID; weatherId++) {
+            mSink += getIconResourceByRanges(weatherId) + getArtResourceByRanges(weatherId);
+            mSink += getStringBySwitch(mContext, weatherId).length();
+            String artUrl = getArtUrlByRanges(mContext, weatherId);
+            String imageUrl = getImageUrlByRanges(weatherId);
+            mSink += (null == artUrl ? 0 : artUrl.length()) + (null == imageUrl ? 0 : 1);
+        }
+    }
+
+    private void lookUpInTable() {
+        for (int weatherId = 0; weatherId <= WeatherConditions.MAX_WEATHER_ID; weatherId++) {
+            mSink += Utility.getIconResourceForWeatherCondition(weatherId)
+                    + Utility.getArtResourceForWeatherCondition(weatherId);
+            mSink += Utility.getStringForWeatherCondition(mContext, weatherId).length();
+            String artUrl = Utility.getArtUrlForWeatherCondition(mContext, weatherId);
+            String imageUrl = Utility.getImageUrlForWeatherCondition(weatherId);
+            mSink += (null == artUrl ? 0 : artUrl.length()) + (null == imageUrl ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/*
+    Writes a sync's results the way SunshineSyncAdapter does, as one applyBatch, and checks that
+    it is all or nothing and costs a single commit.
+ */
+public class TestApplyBatch extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestApplyBatch.class.getSimpleName();
+
+    static final int NUM_DAYS = 14;
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+
+    // The layouts of the database header and the write-ahead log, from sqlite.org/fileformat.html
+    static final int DATABASE_CHANGE_COUNTER_OFFSET = 24;
+    static final int WAL_HEADER_BYTES = 32;
+    static final int WAL_FRAME_HEADER_BYTES = 24;
+
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static ContentValues createDayValues(int day, double maxTemp) {
+        // The location_id is filled in by the back-reference.
+        ContentValues values = TestUtilities.createWeatherValues(0);
+        values.remove(WeatherEntry.COLUMN_LOC_KEY);
+        values.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + day * DAY_IN_MILLIS);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        return values;
+    }
+
+    /*
+        The same operations the sync adapter builds: the location, its days, and the retention
+        delete.
+     */
+    private static ArrayList<ContentProviderOperation> buildSyncBatch(double maxTemp) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (int i = 0; i < NUM_DAYS; i++) {
+            operations.add(ContentProviderOperation.newUpdate(WeatherEntry.buildWeatherUpsertUri())
+                    .withValues(createDayValues(i, maxTemp))
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE - DAY_IN_MILLIS)})
+                .build());
+        return operations;
+    }
+
+    private static int countWritten(ContentProviderResult[] results) {
+        int written = 0;
+        for (int i = 1; i <= NUM_DAYS; i++) {
+            written += results[i].count;
+        }
+        return written;
+    }
+
+    private int countRows(Uri uri) {
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testBatchFeedsLocationIdIntoWeather() throws Exception {
+        ContentProviderResult[] results =
+                mResolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, buildSyncBatch(75));
+        long locationId = ContentUris.parseId(results[0].uri);
+        assertEquals("Error: every day should have been written", NUM_DAYS,
+                countWritten(results));
+        assertEquals("Error: the days should be stored under the batch's location", NUM_DAYS,
+                countRows(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION)));
+
+        // The same batch again finds the stored location and writes nothing.
+        results = mResolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, buildSyncBatch(75));
+        assertEquals("Error: the stored location should have been reused",
+                locationId, ContentUris.parseId(results[0].uri));
+        assertEquals(1, countRows(LocationEntry.CONTENT_URI));
+        assertEquals("Error: an unchanged forecast should not write any rows", 0,
+                countWritten(results));
+
+        results = mResolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, buildSyncBatch(80));
+        assertEquals(NUM_DAYS, countWritten(results));
+        assertEquals(NUM_DAYS, countRows(WeatherEntry.CONTENT_URI));
+    }
+
+    public void testFailedBatchWritesNothing() throws Exception {
+        ArrayList<ContentProviderOperation> operations = buildSyncBatch(75);
+        // An assertion that can't hold, after everything else has been applied.
+        operations.add(ContentProviderOperation.newAssertQuery(LocationEntry.CONTENT_URI)
+                .withExpectedCount(2)
+                .build());
+        try {
+            mResolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the batch should have failed its assertion");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        assertEquals("Error: the failed batch left its location behind", 0,
+                countRows(LocationEntry.CONTENT_URI));
+        assertEquals("Error: the failed batch left its days behind", 0,
+                countRows(WeatherEntry.CONTENT_URI));
+    }
+
+    /*
+        Compares what a sync commits when it writes through separate provider calls, as it used
+        to, and through one batch. The commits are counted from what they leave in the database
+        files. Each one is a write that has to reach storage, but how many fsyncs that costs
+        depends on the journal mode and synchronous setting, which are logged alongside: the
+        fsyncs themselves can't be counted from inside the app.
+     */
+    public void testBatchCommitsOnce() throws Exception {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        try {
+            String journalMode = DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null);
+            long synchronous = DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null);
+            boolean wal = "wal".equalsIgnoreCase(journalMode);
+
+            CommitLog before = beginCounting(db, wal);
+            writeWithSeparateCalls(75);
+            long separateFirstSync = readCommitLog(wal).commitsSince(before);
+
+            before = beginCounting(db, wal);
+            writeWithSeparateCalls(80);
+            long separateLaterSync = readCommitLog(wal).commitsSince(before);
+
+            deleteAllRecords();
+            before = beginCounting(db, wal);
+            mResolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, buildSyncBatch(75));
+            long batchFirstSync = readCommitLog(wal).commitsSince(before);
+
+            before = beginCounting(db, wal);
+            mResolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, buildSyncBatch(80));
+            long batchLaterSync = readCommitLog(wal).commitsSince(before);
+
+            assertEquals("Error: the batch should commit once", 1, batchFirstSync);
+            assertEquals("Error: the batch should commit once", 1, batchLaterSync);
+            assertTrue(separateFirstSync > batchFirstSync);
+
+            Log.i(LOG_TAG, "Commits per sync, new location / known location: separate calls "
+                    + separateFirstSync + " / " + separateLaterSync + ", one batch "
+                    + batchFirstSync + " / " + batchLaterSync + " (journal_mode " + journalMode
+                    + ", synchronous " + synchronous + ")");
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /*
+        Where the weather database's commits stand on disk. With write-ahead logging, each
+        commit ends with a frame that records the size of the database, and the log gets new
+        salts when it starts over after a checkpoint. Without it, the file change counter in the
+        database header goes up by one on every commit.
+     */
+    private static class CommitLog {
+        final int salt1;
+        final int salt2;
+        final long commits;
+
+        CommitLog(int salt1, int salt2, long commits) {
+            this.salt1 = salt1;
+            this.salt2 = salt2;
+            this.commits = commits;
+        }
+
+        long commitsSince(CommitLog before) {
+            // A log that started over only holds the commits since then. beginCounting()
+            // checkpoints first, so it can only start over at the first commit being counted.
+            return salt1 == before.salt1 && salt2 == before.salt2
+                    ? commits - before.commits : commits;
+        }
+    }
+
+    private CommitLog beginCounting(SQLiteDatabase db, boolean wal) throws IOException {
+        if (wal) {
+            DatabaseUtils.stringForQuery(db, "PRAGMA wal_checkpoint", null);
+        }
+        return readCommitLog(wal);
+    }
+
+    private CommitLog readCommitLog(boolean wal) throws IOException {
+        File databaseFile = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        if (!wal) {
+            RandomAccessFile file = new RandomAccessFile(databaseFile, "r");
+            try {
+                file.seek(DATABASE_CHANGE_COUNTER_OFFSET);
+                return new CommitLog(0, 0, file.readInt() & 0xffffffffL);
+            } finally {
+                file.close();
+            }
+        }
+        File walFile = new File(databaseFile.getPath() + "-wal");
+        if (walFile.length() < WAL_HEADER_BYTES) {
+            return new CommitLog(0, 0, 0);
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(walFile)));
+        try {
+            // Magic number and format version.
+            in.readInt();
+            in.readInt();
+            int pageSize = in.readInt();
+            if (pageSize == 1) {
+                pageSize = 65536;
+            }
+            // Checkpoint sequence number.
+            in.readInt();
+            int salt1 = in.readInt();
+            int salt2 = in.readInt();
+            // Checksum.
+            in.readLong();
+
+            long frames = (walFile.length() - WAL_HEADER_BYTES)
+                    / (WAL_FRAME_HEADER_BYTES + pageSize);
+            byte[] rest = new byte[8 + pageSize];
+            long commits = 0;
+            for (long frame = 0; frame < frames; frame++) {
+                // Page number.
+                in.readInt();
+                int databasePagesAfterCommit = in.readInt();
+                if (in.readInt() != salt1 || in.readInt() != salt2) {
+                    // Left over from before the log started over.
+                    break;
+                }
+                if (databasePagesAfterCommit != 0) {
+                    commits++;
+                }
+                // Checksum and page.
+                in.readFully(rest);
+            }
+            return new CommitLog(salt1, salt2, commits);
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+        What SunshineSyncAdapter did before it used applyBatch: look the location up, add it if
+        it's missing, bulk insert the days, then delete the old ones.
+     */
+    private void writeWithSeparateCalls(double maxTemp) {
+        long locationId;
+        Cursor cursor = mResolver.query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION}, null);
+        if (cursor.moveToFirst()) {
+            locationId = cursor.getLong(0);
+        } else {
+            locationId = ContentUris.parseId(mResolver.insert(LocationEntry.CONTENT_URI,
+                    TestUtilities.createNorthPoleLocationValues()));
+        }
+        cursor.close();
+
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = createDayValues(i, maxTemp);
+            days[i].put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        }
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, days);
+        mResolver.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(TestUtilities.TEST_DATE - DAY_IN_MILLIS)});
+    }
+}
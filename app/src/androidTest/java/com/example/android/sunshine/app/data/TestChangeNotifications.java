@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestChangeNotifications extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestChangeNotifications.class.getSimpleName();
+
+    static final String LOCATION_A = "notify-a";
+    static final String LOCATION_B = "notify-b";
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+
+    // Long enough for a straggling notification to show up after the first one.
+    static final long SETTLE_MILLIS = 500;
+
+    /*
+        Counts onChange calls, on its own thread so the test thread can wait for them.
+     */
+    static class CountingObserver extends ContentObserver {
+        final HandlerThread mThread;
+        final AtomicInteger mChanges = new AtomicInteger();
+
+        static CountingObserver create() {
+            HandlerThread thread = new HandlerThread("CountingObserverThread");
+            thread.start();
+            return new CountingObserver(thread);
+        }
+
+        private CountingObserver(HandlerThread thread) {
+            super(new Handler(thread.getLooper()));
+            mThread = thread;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mChanges.incrementAndGet();
+        }
+
+        void waitForChange() {
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mChanges.get() > 0;
+                }
+            }.run();
+        }
+    }
+
+    private final List<CountingObserver> mObservers = new ArrayList<CountingObserver>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CountingObserver observer : mObservers) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.mThread.quit();
+        }
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private CountingObserver observe(Uri uri) {
+        CountingObserver observer = CountingObserver.create();
+        mObservers.add(observer);
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        return Long.parseLong(uri.getLastPathSegment());
+    }
+
+    private static Uri uri(String path) {
+        return Uri.parse("content://" + WeatherContract.CONTENT_AUTHORITY + "/" + path);
+    }
+
+    public void testCollapseDropsDescendantsOfPendingUris() {
+        List<Uri> collapsed = ChangeNotificationBatcher.collapse(Arrays.asList(
+                uri("weather/94043"), uri("weather"), uri("weather/94043/1419033600000"),
+                uri("location")));
+        assertEquals(new HashSet<Uri>(Arrays.asList(uri("weather"), uri("location"))),
+                new HashSet<Uri>(collapsed));
+    }
+
+    public void testCollapseKeepsSiblings() {
+        List<Uri> collapsed = ChangeNotificationBatcher.collapse(Arrays.asList(
+                uri("weather/94043"), uri("weather/10001"), uri("weather/10001/1419033600000")));
+        assertEquals(new HashSet<Uri>(Arrays.asList(uri("weather/94043"), uri("weather/10001"))),
+                new HashSet<Uri>(collapsed));
+    }
+
+    public void testCollapseReplacesManySiblingsWithParent() {
+        List<Uri> uris = new ArrayList<Uri>();
+        for (int i = 0; i <= ChangeNotificationBatcher.MAX_URIS_PER_PARENT; i++) {
+            uris.add(uri("weather/location-" + i));
+        }
+        assertEquals(Arrays.asList(uri("weather")), ChangeNotificationBatcher.collapse(uris));
+    }
+
+    public void testBatchHoldsChangesUntilItEnds() throws Exception {
+        Uri uri = WeatherEntry.buildWeatherLocation(LOCATION_A);
+        CountingObserver observer = observe(uri);
+        ChangeNotificationBatcher batcher =
+                new ChangeNotificationBatcher(mContext.getContentResolver());
+
+        batcher.beginBatch();
+        batcher.beginBatch();
+        batcher.notifyChange(uri);
+        batcher.endBatch(true);
+        batcher.notifyChange(uri);
+        Thread.sleep(ChangeNotificationBatcher.WINDOW_MILLIS + SETTLE_MILLIS);
+        assertEquals("Error: a change was sent before its batch ended", 0,
+                observer.mChanges.get());
+
+        batcher.endBatch(true);
+        observer.waitForChange();
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals("Error: the batch should be sent as one change", 1,
+                observer.mChanges.get());
+    }
+
+    /*
+        A transaction that rolls back changed nothing, even when only a batch nested in it did,
+        and the thread's next batch is sent as usual.
+     */
+    public void testRolledBackBatchIsDropped() throws Exception {
+        Uri uri = WeatherEntry.buildWeatherLocation(LOCATION_A);
+        CountingObserver observer = observe(uri);
+        ChangeNotificationBatcher batcher =
+                new ChangeNotificationBatcher(mContext.getContentResolver());
+
+        batcher.beginBatch();
+        batcher.notifyChange(uri);
+        batcher.endBatch(false);
+        batcher.beginBatch();
+        batcher.beginBatch();
+        batcher.notifyChange(uri);
+        batcher.endBatch(false);
+        batcher.endBatch(true);
+        Thread.sleep(ChangeNotificationBatcher.WINDOW_MILLIS + SETTLE_MILLIS);
+        assertEquals("Error: a change was sent for a batch that rolled back", 0,
+                observer.mChanges.get());
+
+        batcher.beginBatch();
+        batcher.notifyChange(uri);
+        batcher.endBatch(true);
+        observer.waitForChange();
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals("Error: the batch after a rollback should be sent", 1,
+                observer.mChanges.get());
+    }
+
+    /*
+        A sync writes the new forecast and then deletes the days that have passed. Observers of
+        that location should reload once, and observers of other locations not at all.
+     */
+    public void testSyncNotifiesOnlyItsLocationOnce() throws Exception {
+        long locationA = insertLocation(LOCATION_A);
+        insertLocation(LOCATION_B);
+
+        ContentValues[] yesterday =
+                new ContentValues[]{TestUtilities.createWeatherValues(locationA)};
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, yesterday);
+        Thread.sleep(ChangeNotificationBatcher.WINDOW_MILLIS + SETTLE_MILLIS);
+
+        CountingObserver observerA = observe(WeatherEntry.buildWeatherLocation(LOCATION_A));
+        CountingObserver observerB = observe(WeatherEntry.buildWeatherLocation(LOCATION_B));
+        CountingObserver observerAll = observe(WeatherEntry.CONTENT_URI);
+
+        ContentValues[] forecast = new ContentValues[3];
+        for (int i = 0; i < forecast.length; i++) {
+            forecast[i] = TestUtilities.createWeatherValues(locationA);
+            forecast[i].put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + (i + 1) * DAY_IN_MILLIS);
+        }
+        assertEquals(forecast.length,
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast));
+        assertEquals(1, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(WeatherContract.normalizeDate(
+                        TestUtilities.TEST_DATE))}));
+
+        observerA.waitForChange();
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals("Error: the insert and the delete should be sent as one change", 1,
+                observerA.mChanges.get());
+        assertEquals("Error: observers of the whole table should hear about it once", 1,
+                observerAll.mChanges.get());
+        assertEquals("Error: another location's observers were told about the change", 0,
+                observerB.mChanges.get());
+    }
+}
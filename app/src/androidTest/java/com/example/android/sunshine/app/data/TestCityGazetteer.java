@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+    Writes gazetteers, maps them back and looks cities up in them. When BenchmarkSuite runs it,
+    it also compares opening one and looking cities up with doing the same in a SQLite table of
+    the same cities.
+ */
+public class TestCityGazetteer extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestCityGazetteer.class.getSimpleName();
+
+    static final String TEST_FILE = "test_cities.gaz";
+
+    static final int BENCHMARK_CITIES = 200000;
+    static final int BENCHMARK_LOOKUPS = 1000;
+    static final String BENCHMARK_DATABASE = "cities.db";
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteFile(TEST_FILE);
+        mContext.deleteDatabase(BENCHMARK_DATABASE);
+        super.tearDown();
+    }
+
+    static List<CityGazetteer.City> createCities() {
+        return new ArrayList<CityGazetteer.City>(Arrays.asList(
+                new CityGazetteer.City("Portland", "US", 5746545, 45.5234, -122.6762, 583776),
+                new CityGazetteer.City("Portland", "US", 4975802, 43.6615, -70.2553, 66194),
+                new CityGazetteer.City("Portland", "AU", 2152668, -38.3333, 141.6, 10900),
+                new CityGazetteer.City("Port Louis", "MU", 934154, -20.1619, 57.4989, 155226),
+                new CityGazetteer.City("Porto", "PT", 2735943, 41.1496, -8.611, 249633),
+                new CityGazetteer.City("Seattle", "US", 5809844, 47.6062, -122.3321, 608660),
+                new CityGazetteer.City("Z\u00fcrich", "CH", 2657896, 47.3667, 8.55, 341730)));
+    }
+
+    private CityGazetteer writeAndOpen(List<CityGazetteer.City> cities) throws IOException {
+        OutputStream out = mContext.openFileOutput(TEST_FILE, Context.MODE_PRIVATE);
+        try {
+            CityGazetteer.write(cities, out);
+        } finally {
+            out.close();
+        }
+        return CityGazetteer.open(mContext.getFileStreamPath(TEST_FILE));
+    }
+
+    public void testFindCity() throws IOException {
+        CityGazetteer gazetteer = writeAndOpen(createCities());
+        assertEquals(7, gazetteer.size());
+
+        CityGazetteer.City seattle = gazetteer.find("SEATTLE", null);
+        assertNotNull("Error: a name should be found in any case", seattle);
+        assertEquals("Seattle", seattle.name);
+        assertEquals("US", seattle.countryCode);
+        assertEquals(5809844, seattle.cityId);
+        assertEquals(47.6062, seattle.latitude, 1e-6);
+        assertEquals(-122.3321, seattle.longitude, 1e-6);
+
+        assertEquals("Error: the most populous of the cities of that name should be found",
+                5746545, gazetteer.find("portland", null).cityId);
+        assertEquals(2152668, gazetteer.find("Portland", "au").cityId);
+        assertEquals(2657896, gazetteer.find("z\u00fcrich", null).cityId);
+        assertNull(gazetteer.find("Port", null));
+        assertNull(gazetteer.find("Portlands", null));
+        assertNull(gazetteer.find("Portland", "FR"));
+
+        assertEquals(2152668, gazetteer.findBySetting(" Portland,AU ").cityId);
+        assertEquals(5746545, gazetteer.findBySetting("portland").cityId);
+        assertEquals("Seattle,US", gazetteer.findBySetting("Seattle").getLocationSetting());
+        assertNull(gazetteer.findBySetting("98101"));
+    }
+
+    public void testSearchByPrefix() throws IOException {
+        CityGazetteer gazetteer = writeAndOpen(createCities());
+
+        List<CityGazetteer.City> cities = gazetteer.search("porto", 10);
+        assertEquals(1, cities.size());
+        assertEquals("Porto", cities.get(0).name);
+
+        // The exact match first, then by population.
+        cities = gazetteer.search("PORT", 10);
+        assertEquals(5, cities.size());
+        assertEquals(Arrays.asList(5746545, 2735943, 934154, 4975802, 2152668),
+                getCityIds(cities));
+        assertEquals(Arrays.asList(5746545, 2735943), getCityIds(gazetteer.search("port", 2)));
+        assertEquals(Arrays.asList(934154),
+                getCityIds(gazetteer.search("port louis", 10)));
+
+        assertTrue(gazetteer.search("x", 10).isEmpty());
+        assertEquals(7, gazetteer.search("", 10).size());
+    }
+
+    private static List<Integer> getCityIds(List<CityGazetteer.City> cities) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (CityGazetteer.City city : cities) {
+            ids.add(city.cityId);
+        }
+        return ids;
+    }
+
+    public void testDamagedFileIsTurnedDown() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CityGazetteer.write(createCities(), out);
+        byte[] bytes = out.toByteArray();
+
+        assertEquals(7, CityGazetteer.wrap(ByteBuffer.wrap(bytes)).size());
+        try {
+            CityGazetteer.wrap(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 1)));
+            fail("Error: a truncated gazetteer should be turned down");
+        } catch (IOException expected) {
+        }
+        bytes[0] = 'X';
+        try {
+            CityGazetteer.wrap(ByteBuffer.wrap(bytes));
+            fail("Error: a file that isn't a gazetteer should be turned down");
+        } catch (IOException expected) {
+        }
+    }
+
+    /*
+        Opens the same cities as a gazetteer and as an indexed SQLite table, and for each times
+        the first lookup after opening and then many more, and measures how much the process
+        grew, in PSS, which counts the mapped pages that were read as well as the heaps.
+     */
+    public void benchmarkColdOpen() throws IOException {
+        Random random = new Random(42);
+        List<CityGazetteer.City> cities = new ArrayList<CityGazetteer.City>(BENCHMARK_CITIES);
+        for (int i = 0; i < BENCHMARK_CITIES; i++) {
+            cities.add(new CityGazetteer.City(TestLocationSearch.buildCityName(random), "US",
+                    i + 1, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180,
+                    random.nextInt(1000000)));
+        }
+        String[] lookups = new String[BENCHMARK_LOOKUPS];
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = cities.get(random.nextInt(cities.size())).name.toLowerCase(Locale.US);
+        }
+
+        OutputStream out = mContext.openFileOutput(TEST_FILE, Context.MODE_PRIVATE);
+        try {
+            CityGazetteer.write(cities, out);
+        } finally {
+            out.close();
+        }
+        File file = mContext.getFileStreamPath(TEST_FILE);
+
+        mContext.deleteDatabase(BENCHMARK_DATABASE);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(BENCHMARK_DATABASE,
+                Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL("CREATE TABLE city (name TEXT NOT NULL, country TEXT NOT NULL, "
+                    + "city_id INTEGER NOT NULL, lat REAL NOT NULL, lon REAL NOT NULL, "
+                    + "population INTEGER NOT NULL);");
+            db.execSQL("CREATE INDEX city_name ON city (name COLLATE NOCASE);");
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (CityGazetteer.City city : cities) {
+                    values.put("name", city.name);
+                    values.put("country", city.countryCode);
+                    values.put("city_id", city.cityId);
+                    values.put("lat", city.latitude);
+                    values.put("lon", city.longitude);
+                    values.put("population", city.population);
+                    db.insert("city", null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+        cities = null;
+
+        // Gazetteer.
+        long startPss = getPssKb();
+        long startNanos = System.nanoTime();
+        CityGazetteer gazetteer = CityGazetteer.open(file);
+        assertNotNull(gazetteer.find(lookups[0], null));
+        long gazetteerOpenNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (String name : lookups) {
+            assertNotNull(gazetteer.find(name, null));
+        }
+        long gazetteerLookupNanos = System.nanoTime() - startNanos;
+        long gazetteerPssKb = getPssKb() - startPss;
+
+        // SQLite.
+        startPss = getPssKb();
+        startNanos = System.nanoTime();
+        db = SQLiteDatabase.openDatabase(mContext.getDatabasePath(BENCHMARK_DATABASE).getPath(),
+                null, SQLiteDatabase.OPEN_READONLY);
+        long sqliteOpenNanos;
+        long sqliteLookupNanos;
+        long sqlitePssKb;
+        try {
+            assertTrue(lookupInTable(db, lookups[0]));
+            sqliteOpenNanos = System.nanoTime() - startNanos;
+            startNanos = System.nanoTime();
+            for (String name : lookups) {
+                assertTrue(lookupInTable(db, name));
+            }
+            sqliteLookupNanos = System.nanoTime() - startNanos;
+            sqlitePssKb = getPssKb() - startPss;
+        } finally {
+            db.close();
+        }
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d cities. Gazetteer: %d bytes, open and first lookup %.2f ms, "
+                        + "%.1f us a lookup, %d KB more PSS. SQLite: %d bytes, "
+                        + "open and first lookup %.2f ms, %.1f us a lookup, %d KB more PSS",
+                BENCHMARK_CITIES, file.length(), gazetteerOpenNanos / 1e6,
+                gazetteerLookupNanos / 1e3 / BENCHMARK_LOOKUPS, gazetteerPssKb,
+                mContext.getDatabasePath(BENCHMARK_DATABASE).length(), sqliteOpenNanos / 1e6,
+                sqliteLookupNanos / 1e3 / BENCHMARK_LOOKUPS, sqlitePssKb));
+    }
+
+    private static boolean lookupInTable(SQLiteDatabase db, String name) {
+        Cursor cursor = db.query("city",
+                new String[]{"name", "country", "city_id", "lat", "lon", "population"},
+                "name = ? COLLATE NOCASE", new String[]{name}, null, null, "population DESC",
+                "1");
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long getPssKb() {
+        Debug.MemoryInfo memoryInfo = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(memoryInfo);
+        return memoryInfo.getTotalPss();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Reads forecasts through the provider the way the forecast list, the widgets and the
+    notification do, while another thread writes sync-sized batches, and logs how long the
+    reads took.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    static final int NUM_LOCATIONS = 20;
+    static final int NUM_DAYS = 14;
+    static final int NUM_SYNCS = 50;
+    static final int NUM_READERS = 3;
+
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+    static final long START_DATE = WeatherContract.normalizeDate(1419033600000L);
+
+    private ContentResolver mResolver;
+    private long[] mLocationIds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        deleteAllRecords();
+
+        mLocationIds = new long[NUM_LOCATIONS];
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            ContentValues location = new ContentValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, getLocationSetting(i));
+            location.put(LocationEntry.COLUMN_CITY_NAME, "City " + i);
+            location.put(LocationEntry.COLUMN_COORD_LAT, 40.0 + i);
+            location.put(LocationEntry.COLUMN_COORD_LONG, -120.0 + i);
+            Uri uri = mResolver.insert(LocationEntry.CONTENT_URI, location);
+            mLocationIds[i] = Long.parseLong(uri.getLastPathSegment());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    static String getLocationSetting(int i) {
+        return "concurrent-" + i;
+    }
+
+    public void testDatabaseUsesWriteAheadLog() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertEquals("Error: the database isn't in write-ahead log mode", "wal",
+                    DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)
+                            .toLowerCase(Locale.US));
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testReadLatencyDuringSync() throws Exception {
+        // Start from a full table, like any sync after the first.
+        writeSync(0);
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final List<List<Long>> latencies = new ArrayList<List<Long>>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < NUM_READERS; r++) {
+            final List<Long> readerLatencies = new ArrayList<Long>();
+            latencies.add(readerLatencies);
+            final int reader = r;
+            readers.add(new Thread("ForecastReader-" + r) {
+                @Override
+                public void run() {
+                    int read = 0;
+                    while (writing.get()) {
+                        String locationSetting =
+                                getLocationSetting((reader + read++) % NUM_LOCATIONS);
+                        long start = System.nanoTime();
+                        Cursor cursor = mResolver.query(
+                                WeatherEntry.buildWeatherLocationWithStartDate(
+                                        locationSetting, START_DATE),
+                                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                        // The cursor isn't filled until it's first moved.
+                        cursor.moveToFirst();
+                        cursor.close();
+                        readerLatencies.add(System.nanoTime() - start);
+                    }
+                }
+            });
+        }
+
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        long writeStart = System.nanoTime();
+        try {
+            for (int sync = 1; sync <= NUM_SYNCS; sync++) {
+                writeSync(sync);
+            }
+        } finally {
+            writing.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        long writeMillis = (System.nanoTime() - writeStart) / 1000000;
+
+        int count = 0;
+        for (List<Long> readerLatencies : latencies) {
+            count += readerLatencies.size();
+        }
+        assertTrue("Error: no reads finished while the syncs were writing", count > 0);
+        long[] sorted = new long[count];
+        int i = 0;
+        for (List<Long> readerLatencies : latencies) {
+            for (Long latency : readerLatencies) {
+                sorted[i++] = latency;
+            }
+        }
+        Arrays.sort(sorted);
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d syncs in %d ms; %d reads on %d threads: "
+                        + "p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                NUM_SYNCS, writeMillis, count, NUM_READERS,
+                percentileMillis(sorted, 50), percentileMillis(sorted, 90),
+                percentileMillis(sorted, 99), sorted[count - 1] / 1e6));
+    }
+
+    static double percentileMillis(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /*
+        Writes what a sync of every location writes: a bulk insert where every day has changed,
+        then the delete of days before the forecast starts.
+     */
+    private void writeSync(int sync) {
+        ContentValues[] rows = new ContentValues[NUM_LOCATIONS * NUM_DAYS];
+        int row = 0;
+        for (long locationId : mLocationIds) {
+            for (int day = 0; day < NUM_DAYS; day++) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+                values.put(WeatherEntry.COLUMN_DATE, START_DATE + (sync + day) * DAY_IN_MILLIS);
+                values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+                values.put(WeatherEntry.COLUMN_PRESSURE, 1010.0);
+                values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.5);
+                values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+                values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + sync % 10);
+                values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0 + sync % 10);
+                values.put(WeatherEntry.COLUMN_SHORT_DESC, "Clouds");
+                values.put(WeatherEntry.COLUMN_WEATHER_ID, 803);
+                rows[row++] = values;
+            }
+        }
+        assertEquals(rows.length, mResolver.bulkInsert(WeatherEntry.CONTENT_URI, rows));
+        mResolver.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(START_DATE + (sync - 1) * DAY_IN_MILLIS)});
+    }
+}
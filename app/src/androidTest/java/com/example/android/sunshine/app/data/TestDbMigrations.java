@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Builds the database as each earlier version of the app left it, opens it with the current
+    helper, and checks that it ends up with the same schema as a new install and still holds
+    its forecast.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbMigrations.class.getSimpleName();
+
+    static final int FIRST_MIGRATED_VERSION = 2;
+
+    /*
+        What each version added, starting with version 2. These are copies of the statements as
+        they were shipped, not the helper's current ones, so they must never be edited; a new
+        version only adds an entry.
+     */
+    static final String[][] SCHEMA_HISTORY = {
+            // 2
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY,"
+                            + "location_setting TEXT UNIQUE NOT NULL, city_name TEXT NOT NULL, "
+                            + "coord_lat REAL NOT NULL, coord_long REAL NOT NULL  );",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+                            + "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL,"
+                            + "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, "
+                            + "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL, "
+                            + " FOREIGN KEY (location_id) REFERENCES location (_id),  "
+                            + "UNIQUE (date, location_id) ON CONFLICT REPLACE);"
+            },
+            // 3
+            {
+                    "CREATE INDEX weather_location_date ON weather (location_id, date);"
+            },
+            // 4
+            {
+                    "CREATE TABLE hourly (_id INTEGER PRIMARY KEY, weather_id INTEGER NOT NULL, "
+                            + "temp INTEGER NOT NULL, pressure INTEGER NOT NULL, "
+                            + "humidity INTEGER NOT NULL, wind INTEGER NOT NULL, "
+                            + "degrees INTEGER NOT NULL);"
+            },
+            // 5
+            {
+                    "CREATE VIEW weather_values AS SELECT _id, location_id, date, short_desc, "
+                            + "weather_id, min, max, humidity, pressure, wind, degrees "
+                            + "FROM weather"
+            },
+            // 6
+            {
+                    "CREATE TABLE archive (_id INTEGER PRIMARY KEY, day_count INTEGER NOT NULL, "
+                            + "data BLOB NOT NULL);"
+            },
+            // 7
+            {
+                    "ALTER TABLE location ADD COLUMN grid_cell INTEGER",
+                    "CREATE TRIGGER location_grid_cell_insert AFTER INSERT ON location BEGIN "
+                            + "UPDATE location SET grid_cell = (CAST((coord_lat + 90) / 0.25 AS "
+                            + "INTEGER) * 1440 + CAST((coord_long + 180) / 0.25 AS INTEGER) % 1440)"
+                            + " WHERE _id = NEW._id; END;",
+                    "CREATE TRIGGER location_grid_cell_update AFTER UPDATE OF coord_lat, "
+                            + "coord_long ON location BEGIN "
+                            + "UPDATE location SET grid_cell = (CAST((coord_lat + 90) / 0.25 AS "
+                            + "INTEGER) * 1440 + CAST((coord_long + 180) / 0.25 AS INTEGER) % 1440)"
+                            + " WHERE _id = NEW._id; END;",
+                    "CREATE INDEX location_grid_cell ON location (grid_cell);"
+            },
+            // 8
+            {
+                    "CREATE VIRTUAL TABLE location_search USING fts3(city_name, location_setting);",
+                    "CREATE TRIGGER location_search_insert AFTER INSERT ON location BEGIN "
+                            + "INSERT INTO location_search (docid, city_name, location_setting) "
+                            + "SELECT _id, city_name, location_setting FROM location "
+                            + "WHERE _id = NEW._id; END;",
+                    "CREATE TRIGGER location_search_update AFTER UPDATE OF city_name, "
+                            + "location_setting ON location BEGIN UPDATE location_search SET "
+                            + "city_name = NEW.city_name, location_setting = NEW.location_setting "
+                            + "WHERE docid = OLD._id; END;",
+                    "CREATE TRIGGER location_search_delete AFTER DELETE ON location BEGIN "
+                            + "DELETE FROM location_search WHERE docid = OLD._id; END;"
+            },
+            // 9
+            {
+                    "ALTER TABLE location ADD COLUMN sync INTEGER NOT NULL DEFAULT 0"
+            }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        List<String> currentSchema = getCurrentSchema();
+        int lastVersion = FIRST_MIGRATED_VERSION + SCHEMA_HISTORY.length - 1;
+        for (int version = FIRST_MIGRATED_VERSION; version <= lastVersion; version++) {
+            SQLiteDatabase db = mContext.openOrCreateDatabase(WeatherDbHelper.DATABASE_NAME,
+                    Context.MODE_PRIVATE, null);
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            ContentValues[] days = new ContentValues[TestFixedPointStorage.NUM_DAYS];
+            ContentValues hour = null;
+            try {
+                for (int i = 0; i <= version - FIRST_MIGRATED_VERSION; i++) {
+                    for (String statement : SCHEMA_HISTORY[i]) {
+                        db.execSQL(statement);
+                    }
+                }
+                long locationId = db.insert(LocationEntry.TABLE_NAME, null, location);
+                location.put(LocationEntry._ID, locationId);
+                for (int i = 0; i < days.length; i++) {
+                    days[i] = TestFixedPointStorage.createDayValues(locationId, i);
+                    days[i].put(WeatherEntry._ID,
+                            db.insert(WeatherEntry.TABLE_NAME, null, days[i]));
+                }
+                if (version >= 4) {
+                    hour = new ContentValues();
+                    hour.put(HourlyEntry._ID, HourlyForecastStore.packKey(
+                            locationId, TestFixedPointStorage.START_DATE));
+                    hour.put(HourlyEntry.COLUMN_WEATHER_ID, 500);
+                    hour.put(HourlyEntry.COLUMN_TEMP, 127);
+                    hour.put(HourlyEntry.COLUMN_PRESSURE, 10132);
+                    hour.put(HourlyEntry.COLUMN_HUMIDITY, 81);
+                    hour.put(HourlyEntry.COLUMN_WIND_SPEED, 36);
+                    hour.put(HourlyEntry.COLUMN_DEGREES, 270);
+                    db.insert(HourlyEntry.TABLE_NAME, null, hour);
+                }
+                db.setVersion(version);
+            } finally {
+                db.close();
+            }
+
+            WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, false);
+            try {
+                db = dbHelper.getWritableDatabase();
+                String error = "Error: upgrading from version " + version + ". ";
+                assertEquals(error + "The schema is not the one a new install gets.",
+                        currentSchema, describeSchema(db));
+                assertRows(error + "The location was lost.", db, LocationEntry.TABLE_NAME,
+                        new ContentValues[]{location});
+                assertEquals(error + "The location should only be synced once it's chosen.",
+                        0, DatabaseUtils.longForQuery(db, "SELECT "
+                                + LocationEntry.COLUMN_SYNC + " FROM "
+                                + LocationEntry.TABLE_NAME, null));
+                assertEquals(error + "The location has no grid cell.",
+                        LocationGrid.getCell(location.getAsDouble(LocationEntry.COLUMN_COORD_LAT),
+                                location.getAsDouble(LocationEntry.COLUMN_COORD_LONG)),
+                        DatabaseUtils.longForQuery(db, "SELECT "
+                                + LocationEntry.COLUMN_GRID_CELL + " FROM "
+                                + LocationEntry.TABLE_NAME, null));
+                Cursor found = LocationSearch.query(db,
+                        location.getAsString(LocationEntry.COLUMN_CITY_NAME), null, null, null);
+                try {
+                    assertEquals(error + "The location can't be searched for.", 1,
+                            found.getCount());
+                } finally {
+                    found.close();
+                }
+                // Read through the view, which has to be there after the upgrade.
+                assertRows(error + "The forecast was lost.", db, WeatherFixedPoint.DECODED_TABLE,
+                        days);
+                assertRows(error + "The hourly forecast was lost.", db, HourlyEntry.TABLE_NAME,
+                        hour == null ? new ContentValues[0] : new ContentValues[]{hour});
+            } finally {
+                dbHelper.close();
+            }
+            mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        }
+    }
+
+    /*
+        Versions before 2 aren't migrated, but they still have to open into the current schema.
+     */
+    public void testUpgradeFromUnknownVersionStartsOver() {
+        List<String> currentSchema = getCurrentSchema();
+        SQLiteDatabase db = mContext.openOrCreateDatabase(WeatherDbHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL("CREATE TABLE weather (_id INTEGER PRIMARY KEY, date TEXT NOT NULL);");
+            db.execSQL("INSERT INTO weather (date) VALUES ('20141220')");
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, false);
+        try {
+            db = dbHelper.getWritableDatabase();
+            assertEquals("Error: the schema is not the one a new install gets.",
+                    currentSchema, describeSchema(db));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /*
+        The schema of a new install, in the REAL storage mode every earlier version used.
+     */
+    private List<String> getCurrentSchema() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, false);
+        try {
+            return describeSchema(dbHelper.getReadableDatabase());
+        } finally {
+            dbHelper.close();
+            mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        }
+    }
+
+    /*
+        Every table, view and index with its columns, in a form two databases can be compared
+        with. The statements themselves aren't compared, since the same schema can be written
+        more than one way.
+     */
+    static List<String> describeSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        Cursor master = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master"
+                + " WHERE name NOT IN ('android_metadata', 'sqlite_sequence')"
+                + " ORDER BY type, name", null);
+        try {
+            while (master.moveToNext()) {
+                String type = master.getString(0);
+                String name = master.getString(1);
+                schema.add(type + " " + name + " ON " + master.getString(2));
+                boolean isIndex = "index".equals(type);
+                Cursor columns = db.rawQuery("PRAGMA " + (isIndex ? "index_info" : "table_info")
+                        + "(" + name + ")", null);
+                try {
+                    while (columns.moveToNext()) {
+                        if (isIndex) {
+                            schema.add("  " + columns.getString(columns.getColumnIndex("name")));
+                        } else {
+                            schema.add("  " + columns.getString(columns.getColumnIndex("name"))
+                                    + " " + columns.getString(columns.getColumnIndex("type"))
+                                    + " notnull=" + columns.getInt(
+                                    columns.getColumnIndex("notnull"))
+                                    + " pk=" + columns.getInt(columns.getColumnIndex("pk")));
+                        }
+                    }
+                } finally {
+                    columns.close();
+                }
+            }
+        } finally {
+            master.close();
+        }
+        return schema;
+    }
+
+    /*
+        Checks that the table holds exactly the expected rows, in _ID order.
+     */
+    static void assertRows(String error, SQLiteDatabase db, String table,
+            ContentValues[] expected) {
+        Cursor cursor = db.query(table, null, null, null, null, null, "_id ASC");
+        try {
+            assertEquals(error, expected.length, cursor.getCount());
+            for (ContentValues values : expected) {
+                assertTrue(error, cursor.moveToNext());
+                for (Map.Entry<String, Object> entry : values.valueSet()) {
+                    int index = cursor.getColumnIndex(entry.getKey());
+                    assertTrue(error + "Missing column " + entry.getKey(), index != -1);
+                    if (entry.getValue() instanceof Number) {
+                        assertEquals(error + entry.getKey(),
+                                ((Number) entry.getValue()).doubleValue(),
+                                cursor.getDouble(index), 0);
+                    } else {
+                        assertEquals(error + entry.getKey(), entry.getValue().toString(),
+                                cursor.getString(index));
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Checks that the fixed-point storage mode hands back what was written and that switching
+    modes converts the stored forecast. BenchmarkSuite also compares the size and speed of the
+    two modes.
+ */
+public class TestFixedPointStorage extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestFixedPointStorage.class.getSimpleName();
+
+    static final int NUM_DAYS = 14;
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+    static final long START_DATE = 1419033600000L;  // December 20th, 2014
+
+    static final int BENCHMARK_LOCATIONS = 200;
+    static final int BENCHMARK_ITERATIONS = 10;
+    static final String REAL_DATABASE = "weather_real.db";
+    static final String FIXED_POINT_DATABASE = "weather_fixed_point.db";
+
+    static final String[] VALUE_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mContext.deleteDatabase(REAL_DATABASE);
+        mContext.deleteDatabase(FIXED_POINT_DATABASE);
+        super.tearDown();
+    }
+
+    /*
+        A forecast day with the precision OWM sends: two decimals for temperatures, pressure and
+        wind, whole numbers for humidity and direction.
+     */
+    static ContentValues createDayValues(long locationId, int day) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        values.put(WeatherEntry.COLUMN_DATE, START_DATE + day * DAY_IN_MILLIS);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + day % 5);
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, day % 2 == 0 ? "Clear" : "Clouds");
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, -3.47 + day + 0.01 * locationId);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 12.83 + day);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, (double) (55 + day));
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1013.27 - day);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.61 + 0.12 * day);
+        values.put(WeatherEntry.COLUMN_DEGREES, (double) (day * 25 % 360));
+        return values;
+    }
+
+    private static ContentValues[] createDays(long locationId) {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = createDayValues(locationId, i);
+        }
+        return days;
+    }
+
+    public void testFixedPointRoundTrip() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, true);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            assertTrue(WeatherFixedPoint.isFixedPoint(db));
+            long locationId = db.insert(LocationEntry.TABLE_NAME, null,
+                    TestUtilities.createNorthPoleLocationValues());
+
+            ContentValues[] days = createDays(locationId);
+            WeatherBulkInserter inserter = new WeatherBulkInserter(db, true);
+            inserter.bulkInsert(days);
+            assertEquals(NUM_DAYS, inserter.getResult().inserted);
+            assertDecodedDays(db, days);
+
+            // The encoded values have to compare equal to what is stored, or every sync would
+            // rewrite every day.
+            inserter = new WeatherBulkInserter(db, true);
+            inserter.bulkInsert(createDays(locationId));
+            assertEquals("Error: an unchanged forecast should not be written", NUM_DAYS,
+                    inserter.getResult().untouched);
+            inserter = new WeatherBulkInserter(db, true);
+            for (ContentValues day : createDays(locationId)) {
+                // upsert expects the date already normalized, as the provider does it.
+                day.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                        day.getAsLong(WeatherEntry.COLUMN_DATE)));
+                inserter.upsert(day);
+            }
+            assertEquals(NUM_DAYS, inserter.getResult().untouched);
+
+            // Stored as integers, in hundredths.
+            assertEquals(Math.round(days[0].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP) * 100),
+                    DatabaseUtils.longForQuery(db, "SELECT " + WeatherEntry.COLUMN_MAX_TEMP
+                            + " FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+                            + WeatherEntry.COLUMN_DATE + " = ?",
+                    new String[]{days[0].getAsString(WeatherEntry.COLUMN_DATE)}));
+            assertEquals("integer", DatabaseUtils.stringForQuery(db, "SELECT typeof("
+                    + WeatherEntry.COLUMN_PRESSURE + ") FROM " + WeatherEntry.TABLE_NAME
+                    + " LIMIT 1", null));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    public void testSwitchingModesConvertsTheForecast() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, false);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues[] days;
+        long firstId;
+        try {
+            assertFalse(WeatherFixedPoint.isFixedPoint(db));
+            long locationId = db.insert(LocationEntry.TABLE_NAME, null,
+                    TestUtilities.createNorthPoleLocationValues());
+            days = createDays(locationId);
+            new WeatherBulkInserter(db, false).bulkInsert(days);
+            firstId = DatabaseUtils.longForQuery(db,
+                    "SELECT MIN(" + WeatherEntry._ID + ") FROM " + WeatherEntry.TABLE_NAME, null);
+        } finally {
+            dbHelper.close();
+        }
+
+        dbHelper = new WeatherDbHelper(mContext, true);
+        db = dbHelper.getWritableDatabase();
+        try {
+            assertTrue("Error: opening in fixed point should convert the table",
+                    WeatherFixedPoint.isFixedPoint(db));
+            assertDecodedDays(db, days);
+            assertEquals("Error: the rows should keep their _IDs", firstId,
+                    DatabaseUtils.longForQuery(db, "SELECT MIN(" + WeatherEntry._ID + ") FROM "
+                            + WeatherEntry.TABLE_NAME, null));
+            assertEquals(NUM_DAYS, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                    + WeatherEntry.TABLE_NAME + " INDEXED BY "
+                    + WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE + " WHERE "
+                    + WeatherEntry.COLUMN_LOC_KEY + " > 0", null));
+        } finally {
+            dbHelper.close();
+        }
+
+        dbHelper = new WeatherDbHelper(mContext, false);
+        db = dbHelper.getWritableDatabase();
+        try {
+            assertFalse("Error: opening in REAL mode should convert the table back",
+                    WeatherFixedPoint.isFixedPoint(db));
+            assertDecodedDays(db, days);
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /*
+        Reads the days back through the view the provider queries, in date order.
+     */
+    private static void assertDecodedDays(SQLiteDatabase db, ContentValues[] days) {
+        Cursor cursor = db.query(WeatherFixedPoint.DECODED_TABLE, null, null, null, null, null,
+                WeatherEntry.COLUMN_DATE);
+        try {
+            assertEquals(days.length, cursor.getCount());
+            for (int i = 0; cursor.moveToNext(); i++) {
+                assertEquals((long) days[i].getAsLong(WeatherEntry.COLUMN_DATE),
+                        cursor.getLong(cursor.getColumnIndex(WeatherEntry.COLUMN_DATE)));
+                assertEquals(days[i].getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                        cursor.getString(cursor.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC)));
+                for (String column : VALUE_COLUMNS) {
+                    assertEquals("Error: " + column + " didn't come back as it was written",
+                            days[i].getAsDouble(column),
+                            cursor.getDouble(cursor.getColumnIndex(column)), 1e-9);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        Writes and reads the same 200 locations of 14 days in a database of each mode. Each
+        database is vacuumed before it is measured, so the page counts compare the layouts.
+     */
+    public void benchmarkStorage() {
+        SQLiteDatabase real = createBenchmarkDatabase(REAL_DATABASE, false);
+        SQLiteDatabase fixedPoint = createBenchmarkDatabase(FIXED_POINT_DATABASE, true);
+        try {
+            ContentValues[] days = new ContentValues[BENCHMARK_LOCATIONS * NUM_DAYS];
+            for (int location = 0; location < BENCHMARK_LOCATIONS; location++) {
+                for (int day = 0; day < NUM_DAYS; day++) {
+                    days[location * NUM_DAYS + day] = createDayValues(location + 1, day);
+                }
+            }
+            long realInsertNanos = insertDays(real, false, days);
+            long fixedPointInsertNanos = insertDays(fixedPoint, true, days);
+
+            long realBytes = measureSize(real);
+            long fixedPointBytes = measureSize(fixedPoint);
+
+            // Warm up both.
+            readForecasts(real);
+            readForecasts(fixedPoint);
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                readForecasts(real);
+            }
+            long realReadNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                readForecasts(fixedPoint);
+            }
+            long fixedPointReadNanos = System.nanoTime() - start;
+
+            // A range condition on a value column, compared in the stored representation.
+            String warmDays = "SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+                    + WeatherEntry.COLUMN_MAX_TEMP + " >= ?";
+            start = System.nanoTime();
+            long realWarmDays = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                realWarmDays = DatabaseUtils.longForQuery(real, warmDays, new String[]{"20"});
+            }
+            long realRangeNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            long fixedPointWarmDays = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                fixedPointWarmDays = DatabaseUtils.longForQuery(fixedPoint, warmDays,
+                        new String[]{"2000"});
+            }
+            long fixedPointRangeNanos = System.nanoTime() - start;
+
+            assertEquals(realWarmDays, fixedPointWarmDays);
+            assertTrue("Error: fixed point should take less space", fixedPointBytes < realBytes);
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d days: REAL %d bytes, fixed point %d bytes; insert REAL %.1f ms, "
+                            + "fixed point %.1f ms; read every forecast REAL %.1f ms, "
+                            + "fixed point %.1f ms; max >= x REAL %.2f ms, fixed point %.2f ms",
+                    days.length, realBytes, fixedPointBytes,
+                    realInsertNanos / 1e6, fixedPointInsertNanos / 1e6,
+                    realReadNanos / 1e6 / BENCHMARK_ITERATIONS,
+                    fixedPointReadNanos / 1e6 / BENCHMARK_ITERATIONS,
+                    realRangeNanos / 1e6 / BENCHMARK_ITERATIONS,
+                    fixedPointRangeNanos / 1e6 / BENCHMARK_ITERATIONS));
+        } finally {
+            real.close();
+            fixedPoint.close();
+        }
+    }
+
+    private SQLiteDatabase createBenchmarkDatabase(String name, boolean fixedPoint) {
+        mContext.deleteDatabase(name);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        db.execSQL(WeatherDbHelper.buildWeatherTableSql(WeatherEntry.TABLE_NAME, fixedPoint));
+        db.execSQL(WeatherDbHelper.SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        db.execSQL(WeatherFixedPoint.buildViewSql(fixedPoint));
+        return db;
+    }
+
+    private static long insertDays(SQLiteDatabase db, boolean fixedPoint, ContentValues[] days) {
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            new WeatherBulkInserter(db, fixedPoint).bulkInsert(days);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long measureSize(SQLiteDatabase db) {
+        db.execSQL("VACUUM");
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    /*
+        Reads every location's forecast through the view, the way the provider serves a
+        weather/<setting> query.
+     */
+    private static void readForecasts(SQLiteDatabase db) {
+        for (long location = 1; location <= BENCHMARK_LOCATIONS; location++) {
+            Cursor cursor = db.query(WeatherFixedPoint.DECODED_TABLE, null,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE
+                            + " >= ?",
+                    new String[]{Long.toString(location),
+                            Long.toString(WeatherContract.normalizeDate(START_DATE))},
+                    null, null, WeatherEntry.COLUMN_DATE);
+            try {
+                double sum = 0;
+                int minColumn = cursor.getColumnIndex(WeatherEntry.COLUMN_MIN_TEMP);
+                while (cursor.moveToNext()) {
+                    for (int column = minColumn; column < cursor.getColumnCount(); column++) {
+                        sum += cursor.getDouble(column);
+                    }
+                }
+                assertTrue(sum != 0);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
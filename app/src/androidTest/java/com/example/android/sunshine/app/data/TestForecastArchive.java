@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+
+/*
+    Checks that days moved into the archive come back out unchanged and that the archive keeps
+    to its size. Its benchmark, for BenchmarkSuite, compares that size with keeping the same
+    days in the weather table.
+ */
+public class TestForecastArchive extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastArchive.class.getSimpleName();
+
+    static final long DAY_IN_MILLIS = TestFixedPointStorage.DAY_IN_MILLIS;
+    static final long START_DATE = TestFixedPointStorage.START_DATE;  // December 20th, 2014
+    static final int NUM_DAYS = TestFixedPointStorage.NUM_DAYS;
+
+    static final int BENCHMARK_LOCATIONS = 5;
+    static final int BENCHMARK_DAYS = 730;
+    static final int BENCHMARK_ITERATIONS = 20;
+    static final String BENCHMARK_DATABASE = "weather_archive.db";
+
+    private ContentResolver mResolver;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        deleteAllRecords();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        mContext.deleteDatabase(BENCHMARK_DATABASE);
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mResolver.delete(ArchiveEntry.CONTENT_URI, null, null);
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        A day's forecast that drifts with the seasons, like a real history would.
+     */
+    static ContentValues createDayValues(long locationId, int day) {
+        double season = Math.sin(2 * Math.PI * day / 365.0);
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        values.put(WeatherEntry.COLUMN_DATE,
+                WeatherContract.normalizeDate(START_DATE + day * DAY_IN_MILLIS));
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, day % 3 == 0 ? 500 : 800 + day % 4);
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, day % 3 == 0 ? "Rain" : "Clouds");
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, Math.round(800 * season - day % 7 * 31) / 100.0);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, Math.round(1000 * season + 600) / 100.0);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, (double) (60 + day % 30));
+        values.put(WeatherEntry.COLUMN_PRESSURE, Math.round(101300 + 900 * season) / 100.0);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, (day % 11) * 53 / 100.0);
+        values.put(WeatherEntry.COLUMN_DEGREES, (double) (day * 47 % 360));
+        return values;
+    }
+
+    private static ForecastArchive.Day toDay(ContentValues values) {
+        ForecastArchive.Day day = new ForecastArchive.Day();
+        day.date = values.getAsLong(WeatherEntry.COLUMN_DATE);
+        day.weatherId = values.getAsLong(WeatherEntry.COLUMN_WEATHER_ID);
+        day.shortDesc = values.getAsString(WeatherEntry.COLUMN_SHORT_DESC);
+        for (int i = 0; i < ForecastArchive.VALUE_COLUMNS.length; i++) {
+            String column = ForecastArchive.VALUE_COLUMNS[i];
+            day.values[i] = WeatherFixedPoint.encode(values.getAsDouble(column),
+                    WeatherFixedPoint.getScale(column));
+        }
+        return day;
+    }
+
+    public void testBlockRoundTrip() throws DataFormatException {
+        List<ForecastArchive.Day> days = new ArrayList<ForecastArchive.Day>();
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days.add(toDay(createDayValues(mLocationId, i)));
+        }
+        // Dates that aren't whole minutes, and a description outside ASCII.
+        ForecastArchive.Day odd = toDay(createDayValues(mLocationId, NUM_DAYS));
+        odd.date += 1234;
+        odd.shortDesc = "Schneeregen \u00fcber N\u00e4he";
+        odd.values[0] = -4012;
+        days.add(odd);
+
+        List<ForecastArchive.Day> decoded = ForecastArchive.decode(ForecastArchive.encode(days));
+        assertEquals(days.size(), decoded.size());
+        for (int i = 0; i < days.size(); i++) {
+            assertEquals("Error: date of day " + i, days.get(i).date, decoded.get(i).date);
+            assertEquals(days.get(i).weatherId, decoded.get(i).weatherId);
+            assertEquals(days.get(i).shortDesc, decoded.get(i).shortDesc);
+            assertTrue("Error: values of day " + i,
+                    Arrays.equals(days.get(i).values, decoded.get(i).values));
+        }
+    }
+
+    public void testDamagedBlockIsRejected() {
+        List<ForecastArchive.Day> days = new ArrayList<ForecastArchive.Day>();
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days.add(toDay(createDayValues(mLocationId, i)));
+        }
+        byte[] block = ForecastArchive.encode(days);
+        try {
+            ForecastArchive.decode(Arrays.copyOf(block, block.length / 2));
+            fail("Error: a truncated block should not decode");
+        } catch (DataFormatException expected) {
+        }
+    }
+
+    /*
+        The sync's retention delete, with the archive parameter: the days leave the weather
+        table and can be read back from archive/<setting>, across the turn of the month.
+     */
+    public void testArchivingDeleteKeepsTheDays() {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = createDayValues(mLocationId, i);
+        }
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, days);
+
+        long lastDate = days[NUM_DAYS - 1].getAsLong(WeatherEntry.COLUMN_DATE);
+        int deleted = mResolver.delete(WeatherEntry.buildWeatherArchivingUri(),
+                WeatherEntry.COLUMN_DATE + " <= ?", new String[]{Long.toString(lastDate)});
+        assertEquals(NUM_DAYS, deleted);
+        Cursor weather = mResolver.query(WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: the archived days should have left the weather table", 0,
+                weather.getCount());
+        weather.close();
+
+        Cursor archived = mResolver.query(
+                ArchiveEntry.buildArchiveLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals(NUM_DAYS, archived.getCount());
+        for (ContentValues day : days) {
+            assertTrue(archived.moveToNext());
+            day.remove(WeatherEntry.COLUMN_LOC_KEY);
+            TestUtilities.validateCurrentRecord("Error: archived day differs", archived, day);
+        }
+        archived.close();
+
+        // From December 31st up to January 2nd, which takes two blocks.
+        Cursor range = mResolver.query(ArchiveEntry.buildArchiveLocationWithRange(
+                        TestUtilities.TEST_LOCATION,
+                        days[11].getAsLong(WeatherEntry.COLUMN_DATE),
+                        days[13].getAsLong(WeatherEntry.COLUMN_DATE)),
+                null, null, null, null);
+        assertEquals(2, range.getCount());
+        range.close();
+
+        Cursor unknown = mResolver.query(ArchiveEntry.buildArchiveLocation("00000"),
+                null, null, null, null);
+        assertEquals(0, unknown.getCount());
+        unknown.close();
+    }
+
+    /*
+        The blocks can be read as they are stored, and go when their location does.
+     */
+    public void testDeletingLocationDeletesItsBlocks() {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = createDayValues(mLocationId, i);
+        }
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, days);
+        mResolver.delete(WeatherEntry.buildWeatherArchivingUri(), null, null);
+
+        // December and January.
+        Cursor blocks = mResolver.query(ArchiveEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(2, blocks.getCount());
+        blocks.close();
+
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(mLocationId)});
+        blocks = mResolver.query(ArchiveEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: the deleted location's blocks should have gone with it", 0,
+                blocks.getCount());
+        blocks.close();
+    }
+
+    /*
+        A day archived again replaces the one already in its block.
+     */
+    public void testArchivingAgainReplacesTheDay() {
+        ContentValues day = createDayValues(mLocationId, 0);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{day});
+        mResolver.delete(WeatherEntry.buildWeatherArchivingUri(), null, null);
+
+        day.put(WeatherEntry.COLUMN_MAX_TEMP, 21.75);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{day});
+        mResolver.delete(WeatherEntry.buildWeatherArchivingUri(), null, null);
+
+        Cursor archived = mResolver.query(
+                ArchiveEntry.buildArchiveLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals(1, archived.getCount());
+        assertTrue(archived.moveToFirst());
+        assertEquals(21.75, archived.getDouble(
+                archived.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP)), 0);
+        archived.close();
+    }
+
+    /*
+        Over its size, the archive drops whole months, the oldest first, from every location.
+     */
+    public void testTrimDropsTheOldestMonths() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            long otherLocationId = mLocationId + 1;
+            long blockBytes = 0;
+            for (int month = 0; month < 6; month++) {
+                for (long locationId : new long[]{mLocationId, otherLocationId}) {
+                    List<ForecastArchive.Day> days = new ArrayList<ForecastArchive.Day>();
+                    for (int i = 0; i < 28; i++) {
+                        // The same days in every block, so the blocks are all the same size.
+                        days.add(toDay(createDayValues(locationId, i)));
+                    }
+                    byte[] data = ForecastArchive.encode(days);
+                    blockBytes = Math.max(blockBytes, data.length);
+                    ContentValues values = new ContentValues();
+                    values.put(ArchiveEntry._ID, ForecastArchive.packKey(locationId, 540 + month));
+                    values.put(ArchiveEntry.COLUMN_DAY_COUNT, days.size());
+                    values.put(ArchiveEntry.COLUMN_DATA, data);
+                    db.insert(ArchiveEntry.TABLE_NAME, null, values);
+                }
+            }
+
+            // Room for the last two months of both locations.
+            assertEquals(8, ForecastArchive.trim(db, blockBytes * 4));
+            Cursor cursor = db.query(ArchiveEntry.TABLE_NAME, new String[]{ArchiveEntry._ID},
+                    null, null, null, null, ArchiveEntry._ID);
+            try {
+                assertEquals(4, cursor.getCount());
+                while (cursor.moveToNext()) {
+                    assertTrue("Error: a newer month was dropped",
+                            (cursor.getLong(0) & ForecastArchive.MONTH_MASK) >= 544);
+                }
+            } finally {
+                cursor.close();
+            }
+            assertEquals(0, ForecastArchive.trim(db, blockBytes * 4));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /*
+        Two years of days for a few locations, kept in the weather table and then moved into
+        the archive. The database is vacuumed both times, so the page counts compare the two.
+     */
+    public void benchmarkStorage() {
+        mContext.deleteDatabase(BENCHMARK_DATABASE);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(BENCHMARK_DATABASE,
+                Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL(WeatherDbHelper.buildWeatherTableSql(WeatherEntry.TABLE_NAME, false));
+            db.execSQL(WeatherDbHelper.SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+            db.execSQL(WeatherFixedPoint.buildViewSql(false));
+            db.execSQL(ForecastArchive.SQL_CREATE_TABLE);
+            db.beginTransaction();
+            try {
+                for (int location = 1; location <= BENCHMARK_LOCATIONS; location++) {
+                    for (int day = 0; day < BENCHMARK_DAYS; day++) {
+                        db.insert(WeatherEntry.TABLE_NAME, null, createDayValues(location, day));
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long tableBytes = measureSize(db);
+
+            int archived;
+            long startNanos = System.nanoTime();
+            db.beginTransaction();
+            try {
+                archived = ForecastArchive.archive(db, null, null);
+                db.delete(WeatherEntry.TABLE_NAME, null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long archiveNanos = System.nanoTime() - startNanos;
+            long archiveBytes = measureSize(db);
+
+            // One month of each location.
+            long start = WeatherContract.normalizeDate(START_DATE + 400 * DAY_IN_MILLIS);
+            long end = start + 30 * DAY_IN_MILLIS;
+            startNanos = System.nanoTime();
+            int rows = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                rows = 0;
+                for (int location = 1; location <= BENCHMARK_LOCATIONS; location++) {
+                    Cursor cursor = ForecastArchive.query(db, location, start, end);
+                    rows += cursor.getCount();
+                    cursor.close();
+                }
+            }
+            long queryNanos = System.nanoTime() - startNanos;
+
+            assertEquals(BENCHMARK_LOCATIONS * BENCHMARK_DAYS, archived);
+            assertEquals(BENCHMARK_LOCATIONS * 30, rows);
+            assertTrue("Error: the archive should take less than half the space of the table",
+                    archiveBytes * 2 < tableBytes);
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d days: weather table %d bytes, archive %d bytes; archived in %.1f ms; "
+                            + "a month for each of %d locations in %.1f us",
+                    archived, tableBytes, archiveBytes, archiveNanos / 1e6,
+                    BENCHMARK_LOCATIONS, queryNanos / 1e3 / BENCHMARK_ITERATIONS));
+        } finally {
+            db.close();
+        }
+    }
+
+    private static long measureSize(SQLiteDatabase db) {
+        db.execSQL("VACUUM");
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+public class TestForecastCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastCache.class.getSimpleName();
+
+    static final int NUM_DAYS = 14;
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+    static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private ContentProviderClient mClient;
+    private ForecastCache mCache;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        mClient = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mCache = ((WeatherProvider) mClient.getLocalContentProvider()).getForecastCache();
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationId = Long.parseLong(locationUri.getLastPathSegment());
+        insertForecast(75);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClient.release();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private void insertForecast(double maxTemp) {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = TestUtilities.createWeatherValues(mLocationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+            days[i].put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+    }
+
+    private Cursor queryForecast(long startDate) {
+        return mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        startDate),
+                null, null, null, SORT_BY_DATE);
+    }
+
+    public void testRepeatedQueryIsServedFromCache() {
+        if (!ForecastCache.isSupported()) {
+            return;
+        }
+        long hits = mCache.getHitCount();
+        long misses = mCache.getMissCount();
+
+        queryForecast(TestUtilities.TEST_DATE).close();
+        assertEquals("Error: the first query should miss", misses + 1, mCache.getMissCount());
+
+        Cursor cursor = queryForecast(TestUtilities.TEST_DATE);
+        assertEquals("Error: the same query again should hit", hits + 1, mCache.getHitCount());
+        assertEquals(NUM_DAYS, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Every getter on a cached cursor has to answer exactly as the SQLite cursor would.
+     */
+    public void testCachedCursorMatchesDatabase() {
+        if (!ForecastCache.isSupported()) {
+            return;
+        }
+        queryForecast(TestUtilities.TEST_DATE).close();
+        long hits = mCache.getHitCount();
+        // ContentResolver wraps the provider's cursor, so check the counters to know it's cached.
+        Cursor cached = queryForecast(TestUtilities.TEST_DATE);
+        assertEquals("Error: expected a cached cursor", hits + 1, mCache.getHitCount());
+
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        Cursor stored = WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(
+                dbHelper.getReadableDatabase(), null,
+                WeatherProvider.sLocationSettingWithStartDateSelection,
+                new String[]{TestUtilities.TEST_LOCATION,
+                        Long.toString(WeatherEntry.getStartDateFromUri(uri))},
+                null, null, SORT_BY_DATE);
+        try {
+            assertEquals(stored.getCount(), cached.getCount());
+            assertEquals(stored.getColumnCount(), cached.getColumnCount());
+            while (stored.moveToNext()) {
+                assertTrue(cached.moveToNext());
+                for (int i = 0; i < stored.getColumnCount(); i++) {
+                    String column = stored.getColumnName(i);
+                    assertEquals(column, stored.getColumnName(i), cached.getColumnName(i));
+                    assertEquals(column, stored.getType(i), cached.getType(i));
+                    assertEquals(column, stored.getString(i), cached.getString(i));
+                    assertEquals(column, stored.getLong(i), cached.getLong(i));
+                    assertEquals(column, stored.getInt(i), cached.getInt(i));
+                    assertEquals(column, stored.getDouble(i), cached.getDouble(i));
+                    assertEquals(column, stored.isNull(i), cached.isNull(i));
+                }
+            }
+            assertFalse(cached.moveToNext());
+        } finally {
+            stored.close();
+            cached.close();
+            dbHelper.close();
+        }
+    }
+
+    public void testWriteInvalidatesCache() {
+        if (!ForecastCache.isSupported()) {
+            return;
+        }
+        queryForecast(TestUtilities.TEST_DATE).close();
+        insertForecast(80);
+
+        long misses = mCache.getMissCount();
+        Cursor cursor = queryForecast(TestUtilities.TEST_DATE);
+        assertEquals("Error: the write should have emptied the cache",
+                misses + 1, mCache.getMissCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the query returned the forecast from before the write",
+                80.0, cursor.getDouble(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP)));
+        cursor.close();
+    }
+
+    public void testCacheIsSizeBounded() {
+        if (!ForecastCache.isSupported()) {
+            return;
+        }
+        long evictions = mCache.getEvictionCount();
+        // Each start date is its own entry; far more than fit in the cache.
+        for (int i = 0; i < 1000; i++) {
+            queryForecast(TestUtilities.TEST_DATE - i * DAY_IN_MILLIS).close();
+        }
+        assertTrue("Error: nothing was evicted", mCache.getEvictionCount() > evictions);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Checks that the snapshot call returns what the cursor path does. The benchmark, which runs
+    with BenchmarkSuite, compares what the two cost a caller in the provider's process and one
+    in another process.
+ */
+public class TestForecastSnapshot extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastSnapshot.class.getSimpleName();
+
+    static final int NUM_DAYS = 14;
+    static final int BENCHMARK_ITERATIONS = 2000;
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+    static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain"};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationId = Long.parseLong(locationUri.getLastPathSegment());
+
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+            days[i].put(WeatherEntry.COLUMN_SHORT_DESC, DESCRIPTIONS[i % DESCRIPTIONS.length]);
+            days[i].put(WeatherEntry.COLUMN_MAX_TEMP, 20.5 + i);
+            days[i].put(WeatherEntry.COLUMN_WEATHER_ID, 800 + i);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private Cursor queryCursor() {
+        return mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE),
+                ForecastSnapshot.COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    private ForecastSnapshot querySnapshot(int numDays) {
+        return ForecastSnapshot.query(mContext.getContentResolver(), TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE, numDays);
+    }
+
+    public void testSnapshotMatchesCursor() {
+        ForecastSnapshot snapshot = querySnapshot(NUM_DAYS);
+        assertEquals(TestUtilities.TEST_LOCATION, snapshot.getLocationSetting());
+        assertSnapshotMatchesCursor(snapshot);
+    }
+
+    public void testSnapshotIsLimitedToNumDays() {
+        assertEquals(3, querySnapshot(3).size());
+        assertEquals(NUM_DAYS, querySnapshot(NUM_DAYS * 2).size());
+        assertEquals(0, ForecastSnapshot.query(mContext.getContentResolver(), "nowhere",
+                TestUtilities.TEST_DATE, NUM_DAYS).size());
+    }
+
+    public void testSnapshotNeedsLocation() {
+        try {
+            mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                    WeatherEntry.METHOD_GET_FORECAST_SNAPSHOT, null, null);
+            fail("Error: a snapshot call without a location setting should be refused");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testSnapshotSurvivesParcel() {
+        ForecastSnapshot snapshot = querySnapshot(NUM_DAYS);
+        Parcel parcel = Parcel.obtain();
+        try {
+            snapshot.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            assertSnapshotMatchesCursor(ForecastSnapshot.CREATOR.createFromParcel(parcel));
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void assertSnapshotMatchesCursor(ForecastSnapshot snapshot) {
+        Cursor cursor = queryCursor();
+        try {
+            assertEquals(cursor.getCount(), snapshot.size());
+            for (int i = 0; cursor.moveToNext(); i++) {
+                assertEquals(cursor.getLong(ForecastSnapshot.COL_ID), snapshot.getId(i));
+                assertEquals(cursor.getLong(ForecastSnapshot.COL_DATE), snapshot.getDate(i));
+                assertEquals(cursor.getInt(ForecastSnapshot.COL_WEATHER_ID),
+                        snapshot.getWeatherId(i));
+                assertEquals(cursor.getString(ForecastSnapshot.COL_SHORT_DESC),
+                        snapshot.getDescription(i));
+                assertEquals(cursor.getDouble(ForecastSnapshot.COL_MAX_TEMP),
+                        snapshot.getMaxTemp(i));
+                assertEquals(cursor.getDouble(ForecastSnapshot.COL_MIN_TEMP),
+                        snapshot.getMinTemp(i));
+                assertEquals(cursor.getDouble(ForecastSnapshot.COL_HUMIDITY),
+                        snapshot.getHumidity(i));
+                assertEquals(cursor.getDouble(ForecastSnapshot.COL_PRESSURE),
+                        snapshot.getPressure(i));
+                assertEquals(cursor.getDouble(ForecastSnapshot.COL_WIND_SPEED),
+                        snapshot.getWindSpeed(i));
+                assertEquals(cursor.getDouble(ForecastSnapshot.COL_DEGREES),
+                        snapshot.getDegrees(i));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        Reads every field of every day, the way the detail widget does, so neither path gets to
+        skip work.
+     */
+    public void benchmarkSnapshot() {
+        // Warm up both paths, and the provider's cache.
+        readCursorPath(false);
+        readSnapshotPath(false);
+
+        long start = System.nanoTime();
+        long cursorBytes = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            cursorBytes = readCursorPath(false);
+        }
+        long cursorNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            readSnapshotPath(false);
+        }
+        long snapshotNanos = System.nanoTime() - start;
+
+        /*
+            The provider isn't exported, and the widget factory runs in our own process, so no
+            caller here is really in another process. What another process adds is the copy
+            across Binder: for a cursor, filling a CursorWindow and parceling it; for the call,
+            parceling the returned Bundle. Both are done here on top of the in-process work.
+            A CursorWindow's rows travel in shared memory, so its parcel size leaves them out;
+            the time to fill the window is still counted.
+         */
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            cursorBytes = readCursorPath(true);
+        }
+        long remoteCursorNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long snapshotBytes = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            snapshotBytes = readSnapshotPath(true);
+        }
+        long remoteSnapshotNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d days, %d reads: in process cursor %.1f us, snapshot %.1f us; "
+                        + "across processes cursor %.1f us (%d bytes), snapshot %.1f us (%d bytes)",
+                NUM_DAYS, BENCHMARK_ITERATIONS,
+                cursorNanos / 1e3 / BENCHMARK_ITERATIONS,
+                snapshotNanos / 1e3 / BENCHMARK_ITERATIONS,
+                remoteCursorNanos / 1e3 / BENCHMARK_ITERATIONS, cursorBytes,
+                remoteSnapshotNanos / 1e3 / BENCHMARK_ITERATIONS, snapshotBytes));
+    }
+
+    /**
+     * @return the bytes parceled, or 0 when not parceling
+     */
+    @SuppressWarnings("deprecation")
+    private long readCursorPath(boolean parcel) {
+        Cursor cursor = queryCursor();
+        long bytes = 0;
+        try {
+            if (parcel) {
+                CursorWindow window = new CursorWindow(false);
+                DatabaseUtils.cursorFillWindow(cursor, 0, window);
+                Parcel out = Parcel.obtain();
+                window.writeToParcel(out, 0);
+                bytes = out.dataSize();
+                out.setDataPosition(0);
+                CursorWindow received = CursorWindow.CREATOR.createFromParcel(out);
+                out.recycle();
+                window.close();
+                received.close();
+            }
+            double sum = 0;
+            while (cursor.moveToNext()) {
+                sum += cursor.getLong(ForecastSnapshot.COL_ID)
+                        + cursor.getLong(ForecastSnapshot.COL_DATE)
+                        + cursor.getInt(ForecastSnapshot.COL_WEATHER_ID)
+                        + cursor.getString(ForecastSnapshot.COL_SHORT_DESC).length();
+                for (int column = ForecastSnapshot.COL_MAX_TEMP;
+                     column <= ForecastSnapshot.COL_DEGREES; column++) {
+                    sum += cursor.getDouble(column);
+                }
+            }
+            assertTrue(sum != 0);
+        } finally {
+            cursor.close();
+        }
+        return bytes;
+    }
+
+    private long readSnapshotPath(boolean parcel) {
+        ForecastSnapshot snapshot = querySnapshot(NUM_DAYS);
+        long bytes = 0;
+        if (parcel) {
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(WeatherEntry.EXTRA_FORECAST_SNAPSHOT, snapshot);
+            Parcel out = Parcel.obtain();
+            out.writeBundle(bundle);
+            bytes = out.dataSize();
+            out.setDataPosition(0);
+            Bundle received = out.readBundle(ForecastSnapshot.class.getClassLoader());
+            snapshot = received.getParcelable(WeatherEntry.EXTRA_FORECAST_SNAPSHOT);
+            out.recycle();
+        }
+        double sum = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            sum += snapshot.getId(i) + snapshot.getDate(i) + snapshot.getWeatherId(i)
+                    + snapshot.getDescription(i).length()
+                    + snapshot.getMaxTemp(i) + snapshot.getMinTemp(i) + snapshot.getHumidity(i)
+                    + snapshot.getPressure(i) + snapshot.getWindSpeed(i) + snapshot.getDegrees(i);
+        }
+        assertTrue(sum != 0);
+        return bytes;
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/*
+    Checks that hours go through the packed hourly table unchanged. Run from BenchmarkSuite, it
+    also compares the table's size and range scans with a plain one-column-per-value table.
+ */
+public class TestHourlyStorage extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestHourlyStorage.class.getSimpleName();
+
+    static final long START_TIME = 1419033600000L;  // December 20th, 2014, 00:00 UTC
+    static final long THREE_HOURS_IN_MILLIS = 3 * HourlyForecastStore.HOUR_IN_MILLIS;
+    static final int NUM_HOURS = 40;  // Five days, every three hours, like OWM sends
+
+    static final int BENCHMARK_LOCATIONS = 50;
+    static final int BENCHMARK_ITERATIONS = 20;
+    static final String PACKED_DATABASE = "hourly_packed.db";
+    static final String NAIVE_DATABASE = "hourly_naive.db";
+
+    private ContentResolver mResolver;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        deleteAllRecords();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        mContext.deleteDatabase(PACKED_DATABASE);
+        mContext.deleteDatabase(NAIVE_DATABASE);
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mResolver.delete(HourlyEntry.CONTENT_URI, null, null);
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    static ContentValues createHourValues(long locationId, int hour) {
+        ContentValues values = new ContentValues();
+        values.put(HourlyEntry.COLUMN_LOC_KEY, locationId);
+        values.put(HourlyEntry.COLUMN_TIME, START_TIME + hour * THREE_HOURS_IN_MILLIS);
+        values.put(HourlyEntry.COLUMN_WEATHER_ID, hour % 3 == 0 ? 500 + hour : 800 + hour % 5);
+        values.put(HourlyEntry.COLUMN_TEMP, -4.25 + 1.5 * (hour % 8) + 0.1 * hour);
+        values.put(HourlyEntry.COLUMN_PRESSURE, 1012.5 + 0.35 * hour);
+        values.put(HourlyEntry.COLUMN_HUMIDITY, 60 + hour);
+        values.put(HourlyEntry.COLUMN_WIND_SPEED, 2.25 + 0.1 * hour);
+        values.put(HourlyEntry.COLUMN_DEGREES, (30.5 * hour) % 360);
+        return values;
+    }
+
+    private static ContentValues[] createHours(long locationId) {
+        ContentValues[] hours = new ContentValues[NUM_HOURS];
+        for (int i = 0; i < NUM_HOURS; i++) {
+            hours[i] = createHourValues(locationId, i);
+        }
+        return hours;
+    }
+
+    public void testPackedKeyRoundTrip() {
+        long[] locationIds = {1, 2, 1000, 1L << 30};
+        for (long locationId : locationIds) {
+            for (int hour = 0; hour < NUM_HOURS; hour++) {
+                long time = START_TIME + hour * THREE_HOURS_IN_MILLIS;
+                long key = HourlyForecastStore.packKey(locationId, time + 59 * 60 * 1000);
+                assertEquals(locationId, HourlyForecastStore.getLocationIdFromKey(key));
+                assertEquals("Error: a time within the hour should be stored as the hour",
+                        time, HourlyForecastStore.getTimeFromKey(key));
+            }
+        }
+        // Keys sort by location first, then by time.
+        assertTrue(HourlyForecastStore.packKey(1, Long.MAX_VALUE)
+                < HourlyForecastStore.packKey(2, 0));
+    }
+
+    public void testRangeQueryReturnsTheRange() {
+        ContentValues[] hours = createHours(mLocationId);
+        assertEquals(NUM_HOURS, mResolver.bulkInsert(HourlyEntry.CONTENT_URI, hours));
+        // Another location's hours sit right next to these and must not leak in.
+        assertEquals(NUM_HOURS, mResolver.bulkInsert(HourlyEntry.CONTENT_URI,
+                createHours(mLocationId + 1)));
+
+        // From the third hour up to, but not including, the eleventh.
+        Cursor cursor = mResolver.query(HourlyEntry.buildHourlyLocationWithRange(
+                TestUtilities.TEST_LOCATION, hours[2].getAsLong(HourlyEntry.COLUMN_TIME),
+                hours[10].getAsLong(HourlyEntry.COLUMN_TIME)), null, null, null, null);
+        try {
+            assertEquals("Error: the range should hold exactly eight hours", 8, cursor.getCount());
+            for (int i = 2; cursor.moveToNext(); i++) {
+                ContentValues expected = hours[i];
+                assertEquals(mLocationId, cursor.getLong(
+                        cursor.getColumnIndex(HourlyEntry.COLUMN_LOC_KEY)));
+                assertEquals((long) expected.getAsLong(HourlyEntry.COLUMN_TIME),
+                        cursor.getLong(cursor.getColumnIndex(HourlyEntry.COLUMN_TIME)));
+                assertEquals((int) expected.getAsInteger(HourlyEntry.COLUMN_WEATHER_ID),
+                        cursor.getInt(cursor.getColumnIndex(HourlyEntry.COLUMN_WEATHER_ID)));
+                assertTenths(expected, cursor, HourlyEntry.COLUMN_TEMP);
+                assertTenths(expected, cursor, HourlyEntry.COLUMN_PRESSURE);
+                assertTenths(expected, cursor, HourlyEntry.COLUMN_WIND_SPEED);
+                assertEquals(Math.round(expected.getAsDouble(HourlyEntry.COLUMN_HUMIDITY)),
+                        cursor.getLong(cursor.getColumnIndex(HourlyEntry.COLUMN_HUMIDITY)));
+                assertEquals(Math.round(expected.getAsDouble(HourlyEntry.COLUMN_DEGREES)),
+                        cursor.getLong(cursor.getColumnIndex(HourlyEntry.COLUMN_DEGREES)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mResolver.query(HourlyEntry.buildHourlyLocation("nowhere"),
+                null, null, null, null);
+        assertEquals("Error: an unknown location should have no hours", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        A sync replaces a location's hours in its batch: it deletes the ones stored under the
+        location it back-references, then inserts the new ones. A setting the provider matches
+        to a stored city by name and place should replace that city's hours too, rather than
+        leave the old ones next to the new.
+     */
+    public void testSyncBatchReplacesHoursOfMatchedLocation() throws Exception {
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mLocationId));
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mLocationId + 1));
+
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, "north pole");
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(location)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(HourlyEntry.CONTENT_URI)
+                .withSelection(HourlyEntry.LOCATION_ID_SELECTION, new String[2])
+                .withSelectionBackReference(0, 0)
+                .withSelectionBackReference(1, 0)
+                .build());
+        // The next sync starts half way through the hours the last one stored.
+        int firstHour = NUM_HOURS / 2;
+        for (int i = firstHour; i < firstHour + NUM_HOURS; i++) {
+            ContentValues hour = createHourValues(0, i);
+            hour.remove(HourlyEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(HourlyEntry.CONTENT_URI)
+                    .withValues(hour)
+                    .withValueBackReference(HourlyEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        ContentProviderResult[] results =
+                mResolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        assertEquals("Error: the setting should have matched the stored city", mLocationId,
+                ContentUris.parseId(results[0].uri));
+
+        Cursor cursor = mResolver.query(
+                HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        try {
+            assertEquals("Error: the last sync's hours were left next to the new ones",
+                    NUM_HOURS, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals((long) createHourValues(0, firstHour).getAsLong(HourlyEntry.COLUMN_TIME),
+                    cursor.getLong(cursor.getColumnIndex(HourlyEntry.COLUMN_TIME)));
+        } finally {
+            cursor.close();
+        }
+        cursor = mResolver.query(HourlyEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: another location's hours should have been left alone",
+                2 * NUM_HOURS, cursor.getCount());
+        cursor.close();
+    }
+
+    private int countHours() {
+        Cursor cursor = mResolver.query(HourlyEntry.CONTENT_URI, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testDeletingLocationDeletesItsHours() {
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mLocationId));
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mLocationId + 1));
+
+        assertEquals(1, mResolver.delete(LocationEntry.CONTENT_URI, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(mLocationId)}));
+        assertEquals("Error: only the deleted location's hours should have gone",
+                NUM_HOURS, countHours());
+    }
+
+    public void testPastHoursArePruned() {
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mLocationId));
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mLocationId + 1));
+
+        // Everything before the eleventh hour, half way through it.
+        long time = createHourValues(0, 10).getAsLong(HourlyEntry.COLUMN_TIME)
+                + HourlyForecastStore.HOUR_IN_MILLIS / 2;
+        assertEquals("Error: both locations' first ten hours should have been pruned", 2 * 10,
+                mResolver.delete(HourlyEntry.CONTENT_URI, HourlyEntry.BEFORE_TIME_SELECTION,
+                        new String[]{Long.toString(time)}));
+        assertEquals(2 * (NUM_HOURS - 10), countHours());
+    }
+
+    private static void assertTenths(ContentValues expected, Cursor cursor, String column) {
+        assertEquals("Error: " + column + " should come back to the tenth",
+                HourlyForecastStore.toTenths(expected.getAsDouble(column)) / 10.0,
+                cursor.getDouble(cursor.getColumnIndex(column)), 1e-9);
+    }
+
+    public void testDaysMatchTheirHours() {
+        ContentValues[] hours = createHours(mLocationId);
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, hours);
+
+        Cursor days = mResolver.query(HourlyEntry.buildHourlyDays(TestUtilities.TEST_LOCATION,
+                0, Long.MAX_VALUE), null, null, null, null);
+        try {
+            int dateColumn = days.getColumnIndex(WeatherEntry.COLUMN_DATE);
+            int minColumn = days.getColumnIndex(WeatherEntry.COLUMN_MIN_TEMP);
+            int maxColumn = days.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP);
+            int hoursSeen = 0;
+            while (days.moveToNext()) {
+                long date = days.getLong(dateColumn);
+                long minTenths = Long.MAX_VALUE;
+                long maxTenths = Long.MIN_VALUE;
+                for (ContentValues hour : hours) {
+                    if (WeatherContract.normalizeDate(
+                            hour.getAsLong(HourlyEntry.COLUMN_TIME)) == date) {
+                        long temp = HourlyForecastStore.toTenths(
+                                hour.getAsDouble(HourlyEntry.COLUMN_TEMP));
+                        minTenths = Math.min(minTenths, temp);
+                        maxTenths = Math.max(maxTenths, temp);
+                        hoursSeen++;
+                    }
+                }
+                assertTrue("Error: a day came back without any hours", minTenths <= maxTenths);
+                assertEquals(minTenths / 10.0, days.getDouble(minColumn), 1e-9);
+                assertEquals(maxTenths / 10.0, days.getDouble(maxColumn), 1e-9);
+            }
+            assertEquals("Error: every hour should fall in one of the days", NUM_HOURS,
+                    hoursSeen);
+        } finally {
+            days.close();
+        }
+    }
+
+    public void testMoreNotable() {
+        assertEquals(500, HourlyForecastStore.moreNotable(800, 500));
+        assertEquals(211, HourlyForecastStore.moreNotable(500, 211));
+        assertEquals(804, HourlyForecastStore.moreNotable(800, 804));
+        assertEquals(741, HourlyForecastStore.moreNotable(804, 741));
+    }
+
+    /*
+        Stores the same five days of three-hourly forecasts for 50 locations both in the packed
+        table and in the table this would otherwise have been: an autoincrement _ID, a location
+        and time column with a unique index over them, REAL values and the description. Each
+        lives in a database of its own, vacuumed, so the page counts compare the two layouts.
+     */
+    public void benchmarkStorage() {
+        SQLiteDatabase packed = createBenchmarkDatabase(PACKED_DATABASE,
+                HourlyForecastStore.SQL_CREATE_TABLE);
+        SQLiteDatabase naive = createBenchmarkDatabase(NAIVE_DATABASE,
+                "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                        HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                        HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                        HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                        WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                        HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                        HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                        HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                        HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                        HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                        "UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                        HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);");
+        try {
+            fillBenchmarkDatabases(packed, naive);
+            long packedBytes = measureSize(packed);
+            long naiveBytes = measureSize(naive);
+
+            // One day out of the middle of each location's forecast.
+            long start = START_TIME + 8 * THREE_HOURS_IN_MILLIS;
+            long end = start + 8 * THREE_HOURS_IN_MILLIS;
+            String naiveSql = "SELECT * FROM " + HourlyEntry.TABLE_NAME + " WHERE "
+                    + HourlyEntry.COLUMN_LOC_KEY + " = ? AND " + HourlyEntry.COLUMN_TIME
+                    + " >= ? AND " + HourlyEntry.COLUMN_TIME + " < ? ORDER BY "
+                    + HourlyEntry.COLUMN_TIME;
+            String packedSql = "SELECT * FROM " + HourlyEntry.TABLE_NAME + " WHERE "
+                    + HourlyForecastStore.sKeyRangeSelection + "ORDER BY " + HourlyEntry._ID;
+
+            // Warm up both.
+            scanRanges(packed, packedSql, start, end, true);
+            scanRanges(naive, naiveSql, start, end, false);
+
+            long startNanos = System.nanoTime();
+            int packedRows = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                packedRows = scanRanges(packed, packedSql, start, end, true);
+            }
+            long packedNanos = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            int naiveRows = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                naiveRows = scanRanges(naive, naiveSql, start, end, false);
+            }
+            long naiveNanos = System.nanoTime() - startNanos;
+
+            assertEquals(BENCHMARK_LOCATIONS * 8, packedRows);
+            assertEquals(packedRows, naiveRows);
+            assertTrue("Error: the packed table should be smaller", packedBytes < naiveBytes);
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d hours: packed %d bytes, plain %d bytes; one day for each of %d "
+                            + "locations: packed %.1f us, plain %.1f us",
+                    BENCHMARK_LOCATIONS * NUM_HOURS, packedBytes, naiveBytes,
+                    BENCHMARK_LOCATIONS,
+                    packedNanos / 1e3 / BENCHMARK_ITERATIONS,
+                    naiveNanos / 1e3 / BENCHMARK_ITERATIONS));
+        } finally {
+            packed.close();
+            naive.close();
+        }
+    }
+
+    private SQLiteDatabase createBenchmarkDatabase(String name, String createTable) {
+        mContext.deleteDatabase(name);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        db.execSQL(createTable);
+        return db;
+    }
+
+    private static void fillBenchmarkDatabases(SQLiteDatabase packed, SQLiteDatabase naive) {
+        ContentValues[] hours = new ContentValues[BENCHMARK_LOCATIONS * NUM_HOURS];
+        for (int location = 0; location < BENCHMARK_LOCATIONS; location++) {
+            for (int hour = 0; hour < NUM_HOURS; hour++) {
+                hours[location * NUM_HOURS + hour] = createHourValues(location + 1, hour);
+            }
+        }
+
+        packed.beginTransaction();
+        try {
+            HourlyForecastStore.bulkInsert(packed, hours);
+            packed.setTransactionSuccessful();
+        } finally {
+            packed.endTransaction();
+        }
+
+        SQLiteStatement insert = naive.compileStatement("INSERT INTO "
+                + HourlyEntry.TABLE_NAME + " (" + HourlyEntry.COLUMN_LOC_KEY + ", "
+                + HourlyEntry.COLUMN_TIME + ", " + HourlyEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_SHORT_DESC + ", " + HourlyEntry.COLUMN_TEMP + ", "
+                + HourlyEntry.COLUMN_PRESSURE + ", " + HourlyEntry.COLUMN_HUMIDITY + ", "
+                + HourlyEntry.COLUMN_WIND_SPEED + ", " + HourlyEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        naive.beginTransaction();
+        try {
+            for (ContentValues hour : hours) {
+                insert.clearBindings();
+                insert.bindLong(1, hour.getAsLong(HourlyEntry.COLUMN_LOC_KEY));
+                insert.bindLong(2, hour.getAsLong(HourlyEntry.COLUMN_TIME));
+                insert.bindLong(3, hour.getAsLong(HourlyEntry.COLUMN_WEATHER_ID));
+                insert.bindString(4, hour.getAsInteger(HourlyEntry.COLUMN_WEATHER_ID) < 800
+                        ? "light rain" : "scattered clouds");
+                insert.bindDouble(5, hour.getAsDouble(HourlyEntry.COLUMN_TEMP));
+                insert.bindDouble(6, hour.getAsDouble(HourlyEntry.COLUMN_PRESSURE));
+                insert.bindDouble(7, hour.getAsDouble(HourlyEntry.COLUMN_HUMIDITY));
+                insert.bindDouble(8, hour.getAsDouble(HourlyEntry.COLUMN_WIND_SPEED));
+                insert.bindDouble(9, hour.getAsDouble(HourlyEntry.COLUMN_DEGREES));
+                insert.executeInsert();
+            }
+            naive.setTransactionSuccessful();
+        } finally {
+            naive.endTransaction();
+            insert.close();
+        }
+    }
+
+    private static long measureSize(SQLiteDatabase db) {
+        db.execSQL("VACUUM");
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    /**
+     * Reads every column of each location's hours between start and end.
+     *
+     * @return the number of rows read
+     */
+    private static int scanRanges(SQLiteDatabase db, String sql, long start, long end,
+                                  boolean packedKeys) {
+        int rows = 0;
+        for (long location = 1; location <= BENCHMARK_LOCATIONS; location++) {
+            String[] args = packedKeys
+                    ? HourlyForecastStore.buildKeyRangeArgs(location, start, end)
+                    : new String[]{Long.toString(location), Long.toString(start),
+                            Long.toString(end)};
+            Cursor cursor = db.rawQuery(sql, args);
+            try {
+                double sum = 0;
+                int columns = cursor.getColumnCount();
+                // Only the plain table has a description.
+                int descriptionColumn = cursor.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC);
+                while (cursor.moveToNext()) {
+                    for (int column = 0; column < columns; column++) {
+                        sum += column == descriptionColumn
+                                ? cursor.getString(column).length() : cursor.getDouble(column);
+                    }
+                    rows++;
+                }
+                assertTrue(sum != 0);
+            } finally {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that the database keeps each location's grid cell the same as LocationGrid works it
+    out, and that location/near finds what is within the radius, across the antimeridian and
+    the poles too.
+ */
+public class TestLocationGrid extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLocationGrid.class.getSimpleName();
+
+    static final double SEATTLE_LAT = 47.6062;
+    static final double SEATTLE_LON = -122.3321;
+
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private long insertLocation(String setting, double lat, double lon) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, setting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, setting);
+        values.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        values.put(LocationEntry.COLUMN_COORD_LONG, lon);
+        return ContentUris.parseId(mResolver.insert(LocationEntry.CONTENT_URI, values));
+    }
+
+    private long queryGridCell(long locationId) {
+        Cursor cursor = mResolver.query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_GRID_CELL},
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationId)}, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        The triggers work the cell out in SQL, and the lookup in Java; they have to agree, on
+        cell edges too.
+     */
+    public void testGridCellMatchesTheDatabase() {
+        double[][] coordinates = {
+                {SEATTLE_LAT, SEATTLE_LON},
+                {0, 0},
+                {-33.8688, 151.2093},
+                {-90, -180},
+                {90, 180},
+                {45.25, -0.25},
+                {-0.0001, 179.9999},
+                {64.7488, -147.353}
+        };
+        for (int i = 0; i < coordinates.length; i++) {
+            double lat = coordinates[i][0];
+            double lon = coordinates[i][1];
+            long locationId = insertLocation("cell" + i, lat, lon);
+            assertEquals("Error: cell of " + lat + "," + lon, LocationGrid.getCell(lat, lon),
+                    queryGridCell(locationId));
+        }
+
+        // Moving a location moves it to another cell.
+        long locationId = insertLocation("moved", SEATTLE_LAT, SEATTLE_LON);
+        ContentValues moved = new ContentValues();
+        moved.put(LocationEntry.COLUMN_COORD_LAT, -33.8688);
+        mResolver.update(LocationEntry.CONTENT_URI, moved, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)});
+        assertEquals(LocationGrid.getCell(-33.8688, SEATTLE_LON), queryGridCell(locationId));
+    }
+
+    public void testNearFindsTheLocationsInTheRadius() {
+        double kmToDegrees = 1 / LocationGrid.KM_PER_DEGREE;
+        long fiveKm = insertLocation("five", SEATTLE_LAT + 5 * kmToDegrees, SEATTLE_LON);
+        long twentyKm = insertLocation("twenty", SEATTLE_LAT - 20 * kmToDegrees, SEATTLE_LON);
+        insertLocation("sixty", SEATTLE_LAT + 60 * kmToDegrees, SEATTLE_LON);
+        insertLocation("sydney", -33.8688, 151.2093);
+
+        Cursor cursor = mResolver.query(
+                LocationEntry.buildLocationNearUri(SEATTLE_LAT, SEATTLE_LON, 25),
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_DISTANCE}, null, null, null);
+        try {
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToNext());
+            assertEquals("Error: the nearest location should come first", fiveKm,
+                    cursor.getLong(0));
+            assertEquals(5, cursor.getDouble(1), 0.01);
+            assertTrue(cursor.moveToNext());
+            assertEquals(twentyKm, cursor.getLong(0));
+            assertEquals(20, cursor.getDouble(1), 0.01);
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mResolver.query(LocationEntry.buildLocationNearUri(0, 0, 100),
+                null, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+            assertTrue("Error: an empty result should still have the distance column",
+                    cursor.getColumnIndex(LocationEntry.COLUMN_DISTANCE) != -1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testNearAcrossTheAntimeridianAndThePole() {
+        // About 11km apart, on either side of longitude 180.
+        long fiji = insertLocation("east", -17.0, 179.95);
+        assertNear(fiji, -17.0, -179.95, 20);
+
+        // About 22km apart, across the north pole.
+        long arctic = insertLocation("arctic", 89.9, 10);
+        assertNear(arctic, 89.9, -170, 30);
+    }
+
+    public void testNearNeedsItsParameters() {
+        Uri near = LocationEntry.buildLocationNearUri(SEATTLE_LAT, SEATTLE_LON, 25);
+        String[] parameters = {LocationEntry.QUERY_PARAMETER_LAT,
+                LocationEntry.QUERY_PARAMETER_LON, LocationEntry.QUERY_PARAMETER_RADIUS};
+        for (String parameter : parameters) {
+            Uri.Builder missing = near.buildUpon().clearQuery();
+            Uri.Builder unparsable = near.buildUpon().clearQuery();
+            for (String other : parameters) {
+                if (!other.equals(parameter)) {
+                    missing.appendQueryParameter(other, near.getQueryParameter(other));
+                }
+                unparsable.appendQueryParameter(other,
+                        other.equals(parameter) ? "north" : near.getQueryParameter(other));
+            }
+            assertRefused(missing.build());
+            assertRefused(unparsable.build());
+        }
+    }
+
+    private void assertRefused(Uri uri) {
+        try {
+            Cursor cursor = mResolver.query(uri, null, null, null, null);
+            if (cursor != null) {
+                cursor.close();
+            }
+            fail("Error: " + uri + " should have been refused");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void assertNear(long locationId, double lat, double lon, double radiusKm) {
+        Cursor cursor = mResolver.query(LocationEntry.buildLocationNearUri(lat, lon, radiusKm),
+                new String[]{LocationEntry._ID}, null, null, null);
+        try {
+            assertTrue("Error: nothing found near " + lat + "," + lon, cursor.moveToFirst());
+            assertEquals(locationId, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        A position near a stored location gets its setting, and so its forecast; one far from
+        any gets a setting of its own.
+     */
+    public void testNearbyPositionReusesTheLocation() {
+        insertLocation("98101", SEATTLE_LAT, SEATTLE_LON);
+
+        double lat = SEATTLE_LAT + 3 / LocationGrid.KM_PER_DEGREE;
+        assertEquals("98101", Utility.getLocationSettingForPosition(mContext, lat, SEATTLE_LON));
+
+        String setting = Utility.getLocationSettingForPosition(mContext, 0.5, 0.5);
+        assertTrue(LocationEntry.isCoordinateSetting(setting));
+        assertEquals("0.5000", LocationEntry.getLatitudeFromSetting(setting));
+        assertEquals("0.5000", LocationEntry.getLongitudeFromSetting(setting));
+
+        // Coordinate settings go into URIs like any other.
+        Uri uri = WeatherEntry.buildWeatherLocation(setting);
+        assertEquals(setting, WeatherEntry.getLocationSettingFromUri(uri));
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+    Checks that location/search finds stored locations by the start of any word of their name,
+    ranks them, and stays the same as the location table; that a misspelled location doesn't
+    add its city a second time. BenchmarkSuite also times a search as it is typed, over 200,000
+    cities.
+ */
+public class TestLocationSearch extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLocationSearch.class.getSimpleName();
+
+    static final int BENCHMARK_CITIES = 200000;
+    // Its first letters are the start of thousands of the made-up names.
+    static final String BENCHMARK_CITY = "Santorini";
+    static final String BENCHMARK_DATABASE = "weather_search.db";
+
+    private static final String[] SYLLABLES = {"ab", "ber", "ca", "dor", "el", "fen", "gar",
+            "ha", "in", "jo", "ka", "lin", "mo", "nor", "os", "pel", "qui", "ros", "san", "tor",
+            "ul", "ven", "wes", "xa", "yor", "zan"};
+
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        mContext.deleteDatabase(BENCHMARK_DATABASE);
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private long insertLocation(String setting, String cityName, double lat, double lon) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, setting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+        values.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        values.put(LocationEntry.COLUMN_COORD_LONG, lon);
+        return ContentUris.parseId(mResolver.insert(LocationEntry.CONTENT_URI, values));
+    }
+
+    /*
+        The city names location/search returns for the text, in order.
+     */
+    private List<String> search(String text) {
+        List<String> cityNames = new ArrayList<String>();
+        Cursor cursor = mResolver.query(LocationEntry.buildLocationSearchUri(text, 10),
+                new String[]{LocationEntry.COLUMN_CITY_NAME}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                cityNames.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return cityNames;
+    }
+
+    public void testSearchRanksThePrefixMatches() {
+        insertLocation("new york", "New York", 40.7128, -74.0060);
+        insertLocation("york", "York", 53.9600, -1.0873);
+        insertLocation("yorktown", "Yorktown", 37.2388, -76.5097);
+        insertLocation("newark", "Newark", 40.7357, -74.1724);
+
+        assertEquals("Error: the exact match, then the names that start with the text",
+                Arrays.asList("York", "Yorktown", "New York"), search("york"));
+        assertEquals(Arrays.asList("New York"), search("  NEW   y"));
+        assertEquals(Arrays.asList("Newark", "New York"), search("new"));
+        assertTrue(search("boston").isEmpty());
+
+        // The setting is searched too, and the query syntax never gets through.
+        assertEquals(Arrays.asList("Yorktown"), search("yorkt"));
+        assertTrue(search("or").isEmpty());
+        assertTrue(search("\"*-").isEmpty());
+    }
+
+    public void testSearchFollowsTheLocationTable() {
+        long locationId = insertLocation("98101", "Seattle", 47.6062, -122.3321);
+        assertEquals(Arrays.asList("Seattle"), search("sea"));
+        assertEquals(Arrays.asList("Seattle"), search("9810"));
+
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_CITY_NAME, "Tacoma");
+        mResolver.update(LocationEntry.CONTENT_URI, renamed, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)});
+        assertTrue(search("sea").isEmpty());
+        assertEquals(Arrays.asList("Tacoma"), search("taco"));
+
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+        assertTrue(search("taco").isEmpty());
+    }
+
+    /*
+        openweathermap answers "Seatle" with Seattle, and the provider keeps it the one city.
+        A city of the same name somewhere else is still a location of its own.
+     */
+    public void testMisspelledLocationReusesTheCity() {
+        long seattleId = insertLocation("98101", "Seattle", 47.6062, -122.3321);
+        assertEquals(seattleId, insertLocation("Seatle", "Seattle", 47.6062, -122.3321));
+        assertEquals(1, countLocations());
+
+        long portlandId = insertLocation("Portland, OR", "Portland", 45.5152, -122.6784);
+        assertTrue(portlandId != insertLocation("Portland, ME", "Portland", 43.6591, -70.2568));
+        assertEquals(3, countLocations());
+    }
+
+    private long countLocations() {
+        Cursor cursor = mResolver.query(LocationEntry.CONTENT_URI, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testTypedTextResolvesToTheStoredSetting() {
+        insertLocation("98101", "Seattle", 47.6062, -122.3321);
+        assertEquals("98101", Utility.resolveLocationSetting(mContext, " SEATTLE "));
+        assertEquals("98101", Utility.resolveLocationSetting(mContext, "98101"));
+        // Only the start of a name is typed as it is.
+        assertEquals("Seat", Utility.resolveLocationSetting(mContext, "Seat"));
+        assertEquals("Tacoma", Utility.resolveLocationSetting(mContext, "Tacoma"));
+    }
+
+    /*
+        Runs the search the preference runs on each keystroke of BENCHMARK_CITY, over a table
+        of made-up cities, and a LIKE over every city name for comparison.
+     */
+    public void benchmarkSearchLatency() {
+        mContext.deleteDatabase(BENCHMARK_DATABASE);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(BENCHMARK_DATABASE,
+                Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL(WeatherDbHelper.SQL_CREATE_LOCATION_TABLE);
+            db.execSQL(LocationSearch.SQL_CREATE_TABLE);
+            db.execSQL(LocationSearch.SQL_CREATE_INSERT_TRIGGER);
+            Random random = new Random(42);
+            long startNanos = System.nanoTime();
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < BENCHMARK_CITIES; i++) {
+                    String cityName = i == BENCHMARK_CITIES / 2 ? BENCHMARK_CITY
+                            : buildCityName(random);
+                    values.put(LocationEntry.COLUMN_LOCATION_SETTING, "city" + i);
+                    values.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+                    values.put(LocationEntry.COLUMN_COORD_LAT, random.nextDouble() * 180 - 90);
+                    values.put(LocationEntry.COLUMN_COORD_LONG, random.nextDouble() * 360 - 180);
+                    db.insert(LocationEntry.TABLE_NAME, null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long insertNanos = System.nanoTime() - startNanos;
+
+            StringBuilder timings = new StringBuilder();
+            long worstNanos = 0;
+            String found = null;
+            for (int length = 2; length <= BENCHMARK_CITY.length(); length++) {
+                String text = BENCHMARK_CITY.substring(0, length).toLowerCase(Locale.US);
+                startNanos = System.nanoTime();
+                Cursor cursor = LocationSearch.query(db, text, new String[]{
+                        LocationEntry._ID, LocationEntry.COLUMN_CITY_NAME,
+                        LocationEntry.COLUMN_LOCATION_SETTING}, null, "10");
+                try {
+                    // Reading the cursor is what runs the query.
+                    found = cursor.moveToFirst() ? cursor.getString(1) : null;
+                } finally {
+                    cursor.close();
+                }
+                long nanos = System.nanoTime() - startNanos;
+                worstNanos = Math.max(worstNanos, nanos);
+                timings.append(String.format(Locale.US, " %s %.2f ms;", text, nanos / 1e6));
+            }
+            assertEquals("Error: the whole name should find the city first", BENCHMARK_CITY,
+                    found);
+
+            startNanos = System.nanoTime();
+            long scanned = DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + LocationEntry.TABLE_NAME + " WHERE " + LocationEntry.COLUMN_CITY_NAME
+                    + " LIKE '%" + BENCHMARK_CITY + "%'", null);
+            long scanNanos = System.nanoTime() - startNanos;
+            assertTrue(scanned >= 1);
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d cities indexed in %.1f s; per keystroke:%s worst %.2f ms; "
+                            + "LIKE over every name %.2f ms",
+                    BENCHMARK_CITIES, insertNanos / 1e9, timings, worstNanos / 1e6,
+                    scanNanos / 1e6));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+        Two to four syllables, capitalized, with a second word now and then.
+     */
+    static String buildCityName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int syllables = 2 + random.nextInt(3);
+        for (int i = 0; i < syllables; i++) {
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        if (random.nextInt(4) == 0) {
+            String second = SYLLABLES[random.nextInt(SYLLABLES.length)]
+                    + SYLLABLES[random.nextInt(SYLLABLES.length)];
+            name.append(' ').append(Character.toUpperCase(second.charAt(0)))
+                    .append(second.substring(1));
+        }
+        return name.toString();
+    }
+}
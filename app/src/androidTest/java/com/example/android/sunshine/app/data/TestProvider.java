@@ -30,6 +30,8 @@ import android.util.Log;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.Arrays;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -512,4 +514,57 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Bulk inserting a forecast that is already stored should leave it alone, and changing one
+        day should only update that day, without any of the rows getting a new _ID.
+     */
+    public void testBulkInsertOnlyWritesChanges() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+        long[] ids = readWeatherIds();
+
+        // Same forecast again: nothing to write.
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals("Error: an unchanged forecast should not be rewritten", 0, insertCount);
+        assertTrue(Arrays.equals(ids, readWeatherIds()));
+
+        // One day changes, and one new day is added at the end.
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        ContentValues[] newValues = Arrays.copyOf(changedValues, changedValues.length + 1);
+        ContentValues extraDay = new ContentValues(changedValues[changedValues.length - 1]);
+        extraDay.put(WeatherEntry.COLUMN_DATE,
+                extraDay.getAsLong(WeatherEntry.COLUMN_DATE) + 1000 * 60 * 60 * 24);
+        newValues[changedValues.length] = extraDay;
+
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, newValues);
+        assertEquals("Error: only the changed and the new day should be written", 2, insertCount);
+        long[] newIds = readWeatherIds();
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT + 1, newIds.length);
+        assertTrue("Error: updated rows should keep their _ID",
+                Arrays.equals(ids, Arrays.copyOf(newIds, ids.length)));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry._ID + " = ?", new String[]{Long.toString(ids[3])}, null);
+        TestUtilities.validateCursor("testBulkInsertOnlyWritesChanges. Error validating update",
+                cursor, changedValues[3]);
+    }
+
+    private long[] readWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
 }
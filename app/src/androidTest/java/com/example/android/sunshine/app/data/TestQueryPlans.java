@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.regex.Pattern;
+
+/*
+    Runs EXPLAIN QUERY PLAN over the statements the provider and the sync adapter run against
+    the database, and fails if any of them has to walk a whole table to find its rows.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    // What the forecast list, the widgets and the notification sort by.
+    static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    static final String[] SETTING_AND_DATE_ARGS = new String[]{"94043", "1419033600000"};
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testWeatherWithLocation() {
+        assertNoFullScan(WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                null, WeatherProvider.sLocationSettingSelection, null, null, SORT_BY_DATE, null),
+                new String[]{"94043"});
+    }
+
+    public void testWeatherWithLocationAndStartDate() {
+        assertNoFullScan(WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                null, WeatherProvider.sLocationSettingWithStartDateSelection, null, null,
+                SORT_BY_DATE, null),
+                SETTING_AND_DATE_ARGS);
+    }
+
+    public void testWeatherWithLocationAndDate() {
+        assertNoFullScan(WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                null, WeatherProvider.sLocationSettingAndDaySelection, null, null, null, null),
+                SETTING_AND_DATE_ARGS);
+    }
+
+    public void testWeatherByDateAndLocation() {
+        assertNoFullScan("SELECT * FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+                + WeatherBulkInserter.sWeatherDateAndLocationSelection,
+                new String[]{"1419033600000", "1"});
+    }
+
+    public void testBulkInsertPrefetch() {
+        assertNoFullScan(WeatherBulkInserter.SQL_SELECT_DAYS_PREFIX
+                + WeatherEntry.COLUMN_DATE + " IN (?, ?, ?) AND "
+                + WeatherEntry.COLUMN_LOC_KEY + " IN (?, ?)",
+                new String[]{"1419033600000", "1419120000000", "1419206400000", "1", "2"});
+    }
+
+    public void testUpdateWeatherById() {
+        assertNoFullScan("UPDATE " + WeatherEntry.TABLE_NAME + " SET "
+                + WeatherEntry.COLUMN_MAX_TEMP + " = 1 WHERE " + WeatherEntry._ID + " = ?",
+                new String[]{"1"});
+    }
+
+    public void testRetentionDelete() {
+        assertNoFullScan("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+                + WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{"1419033600000"});
+    }
+
+    public void testLocationBySetting() {
+        assertNoFullScan("SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME
+                + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{"94043"});
+    }
+
+    public void testHourlyRange() {
+        assertNoFullScan(WeatherProvider.sHourlyQueryBuilder.buildQuery(
+                null, HourlyForecastStore.sKeyRangeSelection, null, null,
+                WeatherContract.HourlyEntry._ID, null),
+                HourlyForecastStore.buildKeyRangeArgs(1, 1419033600000L, 1419465600000L));
+    }
+
+    public void testHourlyDays() {
+        assertNoFullScan(SQLiteQueryBuilder.buildQueryString(false,
+                WeatherContract.HourlyEntry.TABLE_NAME, HourlyForecastStore.STORED_COLUMNS,
+                HourlyForecastStore.sKeyRangeSelection, null, null,
+                WeatherContract.HourlyEntry._ID, null),
+                HourlyForecastStore.buildKeyRangeArgs(1, 1419033600000L, Long.MAX_VALUE));
+    }
+
+    public void testLocationSearch() {
+        String text = "mountain vi";
+        assertNoFullScan(SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME, null, LocationSearch.SQL_MATCHING_IDS, null, null,
+                LocationSearch.SQL_RANK, "10"),
+                new String[]{LocationSearch.buildMatchQuery(text), text, text, text + "%"},
+                LocationSearch.TABLE_NAME);
+    }
+
+    public void testLocationNear() {
+        assertNoFullScan(SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME, null,
+                LocationGrid.buildCellSelection(64.7488, -147.353, 50), null, null, null, null),
+                LocationGrid.buildCellArgs(64.7488, -147.353, 50));
+    }
+
+    public void testArchiveRange() {
+        assertNoFullScan(SQLiteQueryBuilder.buildQueryString(false,
+                WeatherContract.ArchiveEntry.TABLE_NAME, null,
+                ForecastArchive.sKeyRangeSelection, null, null,
+                WeatherContract.ArchiveEntry._ID, null),
+                ForecastArchive.buildKeyRangeArgs(1, 1419033600000L, 1427846400000L));
+    }
+
+    void assertNoFullScan(String sql, String[] args) {
+        assertNoFullScan(sql, args, null);
+    }
+
+    /*
+        Every step of the plan must look its rows up through an index or the rowid. SQLite
+        reports full table walks as "SCAN TABLE x" (or "SCAN x" in newer versions), including
+        walks over every entry of an index.
+
+        A virtual table is always reported as a scan, "SCAN x VIRTUAL TABLE INDEX n:", with n
+        the plan the module chose. For an FTS3 table 0 is a walk over every row and 1 a docid
+        lookup; from 2 on it is a MATCH through the full-text index, which is allowed for the
+        FTS3 table that is named.
+     */
+    void assertNoFullScan(String sql, String[] args, String ftsTable) {
+        Pattern fullTextLookup = ftsTable == null ? null : Pattern.compile("SCAN (TABLE )?"
+                + Pattern.quote(ftsTable) + " VIRTUAL TABLE INDEX ([2-9]|\\d{2,}):.*");
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            assertTrue("Error: no query plan for " + sql, plan.moveToFirst());
+            int detailColumn = plan.getColumnIndex("detail");
+            StringBuilder details = new StringBuilder();
+            boolean usedFullTextIndex = false;
+            do {
+                String detail = plan.getString(detailColumn);
+                details.append('\n').append(detail);
+                if (fullTextLookup != null && fullTextLookup.matcher(detail).matches()) {
+                    usedFullTextIndex = true;
+                    continue;
+                }
+                assertFalse("Error: full scan in the plan for " + sql + ": " + detail,
+                        detail.startsWith("SCAN "));
+            } while (plan.moveToNext());
+            if (fullTextLookup != null) {
+                assertTrue("Error: " + ftsTable + "'s full-text index is unused by " + sql,
+                        usedFullTextIndex);
+            }
+            Log.d(LOG_TAG, sql + details);
+        } finally {
+            plan.close();
+        }
+    }
+}
@@ -36,6 +36,15 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_LOCATION_NEAR_DIR = WeatherContract.LocationEntry.buildLocationNearUri(64.7488, -147.353, 10);
+    private static final Uri TEST_LOCATION_SEARCH_DIR = WeatherContract.LocationEntry.buildLocationSearchUri("north po", 10);
+    // content://com.example.android.sunshine.app/hourly"
+    private static final Uri TEST_HOURLY_DIR = WeatherContract.HourlyEntry.CONTENT_URI;
+    private static final Uri TEST_HOURLY_WITH_LOCATION_DIR = WeatherContract.HourlyEntry.buildHourlyLocationWithRange(LOCATION_QUERY, TEST_DATE, TEST_DATE * 2);
+    private static final Uri TEST_HOURLY_DAYS_DIR = WeatherContract.HourlyEntry.buildHourlyDays(LOCATION_QUERY, TEST_DATE, TEST_DATE * 2);
+    // content://com.example.android.sunshine.app/archive"
+    private static final Uri TEST_ARCHIVE_DIR = WeatherContract.ArchiveEntry.CONTENT_URI;
+    private static final Uri TEST_ARCHIVE_WITH_LOCATION_DIR = WeatherContract.ArchiveEntry.buildArchiveLocationWithRange(LOCATION_QUERY, TEST_DATE, TEST_DATE * 2);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -53,5 +62,19 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The LOCATION NEAR URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_NEAR_DIR), WeatherProvider.LOCATION_NEAR);
+        assertEquals("Error: The LOCATION SEARCH URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_SEARCH_DIR), WeatherProvider.LOCATION_SEARCH);
+        assertEquals("Error: The HOURLY URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_DIR), WeatherProvider.HOURLY);
+        assertEquals("Error: The HOURLY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WITH_LOCATION_DIR), WeatherProvider.HOURLY_WITH_LOCATION);
+        assertEquals("Error: The HOURLY DAYS URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_DAYS_DIR), WeatherProvider.HOURLY_DAYS);
+        assertEquals("Error: The ARCHIVE URI was matched incorrectly.",
+                testMatcher.match(TEST_ARCHIVE_DIR), WeatherProvider.ARCHIVE);
+        assertEquals("Error: The ARCHIVE WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_ARCHIVE_WITH_LOCATION_DIR), WeatherProvider.ARCHIVE_WITH_LOCATION);
     }
 }
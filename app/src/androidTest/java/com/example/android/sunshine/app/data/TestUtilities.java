@@ -23,12 +23,15 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /*
     Students: These are functions and some test data to make it easier to test your database and
@@ -111,6 +114,25 @@ public class TestUtilities extends AndroidTestCase {
         return locationRowId;
     }
 
+    /*
+        Waits until the provider has sent out the change notifications it was holding back, so an
+        observer registered afterwards only hears about changes made from then on. They are sent
+        from the main thread at most ChangeNotificationBatcher.WINDOW_MILLIS after a change, so
+        anything posted to the main thread once that has passed runs after them.
+     */
+    public static void waitForPendingChangeNotifications() throws InterruptedException {
+        Thread.sleep(ChangeNotificationBatcher.WINDOW_MILLIS);
+        final CountDownLatch sent = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                sent.countDown();
+            }
+        });
+        assertTrue("Error: the main thread never got to the pending change notifications",
+                sent.await(5, TimeUnit.SECONDS));
+    }
+
     /*
         Students: The functions we provide inside of TestProvider use this utility class to test
         the ContentObserver callbacks using the PollingCheck class that we grabbed from the Android
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Checks the bulk inserter against the provider's old per-row path, and benchmarks the two on
+    a scratch database so the app's own data is left alone. The benchmarks only run as part of
+    BenchmarkSuite.
+ */
+public class TestWeatherBulkInserter extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherBulkInserter.class.getSimpleName();
+
+    static final String BENCHMARK_DATABASE_NAME = "bulk_benchmark.db";
+
+    // Rows per transaction, about what a large multi-location sync writes at once.
+    static final int ROWS_PER_TRANSACTION = 10000;
+    static final int NUM_LOCATIONS = 100;
+
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+    // Noon on December 20th, 2014, so every date needs normalizing.
+    static final long START_DATE = 1419033600000L + DAY_IN_MILLIS / 2;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        mDb = mContext.openOrCreateDatabase(BENCHMARK_DATABASE_NAME, 0, null);
+        new WeatherDbHelper(mContext).onCreate(mDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testNormalizeDateMatchesContract() {
+        WeatherBulkInserter inserter = new WeatherBulkInserter(mDb);
+        // Two years in steps of a little under an hour, to land on every time of day.
+        for (long date = START_DATE; date < START_DATE + 730 * DAY_IN_MILLIS;
+             date += 1000L * 60 * 59) {
+            assertEquals("Error: normalizeDate doesn't match the contract for " + date,
+                    WeatherContract.normalizeDate(date), inserter.normalizeDate(date));
+        }
+    }
+
+    public void testInsertsSameRowsAsLegacyPath() {
+        ContentValues[] rows = createRows(0, 1000);
+        mDb.beginTransaction();
+        try {
+            WeatherBulkInserter inserter = new WeatherBulkInserter(mDb);
+            inserter.bulkInsert(rows);
+            assertEquals(1000, inserter.getResult().inserted);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        ContentValues[] legacyRows = createRows(0, 1000);
+        for (int i = 0; i < legacyRows.length; i++) {
+            long date = legacyRows[i].getAsLong(WeatherEntry.COLUMN_DATE);
+            legacyRows[i].put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(date));
+            assertEquals("Error: the bulk path wrote a different date back",
+                    legacyRows[i].getAsLong(WeatherEntry.COLUMN_DATE),
+                    rows[i].getAsLong(WeatherEntry.COLUMN_DATE));
+
+            Cursor cursor = mDb.query(WeatherEntry.TABLE_NAME, null,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                    new String[]{legacyRows[i].getAsString(WeatherEntry.COLUMN_LOC_KEY),
+                            legacyRows[i].getAsString(WeatherEntry.COLUMN_DATE)},
+                    null, null, null);
+            TestUtilities.validateCursor("Error: row " + i + " was stored differently",
+                    cursor, legacyRows[i]);
+            cursor.close();
+        }
+    }
+
+    public void benchmarkBulkInsert10k() {
+        runBenchmark(10000);
+    }
+
+    public void benchmarkBulkInsert100k() {
+        runBenchmark(100000);
+    }
+
+    public void benchmarkBulkInsert1M() {
+        runBenchmark(1000000);
+    }
+
+    private void runBenchmark(int count) {
+        Measurement legacy = new Measurement();
+        for (int first = 0; first < count; first += ROWS_PER_TRANSACTION) {
+            ContentValues[] rows = createRows(first, Math.min(ROWS_PER_TRANSACTION, count - first));
+            legacy.start();
+            insertLegacy(rows);
+            legacy.stop();
+        }
+        assertEquals(count, DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+
+        Measurement bulk = new Measurement();
+        for (int first = 0; first < count; first += ROWS_PER_TRANSACTION) {
+            ContentValues[] rows = createRows(first, Math.min(ROWS_PER_TRANSACTION, count - first));
+            bulk.start();
+            insertBulk(rows);
+            bulk.stop();
+        }
+        assertEquals(count, DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d rows: legacy %.0f rows/s, %d bytes allocated; "
+                        + "bulk %.0f rows/s, %d bytes allocated",
+                count, legacy.rowsPerSecond(count), legacy.allocatedBytes,
+                bulk.rowsPerSecond(count), bulk.allocatedBytes));
+    }
+
+    /*
+        What WeatherProvider.bulkInsert did before the bulk inserter: normalize with a new Time
+        and let SQLiteDatabase build and bind the statement from the map, row by row.
+     */
+    private void insertLegacy(ContentValues[] rows) {
+        mDb.beginTransaction();
+        try {
+            for (ContentValues row : rows) {
+                long date = row.getAsLong(WeatherEntry.COLUMN_DATE);
+                row.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(date));
+                mDb.insert(WeatherEntry.TABLE_NAME, null, row);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void insertBulk(ContentValues[] rows) {
+        mDb.beginTransaction();
+        try {
+            new WeatherBulkInserter(mDb).bulkInsert(rows);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /*
+        Builds rows in the shape the sync adapter writes them, spread over NUM_LOCATIONS so that
+        every (location, date) pair is distinct.
+     */
+    static ContentValues[] createRows(int first, int count) {
+        ContentValues[] rows = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            int n = first + i;
+            ContentValues row = new ContentValues();
+            row.put(WeatherEntry.COLUMN_LOC_KEY, (long) (n % NUM_LOCATIONS + 1));
+            row.put(WeatherEntry.COLUMN_DATE, START_DATE + (n / NUM_LOCATIONS) * DAY_IN_MILLIS);
+            row.put(WeatherEntry.COLUMN_HUMIDITY, 40.0 + n % 50);
+            row.put(WeatherEntry.COLUMN_PRESSURE, 1000.0 + n % 30);
+            row.put(WeatherEntry.COLUMN_WIND_SPEED, 1.5 + n % 10);
+            row.put(WeatherEntry.COLUMN_DEGREES, (double) (n % 360));
+            row.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + n % 15);
+            row.put(WeatherEntry.COLUMN_MIN_TEMP, 5.0 + n % 15);
+            row.put(WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+            row.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    /*
+        Adds up the time and allocations of the measured sections, leaving out the time spent
+        building the input rows.
+     */
+    @SuppressWarnings("deprecation")
+    static class Measurement {
+        long elapsedNanos;
+        long allocatedBytes;
+        private long mStartNanos;
+
+        void start() {
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            mStartNanos = System.nanoTime();
+        }
+
+        void stop() {
+            elapsedNanos += System.nanoTime() - mStartNanos;
+            Debug.stopAllocCounting();
+            allocatedBytes += Debug.getThreadAllocSize();
+        }
+
+        double rowsPerSecond(int rows) {
+            return rows * 1e9 / Math.max(1, elapsedNanos);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.TestHttpServer;
+
+import java.net.URL;
+
+/*
+    Runs the forecast sync against a local stand-in for OpenWeatherMap to check that unchanged
+    forecasts are answered with a 304 and never reach the database.
+ */
+public class TestConditionalSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConditionalSync.class.getSimpleName();
+
+    static final String TEST_LOCATION = "99705";
+    static final int NUM_DAYS = 14;
+    static final String ETAG_V1 = "\"forecast-v1\"";
+    static final String ETAG_V2 = "\"forecast-v2\"";
+    static final String LAST_MODIFIED = "Sat, 20 Dec 2014 12:00:00 GMT";
+
+    private TestHttpServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+    private URL mForecastUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new TestHttpServer();
+        mServer.setResponse(TestForecastJsonParser.createForecastJson(NUM_DAYS).getBytes("UTF-8"),
+                ETAG_V1, LAST_MODIFIED);
+        mForecastUrl = mServer.getUrl("/data/2.5/forecast/daily?q=" + TEST_LOCATION);
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        deleteAllRecords();
+        new ForecastValidatorCache(mContext).clearValidators(mForecastUrl.toString());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAllRecords();
+        new ForecastValidatorCache(mContext).clearValidators(mForecastUrl.toString());
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TEST_LOCATION), null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testUnchangedForecastIsNotDownloadedAgain() {
+        int rows = mSyncAdapter.syncForecast(TEST_LOCATION, mForecastUrl);
+        assertEquals("Error: first sync should store the whole forecast", NUM_DAYS, rows);
+        assertEquals(NUM_DAYS, countWeatherRows());
+        assertNull("Error: first sync should not be conditional",
+                mServer.getLastRequestHeaders().get("if-none-match"));
+        long fullBytes = mServer.getBytesSent();
+
+        mServer.resetCounters();
+        rows = mSyncAdapter.syncForecast(TEST_LOCATION, mForecastUrl);
+        assertEquals("Error: unchanged forecast should not write any rows", 0, rows);
+        assertEquals(ETAG_V1, mServer.getLastRequestHeaders().get("if-none-match"));
+        assertEquals(LAST_MODIFIED, mServer.getLastRequestHeaders().get("if-modified-since"));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, mServer.getNotModifiedCount());
+        assertEquals(NUM_DAYS, countWeatherRows());
+
+        Log.i(LOG_TAG, "Full sync: " + fullBytes + " bytes, not modified: "
+                + mServer.getBytesSent() + " bytes");
+        assertTrue("Error: a 304 should be much smaller than the forecast",
+                mServer.getBytesSent() * 4 < fullBytes);
+    }
+
+    public void testChangedForecastIsDownloaded() throws Exception {
+        assertEquals(NUM_DAYS, mSyncAdapter.syncForecast(TEST_LOCATION, mForecastUrl));
+
+        mServer.setResponse(TestForecastJsonParser.createForecastJson(NUM_DAYS + 2)
+                .getBytes("UTF-8"), ETAG_V2, null);
+        mServer.resetCounters();
+        int rows = mSyncAdapter.syncForecast(TEST_LOCATION, mForecastUrl);
+        assertEquals(0, mServer.getNotModifiedCount());
+        // The first NUM_DAYS days are the same as before, so only the two new ones are written.
+        assertEquals(2, rows);
+        assertEquals(NUM_DAYS + 2, countWeatherRows());
+
+        // The new response has no Last-Modified, so only the ETag should be sent from now on.
+        mServer.resetCounters();
+        assertEquals(0, mSyncAdapter.syncForecast(TEST_LOCATION, mForecastUrl));
+        assertEquals(ETAG_V2, mServer.getLastRequestHeaders().get("if-none-match"));
+        assertNull(mServer.getLastRequestHeaders().get("if-modified-since"));
+        assertEquals(1, mServer.getNotModifiedCount());
+    }
+
+    public void testValidatorsAreNotSentWithoutStoredForecast() {
+        assertEquals(NUM_DAYS, mSyncAdapter.syncForecast(TEST_LOCATION, mForecastUrl));
+
+        // Losing the rows (e.g. the user cleared the data) must force a full download, even
+        // though the server's copy hasn't changed.
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mServer.resetCounters();
+        int rows = mSyncAdapter.syncForecast(TEST_LOCATION, mForecastUrl);
+        assertNull(mServer.getLastRequestHeaders().get("if-none-match"));
+        assertEquals(0, mServer.getNotModifiedCount());
+        assertEquals(NUM_DAYS, rows);
+        assertEquals(NUM_DAYS, countWeatherRows());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.TestHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/*
+    Checks that the forecast HTTP client negotiates gzip, reports wire and decoded sizes
+    correctly, and hands its connections back to the keep-alive pool.
+ */
+public class TestForecastHttpClient extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastHttpClient.class.getSimpleName();
+
+    private TestHttpServer mServer;
+    private ForecastHttpClient mClient;
+    private byte[] mBody;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBody = TestForecastJsonParser.createForecastJson(16).getBytes("UTF-8");
+        mServer = new TestHttpServer();
+        mServer.setResponse(mBody, null, null);
+        mClient = new ForecastHttpClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    public void testGzipIsNegotiated() throws IOException {
+        mServer.setGzipEnabled(true);
+        URL url = mServer.getUrl("/data/2.5/forecast/daily?q=94043");
+
+        ForecastHttpClient.Response response = mClient.get(url, null);
+        byte[] body;
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, response.getResponseCode());
+            body = readFully(response.getBody());
+        } finally {
+            response.close();
+        }
+
+        String acceptEncoding = mServer.getLastRequestHeaders().get("accept-encoding");
+        assertNotNull("Error: the client didn't ask for a compressed body", acceptEncoding);
+        assertTrue(acceptEncoding.contains("gzip"));
+        assertTrue("Error: the body was not decompressed", Arrays.equals(mBody, body));
+        assertEquals(mBody.length, response.getDecodedBytes());
+
+        Log.i(LOG_TAG, "gzip: " + response.getWireBytes() + " bytes on the wire, "
+                + response.getDecodedBytes() + " decoded");
+        assertTrue("Error: the body should have been smaller on the wire",
+                response.getWireBytes() < response.getDecodedBytes());
+        assertEquals(response.getWireBytes(), mClient.getTotalWireBytes());
+        assertEquals(response.getDecodedBytes(), mClient.getTotalDecodedBytes());
+    }
+
+    public void testUncompressedResponse() throws IOException {
+        URL url = mServer.getUrl("/data/2.5/forecast/daily?q=94043");
+
+        ForecastHttpClient.Response response = mClient.get(url, null);
+        byte[] body;
+        try {
+            body = readFully(response.getBody());
+        } finally {
+            response.close();
+        }
+
+        assertTrue(Arrays.equals(mBody, body));
+        assertEquals(mBody.length, response.getWireBytes());
+        assertEquals(mBody.length, response.getDecodedBytes());
+    }
+
+    public void testEmptyGzipResponse() throws IOException {
+        mServer.setGzipEnabled(true);
+        mServer.setResponse(new byte[0], null, null);
+        URL url = mServer.getUrl("/data/2.5/forecast/daily?q=94043");
+
+        ForecastHttpClient.Response response = mClient.get(url, null);
+        byte[] body;
+        try {
+            assertEquals("gzip", response.getHeaderField("Content-Encoding"));
+            body = readFully(response.getBody());
+        } finally {
+            response.close();
+        }
+        assertEquals("Error: an empty body marked as gzip should read as empty", 0, body.length);
+    }
+
+    public void testConnectionIsReused() throws IOException {
+        mServer.setGzipEnabled(true);
+        final int requests = 5;
+        for (int i = 0; i < requests; i++) {
+            ForecastHttpClient.Response response =
+                    mClient.get(mServer.getUrl("/data/2.5/forecast/daily?q=" + i), null);
+            // Read only part of the body; closing the response must still leave the
+            // connection usable.
+            response.getBody().read(new byte[16]);
+            response.close();
+        }
+        assertEquals(requests, mServer.getRequestCount());
+        assertEquals("Error: requests should share one kept-alive connection",
+                1, mServer.getConnectionCount());
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/*
+    Checks that the streaming forecast parser reads the same values as the org.json one. Its
+    benchmarks, run by BenchmarkSuite, compare how much each of them costs on a realistic
+    response.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    static final int TEST_JULIAN_START_DAY = 2457012;  // December 20th, 2014
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    /*
+        Builds a response shaped like the one OWM sends for forecast/daily, including the fields
+        we don't read, so that both parsers have to skip the same amount of data.
+     */
+    static String createForecastJson(int numDays) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f,"
+                            + "\"night\":%.2f,\"eve\":%.2f,\"morn\":%.2f},"
+                            + "\"pressure\":%.2f,\"humidity\":%d,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"Clear\","
+                            + "\"description\":\"sky is clear\",\"icon\":\"01d\"}],"
+                            + "\"speed\":%.2f,\"deg\":%d,\"clouds\":%d}",
+                    1419105600L + i * 86400L, 15.5 + i, 8.25 + i, 18.75 + i, 9.5, 14.0, 8.5,
+                    1012.5 - i, 60 + i, 800 + (i % 5), 2.5 + 0.1 * i, 10 * i, i));
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    public void testStreamingMatchesTree() throws JSONException, IOException {
+        String json = createForecastJson(14);
+
+        ForecastJsonParser.Forecast tree = ForecastJsonParser.parse(json, TEST_JULIAN_START_DAY);
+        ForecastJsonParser.Forecast stream = ForecastJsonParser.parse(
+                new StringReader(json), TEST_JULIAN_START_DAY);
+
+        assertEquals(tree.messageCode, stream.messageCode);
+        assertEquals(tree.cityName, stream.cityName);
+        assertEquals(tree.cityLatitude, stream.cityLatitude);
+        assertEquals(tree.cityLongitude, stream.cityLongitude);
+        assertEquals(14, tree.days.size());
+        assertEquals(tree.days.size(), stream.days.size());
+        for (int i = 0; i < tree.days.size(); i++) {
+            ContentValues expected = tree.days.get(i);
+            ContentValues actual = stream.days.get(i);
+            assertEquals("Error: day " + i + " has different columns",
+                    expected.size(), actual.size());
+            for (String column : expected.keySet()) {
+                assertEquals("Error: day " + i + " differs in " + column,
+                        expected.getAsString(column), actual.getAsString(column));
+            }
+        }
+    }
+
+    public void testStreamingErrorCode() throws IOException {
+        ForecastJsonParser.Forecast forecast = ForecastJsonParser.parse(
+                new StringReader("{\"cod\":\"404\",\"message\":\"Error: Not found city\"}"),
+                TEST_JULIAN_START_DAY);
+        assertEquals(404, forecast.messageCode);
+        assertTrue(forecast.days.isEmpty());
+    }
+
+    public void testStreamingRejectsIncompleteForecast() throws IOException {
+        try {
+            ForecastJsonParser.parse(new StringReader("{\"cod\":\"200\",\"list\":[]}"),
+                    TEST_JULIAN_START_DAY);
+            fail("Error: a forecast without a city should not parse");
+        } catch (MalformedJsonException expected) {
+        }
+    }
+
+    /*
+        Builds a response shaped like the one OWM sends for its three-hourly forecast.
+     */
+    static String createHourlyForecastJson(int numHours) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cod\":\"200\",\"message\":0.0032,\"cnt\":").append(numHours)
+                .append(",\"list\":[");
+        for (int i = 0; i < numHours; i++) {
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"main\":{\"temp\":%.2f,\"temp_min\":%.2f,"
+                            + "\"temp_max\":%.2f,\"pressure\":%.2f,\"humidity\":%d},"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"Rain\","
+                            + "\"description\":\"light rain\",\"icon\":\"10d\"}],"
+                            + "\"clouds\":{\"all\":%d},\"wind\":{\"speed\":%.2f,\"deg\":%.1f},"
+                            + "\"dt_txt\":\"2014-12-20 12:00:00\"}",
+                    1419076800L + i * 10800L, 12.5 + i, 12.0, 13.0, 1015.25 - i, 70 + i,
+                    500 + i, i, 3.5 + 0.1 * i, 90.5 + i));
+        }
+        json.append("],\"city\":{\"id\":5375480,\"name\":\"Mountain View\"}}");
+        return json.toString();
+    }
+
+    public void testParseHourly() throws IOException {
+        ArrayList<ContentValues> hours = ForecastJsonParser.parseHourly(
+                new StringReader(createHourlyForecastJson(40)));
+        assertEquals(40, hours.size());
+        for (int i = 0; i < hours.size(); i++) {
+            ContentValues hour = hours.get(i);
+            assertEquals((1419076800L + i * 10800L) * 1000,
+                    (long) hour.getAsLong(HourlyEntry.COLUMN_TIME));
+            assertEquals(12.5 + i, hour.getAsDouble(HourlyEntry.COLUMN_TEMP), 1e-9);
+            assertEquals(1015.25 - i, hour.getAsDouble(HourlyEntry.COLUMN_PRESSURE), 1e-9);
+            assertEquals(70.0 + i, hour.getAsDouble(HourlyEntry.COLUMN_HUMIDITY), 1e-9);
+            assertEquals(3.5 + 0.1 * i, hour.getAsDouble(HourlyEntry.COLUMN_WIND_SPEED), 1e-6);
+            assertEquals(90.5 + i, hour.getAsDouble(HourlyEntry.COLUMN_DEGREES), 1e-9);
+            assertEquals(500 + i, (int) hour.getAsInteger(HourlyEntry.COLUMN_WEATHER_ID));
+            assertFalse("Error: hourly values should not carry a description",
+                    hour.containsKey(WeatherEntry.COLUMN_SHORT_DESC));
+        }
+    }
+
+    public void testParseHourlyErrorCode() throws IOException {
+        assertTrue(ForecastJsonParser.parseHourly(new StringReader(
+                "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}")).isEmpty());
+    }
+
+    public void testParseHourlyRejectsIncompleteHour() throws IOException {
+        try {
+            ForecastJsonParser.parseHourly(new StringReader(
+                    "{\"cod\":\"200\",\"list\":[{\"dt\":1419076800}]}"));
+            fail("Error: an hour without its values should not parse");
+        } catch (MalformedJsonException expected) {
+        }
+    }
+
+    public void benchmarkParse14Days() throws Exception {
+        runBenchmark(14);
+    }
+
+    public void benchmarkParse16Days() throws Exception {
+        runBenchmark(16);
+    }
+
+    /*
+        Compares the old path (read the body line by line into a buffer, then build the org.json
+        tree) with the streaming one, both starting from the raw bytes of the response.
+     */
+    @SuppressWarnings("deprecation")
+    private void runBenchmark(int numDays) throws Exception {
+        byte[] body = createForecastJson(numDays).getBytes("UTF-8");
+
+        // Warm up both paths so we aren't measuring class loading or the JIT.
+        for (int i = 0; i < 20; i++) {
+            parseWithTree(body);
+            parseWithStream(body);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        long treeNanos = 0, streamNanos = 0;
+        long treeBytes, streamBytes;
+        long treePeak = 0, streamPeak = 0;
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            runtime.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            ForecastJsonParser.Forecast forecast = parseWithTree(body);
+            treeNanos += System.nanoTime() - start;
+            treePeak = Math.max(treePeak,
+                    runtime.totalMemory() - runtime.freeMemory() - heapBefore);
+            assertEquals(numDays, forecast.days.size());
+        }
+        treeBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocSize();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            runtime.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            ForecastJsonParser.Forecast forecast = parseWithStream(body);
+            streamNanos += System.nanoTime() - start;
+            streamPeak = Math.max(streamPeak,
+                    runtime.totalMemory() - runtime.freeMemory() - heapBefore);
+            assertEquals(numDays, forecast.days.size());
+        }
+        streamBytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d days, %d bytes: tree %.1f us/parse %d bytes/parse (peak %d), "
+                        + "stream %.1f us/parse %d bytes/parse (peak %d)",
+                numDays, body.length,
+                treeNanos / 1000.0 / BENCHMARK_ITERATIONS, treeBytes / BENCHMARK_ITERATIONS,
+                treePeak,
+                streamNanos / 1000.0 / BENCHMARK_ITERATIONS, streamBytes / BENCHMARK_ITERATIONS,
+                streamPeak));
+    }
+
+    private static ForecastJsonParser.Forecast parseWithTree(byte[] body) throws Exception {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        reader.close();
+        return ForecastJsonParser.parse(buffer.toString(), TEST_JULIAN_START_DAY);
+    }
+
+    private static ForecastJsonParser.Forecast parseWithStream(byte[] body) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+        try {
+            return ForecastJsonParser.parse(reader, TEST_JULIAN_START_DAY);
+        } finally {
+            reader.close();
+        }
+    }
+}
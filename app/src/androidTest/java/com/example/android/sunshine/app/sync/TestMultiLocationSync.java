@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+import com.example.android.sunshine.app.utils.TestHttpServer;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Syncs many locations against a local stand-in for OpenWeatherMap, checking that the batch is
+    written as one change. The benchmarks, which only BenchmarkSuite runs, compare the
+    wall-clock time of sequential and parallel syncs.
+ */
+public class TestMultiLocationSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMultiLocationSync.class.getSimpleName();
+
+    static final int NUM_DAYS = 14;
+    // Roughly what a round trip to OWM costs on a decent mobile connection.
+    static final long SERVER_DELAY_MILLIS = 80;
+
+    private TestHttpServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new TestHttpServer();
+        mServer.setResponse(TestForecastJsonParser.createForecastJson(NUM_DAYS).getBytes("UTF-8"),
+                null, null);
+        mServer.setGzipEnabled(true);
+        mServer.setResponseDelayMillis(SERVER_DELAY_MILLIS);
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private Map<String, URL> createLocations(int count) throws MalformedURLException {
+        Map<String, URL> locations = new LinkedHashMap<String, URL>();
+        for (int i = 0; i < count; i++) {
+            String location = "test-location-" + i;
+            locations.put(location, mServer.getUrl("/data/2.5/forecast/daily?q=" + location));
+        }
+        return locations;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testBatchIsWrittenAsOneChange() throws Exception {
+        HandlerThread observerThread = new HandlerThread("ContentObserverThread");
+        observerThread.start();
+        final AtomicInteger changes = new AtomicInteger();
+        ContentObserver observer = new ContentObserver(new Handler(observerThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changes.incrementAndGet();
+            }
+        };
+        // setUp's deletes are still being notified for a moment, and shouldn't be counted.
+        TestUtilities.waitForPendingChangeNotifications();
+        // Observe one of the synced locations, the way its forecast list would.
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("test-location-0"), true, observer);
+        try {
+            Map<String, URL> locations = createLocations(10);
+            int rows = mSyncAdapter.syncForecasts(locations,
+                    SunshineSyncAdapter.MAX_SYNC_THREADS);
+            assertEquals(10 * NUM_DAYS, rows);
+            assertEquals(10 * NUM_DAYS, countWeatherRows());
+            assertEquals(10, mServer.getRequestCount());
+
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return changes.get() > 0;
+                }
+            }.run();
+            // Give any stragglers a chance to show up before counting.
+            Thread.sleep(500);
+            assertEquals("Error: the whole batch should notify each location once",
+                    1, changes.get());
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observerThread.quit();
+        }
+    }
+
+    public void testFailedLocationIsReported() throws Exception {
+        Map<String, URL> locations = createLocations(2);
+        // Nothing listens on port 1, so this one can't be downloaded.
+        locations.put("test-location-unreachable",
+                new URL("http://127.0.0.1:1/data/2.5/forecast/daily?q=unreachable"));
+        SyncResult syncResult = new SyncResult();
+        assertEquals(2 * NUM_DAYS, mSyncAdapter.syncForecasts(locations,
+                SunshineSyncAdapter.MAX_SYNC_THREADS, syncResult));
+        assertEquals("Error: the location that failed should be reported, though the first "
+                + "one synced", 1, syncResult.stats.numIoExceptions);
+        assertTrue(syncResult.hasError());
+    }
+
+    public void benchmarkSync10Locations() throws Exception {
+        runBenchmark(10);
+    }
+
+    public void benchmarkSync25Locations() throws Exception {
+        runBenchmark(25);
+    }
+
+    public void benchmarkSync50Locations() throws Exception {
+        runBenchmark(50);
+    }
+
+    private void runBenchmark(int count) throws Exception {
+        Map<String, URL> locations = createLocations(count);
+
+        long start = SystemClock.elapsedRealtime();
+        assertEquals(count * NUM_DAYS, mSyncAdapter.syncForecasts(locations, 1));
+        long sequentialMillis = SystemClock.elapsedRealtime() - start;
+
+        deleteAllRecords();
+
+        start = SystemClock.elapsedRealtime();
+        assertEquals(count * NUM_DAYS, mSyncAdapter.syncForecasts(locations,
+                SunshineSyncAdapter.MAX_SYNC_THREADS));
+        long parallelMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(count * NUM_DAYS, countWeatherRows());
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d locations: sequential %d ms, %d threads %d ms (%.1fx)",
+                count, sequentialMillis, SunshineSyncAdapter.MAX_SYNC_THREADS, parallelMillis,
+                sequentialMillis / (double) Math.max(1, parallelMillis)));
+        assertTrue("Error: the parallel sync should be faster than the sequential one",
+                parallelMillis < sequentialMillis);
+    }
+}
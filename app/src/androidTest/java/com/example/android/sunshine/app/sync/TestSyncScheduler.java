@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestSyncScheduler extends AndroidTestCase {
+
+    private static final long HOUR_IN_MILLIS = 1000L * 60 * 60;
+
+    public void testDefaultInterval() {
+        assertEquals("Error: an active user with changing forecasts should get the default",
+                SunshineSyncAdapter.SYNC_INTERVAL,
+                SyncScheduler.chooseInterval(0, HOUR_IN_MILLIS, 0, false));
+    }
+
+    public void testUnchangedForecastsStretchInterval() {
+        int previous = SyncScheduler.chooseInterval(0, 0, 0, false);
+        for (int unchanged = 1; unchanged <= SyncScheduler.MAX_UNCHANGED_DOUBLINGS; unchanged++) {
+            int interval = SyncScheduler.chooseInterval(unchanged, 0, 0, false);
+            assertEquals(previous * 2, interval);
+            previous = interval;
+        }
+        assertEquals("Error: the interval should stop growing",
+                previous, SyncScheduler.chooseInterval(100, 0, 0, false));
+    }
+
+    public void testIdleAppStretchesInterval() {
+        int active = SyncScheduler.chooseInterval(0, 0, 0, false);
+        int idle = SyncScheduler.chooseInterval(0, SyncScheduler.IDLE_MILLIS, 0, false);
+        int longIdle = SyncScheduler.chooseInterval(0, SyncScheduler.LONG_IDLE_MILLIS, 0, false);
+        assertTrue(idle > active);
+        assertTrue(longIdle > idle);
+    }
+
+    public void testVisibleSurfacesShortenInterval() {
+        int hidden = SyncScheduler.chooseInterval(1, 0, 0, false);
+        assertTrue(SyncScheduler.chooseInterval(1, 0, 1, false) < hidden);
+        assertTrue(SyncScheduler.chooseInterval(1, 0, 0, true) < hidden);
+
+        // A widget keeps the forecast in view even if the app itself is never opened.
+        assertEquals(SyncScheduler.chooseInterval(1, 0, 1, false),
+                SyncScheduler.chooseInterval(1, SyncScheduler.LONG_IDLE_MILLIS, 1, false));
+    }
+
+    public void testIntervalIsBounded() {
+        assertEquals(SyncScheduler.MAX_SYNC_INTERVAL, SyncScheduler.chooseInterval(
+                100, SyncScheduler.LONG_IDLE_MILLIS, 0, false));
+        assertTrue(SyncScheduler.chooseInterval(0, 0, 2, true)
+                >= SyncScheduler.MIN_SYNC_INTERVAL);
+    }
+}
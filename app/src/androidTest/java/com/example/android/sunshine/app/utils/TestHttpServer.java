@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    A tiny HTTP/1.1 server on the loopback interface that stands in for OpenWeatherMap. It always
+    serves the same body, honours If-None-Match and If-Modified-Since, gzips the body when asked
+    to, keeps connections alive and counts what it sends so tests can tell how much a sync
+    actually downloaded and how many connections it opened.
+ */
+public class TestHttpServer {
+    private static final String CHARSET = "ISO-8859-1";
+
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+    private volatile boolean mStopped;
+    private final List<Socket> mOpenSockets = new ArrayList<Socket>();
+
+    private volatile byte[] mBody = new byte[0];
+    private volatile String mContentType = "application/json; charset=utf-8";
+    private volatile String mETag;
+    private volatile String mLastModified;
+    private volatile boolean mGzipEnabled;
+    private volatile long mResponseDelayMillis;
+
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private volatile Map<String, String> mLastRequestHeaders = new HashMap<String, String>();
+
+    public TestHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "TestHttpServer");
+        mThread.start();
+    }
+
+    public URL getUrl(String path) throws MalformedURLException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    /**
+     * Sets the body served from now on, along with its validators. Either validator may be null.
+     */
+    public void setResponse(byte[] body, String eTag, String lastModified) {
+        mBody = body;
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Makes the server gzip the body for clients that send Accept-Encoding: gzip.
+     */
+    public void setGzipEnabled(boolean gzipEnabled) {
+        mGzipEnabled = gzipEnabled;
+    }
+
+    /**
+     * Makes every response wait before it is sent, to stand in for a slow server.
+     */
+    public void setResponseDelayMillis(long delayMillis) {
+        mResponseDelayMillis = delayMillis;
+    }
+
+    /**
+     * @return the number of TCP connections accepted
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    /**
+     * @return the number of bytes written back to clients, status line and headers included
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * @return the headers of the last request, keyed by lower-case name
+     */
+    public Map<String, String> getLastRequestHeaders() {
+        return mLastRequestHeaders;
+    }
+
+    public void resetCounters() {
+        mConnectionCount.set(0);
+        mRequestCount.set(0);
+        mNotModifiedCount.set(0);
+        mBytesSent.set(0);
+    }
+
+    public void shutdown() {
+        mStopped = true;
+        try {
+            mServerSocket.close();
+            mThread.join();
+        } catch (IOException | InterruptedException e) {
+            // We're done with it either way.
+        }
+        // Kept-alive connections would otherwise sit in the client's pool pointing at nothing.
+        synchronized (mOpenSockets) {
+            for (Socket socket : mOpenSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            mOpenSockets.clear();
+        }
+    }
+
+    private void serve() {
+        while (!mStopped) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // The socket was closed by shutdown().
+                return;
+            }
+            mConnectionCount.incrementAndGet();
+            synchronized (mOpenSockets) {
+                mOpenSockets.add(socket);
+            }
+            Thread connectionThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        OutputStream out = socket.getOutputStream();
+                        while (!mStopped && handle(in, out)) {
+                            // Keep serving requests on this connection until the client closes it.
+                        }
+                    } catch (IOException e) {
+                        // The client went away.
+                    } finally {
+                        synchronized (mOpenSockets) {
+                            mOpenSockets.remove(socket);
+                        }
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
+                }
+            }, "TestHttpServer connection");
+            connectionThread.setDaemon(true);
+            connectionThread.start();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Serves one request.
+     *
+     * @return false once the client has closed the connection
+     */
+    private boolean handle(InputStream in, OutputStream out) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return false;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        mLastRequestHeaders = headers;
+        mRequestCount.incrementAndGet();
+
+        byte[] body = mBody;
+        String eTag = mETag;
+        String lastModified = mLastModified;
+
+        // If-None-Match wins over If-Modified-Since when both are sent (RFC 7232, section 6).
+        boolean notModified;
+        String ifNoneMatch = headers.get("if-none-match");
+        String ifModifiedSince = headers.get("if-modified-since");
+        if (ifNoneMatch != null) {
+            notModified = ifNoneMatch.equals(eTag);
+        } else {
+            notModified = ifModifiedSince != null && ifModifiedSince.equals(lastModified);
+        }
+
+        String acceptEncoding = headers.get("accept-encoding");
+        boolean gzip = mGzipEnabled && acceptEncoding != null && acceptEncoding.contains("gzip");
+        // An empty body is sent as it is, though still marked as gzip, the way some servers do.
+        if (gzip && !notModified && body.length > 0) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(body);
+            gzipOut.close();
+            body = compressed.toByteArray();
+        }
+
+        StringBuilder head = new StringBuilder();
+        if (notModified) {
+            mNotModifiedCount.incrementAndGet();
+            head.append("HTTP/1.1 304 Not Modified\r\n");
+        } else {
+            head.append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: ").append(mContentType).append("\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n");
+            if (gzip) {
+                head.append("Content-Encoding: gzip\r\n");
+            }
+        }
+        if (eTag != null) {
+            head.append("ETag: ").append(eTag).append("\r\n");
+        }
+        if (lastModified != null) {
+            head.append("Last-Modified: ").append(lastModified).append("\r\n");
+        }
+        head.append("\r\n");
+
+        long delay = mResponseDelayMillis;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        byte[] headBytes = head.toString().getBytes(CHARSET);
+        out.write(headBytes);
+        long sent = headBytes.length;
+        if (!notModified) {
+            out.write(body);
+            sent += body.length;
+        }
+        out.flush();
+        mBytesSent.addAndGet(sent);
+        return true;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.SparseArray;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats the days of the forecast for {@link Utility}. The formatters are made once for the
+ * locale and time zone, and every string is kept for the julian day it names, until the day
+ * ends or the locale, the time zone or the clock changes. A day that was formatted before is
+ * returned without allocating anything.
+ */
+public final class DayFormatter {
+    private static final String DAY_NAME_FORMAT = "EEEE";
+    private static final String SHORTENED_DATE_FORMAT = "EEE MMM dd";
+    private static final String MONTH_DAY_FORMAT = "MMMM dd";
+
+    private static DayFormatter sInstance;
+
+    private final Context mContext;
+
+    // Made for mLocale and mTimeZone, and dropped when either changes.
+    private Locale mLocale;
+    private TimeZone mTimeZone;
+    private SimpleDateFormat mDayNameFormat;
+    private SimpleDateFormat mShortenedDateFormat;
+    private SimpleDateFormat mMonthDayFormat;
+
+    // The day the strings were made on. Day names are relative to it, and the dates are
+    // turned into julian days with its offset from UTC, the way Utility always did.
+    private int mOffsetMillis;
+    private int mCurrentJulianDay;
+    private long mDayStartMillis = Long.MAX_VALUE;
+    private long mDayEndMillis;
+
+    // By julian day.
+    private final SparseArray<String> mFriendlyDays = new SparseArray<String>();
+    private final SparseArray<String> mLongTodayFriendlyDays = new SparseArray<String>();
+    private final SparseArray<String> mFullFriendlyDays = new SparseArray<String>();
+    private final SparseArray<String> mDayNames = new SparseArray<String>();
+    private final SparseArray<String> mMonthDays = new SparseArray<String>();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    private DayFormatter(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return the formatter of the application, which is told when the locale, the time zone,
+     * the clock or the date changes
+     */
+    public static synchronized DayFormatter getInstance(Context context) {
+        if (null == sInstance) {
+            DayFormatter formatter = new DayFormatter(context.getApplicationContext());
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+            filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+            filter.addAction(Intent.ACTION_TIME_CHANGED);
+            filter.addAction(Intent.ACTION_DATE_CHANGED);
+            formatter.mContext.registerReceiver(formatter.mReceiver, filter);
+            sInstance = formatter;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Forgets the formatters and every string made with them.
+     */
+    synchronized void invalidate() {
+        mLocale = null;
+        mTimeZone = null;
+        mDayStartMillis = Long.MAX_VALUE;
+    }
+
+    /**
+     * @see Utility#getFriendlyDayString(Context, long, boolean)
+     */
+    public synchronized String getFriendlyDayString(long dateInMillis, boolean displayLongToday) {
+        int julianDay = getJulianDay(dateInMillis);
+        SparseArray<String> cache = displayLongToday ? mLongTodayFriendlyDays : mFriendlyDays;
+        String day = cache.get(julianDay);
+        if (null == day) {
+            if (displayLongToday && julianDay == mCurrentJulianDay) {
+                // "Today, June 24"
+                day = mContext.getString(R.string.format_full_friendly_date,
+                        mContext.getString(R.string.today), getFormattedMonthDay(dateInMillis));
+            } else if (julianDay < mCurrentJulianDay + 7) {
+                // "Wednesday", in the coming week
+                day = getDayName(dateInMillis);
+            } else {
+                // "Mon Jun 3"
+                day = mShortenedDateFormat.format(dateInMillis);
+            }
+            cache.put(julianDay, day);
+        }
+        return day;
+    }
+
+    /**
+     * @see Utility#getFullFriendlyDayString(Context, long)
+     */
+    public synchronized String getFullFriendlyDayString(long dateInMillis) {
+        int julianDay = getJulianDay(dateInMillis);
+        String day = mFullFriendlyDays.get(julianDay);
+        if (null == day) {
+            day = mContext.getString(R.string.format_full_friendly_date,
+                    getDayName(dateInMillis), getFormattedMonthDay(dateInMillis));
+            mFullFriendlyDays.put(julianDay, day);
+        }
+        return day;
+    }
+
+    /**
+     * @see Utility#getDayName(Context, long)
+     */
+    public synchronized String getDayName(long dateInMillis) {
+        int julianDay = getJulianDay(dateInMillis);
+        String day = mDayNames.get(julianDay);
+        if (null == day) {
+            if (julianDay == mCurrentJulianDay) {
+                day = mContext.getString(R.string.today);
+            } else if (julianDay == mCurrentJulianDay + 1) {
+                day = mContext.getString(R.string.tomorrow);
+            } else {
+                day = mDayNameFormat.format(dateInMillis);
+            }
+            mDayNames.put(julianDay, day);
+        }
+        return day;
+    }
+
+    /**
+     * @see Utility#getFormattedMonthDay(Context, long)
+     */
+    public synchronized String getFormattedMonthDay(long dateInMillis) {
+        int julianDay = getJulianDay(dateInMillis);
+        String day = mMonthDays.get(julianDay);
+        if (null == day) {
+            day = mMonthDayFormat.format(dateInMillis);
+            mMonthDays.put(julianDay, day);
+        }
+        return day;
+    }
+
+    /*
+        Starts a new day of strings when the day has run out or the offset from UTC has changed
+        under it, and remakes the formatters if they were invalidated or the default locale
+        has moved on. TimeZone.getDefault() makes a copy each time, so a change of time zone is
+        only seen through the broadcast.
+     */
+    private int getJulianDay(long dateInMillis) {
+        if (null == mTimeZone || mLocale != Locale.getDefault()) {
+            mLocale = Locale.getDefault();
+            mTimeZone = TimeZone.getDefault();
+            mDayNameFormat = new SimpleDateFormat(DAY_NAME_FORMAT, mLocale);
+            mShortenedDateFormat = new SimpleDateFormat(SHORTENED_DATE_FORMAT, mLocale);
+            mMonthDayFormat = new SimpleDateFormat(MONTH_DAY_FORMAT, mLocale);
+            mDayStartMillis = Long.MAX_VALUE;
+        }
+        long now = System.currentTimeMillis();
+        if (now < mDayStartMillis || now >= mDayEndMillis
+                || mTimeZone.getOffset(now) != mOffsetMillis) {
+            startDay(now);
+        }
+        return Time.getJulianDay(dateInMillis, mOffsetMillis / 1000);
+    }
+
+    private void startDay(long now) {
+        mOffsetMillis = mTimeZone.getOffset(now);
+        mCurrentJulianDay = Time.getJulianDay(now, mOffsetMillis / 1000);
+        mDayStartMillis = (mCurrentJulianDay - Time.EPOCH_JULIAN_DAY) * DateUtils.DAY_IN_MILLIS
+                - mOffsetMillis;
+        mDayEndMillis = mDayStartMillis + DateUtils.DAY_IN_MILLIS;
+        mFriendlyDays.clear();
+        mLongTodayFriendlyDays.clear();
+        mFullFriendlyDays.clear();
+        mDayNames.clear();
+        mMonthDays.clear();
+    }
+}
@@ -16,10 +16,12 @@
 package com.example.android.sunshine.app;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.view.ViewCompat;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -30,11 +32,18 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
- * {@link ForecastAdapter} exposes a list of weather forecasts
- * from a {@link android.database.Cursor} to a {@link android.support.v7.widget.RecyclerView}.
+ * {@link ForecastAdapter} exposes a list of weather forecasts, as {@link ForecastRow}s, to a
+ * {@link android.support.v7.widget.RecyclerView}.
+ *
+ * When new rows replace those that are showing, the two are compared on a background thread,
+ * day by day, and only the days that were added, removed or changed are rebound.
  */
 public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapterViewHolder> {
 
@@ -44,7 +53,13 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
     // Flag to determine if we want to use a separate view for "today".
     private boolean mUseTodayLayout = true;
 
-    private Cursor mCursor;
+    // Works out what changed between two cursors, one swap at a time.
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private List<ForecastRow> mRows = Collections.emptyList();
+    // Bumped by every swap, so that a diff that a later swap overtook is dropped.
+    private int mGeneration;
+    final private Handler mHandler = new Handler(Looper.getMainLooper());
     final private Context mContext;
     final private ForecastAdapterOnClickHandler mClickHandler;
     final private View mEmptyView;
@@ -73,9 +88,8 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         @Override
         public void onClick(View v) {
             int adapterPosition = getAdapterPosition();
-            mCursor.moveToPosition(adapterPosition);
-            int dateColumnIndex = mCursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
-            mClickHandler.onClick(mCursor.getLong(dateColumnIndex), this);
+            if (adapterPosition == RecyclerView.NO_POSITION) return;
+            mClickHandler.onClick(mRows.get(adapterPosition).date, this);
             mICM.onClick(this);
         }
     }
@@ -84,10 +98,47 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         void onClick(Long date, ForecastAdapterViewHolder vh);
     }
 
+    /**
+     * Compares two lists of rows by date. A row has changed when it would look different,
+     * which on a new day is every row, since the day names move along.
+     */
+    static final class RowDiff extends DiffUtil.Callback {
+        private final List<ForecastRow> mOldRows;
+        private final List<ForecastRow> mNewRows;
+
+        RowDiff(List<ForecastRow> oldRows, List<ForecastRow> newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).date == mNewRows.get(newItemPosition).date;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).equals(mNewRows.get(newItemPosition));
+        }
+    }
+
     public ForecastAdapter(Context context, ForecastAdapterOnClickHandler dh, View emptyView, int choiceMode) {
         mContext = context;
         mClickHandler = dh;
         mEmptyView = emptyView;
+        // Dates are the ids, so that the selection follows its day as days come and go. This
+        // has to be set before the ItemChoiceManager starts observing.
+        setHasStableIds(true);
         mICM = new ItemChoiceManager(this);
         mICM.setChoiceMode(choiceMode);
     }
@@ -124,26 +175,26 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
 
     @Override
     public void onBindViewHolder(ForecastAdapterViewHolder forecastAdapterViewHolder, int position) {
-        mCursor.moveToPosition(position);
-        int weatherId = mCursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID);
+        // Everything was formatted when the row was loaded, so this only sets it.
+        ForecastRow row = mRows.get(position);
         int defaultImage;
         boolean useLongToday;
 
         switch (getItemViewType(position)) {
             case VIEW_TYPE_TODAY:
-                defaultImage = Utility.getArtResourceForWeatherCondition(weatherId);
+                defaultImage = row.artResource;
                 useLongToday = true;
                 break;
             default:
-                defaultImage = Utility.getIconResourceForWeatherCondition(weatherId);
+                defaultImage = row.iconResource;
                 useLongToday = false;
         }
 
-        if ( Utility.usingLocalGraphics(mContext) ) {
+        if ( null == row.artUrl ) {
             forecastAdapterViewHolder.mIconView.setImageResource(defaultImage);
         } else {
             Glide.with(mContext)
-                    .load(Utility.getArtUrlForWeatherCondition(mContext, weatherId))
+                    .load(row.artUrl)
                     .error(defaultImage)
                     .crossFade()
                     .into(forecastAdapterViewHolder.mIconView);
@@ -153,34 +204,21 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         // the animator can use this to re-find the original view
         ViewCompat.setTransitionName(forecastAdapterViewHolder.mIconView, "iconView" + position);
 
-        // Read date from cursor
-        long dateInMillis = mCursor.getLong(ForecastFragment.COL_WEATHER_DATE);
-
-        // Find TextView and set formatted date on it
-        forecastAdapterViewHolder.mDateView.setText(Utility.getFriendlyDayString(mContext, dateInMillis, useLongToday));
+        forecastAdapterViewHolder.mDateView.setText(
+                useLongToday ? row.todayDayString : row.dayString);
 
-        // Read weather forecast from cursor
-        String description = Utility.getStringForWeatherCondition(mContext, weatherId);
-
-        // Find TextView and set weather forecast on it
-        forecastAdapterViewHolder.mDescriptionView.setText(description);
-        forecastAdapterViewHolder.mDescriptionView.setContentDescription(mContext.getString(R.string.a11y_forecast, description));
+        forecastAdapterViewHolder.mDescriptionView.setText(row.description);
+        forecastAdapterViewHolder.mDescriptionView.setContentDescription(row.descriptionA11y);
 
         // For accessibility, we don't want a content description for the icon field
         // because the information is repeated in the description view and the icon
         // is not individually selectable
 
-        // Read high temperature from cursor
-        double high = mCursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP);
-        String highString = Utility.formatTemperature(mContext, high);
-        forecastAdapterViewHolder.mHighTempView.setText(highString);
-        forecastAdapterViewHolder.mHighTempView.setContentDescription(mContext.getString(R.string.a11y_high_temp, highString));
+        forecastAdapterViewHolder.mHighTempView.setText(row.highString);
+        forecastAdapterViewHolder.mHighTempView.setContentDescription(row.highA11y);
 
-        // Read low temperature from cursor
-        double low = mCursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP);
-        String lowString = Utility.formatTemperature(mContext, low);
-        forecastAdapterViewHolder.mLowTempView.setText(lowString);
-        forecastAdapterViewHolder.mLowTempView.setContentDescription(mContext.getString(R.string.a11y_low_temp, lowString));
+        forecastAdapterViewHolder.mLowTempView.setText(row.lowString);
+        forecastAdapterViewHolder.mLowTempView.setContentDescription(row.lowA11y);
 
         mICM.onBindViewHolder(forecastAdapterViewHolder, position);
     }
@@ -208,18 +246,80 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
 
     @Override
     public int getItemCount() {
-        if ( null == mCursor ) return 0;
-        return mCursor.getCount();
+        return mRows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        if (position < 0 || position >= mRows.size()) return RecyclerView.NO_ID;
+        return mRows.get(position).date;
+    }
+
+    /**
+     * @return the position of the day with the given date, or RecyclerView.NO_POSITION
+     */
+    public int getPositionForDate(long date) {
+        for (int i = 0; i < mRows.size(); i++) {
+            if (mRows.get(i).date == date) return i;
+        }
+        return RecyclerView.NO_POSITION;
+    }
+
+    /**
+     * @return the row at the position, or null when there is none
+     */
+    public ForecastRow getRow(int position) {
+        if (position < 0 || position >= mRows.size()) return null;
+        return mRows.get(position);
+    }
+
+    /*
+        Until the background diff is done the list goes on showing the old rows, which is fine
+        since they hold everything they show. Null rows empty the list.
+     */
+    public void swapRows(List<ForecastRow> rows) {
+        swapRows(rows, null);
     }
 
-    public void swapCursor(Cursor newCursor) {
-        mCursor = newCursor;
-        notifyDataSetChanged();
-        mEmptyView.setVisibility(getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    /*
+        As above, then runs onSwapped on the main thread once the new rows are the ones being
+        shown. It isn't run at all if a later swap overtakes this one.
+     */
+    public void swapRows(List<ForecastRow> rows, final Runnable onSwapped) {
+        final List<ForecastRow> oldRows = mRows;
+        final List<ForecastRow> newRows = null != rows ? rows
+                : Collections.<ForecastRow>emptyList();
+        final int generation = ++mGeneration;
+
+        if (oldRows.isEmpty() || newRows.isEmpty()) {
+            // Nothing stays in place, so there's nothing to compare.
+            setRows(newRows);
+            notifyDataSetChanged();
+            if (null != onSwapped) onSwapped.run();
+            return;
+        }
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                        new RowDiff(oldRows, newRows), false);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) return;
+                        setRows(newRows);
+                        diff.dispatchUpdatesTo(ForecastAdapter.this);
+                        if (null != onSwapped) onSwapped.run();
+                    }
+                });
+            }
+        });
     }
 
-    public Cursor getCursor() {
-        return mCursor;
+    private void setRows(List<ForecastRow> rows) {
+        mRows = rows;
+        mEmptyView.setVisibility(rows.isEmpty() ? View.VISIBLE : View.GONE);
     }
 
     public void selectView(RecyclerView.ViewHolder viewHolder) {
@@ -20,7 +20,6 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.TypedArray;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -28,7 +27,6 @@ import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
@@ -48,10 +46,12 @@ import android.widget.TextView;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
+import java.util.List;
+
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
  */
-public class ForecastFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor>, SharedPreferences.OnSharedPreferenceChangeListener {
+public class ForecastFragment extends Fragment implements LoaderManager.LoaderCallbacks<List<ForecastRow>>, SharedPreferences.OnSharedPreferenceChangeListener {
     public static final String LOG_TAG = ForecastFragment.class.getSimpleName();
     private ForecastAdapter mForecastAdapter;
     private RecyclerView mRecyclerView;
@@ -59,6 +59,10 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    // Whether the next rows to show should scroll to, and select, the day that was selected.
+    // Only the first rows, and those of a new location, do; the rows a sync reloads leave the
+    // list where the user scrolled it.
+    private boolean mRestorePosition = true;
 
     private static final String SELECTED_KEY = "selected_position";
 
@@ -265,6 +269,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     // since we read the location when we create the loader, all we need to do is restart things
     void onLocationChanged() {
+        mRestorePosition = true;
         getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
     }
 
@@ -273,11 +278,10 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // intent can is detailed in the "Common Intents" page of Android's developer site:
         // http://developer.android.com/guide/components/intents-common.html#Maps
         if (null != mForecastAdapter) {
-            Cursor c = mForecastAdapter.getCursor();
-            if (null != c) {
-                c.moveToPosition(0);
-                String posLat = c.getString(COL_COORD_LAT);
-                String posLong = c.getString(COL_COORD_LONG);
+            ForecastRow row = mForecastAdapter.getRow(0);
+            if (null != row) {
+                String posLat = Double.toString(row.coordLat);
+                String posLong = Double.toString(row.coordLong);
                 Uri geoLocation = Uri.parse("geo:" + posLat + "," + posLong);
 
                 Intent intent = new Intent(Intent.ACTION_VIEW);
@@ -302,7 +306,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
 
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
+    public Loader<List<ForecastRow>> onCreateLoader(int i, Bundle bundle) {
         // This is called when a new Loader needs to be created.  This
         // fragment only uses one loader, so we don't care about checking the id.
 
@@ -316,63 +320,62 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
                 locationSetting, System.currentTimeMillis());
 
-        return new CursorLoader(getActivity(),
+        // The rows are formatted on the loader's thread, so the list only has to show them.
+        return new ForecastLoader(getActivity(),
                 weatherForLocationUri,
                 FORECAST_COLUMNS,
-                null,
-                null,
                 sortOrder);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mForecastAdapter.swapCursor(data);
-        updateEmptyView();
-        if ( data.getCount() == 0 ) {
-            getActivity().supportStartPostponedEnterTransition();
-        } else {
-            mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
-                @Override
-                public boolean onPreDraw() {
-                    // Since we know we're going to get items, we keep the listener around until
-                    // we see Children.
-                    if (mRecyclerView.getChildCount() > 0) {
-                        mRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
-                        int position = mForecastAdapter.getSelectedItemPosition();
-                        if (position == RecyclerView.NO_POSITION &&
-                                -1 != mInitialSelectedDate) {
-                            Cursor data = mForecastAdapter.getCursor();
-                            int count = data.getCount();
-                            int dateColumn = data.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
-                            for ( int i = 0; i < count; i++ ) {
-                                data.moveToPosition(i);
-                                if ( data.getLong(dateColumn) == mInitialSelectedDate ) {
-                                    position = i;
-                                    break;
-                                }
-                            }
-                        }
-                        if (position == RecyclerView.NO_POSITION) position = 0;
-                        // If we don't need to restart the loader, and there's a desired position to restore
-                        // to, do so now.
-                        mRecyclerView.smoothScrollToPosition(position);
-                        RecyclerView.ViewHolder vh = mRecyclerView.findViewHolderForAdapterPosition(position);
-                        if (null != vh && mAutoSelectView) {
-                            mForecastAdapter.selectView(vh);
-                        }
-                        if ( mHoldForTransition ) {
-                            getActivity().supportStartPostponedEnterTransition();
-                        }
-                        return true;
-                    }
-                    return false;
+    public void onLoadFinished(Loader<List<ForecastRow>> loader, final List<ForecastRow> data) {
+        // The position is only looked up once the new rows are showing, since the old ones
+        // stay until the adapter has worked out what changed.
+        mForecastAdapter.swapRows(data, new Runnable() {
+            @Override
+            public void run() {
+                if (!isAdded()) return;
+                updateEmptyView();
+                if ( data.isEmpty() ) {
+                    getActivity().supportStartPostponedEnterTransition();
+                } else if (mRestorePosition) {
+                    mRestorePosition = false;
+                    restorePositionOnPreDraw();
                 }
-            });
-        }
-
+            }
+        });
     }
 
-
+    private void restorePositionOnPreDraw() {
+        mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                // Since we know we're going to get items, we keep the listener around until
+                // we see Children.
+                if (mRecyclerView.getChildCount() > 0) {
+                    mRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                    int position = mForecastAdapter.getSelectedItemPosition();
+                    if (position == RecyclerView.NO_POSITION &&
+                            -1 != mInitialSelectedDate) {
+                        position = mForecastAdapter.getPositionForDate(mInitialSelectedDate);
+                    }
+                    if (position == RecyclerView.NO_POSITION) position = 0;
+                    // If we don't need to restart the loader, and there's a desired position to restore
+                    // to, do so now.
+                    mRecyclerView.smoothScrollToPosition(position);
+                    RecyclerView.ViewHolder vh = mRecyclerView.findViewHolderForAdapterPosition(position);
+                    if (null != vh && mAutoSelectView) {
+                        mForecastAdapter.selectView(vh);
+                    }
+                    if ( mHoldForTransition ) {
+                        getActivity().supportStartPostponedEnterTransition();
+                    }
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
 
     @Override
     public void onDestroy() {
@@ -383,8 +386,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mForecastAdapter.swapCursor(null);
+    public void onLoaderReset(Loader<List<ForecastRow>> loader) {
+        mForecastAdapter.swapRows(null);
     }
 
     public void setUseTodayLayout(boolean useTodayLayout) {
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+
+import java.util.List;
+
+/**
+ * Loads the forecast the way a CursorLoader would, then turns the cursor into
+ * {@link ForecastRow}s on the same background thread and closes it. Like a CursorLoader it
+ * loads again whenever the provider notifies a change under its uri, which includes the
+ * changes of units and art pack that the settings announce.
+ */
+class ForecastLoader extends AsyncTaskLoader<List<ForecastRow>> {
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSortOrder;
+
+    private List<ForecastRow> mRows;
+    private boolean mObserving;
+
+    ForecastLoader(Context context, Uri uri, String[] projection, String sortOrder) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+        mSortOrder = sortOrder;
+    }
+
+    @Override
+    public List<ForecastRow> loadInBackground() {
+        Cursor cursor = getContext().getContentResolver().query(mUri, mProjection, null, null,
+                mSortOrder);
+        try {
+            return ForecastRow.fromCursor(getContext(), cursor);
+        } finally {
+            if (null != cursor) cursor.close();
+        }
+    }
+
+    @Override
+    public void deliverResult(List<ForecastRow> rows) {
+        if (isReset()) return;
+        mRows = rows;
+        if (isStarted()) {
+            super.deliverResult(rows);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            // Registered before the first query, so that a change made while it runs isn't lost.
+            getContext().getContentResolver().registerContentObserver(mUri, true, mObserver);
+            mObserving = true;
+        }
+        if (null != mRows) {
+            deliverResult(mRows);
+        }
+        if (takeContentChanged() || null == mRows) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mRows = null;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One day of the forecast list, with everything it shows already formatted, so that binding it
+ * to a view is only setting fields. Rows are built by {@link ForecastLoader} off the main thread
+ * and never change; two rows are equal when they would look the same.
+ */
+final class ForecastRow {
+    final long date;
+    final int weatherId;
+    // The art for the "today" layout and the icon for the other days, from the app's resources.
+    final int artResource;
+    final int iconResource;
+    // Where the art pack has the picture, or null when the app's own graphics are used.
+    final String artUrl;
+    final String dayString;
+    // The date the way the "today" layout puts it.
+    final String todayDayString;
+    final String description;
+    final String descriptionA11y;
+    final String highString;
+    final String highA11y;
+    final String lowString;
+    final String lowA11y;
+    final double coordLat;
+    final double coordLong;
+
+    private ForecastRow(Context context, Cursor cursor, boolean localGraphics) {
+        date = cursor.getLong(ForecastFragment.COL_WEATHER_DATE);
+        weatherId = cursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID);
+        artResource = Utility.getArtResourceForWeatherCondition(weatherId);
+        iconResource = Utility.getIconResourceForWeatherCondition(weatherId);
+        artUrl = localGraphics ? null : Utility.getArtUrlForWeatherCondition(context, weatherId);
+
+        dayString = Utility.getFriendlyDayString(context, date, false);
+        todayDayString = Utility.getFriendlyDayString(context, date, true);
+
+        description = Utility.getStringForWeatherCondition(context, weatherId);
+        descriptionA11y = context.getString(R.string.a11y_forecast, description);
+
+        highString = Utility.formatTemperature(context,
+                cursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP));
+        highA11y = context.getString(R.string.a11y_high_temp, highString);
+        lowString = Utility.formatTemperature(context,
+                cursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP));
+        lowA11y = context.getString(R.string.a11y_low_temp, lowString);
+
+        coordLat = cursor.getDouble(ForecastFragment.COL_COORD_LAT);
+        coordLong = cursor.getDouble(ForecastFragment.COL_COORD_LONG);
+    }
+
+    /**
+     * Formats every row of a cursor with ForecastFragment's columns. This reads preferences
+     * and resources, so it belongs on a background thread.
+     *
+     * @return the rows, which can't be modified
+     */
+    static List<ForecastRow> fromCursor(Context context, Cursor cursor) {
+        if (null == cursor) return Collections.emptyList();
+        boolean localGraphics = Utility.usingLocalGraphics(context);
+        List<ForecastRow> rows = new ArrayList<ForecastRow>(cursor.getCount());
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            rows.add(new ForecastRow(context, cursor, localGraphics));
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ForecastRow)) return false;
+        ForecastRow other = (ForecastRow) o;
+        return date == other.date
+                && weatherId == other.weatherId
+                && artResource == other.artResource
+                && iconResource == other.iconResource
+                && equal(artUrl, other.artUrl)
+                && dayString.equals(other.dayString)
+                && todayDayString.equals(other.todayDayString)
+                && description.equals(other.description)
+                && highString.equals(other.highString)
+                && lowString.equals(other.lowString);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (date ^ (date >>> 32));
+        result = 31 * result + weatherId;
+        result = 31 * result + highString.hashCode();
+        result = 31 * result + lowString.hashCode();
+        return result;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -19,17 +19,48 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.FilterQueryProvider;
 
+import com.example.android.sunshine.app.data.CityGazetteer;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The location setting, typed in with suggestions from the stored locations and then the
+ * bundled city gazetteer. Picking a stored one, or typing its city name, stores that
+ * location's setting, so its forecast shows at once and isn't fetched a second time under
+ * another name.
+ */
 public class LocationEditTextPreference extends EditTextPreference {
     static final private int DEFAULT_MINIMUM_LOCATION_LENGTH = 2;
+    // A single letter matches too many cities to be worth a list.
+    static final private int SUGGESTION_THRESHOLD = 2;
+    static final private int SUGGESTION_LIMIT = 10;
     private int mMinLength;
+    // Shown in the dialog in place of the preference's own EditText.
+    private final AutoCompleteTextView mAutoComplete;
+    // The setting of the suggestion last picked, which needs no resolving while the dialog
+    // still holds it.
+    private String mPickedSetting;
 
     public LocationEditTextPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -42,6 +73,120 @@ public class LocationEditTextPreference extends EditTextPreference {
         } finally {
             a.recycle();
         }
+
+        mAutoComplete = new AutoCompleteTextView(context, attrs);
+        mAutoComplete.setThreshold(SUGGESTION_THRESHOLD);
+        mAutoComplete.setAdapter(buildSuggestionAdapter(context));
+        mAutoComplete.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                // The text has already been replaced with the suggestion's setting.
+                mPickedSetting = mAutoComplete.getText().toString();
+            }
+        });
+    }
+
+    private static SimpleCursorAdapter buildSuggestionAdapter(final Context context) {
+        SimpleCursorAdapter adapter = new SimpleCursorAdapter(context,
+                android.R.layout.simple_list_item_2, null,
+                new String[]{WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                new int[]{android.R.id.text1, android.R.id.text2}, 0);
+        // Runs on the filter's own thread, one search per pause in the typing.
+        adapter.setFilterQueryProvider(new FilterQueryProvider() {
+            @Override
+            public Cursor runQuery(CharSequence constraint) {
+                if (constraint == null || constraint.toString().trim().length() == 0) {
+                    return null;
+                }
+                return querySuggestions(context, constraint.toString());
+            }
+        });
+        adapter.setCursorToStringConverter(new SimpleCursorAdapter.CursorToStringConverter() {
+            @Override
+            public CharSequence convertToString(Cursor cursor) {
+                return cursor.getString(cursor.getColumnIndex(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+            }
+        });
+        return adapter;
+    }
+
+    /**
+     * @return the stored locations that match the text, then the gazetteer's cities that do,
+     * up to SUGGESTION_LIMIT in all
+     */
+    private static Cursor querySuggestions(Context context, String text) {
+        String[] columns = new String[]{WeatherContract.LocationEntry._ID,
+                WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING};
+        Cursor stored = context.getContentResolver().query(
+                WeatherContract.LocationEntry.buildLocationSearchUri(text, SUGGESTION_LIMIT),
+                columns, null, null, null);
+        CityGazetteer gazetteer = CityGazetteer.getInstance(context);
+        if (stored == null || gazetteer == null || stored.getCount() >= SUGGESTION_LIMIT) {
+            return stored;
+        }
+        Set<String> storedSettings = new HashSet<String>();
+        while (stored.moveToNext()) {
+            storedSettings.add(stored.getString(2).toLowerCase(Locale.US));
+        }
+        MatrixCursor cities = new MatrixCursor(columns);
+        int id = 0;
+        for (CityGazetteer.City city
+                : gazetteer.search(text, SUGGESTION_LIMIT - stored.getCount())) {
+            String setting = city.getLocationSetting();
+            if (!storedSettings.contains(setting.toLowerCase(Locale.US))) {
+                // The adapter needs an _id; these can't clash with the stored ones.
+                cities.addRow(new Object[]{--id, city.name + ", " + city.countryCode, setting});
+            }
+        }
+        return new MergeCursor(new Cursor[]{stored, cities});
+    }
+
+    @Override
+    protected void onAddEditTextToDialogView(View dialogView, EditText editText) {
+        ViewGroup oldParent = (ViewGroup) mAutoComplete.getParent();
+        if (oldParent != null) {
+            oldParent.removeView(mAutoComplete);
+        }
+        mAutoComplete.setText(editText.getText());
+        mAutoComplete.setSelection(mAutoComplete.getText().length());
+        super.onAddEditTextToDialogView(dialogView, mAutoComplete);
+    }
+
+    @Override
+    protected void onDialogClosed(boolean positiveResult) {
+        final String text = mAutoComplete.getText().toString();
+        boolean picked = text.equals(mPickedSetting);
+        mPickedSetting = null;
+        if (positiveResult && !picked) {
+            // Typed in, so it may still be a stored location's city name or a gazetteer city.
+            // Finding out searches the database and may map the gazetteer, so it's done off
+            // the main thread, and the setting is stored once it is known.
+            super.onDialogClosed(false);
+            final Context context = getContext().getApplicationContext();
+            new AsyncTask<Void, Void, String>() {
+                @Override
+                protected String doInBackground(Void... params) {
+                    return Utility.resolveLocationSetting(context, text);
+                }
+
+                @Override
+                protected void onPostExecute(String setting) {
+                    if (callChangeListener(setting)) {
+                        setText(setting);
+                    }
+                }
+            }.execute();
+            return;
+        }
+        if (positiveResult) {
+            // A picked suggestion is already a setting. The preference stores what its own
+            // EditText holds.
+            getEditText().setText(text);
+        }
+        super.onDialogClosed(positiveResult);
     }
 
 
@@ -49,7 +194,7 @@ public class LocationEditTextPreference extends EditTextPreference {
     protected void showDialog(Bundle state) {
         super.showDialog(state);
 
-        EditText et = getEditText();
+        EditText et = mAutoComplete;
         et.addTextChangedListener(new TextWatcher() {
 
 
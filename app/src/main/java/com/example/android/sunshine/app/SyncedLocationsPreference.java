@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.app.AlertDialog;
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.preference.Preference;
+import android.util.AttributeSet;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+
+import java.util.ArrayList;
+
+/**
+ * Chooses which of the stored locations, other than the preferred one, the sync keeps up to
+ * date. The choice is each location's {@link WeatherContract.LocationEntry#COLUMN_SYNC}, so it
+ * goes when the location does, and a location that was only looked up once isn't synced. The
+ * locations are read and written off the main thread.
+ */
+public class SyncedLocationsPreference extends Preference {
+    static final private String LOG_TAG = SyncedLocationsPreference.class.getSimpleName();
+
+    private static final String[] LOCATION_COLUMNS = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_SYNC
+    };
+    private static final int COL_ID = 0;
+    private static final int COL_CITY_NAME = 1;
+    private static final int COL_LOCATION_SETTING = 2;
+    private static final int COL_SYNC = 3;
+
+    /**
+     * The locations the dialog offers, and whether each is synced.
+     */
+    private static final class Choices {
+        final long[] ids;
+        final String[] labels;
+        final boolean[] synced;
+
+        Choices(int count) {
+            ids = new long[count];
+            labels = new String[count];
+            synced = new boolean[count];
+        }
+    }
+
+    public SyncedLocationsPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    @Override
+    protected void onClick() {
+        final Context context = getContext();
+        final String preferredLocation = Utility.getPreferredLocation(context);
+        new AsyncTask<Void, Void, Choices>() {
+            @Override
+            protected Choices doInBackground(Void... params) {
+                return queryChoices(context, preferredLocation);
+            }
+
+            @Override
+            protected void onPostExecute(Choices choices) {
+                showDialog(choices);
+            }
+        }.execute();
+    }
+
+    private static Choices queryChoices(Context context, String preferredLocation) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, LOCATION_COLUMNS,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " != ?",
+                new String[]{preferredLocation},
+                WeatherContract.LocationEntry.COLUMN_CITY_NAME + " COLLATE NOCASE ASC");
+        if (cursor == null) {
+            return new Choices(0);
+        }
+        try {
+            Choices choices = new Choices(cursor.getCount());
+            for (int i = 0; cursor.moveToNext(); i++) {
+                choices.ids[i] = cursor.getLong(COL_ID);
+                choices.labels[i] = context.getString(R.string.format_synced_location,
+                        cursor.getString(COL_CITY_NAME), cursor.getString(COL_LOCATION_SETTING));
+                choices.synced[i] = cursor.getInt(COL_SYNC) != 0;
+            }
+            return choices;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void showDialog(final Choices choices) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(getContext())
+                .setTitle(getTitle());
+        if (choices.ids.length == 0) {
+            builder.setMessage(R.string.pref_synced_locations_empty)
+                    .setPositiveButton(android.R.string.ok, null);
+        } else {
+            final boolean[] chosen = choices.synced.clone();
+            builder.setMultiChoiceItems(choices.labels, chosen,
+                    new DialogInterface.OnMultiChoiceClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                            chosen[which] = isChecked;
+                        }
+                    })
+                    .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            saveChoices(getContext().getApplicationContext(), choices,
+                                    chosen);
+                        }
+                    })
+                    .setNegativeButton(android.R.string.cancel, null);
+        }
+        builder.show();
+    }
+
+    /**
+     * Stores the locations whose choice changed, and syncs at once if one was added, so its
+     * forecast is there the next time it's looked at.
+     */
+    private static void saveChoices(final Context context, Choices choices, boolean[] chosen) {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        boolean added = false;
+        for (int i = 0; i < chosen.length; i++) {
+            if (chosen[i] == choices.synced[i]) {
+                continue;
+            }
+            added |= chosen[i];
+            operations.add(ContentProviderOperation
+                    .newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.LocationEntry._ID + " = ?",
+                            new String[]{Long.toString(choices.ids[i])})
+                    .withValue(WeatherContract.LocationEntry.COLUMN_SYNC, chosen[i] ? 1 : 0)
+                    .build());
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+        final boolean syncNow = added;
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                try {
+                    context.getContentResolver().applyBatch(
+                            WeatherContract.CONTENT_AUTHORITY, operations);
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(LOG_TAG, "Failed to store the synced locations", e);
+                    return null;
+                }
+                if (syncNow) {
+                    SunshineSyncAdapter.syncImmediately(context);
+                }
+                return null;
+            }
+        }.execute();
+    }
+}
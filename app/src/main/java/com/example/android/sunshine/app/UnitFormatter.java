@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.SparseArray;
+
+import java.util.Locale;
+
+/**
+ * Formats temperatures and winds for {@link Utility}. The unit preference is read once and then
+ * kept up to date by a listener, and since a temperature is shown to the whole degree, the
+ * string for each whole degree is made once for the locale and looked up after that. Winds are
+ * kept the same way, by whole speed and compass direction.
+ */
+public final class UnitFormatter {
+    // Every temperature the list can show, in either unit, with room to spare.
+    static final int MIN_TABLED_TEMPERATURE = -150;
+    static final int MAX_TABLED_TEMPERATURE = 150;
+    // Any faster, and the wind isn't kept.
+    static final int MAX_KEPT_WIND_SPEED = 500;
+
+    private static final String[] DIRECTIONS = {"N", "NE", "E", "SE", "S", "SW", "W", "NW"};
+    private static final String UNKNOWN_DIRECTION = "Unknown";
+
+    private static UnitFormatter sInstance;
+
+    private final Context mContext;
+    private final String mUnitsKey;
+    private final String mMetricUnits;
+    private volatile boolean mMetric;
+
+    // Made for mLocale, and dropped when it changes.
+    private Locale mLocale;
+    private String mTemperatureFormat;
+    private String[] mTemperatures;
+    // By whole speed and direction, for the units that were in use; dropped when they change.
+    private SparseArray<String> mWinds = new SparseArray<String>();
+
+    // SharedPreferences only hold on to their listeners weakly.
+    private final SharedPreferences.OnSharedPreferenceChangeListener mListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (mUnitsKey.equals(key)) {
+                        readUnits(prefs);
+                    }
+                }
+            };
+
+    private UnitFormatter(Context context) {
+        mContext = context;
+        mUnitsKey = context.getString(R.string.pref_units_key);
+        mMetricUnits = context.getString(R.string.pref_units_metric);
+    }
+
+    /**
+     * @return the formatter of the application, which follows the unit preference
+     */
+    public static synchronized UnitFormatter getInstance(Context context) {
+        if (null == sInstance) {
+            UnitFormatter formatter = new UnitFormatter(context.getApplicationContext());
+            SharedPreferences prefs =
+                    PreferenceManager.getDefaultSharedPreferences(formatter.mContext);
+            prefs.registerOnSharedPreferenceChangeListener(formatter.mListener);
+            formatter.readUnits(prefs);
+            sInstance = formatter;
+        }
+        return sInstance;
+    }
+
+    private void readUnits(SharedPreferences prefs) {
+        boolean metric = prefs.getString(mUnitsKey, mMetricUnits).equals(mMetricUnits);
+        synchronized (this) {
+            if (metric != mMetric) {
+                mWinds = new SparseArray<String>();
+            }
+            mMetric = metric;
+        }
+    }
+
+    /**
+     * @see Utility#isMetric(Context)
+     */
+    public boolean isMetric() {
+        return mMetric;
+    }
+
+    /**
+     * @see Utility#formatTemperature(Context, double)
+     */
+    public synchronized String formatTemperature(double temperature) {
+        // Data stored in Celsius by default.  If user prefers to see in Fahrenheit, convert
+        // the values here.
+        if (!mMetric) {
+            temperature = (temperature * 1.8) + 32;
+        }
+        checkLocale();
+
+        long degrees = roundHalfUp(temperature);
+        // "%1.0f" keeps the sign of a temperature that rounds to zero from below, as "-0".
+        if (Double.isNaN(temperature)
+                || degrees < MIN_TABLED_TEMPERATURE || degrees > MAX_TABLED_TEMPERATURE
+                || (degrees == 0 && Double.compare(temperature, 0.0) < 0)) {
+            return String.format(mTemperatureFormat, temperature);
+        }
+        int index = (int) degrees - MIN_TABLED_TEMPERATURE;
+        String formatted = mTemperatures[index];
+        if (null == formatted) {
+            formatted = String.format(mTemperatureFormat, (double) degrees);
+            mTemperatures[index] = formatted;
+        }
+        return formatted;
+    }
+
+    /**
+     * @see Utility#getFormattedWind(Context, float, float)
+     */
+    public synchronized String getFormattedWind(float windSpeed, float degrees) {
+        int windFormat;
+        if (mMetric) {
+            windFormat = R.string.format_wind_kmh;
+        } else {
+            windFormat = R.string.format_wind_mph;
+            windSpeed = .621371192237334f * windSpeed;
+        }
+        checkLocale();
+
+        // From wind direction in degrees, determine compass direction as a string (e.g NW).
+        // Anything that isn't a number is "Unknown".
+        int direction;
+        if (Float.isNaN(degrees)) {
+            direction = DIRECTIONS.length;
+        } else if (degrees >= 337.5 || degrees < 22.5) {
+            direction = 0;
+        } else {
+            direction = (int) ((degrees - 22.5) / 45) + 1;
+        }
+
+        long speed = roundHalfUp(windSpeed);
+        if (Float.isNaN(windSpeed) || Double.compare(windSpeed, 0.0) < 0
+                || speed > MAX_KEPT_WIND_SPEED) {
+            return formatWind(windFormat, windSpeed, direction);
+        }
+        int key = (int) speed * (DIRECTIONS.length + 1) + direction;
+        String formatted = mWinds.get(key);
+        if (null == formatted) {
+            formatted = formatWind(windFormat, (float) speed, direction);
+            mWinds.put(key, formatted);
+        }
+        return formatted;
+    }
+
+    private String formatWind(int windFormat, float windSpeed, int direction) {
+        return String.format(mContext.getString(windFormat), windSpeed,
+                direction < DIRECTIONS.length ? DIRECTIONS[direction] : UNKNOWN_DIRECTION);
+    }
+
+    private void checkLocale() {
+        if (mLocale != Locale.getDefault()) {
+            mLocale = Locale.getDefault();
+            mTemperatureFormat = mContext.getString(R.string.format_temperature);
+            mTemperatures = new String[MAX_TABLED_TEMPERATURE - MIN_TABLED_TEMPERATURE + 1];
+            mWinds = new SparseArray<String>();
+        }
+    }
+
+    /*
+        Rounds the way "%1.0f" does, half away from zero. The fraction of a double is exact, so
+        there's no adding a half and losing the last bit to it.
+     */
+    static long roundHalfUp(double value) {
+        double magnitude = Math.abs(value);
+        double whole = Math.floor(magnitude);
+        long rounded = (long) (magnitude - whole >= 0.5 ? whole + 1 : whole);
+        return value < 0 ? -rounded : rounded;
+    }
+}
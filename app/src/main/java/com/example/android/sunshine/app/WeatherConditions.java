@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.util.Locale;
+
+/**
+ * What {@link Utility} shows for an OpenWeatherMap condition id: its description, icon, art,
+ * art pack url and Muzei image. Every id from 0 to 999 is looked up in a table made once, in
+ * place of the chains of ranges each of those used to go through.
+ *
+ * Based on weather code data found at:
+ * http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
+ */
+public final class WeatherConditions {
+    static final int MAX_WEATHER_ID = 999;
+
+    // The kinds of weather there are pictures for. The icons, art, art names and images below
+    // are in this order.
+    private static final int UNKNOWN = 0;
+    private static final int STORM = 1;
+    private static final int LIGHT_RAIN = 2;
+    private static final int RAIN = 3;
+    private static final int SNOW = 4;
+    private static final int FOG = 5;
+    // A storm, with a picture of its own for Muzei.
+    private static final int DUST_STORM = 6;
+    private static final int CLEAR = 7;
+    private static final int LIGHT_CLOUDS = 8;
+    private static final int CLOUDS = 9;
+
+    private static final int[] ICONS = {-1, R.drawable.ic_storm, R.drawable.ic_light_rain,
+            R.drawable.ic_rain, R.drawable.ic_snow, R.drawable.ic_fog, R.drawable.ic_storm,
+            R.drawable.ic_clear, R.drawable.ic_light_clouds, R.drawable.ic_cloudy};
+    private static final int[] ARTS = {-1, R.drawable.art_storm, R.drawable.art_light_rain,
+            R.drawable.art_rain, R.drawable.art_snow, R.drawable.art_fog, R.drawable.art_storm,
+            R.drawable.art_clear, R.drawable.art_light_clouds, R.drawable.art_clouds};
+    // What the art packs call the art, in their url formats.
+    private static final String[] ART_NAMES = {null, "storm", "light_rain", "rain", "snow",
+            "fog", "storm", "clear", "light_clouds", "clouds"};
+    private static final String WIKIMEDIA_COMMONS =
+            "http://upload.wikimedia.org/wikipedia/commons/";
+    private static final String[] IMAGE_URLS = {
+            null,
+            WIKIMEDIA_COMMONS + "2/28/Thunderstorm_in_Annemasse,_France.jpg",
+            WIKIMEDIA_COMMONS + "a/a0/Rain_on_leaf_504605006.jpg",
+            WIKIMEDIA_COMMONS + "6/6c/Rain-on-Thassos.jpg",
+            WIKIMEDIA_COMMONS + "b/b8/Fresh_snow.JPG",
+            WIKIMEDIA_COMMONS + "e/e6/Westminster_fog_-_London_-_UK.jpg",
+            WIKIMEDIA_COMMONS + "d/dc/Raised_dust_ahead_of_a_severe_thunderstorm_1.jpg",
+            WIKIMEDIA_COMMONS + "7/7e/A_few_trees_and_the_sun_(6009964513).jpg",
+            WIKIMEDIA_COMMONS + "e/e7/Cloudy_Blue_Sky_(5031259890).jpg",
+            WIKIMEDIA_COMMONS + "5/54/Cloudy_hills_in_Elis,_Greece_2.jpg"};
+
+    // By condition id: the kind of weather, and the description's string resource, or 0 for
+    // the "unknown" description.
+    private static final byte[] KINDS = new byte[MAX_WEATHER_ID + 1];
+    private static final int[] DESCRIPTIONS = new int[MAX_WEATHER_ID + 1];
+
+    static {
+        setKind(200, 232, STORM);
+        setKind(300, 321, LIGHT_RAIN);
+        setKind(500, 504, RAIN);
+        setKind(511, 511, SNOW);
+        setKind(520, 531, RAIN);
+        setKind(600, 622, SNOW);
+        // 761, dust, has always been fog: the range for fog took it before the storms did.
+        setKind(701, 761, FOG);
+        setKind(781, 781, DUST_STORM);
+        setKind(800, 800, CLEAR);
+        setKind(801, 801, LIGHT_CLOUDS);
+        setKind(802, 804, CLOUDS);
+
+        for (int id = 200; id <= 232; id++) DESCRIPTIONS[id] = R.string.condition_2xx;
+        for (int id = 300; id <= 321; id++) DESCRIPTIONS[id] = R.string.condition_3xx;
+        DESCRIPTIONS[500] = R.string.condition_500;
+        DESCRIPTIONS[501] = R.string.condition_501;
+        DESCRIPTIONS[502] = R.string.condition_502;
+        DESCRIPTIONS[503] = R.string.condition_503;
+        DESCRIPTIONS[504] = R.string.condition_504;
+        DESCRIPTIONS[511] = R.string.condition_511;
+        DESCRIPTIONS[520] = R.string.condition_520;
+        DESCRIPTIONS[531] = R.string.condition_531;
+        DESCRIPTIONS[600] = R.string.condition_600;
+        DESCRIPTIONS[601] = R.string.condition_601;
+        DESCRIPTIONS[602] = R.string.condition_602;
+        DESCRIPTIONS[611] = R.string.condition_611;
+        DESCRIPTIONS[612] = R.string.condition_612;
+        DESCRIPTIONS[615] = R.string.condition_615;
+        DESCRIPTIONS[616] = R.string.condition_616;
+        DESCRIPTIONS[620] = R.string.condition_620;
+        DESCRIPTIONS[621] = R.string.condition_621;
+        DESCRIPTIONS[622] = R.string.condition_622;
+        DESCRIPTIONS[701] = R.string.condition_701;
+        DESCRIPTIONS[711] = R.string.condition_711;
+        DESCRIPTIONS[721] = R.string.condition_721;
+        DESCRIPTIONS[731] = R.string.condition_731;
+        DESCRIPTIONS[741] = R.string.condition_741;
+        DESCRIPTIONS[751] = R.string.condition_751;
+        DESCRIPTIONS[761] = R.string.condition_761;
+        DESCRIPTIONS[762] = R.string.condition_762;
+        DESCRIPTIONS[771] = R.string.condition_771;
+        DESCRIPTIONS[781] = R.string.condition_781;
+        DESCRIPTIONS[800] = R.string.condition_800;
+        DESCRIPTIONS[801] = R.string.condition_801;
+        DESCRIPTIONS[802] = R.string.condition_802;
+        DESCRIPTIONS[803] = R.string.condition_803;
+        DESCRIPTIONS[804] = R.string.condition_804;
+        DESCRIPTIONS[900] = R.string.condition_900;
+        DESCRIPTIONS[901] = R.string.condition_901;
+        DESCRIPTIONS[902] = R.string.condition_902;
+        DESCRIPTIONS[903] = R.string.condition_903;
+        DESCRIPTIONS[904] = R.string.condition_904;
+        DESCRIPTIONS[905] = R.string.condition_905;
+        DESCRIPTIONS[906] = R.string.condition_906;
+        DESCRIPTIONS[951] = R.string.condition_951;
+        DESCRIPTIONS[952] = R.string.condition_952;
+        DESCRIPTIONS[953] = R.string.condition_953;
+        DESCRIPTIONS[954] = R.string.condition_954;
+        DESCRIPTIONS[955] = R.string.condition_955;
+        DESCRIPTIONS[956] = R.string.condition_956;
+        DESCRIPTIONS[957] = R.string.condition_957;
+        DESCRIPTIONS[958] = R.string.condition_958;
+        DESCRIPTIONS[959] = R.string.condition_959;
+        DESCRIPTIONS[960] = R.string.condition_960;
+        DESCRIPTIONS[961] = R.string.condition_961;
+        DESCRIPTIONS[962] = R.string.condition_962;
+    }
+
+    private static WeatherConditions sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final String mArtPackKey;
+    private final String mDefaultArtPack;
+    // The art urls of the pack that was last asked for, each made the first time it's needed.
+    private String mArtPack;
+    private final String[] mArtUrls = new String[ART_NAMES.length];
+
+    private WeatherConditions(Context context) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mArtPackKey = context.getString(R.string.pref_art_pack_key);
+        mDefaultArtPack = context.getString(R.string.pref_art_pack_sunshine);
+    }
+
+    /**
+     * @return the conditions of the application, which keep the art urls of the art pack
+     */
+    public static synchronized WeatherConditions getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new WeatherConditions(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private static void setKind(int firstId, int lastId, int kind) {
+        for (int id = firstId; id <= lastId; id++) {
+            KINDS[id] = (byte) kind;
+        }
+    }
+
+    private static int getKind(int weatherId) {
+        return weatherId >= 0 && weatherId <= MAX_WEATHER_ID ? KINDS[weatherId] : UNKNOWN;
+    }
+
+    /**
+     * @see Utility#getIconResourceForWeatherCondition(int)
+     */
+    public static int getIconResource(int weatherId) {
+        return ICONS[getKind(weatherId)];
+    }
+
+    /**
+     * @see Utility#getArtResourceForWeatherCondition(int)
+     */
+    public static int getArtResource(int weatherId) {
+        return ARTS[getKind(weatherId)];
+    }
+
+    /**
+     * @see Utility#getImageUrlForWeatherCondition(int)
+     */
+    public static String getImageUrl(int weatherId) {
+        return IMAGE_URLS[getKind(weatherId)];
+    }
+
+    /**
+     * @see Utility#getStringForWeatherCondition(Context, int)
+     */
+    public static String getDescription(Context context, int weatherId) {
+        int stringId = weatherId >= 0 && weatherId <= MAX_WEATHER_ID
+                ? DESCRIPTIONS[weatherId] : 0;
+        if (0 == stringId) {
+            return context.getString(R.string.condition_unknown, weatherId);
+        }
+        return context.getString(stringId);
+    }
+
+    /**
+     * The art pack is read from the preferences each time, which only looks it up, and the
+     * urls are made again when it has changed.
+     *
+     * @see Utility#getArtUrlForWeatherCondition(Context, int)
+     */
+    public synchronized String getArtUrl(int weatherId) {
+        int kind = getKind(weatherId);
+        if (null == ART_NAMES[kind]) return null;
+        String artPack = mPrefs.getString(mArtPackKey, mDefaultArtPack);
+        if (!artPack.equals(mArtPack)) {
+            mArtPack = artPack;
+            for (int i = 0; i < mArtUrls.length; i++) {
+                mArtUrls[i] = null;
+            }
+        }
+        String url = mArtUrls[kind];
+        if (null == url) {
+            url = String.format(Locale.US, artPack, ART_NAMES[kind]);
+            mArtUrls[kind] = url;
+        }
+        return url;
+    }
+}
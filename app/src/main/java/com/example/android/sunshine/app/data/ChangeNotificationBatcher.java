@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the provider's change notifications and sends them out together, so that a sync that
+ * writes in several steps makes each observing loader reload once rather than once per step.
+ *
+ * Changes made inside a batch (see {@link #beginBatch()}) are held until the outermost batch on
+ * that thread ends, so nobody is told about a transaction before it has committed, and are
+ * dropped if the transaction didn't commit, since nothing changed after all. Changes are
+ * then sent out {@link #WINDOW_MILLIS} after the first one arrives, along with any that follow
+ * it in the meantime. A URI that is pending along with one of its ancestors is dropped, since
+ * notifying the ancestor reaches its observers anyway.
+ */
+class ChangeNotificationBatcher {
+
+    static final long WINDOW_MILLIS = 100;
+
+    // Past this many pending URIs under one parent, the parent is notified instead. Notifying
+    // each one is a call into the system server, and an observer of the parent would get one
+    // callback per child.
+    static final int MAX_URIS_PER_PARENT = 16;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    private final Set<Uri> mPending = new HashSet<Uri>();
+    private boolean mFlushScheduled;
+
+    private static class Batch {
+        int depth;
+        // Whether any part of the batch rolled back, which rolls back the whole transaction.
+        boolean rolledBack;
+        final Set<Uri> uris = new HashSet<Uri>();
+    }
+
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>() {
+        @Override
+        protected Batch initialValue() {
+            return new Batch();
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ChangeNotificationBatcher(ContentResolver resolver) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Holds back this thread's changes until the matching {@link #endBatch(boolean)}. Batches
+     * nest. Every call has to be matched, even when the transaction couldn't be begun, or this
+     * thread's changes are held for good.
+     */
+    void beginBatch() {
+        mBatch.get().depth++;
+    }
+
+    /**
+     * @param committed whether the writes of the batch committed. If this or any batch nested in
+     *                  it didn't, the changes of the outermost batch are dropped rather than sent.
+     */
+    void endBatch(boolean committed) {
+        Batch batch = mBatch.get();
+        if (!committed) {
+            batch.rolledBack = true;
+        }
+        if (--batch.depth == 0) {
+            if (!batch.rolledBack && !batch.uris.isEmpty()) {
+                schedule(batch.uris);
+            }
+            batch.uris.clear();
+            batch.rolledBack = false;
+        }
+    }
+
+    void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch.depth > 0) {
+            batch.uris.add(uri);
+        } else {
+            List<Uri> uris = new ArrayList<Uri>(1);
+            uris.add(uri);
+            schedule(uris);
+        }
+    }
+
+    private void schedule(Collection<Uri> uris) {
+        synchronized (mLock) {
+            mPending.addAll(uris);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlush, WINDOW_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Sends out everything pending now.
+     */
+    void flush() {
+        List<Uri> uris;
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlush);
+            mFlushScheduled = false;
+            uris = collapse(mPending);
+            mPending.clear();
+        }
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * @return the smallest set of URIs whose notifications reach every observer of the given ones
+     */
+    static List<Uri> collapse(Collection<Uri> uris) {
+        Set<Uri> notify = new HashSet<Uri>(uris);
+
+        Map<Uri, Integer> childCounts = new HashMap<Uri, Integer>();
+        for (Uri uri : uris) {
+            List<String> segments = uri.getPathSegments();
+            if (segments.isEmpty()) {
+                continue;
+            }
+            Uri parent = buildAncestor(uri, segments.size() - 1);
+            Integer count = childCounts.get(parent);
+            childCounts.put(parent, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<Uri, Integer> entry : childCounts.entrySet()) {
+            if (entry.getValue() > MAX_URIS_PER_PARENT) {
+                notify.add(entry.getKey());
+            }
+        }
+
+        List<Uri> collapsed = new ArrayList<Uri>(notify.size());
+        for (Uri uri : notify) {
+            if (!hasAncestorIn(uri, notify)) {
+                collapsed.add(uri);
+            }
+        }
+        return collapsed;
+    }
+
+    private static boolean hasAncestorIn(Uri uri, Set<Uri> uris) {
+        int depth = uri.getPathSegments().size();
+        for (int i = 0; i < depth; i++) {
+            if (uris.contains(buildAncestor(uri, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the URI made of the first {@code depth} path segments of the given one
+     */
+    private static Uri buildAncestor(Uri uri, int depth) {
+        Uri.Builder builder = new Uri.Builder()
+                .scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        List<String> segments = uri.getPathSegments();
+        for (int i = 0; i < depth; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+}
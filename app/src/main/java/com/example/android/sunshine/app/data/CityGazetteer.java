@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The cities openweathermap knows, read from a sorted binary index that is memory-mapped
+ * rather than loaded, so looking a city up by name costs a binary search over pages the kernel
+ * brings in as they are touched, and nothing on the heap until a match is returned.
+ *
+ * The file is a header, then one fixed-width record per city sorted by name, then a pool of
+ * the names in UTF-8 that the records point into. All numbers are big-endian:
+ * <pre>
+ * header:  int magic "CGZ1", int record count, int record size, int offset of the pool
+ * record:  int name offset in the pool, unsigned short name length in bytes,
+ *          two ASCII letters of country code, int openweathermap city ID,
+ *          int latitude and int longitude in millionths of a degree, int population
+ * </pre>
+ * Names compare byte by byte with ASCII letters folded to lower case, both when the file is
+ * written and when it is searched, so "seattle" finds "Seattle".
+ *
+ * The asset is built from openweathermap's city.list by the app's buildCityGazetteer task,
+ * and has to be stored uncompressed in the APK to be mapped; the build's aaptOptions leave .gaz
+ * files alone. Should the asset be missing, {@link #getInstance} returns null, and everything
+ * that uses it falls back to what the database and the network know.
+ */
+public final class CityGazetteer {
+
+    private static final String LOG_TAG = CityGazetteer.class.getSimpleName();
+
+    public static final String ASSET_NAME = "cities.gaz";
+
+    static final int MAGIC = 0x43475a31;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 24;
+    static final double MICRODEGREES = 1e6;
+
+    // Where each field is within a record.
+    private static final int FIELD_NAME_OFFSET = 0;
+    private static final int FIELD_NAME_LENGTH = 4;
+    private static final int FIELD_COUNTRY = 6;
+    private static final int FIELD_CITY_ID = 8;
+    private static final int FIELD_LATITUDE = 12;
+    private static final int FIELD_LONGITUDE = 16;
+    private static final int FIELD_POPULATION = 20;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static CityGazetteer sInstance;
+    private static boolean sOpened;
+
+    // Only ever read with absolute gets, which don't move the buffer's position, so every
+    // thread can search it at once.
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mPoolOffset;
+
+    /**
+     * A city, as it comes out of the index.
+     */
+    public static final class City {
+        public final String name;
+        public final String countryCode;
+        public final int cityId;
+        public final double latitude;
+        public final double longitude;
+        public final int population;
+
+        public City(String name, String countryCode, int cityId, double latitude,
+                    double longitude, int population) {
+            this.name = name;
+            this.countryCode = countryCode;
+            this.cityId = cityId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.population = population;
+        }
+
+        /**
+         * @return the location setting for the city, "name,CC", which openweathermap also
+         * understands as a query by itself
+         */
+        public String getLocationSetting() {
+            return name + "," + countryCode;
+        }
+    }
+
+    private CityGazetteer(ByteBuffer buffer, int count, int poolOffset) {
+        mBuffer = buffer;
+        mCount = count;
+        mPoolOffset = poolOffset;
+    }
+
+    /**
+     * @return the gazetteer in the app's assets, mapped the first time it is asked for, or
+     * null if the app doesn't have one
+     */
+    public static synchronized CityGazetteer getInstance(Context context) {
+        if (!sOpened) {
+            sOpened = true;
+            try {
+                sInstance = open(context.getAssets(), ASSET_NAME);
+            } catch (FileNotFoundException e) {
+                Log.d(LOG_TAG, "No city gazetteer in the assets");
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Can't read the city gazetteer", e);
+            }
+        }
+        return sInstance;
+    }
+
+    static CityGazetteer open(AssetManager assets, String assetName) throws IOException {
+        // Only an asset stored uncompressed has a file descriptor to map.
+        AssetFileDescriptor descriptor = assets.openFd(assetName);
+        try {
+            FileInputStream in = descriptor.createInputStream();
+            try {
+                // The mapping outlives the channel it was made from.
+                return wrap(in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        descriptor.getStartOffset(), descriptor.getLength()));
+            } finally {
+                in.close();
+            }
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    static CityGazetteer open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks the header against the size of the buffer, so a damaged file is turned down here
+     * rather than read out of bounds later.
+     */
+    static CityGazetteer wrap(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a city gazetteer");
+        }
+        int count = buffer.getInt(4);
+        int recordSize = buffer.getInt(8);
+        int poolOffset = buffer.getInt(12);
+        if (count < 0 || recordSize != RECORD_SIZE
+                || poolOffset != HEADER_SIZE + (long) count * RECORD_SIZE
+                || poolOffset > buffer.capacity()) {
+            throw new IOException("City gazetteer has a damaged header");
+        }
+        if (count > 0) {
+            // The pool is written in record order, so the last name ends furthest in.
+            int last = HEADER_SIZE + (count - 1) * RECORD_SIZE;
+            long poolEnd = (long) poolOffset + buffer.getInt(last + FIELD_NAME_OFFSET)
+                    + (buffer.getShort(last + FIELD_NAME_LENGTH) & 0xffff);
+            if (poolEnd > buffer.capacity()) {
+                throw new IOException("City gazetteer is truncated");
+            }
+        }
+        return new CityGazetteer(buffer, count, poolOffset);
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the cities whose name starts with the text, the one named exactly that first and
+     * then the most populous, at most limit of them
+     */
+    public List<City> search(String text, int limit) {
+        byte[] key = fold(text);
+        int start = lowerBound(key, false);
+        int end = lowerBound(key, true);
+        // Pick the largest by population without reading anything else of the others.
+        int[] best = new int[Math.min(limit, end - start)];
+        int found = 0;
+        for (int i = start; i < end; i++) {
+            int position = found;
+            while (position > 0 && isBefore(key, i, best[position - 1])) {
+                if (position < best.length) {
+                    best[position] = best[position - 1];
+                }
+                position--;
+            }
+            if (position < best.length) {
+                best[position] = i;
+                found = Math.min(found + 1, best.length);
+            }
+        }
+        List<City> cities = new ArrayList<City>(found);
+        for (int i = 0; i < found; i++) {
+            cities.add(readCity(best[i]));
+        }
+        return cities;
+    }
+
+    /**
+     * @return the most populous city of that name, in that country if countryCode isn't null,
+     * or null if there is none
+     */
+    public City find(String name, String countryCode) {
+        byte[] key = fold(name);
+        int end = lowerBound(key, true);
+        int best = -1;
+        for (int i = lowerBound(key, false); i < end; i++) {
+            if (compare(i, key, false) != 0) {
+                // Only names that go on past the key are left.
+                break;
+            }
+            if ((countryCode == null || countryCode.equalsIgnoreCase(getCountry(i)))
+                    && (best == -1 || getPopulation(i) > getPopulation(best))) {
+                best = i;
+            }
+        }
+        return best == -1 ? null : readCity(best);
+    }
+
+    /**
+     * @return the city a location setting names, either "name,CC" or just a name, or null if
+     * it isn't one the gazetteer knows
+     */
+    public City findBySetting(String locationSetting) {
+        String setting = locationSetting.trim();
+        int comma = setting.lastIndexOf(',');
+        if (comma != -1 && setting.length() - comma - 1 == 2) {
+            City city = find(setting.substring(0, comma).trim(), setting.substring(comma + 1));
+            if (city != null) {
+                return city;
+            }
+        }
+        return find(setting, null);
+    }
+
+    // Whether record a goes before record b in search results.
+    private boolean isBefore(byte[] key, int a, int b) {
+        boolean aExact = compare(a, key, false) == 0;
+        boolean bExact = compare(b, key, false) == 0;
+        if (aExact != bExact) {
+            return aExact;
+        }
+        return getPopulation(a) > getPopulation(b);
+    }
+
+    /**
+     * @return the first record whose name isn't before the key or, for afterPrefix, the first
+     * whose name doesn't start with the key and comes after it
+     */
+    private int lowerBound(byte[] key, boolean afterPrefix) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(middle, key, afterPrefix);
+            if (afterPrefix ? comparison <= 0 : comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the folded name of a record with a folded key, straight out of the buffer.
+     *
+     * @param prefix Whether a name that starts with the key counts as equal to it
+     */
+    private int compare(int record, byte[] key, boolean prefix) {
+        int base = HEADER_SIZE + record * RECORD_SIZE;
+        int offset = mPoolOffset + mBuffer.getInt(base + FIELD_NAME_OFFSET);
+        int length = mBuffer.getShort(base + FIELD_NAME_LENGTH) & 0xffff;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int difference = fold(mBuffer.get(offset + i)) - (key[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        if (prefix && length >= key.length) {
+            return 0;
+        }
+        return length - key.length;
+    }
+
+    private static int fold(byte b) {
+        int c = b & 0xff;
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    static byte[] fold(String text) {
+        byte[] bytes = text.getBytes(UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) fold(bytes[i]);
+        }
+        return bytes;
+    }
+
+    private String getCountry(int record) {
+        int base = HEADER_SIZE + record * RECORD_SIZE;
+        return new String(new char[]{(char) mBuffer.get(base + FIELD_COUNTRY),
+                (char) mBuffer.get(base + FIELD_COUNTRY + 1)});
+    }
+
+    private int getPopulation(int record) {
+        return mBuffer.getInt(HEADER_SIZE + record * RECORD_SIZE + FIELD_POPULATION);
+    }
+
+    private City readCity(int record) {
+        int base = HEADER_SIZE + record * RECORD_SIZE;
+        byte[] name = new byte[mBuffer.getShort(base + FIELD_NAME_LENGTH) & 0xffff];
+        int offset = mPoolOffset + mBuffer.getInt(base + FIELD_NAME_OFFSET);
+        for (int i = 0; i < name.length; i++) {
+            name[i] = mBuffer.get(offset + i);
+        }
+        return new City(new String(name, UTF_8), getCountry(record),
+                mBuffer.getInt(base + FIELD_CITY_ID),
+                mBuffer.getInt(base + FIELD_LATITUDE) / MICRODEGREES,
+                mBuffer.getInt(base + FIELD_LONGITUDE) / MICRODEGREES,
+                getPopulation(record));
+    }
+
+    /**
+     * Writes the cities in the gazetteer's format, sorted the way it searches them. The
+     * buildCityGazetteer task builds the asset with this, from openweathermap's city.list.
+     */
+    public static void write(List<City> cities, OutputStream out) throws IOException {
+        final byte[][] keys = new byte[cities.size()][];
+        Integer[] order = new Integer[cities.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = fold(cities.get(i).name);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                byte[] keyA = keys[a];
+                byte[] keyB = keys[b];
+                for (int i = 0; i < Math.min(keyA.length, keyB.length); i++) {
+                    int difference = (keyA[i] & 0xff) - (keyB[i] & 0xff);
+                    if (difference != 0) {
+                        return difference;
+                    }
+                }
+                return keyA.length - keyB.length;
+            }
+        });
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(cities.size());
+        data.writeInt(RECORD_SIZE);
+        data.writeInt(HEADER_SIZE + cities.size() * RECORD_SIZE);
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        for (int index : order) {
+            City city = cities.get(index);
+            byte[] name = city.name.getBytes(UTF_8);
+            if (name.length > 0xffff || city.countryCode.length() != 2) {
+                throw new IllegalArgumentException("Can't store city " + city.name);
+            }
+            data.writeInt(pool.size());
+            data.writeShort(name.length);
+            data.writeByte(city.countryCode.charAt(0));
+            data.writeByte(city.countryCode.charAt(1));
+            data.writeInt(city.cityId);
+            data.writeInt((int) Math.round(city.latitude * MICRODEGREES));
+            data.writeInt((int) Math.round(city.longitude * MICRODEGREES));
+            data.writeInt(city.population);
+            pool.write(name);
+        }
+        pool.writeTo(data);
+        data.flush();
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How the archive table is laid out, and reading and writing it for {@link WeatherProvider}.
+ *
+ * Days that the sync would otherwise delete are kept here, grouped into one block per location
+ * and month. The location and month are packed into the block's _ID, the same way as the hourly
+ * table's, so a date range of one location is a single range of rowids. The weather table only
+ * ever holds the current forecast, so its queries don't slow down as the history grows.
+ *
+ * Inside a block the days are in date order, and each field is written as the difference from
+ * the day before, as a zigzag varint: consecutive dates are a day apart and temperatures move
+ * by a few degrees, so most fields take one byte. The values are scaled to integers as in
+ * {@link WeatherFixedPoint}, and each description is written once per block and then referred
+ * to by number. The whole block is then deflated.
+ *
+ * The archive is bounded by size rather than age: once the blocks add up to more than
+ * {@link #MAX_ARCHIVE_BYTES}, the oldest months are dropped, whichever location they belong to.
+ */
+final class ForecastArchive {
+
+    private static final String LOG_TAG = ForecastArchive.class.getSimpleName();
+
+    // The low bits of the _ID hold the month since January 1970, which fits in 16 bits until
+    // the year 7431; the location_id takes the bits above.
+    static final int MONTH_BITS = 16;
+    static final long MONTH_MASK = (1L << MONTH_BITS) - 1;
+
+    // A month of one location deflates to a few hundred bytes, so this keeps several years of a
+    // handful of locations.
+    static final long MAX_ARCHIVE_BYTES = 256 * 1024;
+
+    // The first thing in every block. Blocks in a format this code doesn't know are skipped.
+    static final int FORMAT_VERSION = 1;
+
+    private static final long MINUTE_IN_MILLIS = 60 * 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String SQL_CREATE_TABLE = "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+            // (location_id << 16) | month; see packKey.
+            ArchiveEntry._ID + " INTEGER PRIMARY KEY, " +
+            ArchiveEntry.COLUMN_DAY_COUNT + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_DATA + " BLOB NOT NULL);";
+
+    //archive._id BETWEEN ? AND ?
+    static final String sKeyRangeSelection = ArchiveEntry._ID + " BETWEEN ? AND ? ";
+
+    // The columns that are stored as scaled integers.
+    static final String[] VALUE_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+    private static final int[] SCALES = new int[VALUE_COLUMNS.length];
+
+    static {
+        for (int i = 0; i < VALUE_COLUMNS.length; i++) {
+            SCALES[i] = WeatherFixedPoint.getScale(VALUE_COLUMNS[i]);
+        }
+    }
+
+    // The columns of archive/<setting>, in order.
+    static final String[] DAY_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // What archive reads from the weather table: the location, then DAY_COLUMNS.
+    private static final String[] ARCHIVED_COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    /**
+     * One archived day, with its values scaled as stored.
+     */
+    static final class Day {
+        long date;
+        long weatherId;
+        String shortDesc;
+        // In the order of VALUE_COLUMNS.
+        final long[] values = new long[VALUE_COLUMNS.length];
+    }
+
+    private ForecastArchive() {
+    }
+
+    static long packKey(long locationId, long month) {
+        return (locationId << MONTH_BITS) | month;
+    }
+
+    /**
+     * @return the month since January 1970 that the date falls in, clamped to what a key can
+     * hold. Months are counted in UTC, so a date stays in the same block wherever the device is.
+     */
+    static long getMonth(long date) {
+        Time time = new Time(Time.TIMEZONE_UTC);
+        time.set(date);
+        long month = (time.year - 1970) * 12L + time.month;
+        return Math.max(0, Math.min(MONTH_MASK, month));
+    }
+
+    /**
+     * @return the selection arguments for {@link #sKeyRangeSelection} that cover the blocks of
+     * a location holding days from startDate up to, but not including, endDate
+     */
+    static String[] buildKeyRangeArgs(long locationId, long startDate, long endDate) {
+        long first = packKey(locationId, getMonth(startDate));
+        long last = endDate == Long.MAX_VALUE
+                ? packKey(locationId, MONTH_MASK)
+                : packKey(locationId, getMonth(endDate - 1));
+        return new String[]{Long.toString(first), Long.toString(last)};
+    }
+
+    /**
+     * Deletes every block of a location. The caller owns the transaction.
+     *
+     * @return the number of blocks deleted
+     */
+    static int deleteLocation(SQLiteDatabase db, long locationId) {
+        return db.delete(ArchiveEntry.TABLE_NAME, sKeyRangeSelection,
+                buildKeyRangeArgs(locationId, 0, Long.MAX_VALUE));
+    }
+
+    /**
+     * Copies the weather rows the selection matches into their blocks. A day that is already
+     * archived is replaced. Then drops the oldest blocks if the archive has grown past
+     * {@link #MAX_ARCHIVE_BYTES}. The caller owns the transaction, and deletes the rows.
+     *
+     * @return the number of days archived
+     */
+    static int archive(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        // Through the view, so the values are in the contract's units in either storage mode.
+        Cursor cursor = db.query(WeatherFixedPoint.DECODED_TABLE, ARCHIVED_COLUMNS, selection,
+                selectionArgs, null, null,
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE);
+        int archived = 0;
+        try {
+            long key = -1;
+            List<Day> days = new ArrayList<Day>();
+            while (cursor.moveToNext()) {
+                Day day = readDay(cursor);
+                long dayKey = packKey(cursor.getLong(0), getMonth(day.date));
+                if (dayKey != key) {
+                    if (!days.isEmpty()) {
+                        mergeBlock(db, key, days);
+                    }
+                    key = dayKey;
+                    days.clear();
+                }
+                days.add(day);
+                archived++;
+            }
+            if (!days.isEmpty()) {
+                mergeBlock(db, key, days);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (archived > 0) {
+            trim(db, MAX_ARCHIVE_BYTES);
+        }
+        return archived;
+    }
+
+    private static Day readDay(Cursor cursor) {
+        Day day = new Day();
+        day.date = cursor.getLong(1);
+        day.weatherId = cursor.getLong(2);
+        day.shortDesc = cursor.getString(3);
+        for (int i = 0; i < VALUE_COLUMNS.length; i++) {
+            day.values[i] = WeatherFixedPoint.encode(cursor.getDouble(4 + i), SCALES[i]);
+        }
+        return day;
+    }
+
+    /**
+     * Rewrites a block with the given days added to the ones it already holds.
+     */
+    private static void mergeBlock(SQLiteDatabase db, long key, List<Day> days) {
+        TreeMap<Long, Day> merged = new TreeMap<Long, Day>();
+        for (Day day : readBlock(db, key)) {
+            merged.put(day.date, day);
+        }
+        for (Day day : days) {
+            merged.put(day.date, day);
+        }
+        ContentValues values = new ContentValues();
+        values.put(ArchiveEntry._ID, key);
+        values.put(ArchiveEntry.COLUMN_DAY_COUNT, merged.size());
+        values.put(ArchiveEntry.COLUMN_DATA, encode(merged.values()));
+        db.insertWithOnConflict(ArchiveEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @return the days of the block, or none if there is no such block or it can't be read
+     */
+    private static List<Day> readBlock(SQLiteDatabase db, long key) {
+        Cursor cursor = db.query(ArchiveEntry.TABLE_NAME, new String[]{ArchiveEntry.COLUMN_DATA},
+                ArchiveEntry._ID + " = ?", new String[]{Long.toString(key)}, null, null, null);
+        try {
+            return cursor.moveToFirst()
+                    ? decodeOrEmpty(key, cursor.getBlob(0)) : new ArrayList<Day>();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static List<Day> decodeOrEmpty(long key, byte[] data) {
+        try {
+            return decode(data);
+        } catch (DataFormatException e) {
+            Log.w(LOG_TAG, "Skipping archive block " + key, e);
+            return new ArrayList<Day>();
+        }
+    }
+
+    /**
+     * Reads a location's archived days. Each block in the range is read in one step and the
+     * days outside the range are left out.
+     *
+     * @param locationId An unknown location, -1, gives an empty cursor
+     */
+    static Cursor query(SQLiteDatabase db, long locationId, long startDate, long endDate) {
+        MatrixCursor result = new MatrixCursor(DAY_COLUMNS);
+        Cursor blocks = db.query(ArchiveEntry.TABLE_NAME,
+                new String[]{ArchiveEntry._ID, ArchiveEntry.COLUMN_DATA},
+                sKeyRangeSelection, buildKeyRangeArgs(locationId, startDate, endDate),
+                null, null, ArchiveEntry._ID);
+        try {
+            while (blocks.moveToNext()) {
+                for (Day day : decodeOrEmpty(blocks.getLong(0), blocks.getBlob(1))) {
+                    if (day.date >= startDate && day.date < endDate) {
+                        addRow(result, day);
+                    }
+                }
+            }
+        } finally {
+            blocks.close();
+        }
+        return result;
+    }
+
+    private static void addRow(MatrixCursor cursor, Day day) {
+        Object[] row = new Object[DAY_COLUMNS.length];
+        row[0] = day.date;
+        row[1] = day.weatherId;
+        row[2] = day.shortDesc;
+        for (int i = 0; i < VALUE_COLUMNS.length; i++) {
+            row[3 + i] = day.values[i] / (double) SCALES[i];
+        }
+        cursor.addRow(row);
+    }
+
+    /**
+     * Drops the blocks of the oldest months until the archive fits in maxBytes.
+     *
+     * @return the number of blocks dropped
+     */
+    static int trim(SQLiteDatabase db, long maxBytes) {
+        long total = DatabaseUtils.longForQuery(db, "SELECT IFNULL(SUM(LENGTH("
+                + ArchiveEntry.COLUMN_DATA + ")), 0) FROM " + ArchiveEntry.TABLE_NAME, null);
+        if (total <= maxBytes) {
+            return 0;
+        }
+        // A whole-table walk, but the table has one small row per location and month.
+        List<Long> dropped = new ArrayList<Long>();
+        Cursor blocks = db.query(ArchiveEntry.TABLE_NAME,
+                new String[]{ArchiveEntry._ID, "LENGTH(" + ArchiveEntry.COLUMN_DATA + ")"},
+                null, null, null, null,
+                "(" + ArchiveEntry._ID + " & " + MONTH_MASK + "), " + ArchiveEntry._ID);
+        try {
+            while (total > maxBytes && blocks.moveToNext()) {
+                dropped.add(blocks.getLong(0));
+                total -= blocks.getLong(1);
+            }
+        } finally {
+            blocks.close();
+        }
+        for (Long key : dropped) {
+            db.delete(ArchiveEntry.TABLE_NAME, ArchiveEntry._ID + " = ?",
+                    new String[]{key.toString()});
+        }
+        return dropped.size();
+    }
+
+    /**
+     * @param days In date order
+     * @return the days as one deflated block
+     */
+    static byte[] encode(Collection<Day> days) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(days.size() * 12 + 16);
+        writeVarint(out, FORMAT_VERSION);
+        writeVarint(out, days.size());
+        // Stored dates are midnights, which are whole minutes in every time zone. Anything
+        // else is kept to the millisecond.
+        long dateUnit = MINUTE_IN_MILLIS;
+        for (Day day : days) {
+            if (day.date % MINUTE_IN_MILLIS != 0) {
+                dateUnit = 1;
+                break;
+            }
+        }
+        writeVarint(out, dateUnit);
+
+        List<String> descriptions = new ArrayList<String>();
+        long date = 0;
+        long weatherId = 0;
+        long[] values = new long[VALUE_COLUMNS.length];
+        for (Day day : days) {
+            writeSigned(out, day.date / dateUnit - date);
+            date = day.date / dateUnit;
+            writeSigned(out, day.weatherId - weatherId);
+            weatherId = day.weatherId;
+            // 0 and then the text for a new description, or its number plus one.
+            int index = descriptions.indexOf(day.shortDesc);
+            if (index == -1) {
+                writeVarint(out, 0);
+                byte[] text = day.shortDesc.getBytes(UTF_8);
+                writeVarint(out, text.length);
+                out.write(text, 0, text.length);
+                descriptions.add(day.shortDesc);
+            } else {
+                writeVarint(out, index + 1);
+            }
+            for (int i = 0; i < values.length; i++) {
+                writeSigned(out, day.values[i] - values[i]);
+                values[i] = day.values[i];
+            }
+        }
+        return deflate(out.toByteArray());
+    }
+
+    /**
+     * @return the days of a block made by {@link #encode}, in date order
+     * @throws DataFormatException if the block is damaged or in an unknown format
+     */
+    static List<Day> decode(byte[] data) throws DataFormatException {
+        BlockReader in = new BlockReader(inflate(data));
+        if (in.readVarint() != FORMAT_VERSION) {
+            throw new DataFormatException("Unknown archive block format");
+        }
+        long count = in.readVarint();
+        long dateUnit = in.readVarint();
+        List<Day> days = new ArrayList<Day>();
+        List<String> descriptions = new ArrayList<String>();
+        long date = 0;
+        long weatherId = 0;
+        long[] values = new long[VALUE_COLUMNS.length];
+        for (int n = 0; n < count; n++) {
+            Day day = new Day();
+            date += in.readSigned();
+            day.date = date * dateUnit;
+            weatherId += in.readSigned();
+            day.weatherId = weatherId;
+            int index = (int) in.readVarint();
+            if (index == 0) {
+                day.shortDesc = in.readString();
+                descriptions.add(day.shortDesc);
+            } else if (index <= descriptions.size()) {
+                day.shortDesc = descriptions.get(index - 1);
+            } else {
+                throw new DataFormatException("Archive block refers to a missing description");
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i] += in.readSigned();
+                day.values[i] = values[i];
+            }
+            days.add(day);
+        }
+        return days;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeSigned(ByteArrayOutputStream out, long value) {
+        // Zigzag, so small negative differences are small numbers too.
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] input) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 3);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Archive block is truncated");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads the fields of an inflated block.
+     */
+    private static final class BlockReader {
+        private final byte[] mBytes;
+        private int mPosition;
+
+        BlockReader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        long readVarint() throws DataFormatException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPosition >= mBytes.length) {
+                    throw new DataFormatException("Archive block ends early");
+                }
+                byte b = mBytes[mPosition++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new DataFormatException("Archive block has an overlong number");
+        }
+
+        long readSigned() throws DataFormatException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() throws DataFormatException {
+            int length = (int) readVarint();
+            if (length < 0 || length > mBytes.length - mPosition) {
+                throw new DataFormatException("Archive block ends early");
+            }
+            String text = new String(mBytes, mPosition, length, UTF_8);
+            mPosition += length;
+            return text;
+        }
+    }
+}
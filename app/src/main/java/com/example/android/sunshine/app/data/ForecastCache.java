@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import com.example.android.sunshine.app.data.SnapshotCursor.Snapshot;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the results of recent forecast queries, so that the forecast list, both widgets, Muzei
+ * and the notification, which all ask for the same location's forecast right after a sync, only
+ * go to SQLite once between them.
+ *
+ * Entries are keyed by the query URI (location setting and date or start date), projection and
+ * sort order. Every write to the database bumps a generation count and empties the cache; a
+ * query that started before a write can't store its result afterwards, so the cache never
+ * holds anything older than the last committed write.
+ */
+class ForecastCache {
+
+    static final int MAX_SIZE_BYTES = 256 * 1024;
+
+    private final Object mLock = new Object();
+    private long mGeneration;
+    private boolean mInvalidating;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    private final LruCache<String, Snapshot> mSnapshots =
+            new LruCache<String, Snapshot>(MAX_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(String key, Snapshot snapshot) {
+                    return key.length() * 2 + snapshot.sizeInBytes;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Snapshot oldValue,
+                                            Snapshot newValue) {
+                    if (evicted && !mInvalidating) {
+                        mEvictions++;
+                    }
+                }
+            };
+
+    /**
+     * Snapshots are read with Cursor.getType, which Gingerbread doesn't have.
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    static String buildKey(Uri uri, String[] projection, String sortOrder) {
+        StringBuilder key = new StringBuilder(uri.toString()).append('|');
+        if (projection != null) {
+            key.append(Arrays.toString(projection));
+        }
+        return key.append('|').append(sortOrder).toString();
+    }
+
+    /**
+     * @return a cursor over the cached result, or null if there isn't one
+     */
+    Cursor get(String key) {
+        Snapshot snapshot;
+        synchronized (mLock) {
+            snapshot = mSnapshots.get(key);
+            if (snapshot == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * @return the generation to pass to {@link #put}; read it before running the query
+     */
+    long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Copies a query result into the cache, unless the database was written since the query
+     * started.
+     *
+     * @param generation What {@link #getGeneration()} returned before the query ran
+     * @param cursor The query result; it is closed here
+     * @return a cursor over the same rows
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        Snapshot snapshot;
+        try {
+            snapshot = Snapshot.read(cursor);
+        } finally {
+            cursor.close();
+        }
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mSnapshots.put(key, snapshot);
+            }
+        }
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Drops everything. Call after every write, once its transaction has ended.
+     */
+    void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mInvalidating = true;
+            mSnapshots.evictAll();
+            mInvalidating = false;
+        }
+    }
+
+    long getHitCount() {
+        synchronized (mLock) {
+            return mHits;
+        }
+    }
+
+    long getMissCount() {
+        synchronized (mLock) {
+            return mMisses;
+        }
+    }
+
+    /**
+     * @return how many entries were dropped to make room, not counting invalidations
+     */
+    long getEvictionCount() {
+        synchronized (mLock) {
+            return mEvictions;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "ForecastCache{hits=" + mHits + ", misses=" + mMisses
+                    + ", evictions=" + mEvictions + ", size=" + mSnapshots.size() + "}";
+        }
+    }
+}
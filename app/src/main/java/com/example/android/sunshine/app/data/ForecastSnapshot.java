@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The forecast for one location over a run of days, packed into one array per column. A
+ * forecast repeats the same few descriptions ("Clear", "Rain"), so each one is stored once and
+ * the days refer to it by index.
+ *
+ * Get one from the provider with {@link #query}, which costs one call instead of a query and a
+ * walk over a Cursor.
+ */
+public final class ForecastSnapshot implements Parcelable {
+
+    // The columns read from the provider; these indices must match the projection.
+    static final String[] COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+    static final int COL_ID = 0;
+    static final int COL_DATE = 1;
+    static final int COL_WEATHER_ID = 2;
+    static final int COL_SHORT_DESC = 3;
+    static final int COL_MAX_TEMP = 4;
+    static final int COL_MIN_TEMP = 5;
+    static final int COL_HUMIDITY = 6;
+    static final int COL_PRESSURE = 7;
+    static final int COL_WIND_SPEED = 8;
+    static final int COL_DEGREES = 9;
+
+    private final String mLocationSetting;
+    private final long[] mIds;
+    private final long[] mDates;
+    private final int[] mWeatherIds;
+    // Each distinct description once; the days index into it.
+    private String[] mDescriptions;
+    private final int[] mDescriptionIndices;
+    private final double[] mMaxTemps;
+    private final double[] mMinTemps;
+    private final double[] mHumidities;
+    private final double[] mPressures;
+    private final double[] mWindSpeeds;
+    private final double[] mDegrees;
+
+    private ForecastSnapshot(String locationSetting, int size) {
+        mLocationSetting = locationSetting;
+        mIds = new long[size];
+        mDates = new long[size];
+        mWeatherIds = new int[size];
+        mDescriptionIndices = new int[size];
+        mMaxTemps = new double[size];
+        mMinTemps = new double[size];
+        mHumidities = new double[size];
+        mPressures = new double[size];
+        mWindSpeeds = new double[size];
+        mDegrees = new double[size];
+    }
+
+    /**
+     * Asks the provider for a location's forecast.
+     *
+     * @param startDate The first day to include; 0 for every stored day
+     * @param numDays The most days to include
+     * @return the forecast, empty if none is stored for the location
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static ForecastSnapshot query(ContentResolver resolver, String locationSetting,
+                                         long startDate, int numDays) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherEntry.EXTRA_START_DATE, startDate);
+        extras.putInt(WeatherEntry.EXTRA_NUM_DAYS, numDays);
+        Bundle result = resolver.call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_GET_FORECAST_SNAPSHOT, locationSetting, extras);
+        result.setClassLoader(ForecastSnapshot.class.getClassLoader());
+        return result.getParcelable(WeatherEntry.EXTRA_FORECAST_SNAPSHOT);
+    }
+
+    /**
+     * Reads up to numDays rows of a cursor over {@link #COLUMNS}, from its current position on.
+     */
+    static ForecastSnapshot fromCursor(String locationSetting, Cursor cursor, int numDays) {
+        int size = Math.max(0, Math.min(numDays, cursor.getCount() - cursor.getPosition() - 1));
+        ForecastSnapshot snapshot = new ForecastSnapshot(locationSetting, size);
+        List<String> descriptions = new ArrayList<String>();
+        Map<String, Integer> descriptionIndices = new HashMap<String, Integer>();
+        for (int i = 0; i < size && cursor.moveToNext(); i++) {
+            snapshot.mIds[i] = cursor.getLong(COL_ID);
+            snapshot.mDates[i] = cursor.getLong(COL_DATE);
+            snapshot.mWeatherIds[i] = cursor.getInt(COL_WEATHER_ID);
+            String description = cursor.getString(COL_SHORT_DESC);
+            Integer index = descriptionIndices.get(description);
+            if (index == null) {
+                index = descriptions.size();
+                descriptions.add(description);
+                descriptionIndices.put(description, index);
+            }
+            snapshot.mDescriptionIndices[i] = index;
+            snapshot.mMaxTemps[i] = cursor.getDouble(COL_MAX_TEMP);
+            snapshot.mMinTemps[i] = cursor.getDouble(COL_MIN_TEMP);
+            snapshot.mHumidities[i] = cursor.getDouble(COL_HUMIDITY);
+            snapshot.mPressures[i] = cursor.getDouble(COL_PRESSURE);
+            snapshot.mWindSpeeds[i] = cursor.getDouble(COL_WIND_SPEED);
+            snapshot.mDegrees[i] = cursor.getDouble(COL_DEGREES);
+        }
+        snapshot.mDescriptions = descriptions.toArray(new String[descriptions.size()]);
+        return snapshot;
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    /**
+     * @return the number of days in the snapshot
+     */
+    public int size() {
+        return mDates.length;
+    }
+
+    /**
+     * @return the weather row's _ID, which stays the same across syncs
+     */
+    public long getId(int day) {
+        return mIds[day];
+    }
+
+    public long getDate(int day) {
+        return mDates[day];
+    }
+
+    public int getWeatherId(int day) {
+        return mWeatherIds[day];
+    }
+
+    public String getDescription(int day) {
+        return mDescriptions[mDescriptionIndices[day]];
+    }
+
+    public double getMaxTemp(int day) {
+        return mMaxTemps[day];
+    }
+
+    public double getMinTemp(int day) {
+        return mMinTemps[day];
+    }
+
+    public double getHumidity(int day) {
+        return mHumidities[day];
+    }
+
+    public double getPressure(int day) {
+        return mPressures[day];
+    }
+
+    public double getWindSpeed(int day) {
+        return mWindSpeeds[day];
+    }
+
+    public double getDegrees(int day) {
+        return mDegrees[day];
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mLocationSetting);
+        dest.writeInt(size());
+        dest.writeStringArray(mDescriptions);
+        dest.writeLongArray(mIds);
+        dest.writeLongArray(mDates);
+        dest.writeIntArray(mWeatherIds);
+        dest.writeIntArray(mDescriptionIndices);
+        dest.writeDoubleArray(mMaxTemps);
+        dest.writeDoubleArray(mMinTemps);
+        dest.writeDoubleArray(mHumidities);
+        dest.writeDoubleArray(mPressures);
+        dest.writeDoubleArray(mWindSpeeds);
+        dest.writeDoubleArray(mDegrees);
+    }
+
+    public static final Parcelable.Creator<ForecastSnapshot> CREATOR =
+            new Parcelable.Creator<ForecastSnapshot>() {
+                @Override
+                public ForecastSnapshot createFromParcel(Parcel source) {
+                    String locationSetting = source.readString();
+                    int size = source.readInt();
+                    ForecastSnapshot snapshot = new ForecastSnapshot(locationSetting, size);
+                    snapshot.mDescriptions = source.createStringArray();
+                    source.readLongArray(snapshot.mIds);
+                    source.readLongArray(snapshot.mDates);
+                    source.readIntArray(snapshot.mWeatherIds);
+                    source.readIntArray(snapshot.mDescriptionIndices);
+                    source.readDoubleArray(snapshot.mMaxTemps);
+                    source.readDoubleArray(snapshot.mMinTemps);
+                    source.readDoubleArray(snapshot.mHumidities);
+                    source.readDoubleArray(snapshot.mPressures);
+                    source.readDoubleArray(snapshot.mWindSpeeds);
+                    source.readDoubleArray(snapshot.mDegrees);
+                    return snapshot;
+                }
+
+                @Override
+                public ForecastSnapshot[] newArray(int size) {
+                    return new ForecastSnapshot[size];
+                }
+            };
+}
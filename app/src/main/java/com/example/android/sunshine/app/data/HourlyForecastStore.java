@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How the hourly table is laid out, and reading and writing it for {@link WeatherProvider}.
+ *
+ * A forecast every three hours is about 40 rows per location, so the rows are kept small. The
+ * location and hour are packed into the _ID, which is the table's rowid: there is no separate
+ * key, no index to keep up, and SQLite stores the rows in rowid order, so one location's hours
+ * sit next to each other in time order and a time range is a single seek and a sequential
+ * read. Temperatures, pressure and wind speed are stored as integer tenths, which SQLite keeps
+ * in one or two bytes instead of the eight a REAL takes.
+ */
+final class HourlyForecastStore {
+
+    // The low bits of the _ID hold the hour since the epoch, which fits in 24 bits until the
+    // year 3884; the location_id takes the bits above.
+    static final int HOUR_BITS = 24;
+    static final long HOUR_MASK = (1L << HOUR_BITS) - 1;
+    static final long HOUR_IN_MILLIS = 1000L * 60 * 60;
+
+    static final String SQL_CREATE_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+            // (location_id << 24) | hour; see packKey.
+            HourlyEntry._ID + " INTEGER PRIMARY KEY, " +
+            HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_TEMP + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_DEGREES + " INTEGER NOT NULL);";
+
+    private static final String SQL_INSERT = "INSERT OR REPLACE INTO " + HourlyEntry.TABLE_NAME
+            + " (" + HourlyEntry._ID + ", " + HourlyEntry.COLUMN_WEATHER_ID + ", "
+            + HourlyEntry.COLUMN_TEMP + ", " + HourlyEntry.COLUMN_PRESSURE + ", "
+            + HourlyEntry.COLUMN_HUMIDITY + ", " + HourlyEntry.COLUMN_WIND_SPEED + ", "
+            + HourlyEntry.COLUMN_DEGREES + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    //hourly._id BETWEEN ? AND ?
+    static final String sKeyRangeSelection = HourlyEntry._ID + " BETWEEN ? AND ? ";
+
+    // Turns the stored columns back into the ones in the contract.
+    static final Map<String, String> sProjectionMap = new HashMap<String, String>();
+
+    static {
+        sProjectionMap.put(HourlyEntry._ID, HourlyEntry._ID);
+        sProjectionMap.put(HourlyEntry.COLUMN_LOC_KEY,
+                "(" + HourlyEntry._ID + " >> " + HOUR_BITS + ") AS " + HourlyEntry.COLUMN_LOC_KEY);
+        sProjectionMap.put(HourlyEntry.COLUMN_TIME, "(" + HourlyEntry._ID + " & " + HOUR_MASK
+                + ") * " + HOUR_IN_MILLIS + " AS " + HourlyEntry.COLUMN_TIME);
+        sProjectionMap.put(HourlyEntry.COLUMN_WEATHER_ID, HourlyEntry.COLUMN_WEATHER_ID);
+        putTenths(HourlyEntry.COLUMN_TEMP);
+        putTenths(HourlyEntry.COLUMN_PRESSURE);
+        sProjectionMap.put(HourlyEntry.COLUMN_HUMIDITY, HourlyEntry.COLUMN_HUMIDITY);
+        putTenths(HourlyEntry.COLUMN_WIND_SPEED);
+        sProjectionMap.put(HourlyEntry.COLUMN_DEGREES, HourlyEntry.COLUMN_DEGREES);
+    }
+
+    private static void putTenths(String column) {
+        sProjectionMap.put(column, column + " / 10.0 AS " + column);
+    }
+
+    // The columns of hourly/<setting>/days, in order.
+    static final String[] DAY_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // What aggregateDays reads, in this order.
+    static final String[] STORED_COLUMNS = {
+            HourlyEntry._ID,
+            HourlyEntry.COLUMN_WEATHER_ID,
+            HourlyEntry.COLUMN_TEMP,
+            HourlyEntry.COLUMN_PRESSURE,
+            HourlyEntry.COLUMN_HUMIDITY,
+            HourlyEntry.COLUMN_WIND_SPEED,
+            HourlyEntry.COLUMN_DEGREES
+    };
+
+    private HourlyForecastStore() {
+    }
+
+    static long packKey(long locationId, long timeMillis) {
+        return (locationId << HOUR_BITS) | toHour(timeMillis);
+    }
+
+    static long getLocationIdFromKey(long key) {
+        return key >> HOUR_BITS;
+    }
+
+    static long getTimeFromKey(long key) {
+        return (key & HOUR_MASK) * HOUR_IN_MILLIS;
+    }
+
+    /**
+     * @return the hour since the epoch that the time falls in, clamped to what a key can hold
+     */
+    static long toHour(long timeMillis) {
+        long hour = timeMillis / HOUR_IN_MILLIS;
+        return Math.max(0, Math.min(HOUR_MASK, hour));
+    }
+
+    static long toTenths(double value) {
+        return Math.round(value * 10);
+    }
+
+    /**
+     * @return the selection arguments for {@link #sKeyRangeSelection} that cover a location's
+     * hours from startTime up to, but not including, endTime
+     */
+    static String[] buildKeyRangeArgs(long locationId, long startTime, long endTime) {
+        long first = packKey(locationId, startTime);
+        // An end on the hour excludes that hour; one past it still includes it.
+        long last = endTime == Long.MAX_VALUE
+                ? packKey(locationId, Long.MAX_VALUE)
+                : packKey(locationId, endTime - 1);
+        return new String[]{Long.toString(first), Long.toString(last)};
+    }
+
+    /**
+     * Deletes every hour of a location. The caller owns the transaction.
+     *
+     * @return the number of hours deleted
+     */
+    static int deleteLocation(SQLiteDatabase db, long locationId) {
+        return db.delete(HourlyEntry.TABLE_NAME, sKeyRangeSelection,
+                buildKeyRangeArgs(locationId, 0, Long.MAX_VALUE));
+    }
+
+    /**
+     * Writes each row, replacing what is stored for the same location and hour. The caller owns
+     * the transaction.
+     *
+     * @return the number of rows written
+     * @throws SQLException if a row is missing its location or time
+     */
+    static int bulkInsert(SQLiteDatabase db, ContentValues[] rows) {
+        SQLiteStatement statement = db.compileStatement(SQL_INSERT);
+        try {
+            int written = 0;
+            for (ContentValues row : rows) {
+                if (insert(statement, row) != -1) {
+                    written++;
+                }
+            }
+            return written;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return the row's _ID, or -1 if it couldn't be written
+     * @throws SQLException if the row is missing its location or time
+     */
+    static long insert(SQLiteDatabase db, ContentValues row) {
+        SQLiteStatement statement = db.compileStatement(SQL_INSERT);
+        try {
+            return insert(statement, row);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static long insert(SQLiteStatement statement, ContentValues row) {
+        Long locationId = row.getAsLong(HourlyEntry.COLUMN_LOC_KEY);
+        Long time = row.getAsLong(HourlyEntry.COLUMN_TIME);
+        if (locationId == null || time == null) {
+            throw new SQLException("Hourly row needs a location and a time: " + row);
+        }
+        long key = packKey(locationId, time);
+        statement.clearBindings();
+        statement.bindLong(1, key);
+        statement.bindLong(2, getLong(row, HourlyEntry.COLUMN_WEATHER_ID));
+        statement.bindLong(3, toTenths(getDouble(row, HourlyEntry.COLUMN_TEMP)));
+        statement.bindLong(4, toTenths(getDouble(row, HourlyEntry.COLUMN_PRESSURE)));
+        statement.bindLong(5, Math.round(getDouble(row, HourlyEntry.COLUMN_HUMIDITY)));
+        statement.bindLong(6, toTenths(getDouble(row, HourlyEntry.COLUMN_WIND_SPEED)));
+        statement.bindLong(7, Math.round(getDouble(row, HourlyEntry.COLUMN_DEGREES)));
+        return statement.executeInsert() == -1 ? -1 : key;
+    }
+
+    private static long getLong(ContentValues row, String column) {
+        Long value = row.getAsLong(column);
+        if (value == null) {
+            throw new SQLException("Hourly row has no " + column + ": " + row);
+        }
+        return value;
+    }
+
+    private static double getDouble(ContentValues row, String column) {
+        Double value = row.getAsDouble(column);
+        if (value == null) {
+            throw new SQLException("Hourly row has no " + column + ": " + row);
+        }
+        return value;
+    }
+
+    /**
+     * Folds hours into days. Each hour goes to the day {@link WeatherContract#normalizeDate}
+     * puts it in, so the days line up with the weather table's.
+     *
+     * - min and max are the lowest and highest temperatures of the day's hours.
+     * - humidity and pressure are averages, wind is the strongest.
+     * - degrees is the mean direction of the wind, weighted by its speed.
+     * - weather_id is the most notable condition: any weather (thunderstorms, rain, snow, fog)
+     *   over a clear or cloudy sky, the lowest code among those, or the cloudiest sky.
+     *
+     * @param hours A cursor over {@link #STORED_COLUMNS} in _ID order, for one location. It is
+     *              closed here.
+     */
+    static Cursor aggregateDays(Cursor hours) {
+        MatrixCursor days = new MatrixCursor(DAY_COLUMNS);
+        // Reused for every hour; WeatherContract.normalizeDate allocates a new one per call.
+        Time dayTime = new Time();
+        try {
+            long day = Long.MIN_VALUE;
+            int count = 0;
+            long weatherId = 0;
+            long minTemp = 0;
+            long maxTemp = 0;
+            long humidity = 0;
+            long pressure = 0;
+            long maxWind = 0;
+            double windX = 0;
+            double windY = 0;
+            while (hours.moveToNext()) {
+                long time = getTimeFromKey(hours.getLong(0));
+                dayTime.set(time);
+                long hourDay = dayTime.setJulianDay(Time.getJulianDay(time, dayTime.gmtoff));
+                if (hourDay != day) {
+                    if (count > 0) {
+                        addDay(days, day, weatherId, minTemp, maxTemp,
+                                humidity / (double) count, pressure / (double) count, maxWind,
+                                windX, windY);
+                    }
+                    day = hourDay;
+                    count = 0;
+                    weatherId = hours.getLong(1);
+                    minTemp = Long.MAX_VALUE;
+                    maxTemp = Long.MIN_VALUE;
+                    humidity = 0;
+                    pressure = 0;
+                    maxWind = 0;
+                    windX = 0;
+                    windY = 0;
+                }
+                count++;
+                weatherId = moreNotable(weatherId, hours.getLong(1));
+                long temp = hours.getLong(2);
+                minTemp = Math.min(minTemp, temp);
+                maxTemp = Math.max(maxTemp, temp);
+                pressure += hours.getLong(3);
+                humidity += hours.getLong(4);
+                long wind = hours.getLong(5);
+                maxWind = Math.max(maxWind, wind);
+                double radians = Math.toRadians(hours.getLong(6));
+                windX += wind * Math.sin(radians);
+                windY += wind * Math.cos(radians);
+            }
+            if (count > 0) {
+                addDay(days, day, weatherId, minTemp, maxTemp,
+                        humidity / (double) count, pressure / (double) count, maxWind,
+                        windX, windY);
+            }
+        } finally {
+            hours.close();
+        }
+        return days;
+    }
+
+    private static void addDay(MatrixCursor days, long date, long weatherId, long minTemp,
+                               long maxTemp, double humidity, double pressureTenths,
+                               long maxWindTenths, double windX, double windY) {
+        double degrees = (Math.toDegrees(Math.atan2(windX, windY)) + 360) % 360;
+        days.addRow(new Object[]{
+                date,
+                weatherId,
+                minTemp / 10.0,
+                maxTemp / 10.0,
+                humidity,
+                pressureTenths / 10.0,
+                maxWindTenths / 10.0,
+                degrees
+        });
+    }
+
+    /**
+     * OWM's codes run from thunderstorms (2xx) through drizzle, rain, snow and fog to a clear
+     * sky (800) and more and more cloud (80x).
+     */
+    static long moreNotable(long a, long b) {
+        boolean aIsSky = a >= 800;
+        boolean bIsSky = b >= 800;
+        if (aIsSky != bIsSky) {
+            return aIsSky ? b : a;
+        }
+        return aIsSky ? Math.max(a, b) : Math.min(a, b);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The spatial index of the location table, and the location/near lookup for
+ * {@link WeatherProvider}.
+ *
+ * The globe is cut into cells of {@link #CELL_DEGREES} on each side, numbered row by row from
+ * the south pole, and each location's cell is kept in its grid_cell column by triggers, with an
+ * index over it. The cells within a radius of a point are a few short runs of numbers, one per
+ * row, so the lookup reads only the locations in those runs through the index and then measures
+ * the distance to each of them.
+ *
+ * The framework's SQLite isn't built with the R*Tree module on every device, and it has no
+ * trigonometric functions, so both the grid and the distances are worked out here.
+ */
+final class LocationGrid {
+
+    // About 28km north to south, and less east to west away from the equator.
+    static final double CELL_DEGREES = 0.25;
+    static final int LON_CELLS = (int) (360 / CELL_DEGREES);
+
+    static final double EARTH_RADIUS_KM = 6371.0;
+    static final double KM_PER_DEGREE = EARTH_RADIUS_KM * Math.PI / 180;
+
+    // Larger radii are cut down to this, which keeps the lookup to at most a few dozen runs.
+    static final double MAX_RADIUS_KM = 500;
+
+    static final String INDEX_LOCATION_GRID_CELL = "location_grid_cell";
+
+    // The same arithmetic as getCell. Both truncate, and the coordinates are shifted so that
+    // they are never negative.
+    static final String SQL_CELL_EXPRESSION =
+            "(CAST((" + LocationEntry.COLUMN_COORD_LAT + " + 90) / " + CELL_DEGREES
+                    + " AS INTEGER) * " + LON_CELLS + " + CAST(("
+                    + LocationEntry.COLUMN_COORD_LONG + " + 180) / " + CELL_DEGREES
+                    + " AS INTEGER) % " + LON_CELLS + ")";
+
+    static final String SQL_CREATE_INDEX = "CREATE INDEX " + INDEX_LOCATION_GRID_CELL + " ON " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_GRID_CELL + ");";
+
+    // Fills in the cell of every location, for a table that had none.
+    static final String SQL_UPDATE_ALL_CELLS = "UPDATE " + LocationEntry.TABLE_NAME + " SET "
+            + LocationEntry.COLUMN_GRID_CELL + " = " + SQL_CELL_EXPRESSION;
+
+    // Fill in the cell of every location that is added or moved.
+    static final String SQL_CREATE_INSERT_TRIGGER = "CREATE TRIGGER location_grid_cell_insert"
+            + " AFTER INSERT ON " + LocationEntry.TABLE_NAME + " BEGIN " + buildUpdateCellSql()
+            + " END;";
+    static final String SQL_CREATE_UPDATE_TRIGGER = "CREATE TRIGGER location_grid_cell_update"
+            + " AFTER UPDATE OF " + LocationEntry.COLUMN_COORD_LAT + ", "
+            + LocationEntry.COLUMN_COORD_LONG + " ON " + LocationEntry.TABLE_NAME + " BEGIN "
+            + buildUpdateCellSql() + " END;";
+
+    private LocationGrid() {
+    }
+
+    private static String buildUpdateCellSql() {
+        return SQL_UPDATE_ALL_CELLS + " WHERE " + LocationEntry._ID + " = NEW."
+                + LocationEntry._ID + ";";
+    }
+
+    static long getCell(double lat, double lon) {
+        return (long) ((lat + 90) / CELL_DEGREES) * LON_CELLS
+                + (long) ((lon + 180) / CELL_DEGREES) % LON_CELLS;
+    }
+
+    /**
+     * @return the great-circle distance between two points, by the haversine formula
+     */
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * @return the selection over grid_cell that covers every cell within the radius of the
+     * point, as runs of "grid_cell BETWEEN ? AND ?" joined by OR; see {@link #buildCellArgs}
+     */
+    static String buildCellSelection(double lat, double lon, double radiusKm) {
+        int runs = buildCellArgs(lat, lon, radiusKm).length / 2;
+        StringBuilder selection = new StringBuilder();
+        for (int i = 0; i < runs; i++) {
+            selection.append(i > 0 ? " OR " : "").append(LocationEntry.COLUMN_GRID_CELL)
+                    .append(" BETWEEN ? AND ?");
+        }
+        return selection.toString();
+    }
+
+    /**
+     * @return the first and last cell of each run of {@link #buildCellSelection}
+     */
+    static String[] buildCellArgs(double lat, double lon, double radiusKm) {
+        radiusKm = Math.min(radiusKm, MAX_RADIUS_KM);
+        double dLat = radiusKm / KM_PER_DEGREE;
+        long firstRow = getRow(Math.max(-90, lat - dLat));
+        long lastRow = getRow(Math.min(90, lat + dLat));
+
+        // Near a pole, or with the pole inside the radius, every longitude is in reach.
+        double cosLat = Math.cos(Math.toRadians(Math.min(90, Math.abs(lat) + dLat)));
+        double dLon = cosLat > 0 ? dLat / cosLat : 360;
+        long firstCol;
+        long lastCol;
+        if (lat + dLat >= 90 || lat - dLat <= -90 || dLon >= 180) {
+            firstCol = 0;
+            lastCol = LON_CELLS - 1;
+        } else {
+            firstCol = (long) Math.floor((lon - dLon + 180) / CELL_DEGREES);
+            lastCol = (long) Math.floor((lon + dLon + 180) / CELL_DEGREES);
+        }
+
+        List<String> args = new ArrayList<String>();
+        for (long row = firstRow; row <= lastRow; row++) {
+            long rowStart = row * LON_CELLS;
+            if (firstCol < 0) {
+                // Across the antimeridian, westwards.
+                addRun(args, rowStart + firstCol + LON_CELLS, rowStart + LON_CELLS - 1);
+                addRun(args, rowStart, rowStart + lastCol);
+            } else if (lastCol >= LON_CELLS) {
+                // Across the antimeridian, eastwards.
+                addRun(args, rowStart + firstCol, rowStart + LON_CELLS - 1);
+                addRun(args, rowStart, rowStart + lastCol - LON_CELLS);
+            } else {
+                addRun(args, rowStart + firstCol, rowStart + lastCol);
+            }
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    private static long getRow(double lat) {
+        return (long) ((lat + 90) / CELL_DEGREES);
+    }
+
+    private static void addRun(List<String> args, long first, long last) {
+        args.add(Long.toString(first));
+        args.add(Long.toString(last));
+    }
+
+    /**
+     * A location found by {@link #queryNear}.
+     */
+    private static final class Nearby {
+        final long id;
+        final double distanceKm;
+
+        Nearby(long id, double distanceKm) {
+            this.id = id;
+            this.distanceKm = distanceKm;
+        }
+    }
+
+    /**
+     * Finds the locations within the radius of the point.
+     *
+     * @param projection The columns to return, which can include
+     *                   {@link LocationEntry#COLUMN_DISTANCE}; null for every stored column
+     *                   and the distance
+     * @param sortOrder  Nearest first if null
+     */
+    static Cursor queryNear(SQLiteDatabase db, double lat, double lon, double radiusKm,
+                            String[] projection, String sortOrder) {
+        radiusKm = Math.min(radiusKm, MAX_RADIUS_KM);
+        // First the locations in the cells around the point, through the index, then only
+        // those that are really within the radius.
+        List<Nearby> found = new ArrayList<Nearby>();
+        Cursor candidates = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_COORD_LAT,
+                        LocationEntry.COLUMN_COORD_LONG},
+                buildCellSelection(lat, lon, radiusKm), buildCellArgs(lat, lon, radiusKm),
+                null, null, null);
+        try {
+            while (candidates.moveToNext()) {
+                double distance = distanceKm(lat, lon,
+                        candidates.getDouble(1), candidates.getDouble(2));
+                if (distance <= radiusKm) {
+                    found.add(new Nearby(candidates.getLong(0), distance));
+                }
+            }
+        } finally {
+            candidates.close();
+        }
+        Collections.sort(found, new Comparator<Nearby>() {
+            @Override
+            public int compare(Nearby a, Nearby b) {
+                return Double.compare(a.distanceKm, b.distanceKm);
+            }
+        });
+
+        // The distances go back as a column SQLite looks up by _ID.
+        String distance;
+        String selection;
+        String order;
+        if (found.isEmpty()) {
+            distance = "NULL";
+            selection = "0";
+            order = null;
+        } else {
+            StringBuilder distanceCase = new StringBuilder("CASE ").append(LocationEntry._ID);
+            StringBuilder orderCase = new StringBuilder("CASE ").append(LocationEntry._ID);
+            StringBuilder ids = new StringBuilder(LocationEntry._ID).append(" IN (");
+            for (int i = 0; i < found.size(); i++) {
+                Nearby nearby = found.get(i);
+                distanceCase.append(" WHEN ").append(nearby.id).append(" THEN ")
+                        .append(nearby.distanceKm);
+                orderCase.append(" WHEN ").append(nearby.id).append(" THEN ").append(i);
+                ids.append(i > 0 ? ", " : "").append(nearby.id);
+            }
+            distance = distanceCase.append(" END").toString();
+            order = orderCase.append(" END").toString();
+            selection = ids.append(')').toString();
+        }
+        distance += " AS " + LocationEntry.COLUMN_DISTANCE;
+
+        String[] columns;
+        if (projection == null) {
+            columns = new String[]{"*", distance};
+        } else {
+            columns = Arrays.copyOf(projection, projection.length);
+            for (int i = 0; i < columns.length; i++) {
+                if (LocationEntry.COLUMN_DISTANCE.equals(columns[i])) {
+                    columns[i] = distance;
+                }
+            }
+        }
+        return db.query(LocationEntry.TABLE_NAME, columns, selection, null, null, null,
+                sortOrder != null ? sortOrder : order);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The full-text index of the location table, and the location/search lookup for
+ * {@link WeatherProvider}.
+ *
+ * The city name and location setting of each location are kept in an FTS3 table by triggers,
+ * under the location's _ID as docid. A search matches every word of the text as a prefix, so
+ * "san fr" finds "San Francisco", and reads only the matching docids from the full-text index
+ * instead of comparing the text to every location.
+ *
+ * FTS3 is used rather than FTS4 since it is in the framework's SQLite on every version the app
+ * runs on. It has no ranking function, so the matches are ranked here: exact matches first,
+ * then names that start with the text, then names with a later word that does, each group
+ * shortest name first.
+ */
+final class LocationSearch {
+
+    static final String TABLE_NAME = "location_search";
+
+    static final String SQL_CREATE_TABLE = "CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts3("
+            + LocationEntry.COLUMN_CITY_NAME + ", " + LocationEntry.COLUMN_LOCATION_SETTING + ");";
+
+    // Indexes every location, for a table that had none.
+    static final String SQL_INDEX_ALL = "INSERT INTO " + TABLE_NAME + " (docid, "
+            + LocationEntry.COLUMN_CITY_NAME + ", " + LocationEntry.COLUMN_LOCATION_SETTING
+            + ") SELECT " + LocationEntry._ID + ", " + LocationEntry.COLUMN_CITY_NAME + ", "
+            + LocationEntry.COLUMN_LOCATION_SETTING + " FROM " + LocationEntry.TABLE_NAME;
+
+    // Keep the index the same as the location table.
+    static final String SQL_CREATE_INSERT_TRIGGER = "CREATE TRIGGER location_search_insert"
+            + " AFTER INSERT ON " + LocationEntry.TABLE_NAME + " BEGIN "
+            + SQL_INDEX_ALL + " WHERE " + LocationEntry._ID + " = NEW." + LocationEntry._ID
+            + "; END;";
+    static final String SQL_CREATE_UPDATE_TRIGGER = "CREATE TRIGGER location_search_update"
+            + " AFTER UPDATE OF " + LocationEntry.COLUMN_CITY_NAME + ", "
+            + LocationEntry.COLUMN_LOCATION_SETTING + " ON " + LocationEntry.TABLE_NAME
+            + " BEGIN UPDATE " + TABLE_NAME + " SET "
+            + LocationEntry.COLUMN_CITY_NAME + " = NEW." + LocationEntry.COLUMN_CITY_NAME + ", "
+            + LocationEntry.COLUMN_LOCATION_SETTING + " = NEW."
+            + LocationEntry.COLUMN_LOCATION_SETTING + " WHERE docid = OLD." + LocationEntry._ID
+            + "; END;";
+    static final String SQL_CREATE_DELETE_TRIGGER = "CREATE TRIGGER location_search_delete"
+            + " AFTER DELETE ON " + LocationEntry.TABLE_NAME + " BEGIN DELETE FROM " + TABLE_NAME
+            + " WHERE docid = OLD." + LocationEntry._ID + "; END;";
+
+    static final String SQL_MATCHING_IDS = LocationEntry._ID + " IN (SELECT docid FROM "
+            + TABLE_NAME + " WHERE " + TABLE_NAME + " MATCH ?)";
+
+    static final String SQL_RANK = "CASE"
+            + " WHEN " + LocationEntry.COLUMN_CITY_NAME + " = ? COLLATE NOCASE"
+            + " OR " + LocationEntry.COLUMN_LOCATION_SETTING + " = ? COLLATE NOCASE THEN 0"
+            + " WHEN " + LocationEntry.COLUMN_CITY_NAME + " LIKE ? ESCAPE '\\' THEN 1"
+            + " ELSE 2 END, length(" + LocationEntry.COLUMN_CITY_NAME + "), "
+            + LocationEntry.COLUMN_CITY_NAME + " COLLATE NOCASE";
+
+    private LocationSearch() {
+    }
+
+    /**
+     * @return the words of the text, the way the index splits up what it stores. Like the
+     * index's tokenizer, only ASCII letters are folded to lower case.
+     */
+    static List<String> getWords(String text) {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return the FTS3 query that matches every word of the text as a prefix, or null if the
+     * text has no words. Each word is quoted so that one like "or" is never read as an
+     * operator.
+     */
+    static String buildMatchQuery(String text) {
+        List<String> words = getWords(text);
+        if (words.isEmpty()) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        for (String word : words) {
+            query.append(query.length() > 0 ? " " : "").append('"').append(word).append("*\"");
+        }
+        return query.toString();
+    }
+
+    /**
+     * @return the text with its surrounding white space taken off and any run of white space
+     * inside it made a single space
+     */
+    static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Finds the locations whose city name or setting has every word of the text as a prefix of
+     * one of its words.
+     *
+     * @param projection The location columns to return, null for all of them
+     * @param sortOrder  Ranked if null
+     * @param limit      The most locations to return, null for all of them
+     */
+    static Cursor query(SQLiteDatabase db, String text, String[] projection, String sortOrder,
+                        String limit) {
+        String match = buildMatchQuery(text);
+        if (match == null) {
+            // Nothing to look for, but still the columns that were asked for.
+            return db.query(LocationEntry.TABLE_NAME, projection, "0", null, null, null, null);
+        }
+        String[] args;
+        if (sortOrder == null) {
+            String normalized = normalize(text);
+            sortOrder = SQL_RANK;
+            args = new String[]{match, normalized, normalized, escapeLike(normalized) + "%"};
+        } else {
+            args = new String[]{match};
+        }
+        String sql = SQLiteQueryBuilder.buildQueryString(false, LocationEntry.TABLE_NAME,
+                projection, SQL_MATCHING_IDS, null, null, sortOrder, limit);
+        return db.rawQuery(sql, args);
+    }
+
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Build;
+
+/**
+ * A cursor over a {@link Snapshot}: a query result copied out of SQLite that never changes.
+ * Any number of cursors can share one snapshot, so handing out another one costs nothing but
+ * the cursor itself.
+ */
+class SnapshotCursor extends AbstractCursor {
+
+    /**
+     * The rows of a query result, as SQLite returned them.
+     */
+    static class Snapshot {
+        final String[] columnNames;
+        final int rowCount;
+        // Row-major; each cell is null, a Long, a Double, a String or a byte[].
+        final Object[] cells;
+        // What SQLite gives for getString on each REAL cell, which Double.toString doesn't
+        // always match; null for other cells.
+        final String[] realText;
+        // A rough count of the memory the snapshot holds on to.
+        final int sizeInBytes;
+
+        private Snapshot(String[] columnNames, int rowCount, Object[] cells, String[] realText,
+                         int sizeInBytes) {
+            this.columnNames = columnNames;
+            this.rowCount = rowCount;
+            this.cells = cells;
+            this.realText = realText;
+            this.sizeInBytes = sizeInBytes;
+        }
+
+        /**
+         * Reads every row of the cursor. The cursor is left open.
+         */
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        static Snapshot read(Cursor cursor) {
+            String[] columnNames = cursor.getColumnNames();
+            int columnCount = columnNames.length;
+            int rowCount = cursor.getCount();
+            Object[] cells = new Object[rowCount * columnCount];
+            String[] realText = new String[cells.length];
+            int size = 64 + cells.length * 8 * 2;
+
+            int cell = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < columnCount; column++, cell++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            cells[cell] = cursor.getLong(column);
+                            size += 16;
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            cells[cell] = cursor.getDouble(column);
+                            realText[cell] = cursor.getString(column);
+                            size += 16 + 40 + realText[cell].length() * 2;
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String text = cursor.getString(column);
+                            cells[cell] = text;
+                            size += 40 + text.length() * 2;
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(column);
+                            cells[cell] = blob;
+                            size += 16 + blob.length;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+            return new Snapshot(columnNames, rowCount, cells, realText, size);
+        }
+    }
+
+    private final Snapshot mSnapshot;
+
+    SnapshotCursor(Snapshot snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    private Object getCell(int column) {
+        checkPosition();
+        return mSnapshot.cells[getPosition() * mSnapshot.columnNames.length + column];
+    }
+
+    @Override
+    public int getCount() {
+        return mSnapshot.rowCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mSnapshot.columnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = getCell(column);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Double) {
+            return mSnapshot.realText[getPosition() * mSnapshot.columnNames.length + column];
+        }
+        if (value instanceof byte[]) {
+            return new String((byte[]) value);
+        }
+        return value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = getCell(column);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return (long) getDouble(column);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = getCell(column);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = getCell(column);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        return getString(column).getBytes();
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = getCell(column);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof String) {
+            return FIELD_TYPE_STRING;
+        }
+        return FIELD_TYPE_BLOB;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getCell(column) == null;
+    }
+}
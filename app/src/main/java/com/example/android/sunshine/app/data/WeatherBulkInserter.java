@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.v4.util.LongSparseArray;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes batches of weather rows for {@link WeatherProvider}, inserting new days and updating
+ * stored ones only when they differ.
+ *
+ * Rows that carry exactly the columns of a forecast day (which is what the sync sends) take a
+ * fast path: the INSERT and UPDATE statements are compiled once per batch and bound by index,
+ * the stored days of every location in the batch are read with one query up front instead of
+ * one per row, and dates are normalized with a single reused {@link Time}. Any other row goes
+ * through {@link #upsert(ContentValues)}, which works with whatever columns it is given.
+ *
+ * In fixed-point storage (see {@link WeatherFixedPoint}) the values are encoded on their way to
+ * the table, and compared with the stored days as encoded.
+ *
+ * An instance is meant for one batch, on one thread, inside the caller's transaction.
+ */
+class WeatherBulkInserter {
+
+    // The columns of a full forecast day, in the order the fast path binds them.
+    private static final String[] DAY_COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+    private static final int COL_LOC_KEY = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_SHORT_DESC = 3;
+    // Everything from COL_WEATHER_ID on, except the description, is numeric.
+    private static final int COL_WEATHER_ID = 2;
+
+    private static final String SQL_INSERT_DAY;
+    private static final String SQL_UPDATE_DAY;
+    static final String SQL_SELECT_DAYS_PREFIX;
+
+    static {
+        StringBuilder insert = new StringBuilder("INSERT INTO " + WeatherEntry.TABLE_NAME + " (");
+        StringBuilder values = new StringBuilder(") VALUES (");
+        for (int i = 0; i < DAY_COLUMNS.length; i++) {
+            insert.append(i > 0 ? ", " : "").append(DAY_COLUMNS[i]);
+            values.append(i > 0 ? ", ?" : "?");
+        }
+        SQL_INSERT_DAY = insert.append(values).append(')').toString();
+
+        // SQLite rewrites the whole record on any UPDATE, so setting every value column costs
+        // the same as setting only the ones that changed, and lets the statement be compiled
+        // once. Columns from COL_WEATHER_ID on are bound in order, then the _ID.
+        StringBuilder update = new StringBuilder("UPDATE " + WeatherEntry.TABLE_NAME + " SET ");
+        for (int i = COL_WEATHER_ID; i < DAY_COLUMNS.length; i++) {
+            update.append(i > COL_WEATHER_ID ? ", " : "").append(DAY_COLUMNS[i]).append(" = ?");
+        }
+        SQL_UPDATE_DAY = update.append(" WHERE ").append(WeatherEntry._ID).append(" = ?")
+                .toString();
+
+        StringBuilder select = new StringBuilder("SELECT ").append(WeatherEntry._ID);
+        for (String column : DAY_COLUMNS) {
+            select.append(", ").append(column);
+        }
+        SQL_SELECT_DAYS_PREFIX = select.append(" FROM ").append(WeatherEntry.TABLE_NAME)
+                .append(" WHERE ").toString();
+    }
+
+    // SQLite allows 999 bound arguments per statement.
+    private static final int MAX_DATES_PER_QUERY = 400;
+    private static final int MAX_LOCATIONS_PER_QUERY = 500;
+
+    //weather.date = ? AND weather.location_id = ?
+    static final String sWeatherDateAndLocationSelection =
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_DATE + " = ? AND " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    /**
+     * Tallies what the inserter did with the rows it was given.
+     */
+    static class Result {
+        int inserted;
+        int updated;
+        int untouched;
+        // The location_id of every row that was inserted or updated.
+        final LongSparseArray<Boolean> changedLocations = new LongSparseArray<Boolean>();
+        // Set if a row without a location_id was inserted, so the changed locations are unknown.
+        boolean changedUnknownLocation;
+
+        int changed() {
+            return inserted + updated;
+        }
+
+        @Override
+        public String toString() {
+            return inserted + " inserted, " + updated + " updated, " + untouched + " untouched";
+        }
+    }
+
+    /**
+     * A day as it is stored, for comparing against an incoming row.
+     */
+    private static class StoredDay {
+        long id;
+        String shortDesc;
+        // Indexed like DAY_COLUMNS; only the numeric value columns are filled in.
+        final double[] values = new double[DAY_COLUMNS.length];
+    }
+
+    // Marks a day that this batch has already written, so its stored copy is out of date.
+    private static final StoredDay WRITTEN_IN_BATCH = new StoredDay();
+
+    private final SQLiteDatabase mDb;
+    private final boolean mFixedPoint;
+    private final Result mResult = new Result();
+    // Reused for every row; WeatherContract.normalizeDate allocates a new one per call.
+    private final Time mTime = new Time();
+
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mUpdateStatement;
+
+    WeatherBulkInserter(SQLiteDatabase db) {
+        this(db, false);
+    }
+
+    /**
+     * @param fixedPoint Whether the weather table stores its values as fixed point
+     */
+    WeatherBulkInserter(SQLiteDatabase db, boolean fixedPoint) {
+        mDb = db;
+        mFixedPoint = fixedPoint;
+    }
+
+    Result getResult() {
+        return mResult;
+    }
+
+    /**
+     * Same result as {@link WeatherContract#normalizeDate(long)}, without the allocation.
+     */
+    long normalizeDate(long startDate) {
+        mTime.set(startDate);
+        int julianDay = Time.getJulianDay(startDate, mTime.gmtoff);
+        return mTime.setJulianDay(julianDay);
+    }
+
+    /**
+     * Writes a batch of rows. The caller owns the transaction. As with the provider's other
+     * write paths, the normalized date is written back into each row's values.
+     */
+    void bulkInsert(ContentValues[] rows) {
+        // Normalize first, so the stored days can be looked up by their real keys.
+        boolean[] fast = new boolean[rows.length];
+        LongSparseArray<Boolean> dates = new LongSparseArray<Boolean>();
+        LongSparseArray<LongSparseArray<StoredDay>> storedDays =
+                new LongSparseArray<LongSparseArray<StoredDay>>();
+        for (int i = 0; i < rows.length; i++) {
+            ContentValues row = rows[i];
+            fast[i] = isFullDay(row);
+            if (!fast[i]) {
+                continue;
+            }
+            long date = ((Number) row.get(WeatherEntry.COLUMN_DATE)).longValue();
+            long normalized = normalizeDate(date);
+            if (normalized != date) {
+                row.put(WeatherEntry.COLUMN_DATE, normalized);
+            }
+            dates.put(normalized, Boolean.TRUE);
+            long locationId = ((Number) row.get(WeatherEntry.COLUMN_LOC_KEY)).longValue();
+            if (storedDays.get(locationId) == null) {
+                storedDays.put(locationId, new LongSparseArray<StoredDay>());
+            }
+        }
+        if (storedDays.size() > 0) {
+            readStoredDays(storedDays, dates);
+        }
+
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                ContentValues row = rows[i];
+                if (!fast[i]) {
+                    Long date = row.getAsLong(WeatherEntry.COLUMN_DATE);
+                    if (date != null) {
+                        long normalized = normalizeDate(date);
+                        if (normalized != date) {
+                            row.put(WeatherEntry.COLUMN_DATE, normalized);
+                        }
+                    }
+                    upsert(row);
+                    continue;
+                }
+                long locationId = ((Number) row.get(WeatherEntry.COLUMN_LOC_KEY)).longValue();
+                long date = ((Number) row.get(WeatherEntry.COLUMN_DATE)).longValue();
+                LongSparseArray<StoredDay> daysForLocation = storedDays.get(locationId);
+                StoredDay stored = daysForLocation.get(date);
+                if (stored == null) {
+                    insertDay(row);
+                    // A batch could name the same day twice; the second one must see the first.
+                    daysForLocation.put(date, WRITTEN_IN_BATCH);
+                } else if (stored == WRITTEN_IN_BATCH) {
+                    // Fall back to the general path, which reads the day back.
+                    upsert(row);
+                } else if (isSameDay(stored, row)) {
+                    mResult.untouched++;
+                } else {
+                    updateDay(stored.id, row);
+                    daysForLocation.put(date, WRITTEN_IN_BATCH);
+                }
+            }
+        } finally {
+            if (mInsertStatement != null) {
+                mInsertStatement.close();
+                mInsertStatement = null;
+            }
+            if (mUpdateStatement != null) {
+                mUpdateStatement.close();
+                mUpdateStatement = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the row holds exactly the columns of a forecast day, with usable types
+     */
+    private static boolean isFullDay(ContentValues row) {
+        if (row.size() != DAY_COLUMNS.length) {
+            return false;
+        }
+        for (int i = 0; i < DAY_COLUMNS.length; i++) {
+            Object value = row.get(DAY_COLUMNS[i]);
+            if (i == COL_SHORT_DESC ? !(value instanceof String) : !(value instanceof Number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the stored days for every combination of the given locations and dates. Both are
+     * passed as IN lists, which SQLite turns into direct lookups on the (date, location_id)
+     * unique index instead of a scan.
+     */
+    private void readStoredDays(LongSparseArray<LongSparseArray<StoredDay>> storedDays,
+                                LongSparseArray<Boolean> dates) {
+        for (int dateStart = 0; dateStart < dates.size(); dateStart += MAX_DATES_PER_QUERY) {
+            int dateEnd = Math.min(dates.size(), dateStart + MAX_DATES_PER_QUERY);
+            for (int start = 0; start < storedDays.size(); start += MAX_LOCATIONS_PER_QUERY) {
+                int end = Math.min(storedDays.size(), start + MAX_LOCATIONS_PER_QUERY);
+                readStoredDays(storedDays, dates, dateStart, dateEnd, start, end);
+            }
+        }
+    }
+
+    private void readStoredDays(LongSparseArray<LongSparseArray<StoredDay>> storedDays,
+                                LongSparseArray<Boolean> dates, int dateStart, int dateEnd,
+                                int start, int end) {
+        String[] args = new String[dateEnd - dateStart + end - start];
+        int arg = 0;
+        StringBuilder sql = new StringBuilder(SQL_SELECT_DAYS_PREFIX)
+                .append(WeatherEntry.COLUMN_DATE).append(" IN (");
+        for (int i = dateStart; i < dateEnd; i++) {
+            sql.append(i > dateStart ? ", ?" : "?");
+            args[arg++] = Long.toString(dates.keyAt(i));
+        }
+        sql.append(") AND ").append(WeatherEntry.COLUMN_LOC_KEY).append(" IN (");
+        for (int i = start; i < end; i++) {
+            sql.append(i > start ? ", ?" : "?");
+            args[arg++] = Long.toString(storedDays.keyAt(i));
+        }
+        sql.append(')');
+
+        Cursor cursor = mDb.rawQuery(sql.toString(), args);
+        try {
+            while (cursor.moveToNext()) {
+                // Column 0 is the _ID, the day columns follow in DAY_COLUMNS order.
+                StoredDay day = new StoredDay();
+                day.id = cursor.getLong(0);
+                day.shortDesc = cursor.getString(1 + COL_SHORT_DESC);
+                for (int i = COL_WEATHER_ID; i < DAY_COLUMNS.length; i++) {
+                    if (i != COL_SHORT_DESC) {
+                        day.values[i] = cursor.getDouble(1 + i);
+                    }
+                }
+                storedDays.get(cursor.getLong(1 + COL_LOC_KEY))
+                        .put(cursor.getLong(1 + COL_DATE), day);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private boolean isSameDay(StoredDay stored, ContentValues row) {
+        if (!stored.shortDesc.equals(row.get(WeatherEntry.COLUMN_SHORT_DESC))) {
+            return false;
+        }
+        for (int i = COL_WEATHER_ID; i < DAY_COLUMNS.length; i++) {
+            if (i != COL_SHORT_DESC && stored.values[i]
+                    != ((Number) getStoredValue(i, row)).doubleValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the row's value for DAY_COLUMNS[i], as the table stores it
+     */
+    private Object getStoredValue(int i, ContentValues row) {
+        Object value = row.get(DAY_COLUMNS[i]);
+        return mFixedPoint ? WeatherFixedPoint.encodeValue(DAY_COLUMNS[i], value) : value;
+    }
+
+    private void insertDay(ContentValues row) {
+        if (mInsertStatement == null) {
+            mInsertStatement = mDb.compileStatement(SQL_INSERT_DAY);
+        }
+        SQLiteStatement statement = mInsertStatement;
+        statement.clearBindings();
+        for (int i = 0; i < DAY_COLUMNS.length; i++) {
+            bind(statement, i + 1, getStoredValue(i, row));
+        }
+        if (statement.executeInsert() != -1) {
+            mResult.inserted++;
+            addChangedLocation(row.get(WeatherEntry.COLUMN_LOC_KEY));
+        }
+    }
+
+    private void updateDay(long id, ContentValues row) {
+        if (mUpdateStatement == null) {
+            mUpdateStatement = mDb.compileStatement(SQL_UPDATE_DAY);
+        }
+        SQLiteStatement statement = mUpdateStatement;
+        statement.clearBindings();
+        int index = 1;
+        for (int i = COL_WEATHER_ID; i < DAY_COLUMNS.length; i++) {
+            bind(statement, index++, getStoredValue(i, row));
+        }
+        statement.bindLong(index, id);
+        statement.execute();
+        mResult.updated++;
+        addChangedLocation(row.get(WeatherEntry.COLUMN_LOC_KEY));
+    }
+
+    private void addChangedLocation(Object locationId) {
+        if (locationId instanceof Number) {
+            mResult.changedLocations.put(((Number) locationId).longValue(), Boolean.TRUE);
+        } else {
+            mResult.changedUnknownLocation = true;
+        }
+    }
+
+    /**
+     * Binds a value the same way SQLiteDatabase.insert would, so both paths store the same types.
+     */
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Writes one weather row, matched to the stored day on (date, location_id): a new day is
+     * inserted, a stored day only has the columns that differ updated, and an identical day is
+     * left alone. Works with any set of columns. The date must already be normalized.
+     *
+     * @return the row ID of the day, or -1 if it couldn't be written
+     */
+    long upsert(ContentValues values) {
+        if (mFixedPoint) {
+            values = WeatherFixedPoint.encode(values);
+        }
+        Long date = values.getAsLong(WeatherEntry.COLUMN_DATE);
+        Long locationId = values.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+        if (date == null || locationId == null) {
+            // Without the key there is nothing to compare against; let the table constraints
+            // decide what happens to the row.
+            long _id = mDb.insert(WeatherEntry.TABLE_NAME, null, values);
+            if (_id != -1) {
+                mResult.inserted++;
+                addChangedLocation(locationId);
+            }
+            return _id;
+        }
+
+        List<Map.Entry<String, Object>> entries =
+                new ArrayList<Map.Entry<String, Object>>(values.valueSet());
+        String[] columns = new String[entries.size() + 1];
+        columns[0] = WeatherEntry._ID;
+        for (int i = 0; i < entries.size(); i++) {
+            columns[i + 1] = entries.get(i).getKey();
+        }
+
+        Cursor existing = mDb.query(WeatherEntry.TABLE_NAME, columns,
+                sWeatherDateAndLocationSelection,
+                new String[]{Long.toString(date), Long.toString(locationId)},
+                null, null, null);
+        try {
+            if (!existing.moveToFirst()) {
+                long _id = mDb.insert(WeatherEntry.TABLE_NAME, null, values);
+                if (_id != -1) {
+                    mResult.inserted++;
+                    addChangedLocation(locationId);
+                }
+                return _id;
+            }
+
+            long _id = existing.getLong(0);
+
+            // Only write the columns that differ.
+            ContentValues changedValues = new ContentValues(values);
+            for (int i = 0; i < entries.size(); i++) {
+                Map.Entry<String, Object> entry = entries.get(i);
+                if (isSameValue(existing, i + 1, entry.getValue())) {
+                    changedValues.remove(entry.getKey());
+                }
+            }
+            if (changedValues.size() == 0) {
+                mResult.untouched++;
+                return _id;
+            }
+            mDb.update(WeatherEntry.TABLE_NAME, changedValues,
+                    WeatherEntry._ID + " = ?",
+                    new String[]{Long.toString(_id)});
+            mResult.updated++;
+            addChangedLocation(locationId);
+            return _id;
+        } finally {
+            existing.close();
+        }
+    }
+
+    /**
+     * @return true if the column at the cursor's current row already holds the value, as
+     * SQLite would store it
+     */
+    private static boolean isSameValue(Cursor cursor, int columnIndex, Object value) {
+        if (cursor.isNull(columnIndex)) {
+            return value == null;
+        }
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof Number) {
+            // REAL and INTEGER columns both compare exactly as doubles for the values we store;
+            // dates in millis are well within a double's 53 bits.
+            return cursor.getDouble(columnIndex) == ((Number) value).doubleValue();
+        }
+        if (value instanceof Boolean) {
+            return cursor.getLong(columnIndex) == (((Boolean) value) ? 1 : 0);
+        }
+        if (value instanceof byte[]) {
+            return Arrays.equals(cursor.getBlob(columnIndex), (byte[]) value);
+        }
+        return value.toString().equals(cursor.getString(columnIndex));
+    }
+}
@@ -21,6 +21,8 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.format.Time;
 
+import java.util.Locale;
+
 /**
  * Defines table and column names for the weather database.
  */
@@ -43,6 +45,8 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_ARCHIVE = "archive";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,9 +85,113 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // The cell of the spatial grid the coordinates fall in. The database keeps it up to
+        // date; anything written to it is overwritten.
+        public static final String COLUMN_GRID_CELL = "grid_cell";
+
+        // Whether the sync keeps the location up to date along with the preferred one, 1 or 0.
+        // Locations are stored with 0, so only those chosen in the settings are synced.
+        public static final String COLUMN_SYNC = "sync";
+
+        // location/near?lat=<lat>&lon=<lon>&radius_km=<km> returns the stored locations within
+        // the radius of the point, nearest first unless a sort order is given. Its selection
+        // is ignored. Besides the location's columns, its projection can ask for
+        // COLUMN_DISTANCE.
+        public static final String PATH_NEAR = "near";
+        public static final String QUERY_PARAMETER_LAT = "lat";
+        public static final String QUERY_PARAMETER_LON = "lon";
+        public static final String QUERY_PARAMETER_RADIUS = "radius_km";
+        // Distance from the point of location/near, in kilometers.
+        public static final String COLUMN_DISTANCE = "distance_km";
+
+        // location/search/<text>?limit=<n> returns the stored locations that have every word of
+        // the text as the start of a word of their city name or setting. Exact matches come
+        // first, then city names that start with the text, unless a sort order is given. Its
+        // selection is ignored.
+        public static final String PATH_SEARCH = "search";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        // A location setting made from a position rather than typed in, which the sync sends
+        // to openweathermap as coordinates: geo:<lat>,<lon>.
+        public static final String COORDINATE_SETTING_PREFIX = "geo:";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        public static Uri buildLocationNearUri(double lat, double lon, double radiusKm) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_NEAR)
+                    .appendQueryParameter(QUERY_PARAMETER_LAT, Double.toString(lat))
+                    .appendQueryParameter(QUERY_PARAMETER_LON, Double.toString(lon))
+                    .appendQueryParameter(QUERY_PARAMETER_RADIUS, Double.toString(radiusKm))
+                    .build();
+        }
+
+        public static double getLatitudeFromUri(Uri uri) {
+            return getNumberFromUri(uri, QUERY_PARAMETER_LAT);
+        }
+
+        public static double getLongitudeFromUri(Uri uri) {
+            return getNumberFromUri(uri, QUERY_PARAMETER_LON);
+        }
+
+        public static double getRadiusFromUri(Uri uri) {
+            return getNumberFromUri(uri, QUERY_PARAMETER_RADIUS);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the parameter is missing, or isn't a finite number
+         */
+        private static double getNumberFromUri(Uri uri, String parameter) {
+            String value = uri.getQueryParameter(parameter);
+            if (value == null) {
+                throw new IllegalArgumentException("No " + parameter + " given to " + uri);
+            }
+            double number;
+            try {
+                number = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad " + parameter + " given to " + uri, e);
+            }
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                throw new IllegalArgumentException("Bad " + parameter + " given to " + uri);
+            }
+            return number;
+        }
+
+        public static Uri buildLocationSearchUri(String text, int limit) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(text)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                    .build();
+        }
+
+        public static String getSearchTextFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        // Null if the URI has no limit.
+        public static String getLimitFromUri(Uri uri) {
+            return uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        }
+
+        public static String buildCoordinateSetting(double lat, double lon) {
+            // Four decimals are about 10m, closer than any forecast tells apart.
+            return String.format(Locale.US, COORDINATE_SETTING_PREFIX + "%.4f,%.4f", lat, lon);
+        }
+
+        public static boolean isCoordinateSetting(String locationSetting) {
+            return locationSetting.startsWith(COORDINATE_SETTING_PREFIX)
+                    && locationSetting.indexOf(',') > 0;
+        }
+
+        public static String getLatitudeFromSetting(String locationSetting) {
+            return locationSetting.substring(COORDINATE_SETTING_PREFIX.length(),
+                    locationSetting.indexOf(','));
+        }
+
+        public static String getLongitudeFromSetting(String locationSetting) {
+            return locationSetting.substring(locationSetting.indexOf(',') + 1);
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -126,10 +234,48 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // ContentProvider.call() method that returns a location's forecast as a ForecastSnapshot.
+        // The arg is the location setting, which is required; the extras can hold the start date
+        // and a number of days.
+        public static final String METHOD_GET_FORECAST_SNAPSHOT = "get_forecast_snapshot";
+        public static final String EXTRA_START_DATE = "start_date";
+        public static final String EXTRA_NUM_DAYS = "num_days";
+        // Key of the ForecastSnapshot in the returned Bundle.
+        public static final String EXTRA_FORECAST_SNAPSHOT = "forecast_snapshot";
+
+        // Query parameter that turns an update of CONTENT_URI into an upsert of the one day in
+        // the values, matched on date and location. The update returns 1 if the day was
+        // inserted or changed and 0 if it was already stored exactly like this, which lets a
+        // batch of them report what it wrote.
+        public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+        // Query parameter that makes a delete of CONTENT_URI move the rows it matches into the
+        // archive, instead of dropping them. The delete still returns the number of rows it
+        // took out of the weather table.
+        public static final String QUERY_PARAMETER_ARCHIVE = "archive";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        public static Uri buildWeatherUpsertUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_UPSERT, "true").build();
+        }
+
+        public static boolean isUpsertUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(QUERY_PARAMETER_UPSERT));
+        }
+
+        public static Uri buildWeatherArchivingUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_ARCHIVE, "true").build();
+        }
+
+        public static boolean isArchivingUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(QUERY_PARAMETER_ARCHIVE));
+        }
+
         /*
             Student: This is the buildWeatherLocation function you filled in.
          */
@@ -165,4 +311,145 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the hourly table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // The _ID is made up of the location and the hour, so each location's hours are stored
+        // together and in time order. The location and time columns are read out of it.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the hour, in milliseconds since the epoch. Times within an hour are stored
+        // as that hour.
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperature in the sync's units; stored in tenths of a degree.
+        public static final String COLUMN_TEMP = "temp";
+        // Stored in tenths of a hPa.
+        public static final String COLUMN_PRESSURE = "pressure";
+        // Percentage, stored as a whole number.
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Stored in tenths.
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Meteorological degrees, stored as a whole number.
+        public static final String COLUMN_DEGREES = "degrees";
+
+        // hourly/<setting>/days returns one row per day, made from that day's hours, with the
+        // same column names as the weather table: date, min, max, humidity, pressure, wind,
+        // degrees and weather_id, in date order. Its projection and sort order are ignored.
+        public static final String PATH_DAYS = "days";
+
+        // Limit hourly/<setting> and hourly/<setting>/days to a time range: start inclusive,
+        // end exclusive, both in milliseconds.
+        public static final String QUERY_PARAMETER_START = "start";
+        public static final String QUERY_PARAMETER_END = "end";
+
+        // Deleting from CONTENT_URI with this selection removes all of one location's hours.
+        // Both arguments are its location_id, so a batch can back-reference the location's
+        // insert into them, and reach the stored location even if it has another setting.
+        public static final String LOCATION_ID_SELECTION = _ID + " BETWEEN (? << "
+                + HourlyForecastStore.HOUR_BITS + ") AND ((? << " + HourlyForecastStore.HOUR_BITS
+                + ") | " + HourlyForecastStore.HOUR_MASK + ")";
+
+        // Deleting from CONTENT_URI with this selection removes every location's hours before
+        // the time in its argument, in milliseconds. The hour is the low bits of each key.
+        public static final String BEFORE_TIME_SELECTION = "(" + _ID + " & "
+                + HourlyForecastStore.HOUR_MASK + ") < CAST(? AS INTEGER) / "
+                + HourlyForecastStore.HOUR_IN_MILLIS;
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static Uri buildHourlyLocationWithRange(String locationSetting, long startTime,
+                                                       long endTime) {
+            return buildHourlyLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_START, Long.toString(startTime))
+                    .appendQueryParameter(QUERY_PARAMETER_END, Long.toString(endTime)).build();
+        }
+
+        public static Uri buildHourlyDays(String locationSetting, long startTime, long endTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).appendPath(PATH_DAYS)
+                    .appendQueryParameter(QUERY_PARAMETER_START, Long.toString(startTime))
+                    .appendQueryParameter(QUERY_PARAMETER_END, Long.toString(endTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            String start = uri.getQueryParameter(QUERY_PARAMETER_START);
+            return start == null || start.length() == 0 ? 0 : Long.parseLong(start);
+        }
+
+        public static long getEndTimeFromUri(Uri uri) {
+            String end = uri.getQueryParameter(QUERY_PARAMETER_END);
+            return end == null || end.length() == 0 ? Long.MAX_VALUE : Long.parseLong(end);
+        }
+    }
+
+    /* Inner class that defines the table contents of the archive table */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_ARCHIVE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ARCHIVE;
+
+        public static final String TABLE_NAME = "archive";
+
+        // Each row is one location's past days in one month, compressed together. The _ID is
+        // made up of the location and the month, so a location's months are stored together
+        // and in order.
+        // Number of days in the block.
+        public static final String COLUMN_DAY_COUNT = "day_count";
+        // The days, encoded and deflated; see ForecastArchive.
+        public static final String COLUMN_DATA = "data";
+
+        // CONTENT_URI queries and deletes whole blocks, as they are stored. Deleting a location
+        // deletes its blocks too.
+        // archive/<setting> returns the location's archived days with the same column names as
+        // the weather table: date, weather_id, short_desc, min, max, humidity, pressure, wind
+        // and degrees, in date order. Its projection and sort order are ignored.
+
+        // Limit archive/<setting> to a date range: start inclusive, end exclusive, both in
+        // milliseconds.
+        public static final String QUERY_PARAMETER_START = "start";
+        public static final String QUERY_PARAMETER_END = "end";
+
+        public static Uri buildArchiveLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static Uri buildArchiveLocationWithRange(String locationSetting, long startDate,
+                                                        long endDate) {
+            return buildArchiveLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_START, Long.toString(startDate))
+                    .appendQueryParameter(QUERY_PARAMETER_END, Long.toString(endDate)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartDateFromUri(Uri uri) {
+            String start = uri.getQueryParameter(QUERY_PARAMETER_START);
+            return start == null || start.length() == 0 ? 0 : Long.parseLong(start);
+        }
+
+        public static long getEndDateFromUri(Uri uri) {
+            String end = uri.getQueryParameter(QUERY_PARAMETER_END);
+            return end == null || end.length() == 0 ? Long.MAX_VALUE : Long.parseLong(end);
+        }
+    }
 }
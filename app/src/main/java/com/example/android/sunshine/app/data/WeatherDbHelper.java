@@ -15,10 +15,16 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
@@ -27,28 +33,139 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    // If you change the database schema, you must increment the database version, and add a
+    // step for it to onUpgrade.
+    private static final int DATABASE_VERSION = 9;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // The weather rows for one location, in date order. This is what the provider's
+    // weather/<location> queries join through, and it hands them the rows already sorted.
+    // The UNIQUE (date, location_id) index stays for ranges on date alone, like the retention
+    // delete of old days.
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
+    static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX " +
+            INDEX_WEATHER_LOCATION_DATE + " ON " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");";
+
+    // Create a table to hold locations.  A location consists of the string supplied in the
+    // location setting, the city name, and the latitude and longitude
+    static final String SQL_CREATE_LOCATION_TABLE =
+            "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+            LocationEntry._ID + " INTEGER PRIMARY KEY," +
+            LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+            LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+            // Filled in by the triggers onCreate adds; see LocationGrid.
+            LocationEntry.COLUMN_GRID_CELL + " INTEGER, " +
+            LocationEntry.COLUMN_SYNC + " INTEGER NOT NULL DEFAULT 0" +
+            " );";
+
+    // Let the write-ahead log grow to about 1MB (in 4KB pages) before it is checkpointed back
+    // into the database. A sync of many locations fits well inside that, so the checkpoint
+    // runs after the sync commits instead of in the middle of it.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 256;
+    // After a checkpoint, cut the log file back down to this many bytes.
+    static final long JOURNAL_SIZE_LIMIT_BYTES = 1024 * 1024;
+
+    // Whether the weather table stores its values as scaled integers; see WeatherFixedPoint.
+    private final boolean mFixedPoint;
+
     public WeatherDbHelper(Context context) {
+        this(context, context.getResources().getBoolean(R.bool.weather_fixed_point_storage));
+    }
+
+    WeatherDbHelper(Context context, boolean fixedPoint) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mFixedPoint = fixedPoint;
+        // With write-ahead logging, the sync's write transaction doesn't block the forecast
+        // list, the widgets, Muzei and the notification from reading. Each read outside a
+        // transaction is served from the framework's pool of read-only connections.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    boolean isFixedPoint() {
+        return mFixedPoint;
     }
 
     @Override
-    public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
-        final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
-                LocationEntry._ID + " INTEGER PRIMARY KEY," +
-                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
-                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
-                " );";
-
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            migrateWeatherStorage(db);
+        }
+        // Gingerbread's SQLite predates write-ahead logging.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging(db);
+        }
+        configureCheckpoints(db);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (!db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * Checkpoints are run by the connection that commits, so the settings are applied inside a
+     * transaction, which always runs on the primary (writing) connection.
+     */
+    private static void configureCheckpoints(SQLiteDatabase db) {
+        if (db.isReadOnly()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT_BYTES, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Rewrites the weather table in the storage mode this helper was created with, if it was
+     * stored in the other one. The rows keep their _IDs.
+     */
+    private void migrateWeatherStorage(SQLiteDatabase db) {
+        if (WeatherFixedPoint.isFixedPoint(db) == mFixedPoint) {
+            return;
+        }
+        final String newTable = WeatherEntry.TABLE_NAME + "_new";
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP VIEW IF EXISTS " + WeatherFixedPoint.VIEW_NAME);
+            db.execSQL(buildWeatherTableSql(newTable, mFixedPoint));
+            db.execSQL(WeatherFixedPoint.buildCopySql(
+                    WeatherEntry.TABLE_NAME, newTable, mFixedPoint));
+            db.execSQL("DROP TABLE " + WeatherEntry.TABLE_NAME);
+            db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + WeatherEntry.TABLE_NAME);
+            db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+            db.execSQL(WeatherFixedPoint.buildViewSql(mFixedPoint));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param fixedPoint Whether the values are stored as scaled INTEGERs rather than REALs
+     */
+    static String buildWeatherTableSql(String tableName, boolean fixedPoint) {
+        final String valueType = " " + WeatherFixedPoint.getValueType(fixedPoint) + " NOT NULL, ";
+        return "CREATE TABLE " + tableName + " (" +
                 // Why AutoIncrement here, and not above?
                 // Unique keys will be auto-generated in either case.  But for weather
                 // forecasting, it's reasonable to assume the user will want information
@@ -62,13 +179,13 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
                 WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
 
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MIN_TEMP + valueType +
+                WeatherEntry.COLUMN_MAX_TEMP + valueType +
 
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + valueType +
+                WeatherEntry.COLUMN_PRESSURE + valueType +
+                WeatherEntry.COLUMN_WIND_SPEED + valueType +
+                WeatherEntry.COLUMN_DEGREES + valueType +
 
                 // Set up the location column as a foreign key to location table.
                 " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
@@ -78,21 +195,106 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 // per location, it's created a UNIQUE constraint with REPLACE strategy
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+    }
 
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
-        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_INDEX);
+        // The full-text index of city names and settings; see LocationSearch.
+        sqLiteDatabase.execSQL(LocationSearch.SQL_CREATE_TABLE);
+        sqLiteDatabase.execSQL(LocationSearch.SQL_CREATE_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(LocationSearch.SQL_CREATE_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(LocationSearch.SQL_CREATE_DELETE_TRIGGER);
+        sqLiteDatabase.execSQL(buildWeatherTableSql(WeatherEntry.TABLE_NAME, mFixedPoint));
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        // Weather queries read through this, which hands back the values in the contract's
+        // units whichever way they are stored.
+        sqLiteDatabase.execSQL(WeatherFixedPoint.buildViewSql(mFixedPoint));
+
+        // The three-hourly forecast. Its _ID is the key, so it needs no index; see
+        // HourlyForecastStore for the layout.
+        sqLiteDatabase.execSQL(HourlyForecastStore.SQL_CREATE_TABLE);
+
+        // Past days, compressed by location and month; see ForecastArchive.
+        sqLiteDatabase.execSQL(ForecastArchive.SQL_CREATE_TABLE);
     }
 
+    /**
+     * Brings the schema up to date one version at a time, keeping the data. Each step only adds
+     * what its version introduced, so a database of any version since 2 runs the steps after
+     * it in order. The storage mode of the weather table isn't part of the version; onOpen
+     * converts it afterwards if it needs to.
+     *
+     * A step creates things with the same statements as onCreate. If a later version changes
+     * one of them, that step has to keep creating the old shape, and the new version's step
+     * alters it.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        if (oldVersion < 2) {
+            // Nothing is known about the schema before version 2, so it starts over.
+            dropAll(sqLiteDatabase);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        // The framework runs this inside a transaction, so an upgrade that fails part way
+        // leaves the old version as it was. Each case falls through to the next.
+        switch (oldVersion) {
+            case 2:
+                // Version 3 added the (location_id, date) index.
+                sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+            case 3:
+                // Version 4 added the three-hourly forecast.
+                sqLiteDatabase.execSQL(HourlyForecastStore.SQL_CREATE_TABLE);
+            case 4:
+                // Version 5 added the view weather queries read through. Until then the table
+                // was always stored as REALs.
+                sqLiteDatabase.execSQL(WeatherFixedPoint.buildViewSql(false));
+            case 5:
+                // Version 6 added the forecast archive.
+                sqLiteDatabase.execSQL(ForecastArchive.SQL_CREATE_TABLE);
+            case 6:
+                // Version 7 added the spatial grid over the locations.
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME
+                        + " ADD COLUMN " + LocationEntry.COLUMN_GRID_CELL + " INTEGER");
+                sqLiteDatabase.execSQL(LocationGrid.SQL_UPDATE_ALL_CELLS);
+                sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_INSERT_TRIGGER);
+                sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_UPDATE_TRIGGER);
+                sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_INDEX);
+            case 7:
+                // Version 8 added the full-text search over the locations.
+                sqLiteDatabase.execSQL(LocationSearch.SQL_CREATE_TABLE);
+                sqLiteDatabase.execSQL(LocationSearch.SQL_INDEX_ALL);
+                sqLiteDatabase.execSQL(LocationSearch.SQL_CREATE_INSERT_TRIGGER);
+                sqLiteDatabase.execSQL(LocationSearch.SQL_CREATE_UPDATE_TRIGGER);
+                sqLiteDatabase.execSQL(LocationSearch.SQL_CREATE_DELETE_TRIGGER);
+            case 8:
+                // Version 9 added the choice of which locations are synced.
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME
+                        + " ADD COLUMN " + LocationEntry.COLUMN_SYNC
+                        + " INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * An older build can't know what a newer schema holds, so it starts over. The data is only
+     * a cache of the forecast, and the next sync fetches it again.
+     */
+    @Override
+    public void onDowngrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        dropAll(sqLiteDatabase);
+        onCreate(sqLiteDatabase);
+    }
+
+    private static void dropAll(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("DROP VIEW IF EXISTS " + WeatherFixedPoint.VIEW_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationSearch.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
     }
 }
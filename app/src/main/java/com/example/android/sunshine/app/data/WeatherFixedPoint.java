@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Map;
+
+/**
+ * The fixed-point storage mode of the weather table, turned on with the
+ * weather_fixed_point_storage resource.
+ *
+ * In this mode the value columns are stored as scaled INTEGERs instead of REALs: temperatures,
+ * pressure and wind speed in hundredths, humidity and degrees as whole numbers. OWM sends none of
+ * them with more decimals than that, so a forecast is stored exactly. SQLite keeps an INTEGER in
+ * as few bytes as its value needs, where a REAL always takes eight.
+ *
+ * The conversion happens in the provider: values are scaled on the way in by
+ * {@link WeatherBulkInserter} and the provider's update, and scaled back on the way out by the
+ * {@link #VIEW_NAME} view, which every weather query reads through. Callers see the same units
+ * in either mode. The selections of updates and deletes run against the table, so in this mode
+ * they compare against the stored integers; the app only selects those on date, location and
+ * _ID.
+ */
+final class WeatherFixedPoint {
+
+    // The weather table with its values in the contract's units.
+    static final String VIEW_NAME = "weather_values";
+    // What weather queries read from. Aliasing the view to the table's name keeps qualified
+    // column names like weather._id working.
+    static final String DECODED_TABLE = VIEW_NAME + " AS " + WeatherEntry.TABLE_NAME;
+
+    // The scaled columns, and what each one is multiplied by to be stored.
+    private static final String[] SCALED_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+    private static final int[] SCALES = {100, 100, 1, 100, 100, 1};
+
+    // The rest of the table, which is stored the same way in both modes.
+    private static final String[] PLAIN_COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    private WeatherFixedPoint() {
+    }
+
+    /**
+     * @return what the column is multiplied by to be stored, or 0 if it isn't scaled
+     */
+    static int getScale(String column) {
+        for (int i = 0; i < SCALED_COLUMNS.length; i++) {
+            if (SCALED_COLUMNS[i].equals(column)) {
+                return SCALES[i];
+            }
+        }
+        return 0;
+    }
+
+    static long encode(double value, int scale) {
+        return Math.round(value * scale);
+    }
+
+    /**
+     * @return the value as the column stores it; values of other columns, and values that
+     * aren't numbers, are returned as they are
+     */
+    static Object encodeValue(String column, Object value) {
+        int scale = getScale(column);
+        if (scale == 0 || !(value instanceof Number)) {
+            return value;
+        }
+        return encode(((Number) value).doubleValue(), scale);
+    }
+
+    /**
+     * @return a copy of the values with the scaled columns encoded
+     */
+    static ContentValues encode(ContentValues values) {
+        ContentValues encoded = new ContentValues(values);
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            Object value = encodeValue(entry.getKey(), entry.getValue());
+            if (value != entry.getValue()) {
+                encoded.put(entry.getKey(), (Long) value);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * @return the SQL type of the scaled columns in the given mode
+     */
+    static String getValueType(boolean fixedPoint) {
+        return fixedPoint ? "INTEGER" : "REAL";
+    }
+
+    /**
+     * @return the statement that creates {@link #VIEW_NAME} over a table stored in the given mode
+     */
+    static String buildViewSql(boolean fixedPoint) {
+        StringBuilder sql = new StringBuilder("CREATE VIEW ").append(VIEW_NAME)
+                .append(" AS SELECT ");
+        appendPlainColumns(sql);
+        for (int i = 0; i < SCALED_COLUMNS.length; i++) {
+            sql.append(", ");
+            if (fixedPoint) {
+                sql.append(SCALED_COLUMNS[i]).append(" / ").append(SCALES[i]).append(".0 AS ");
+            }
+            sql.append(SCALED_COLUMNS[i]);
+        }
+        return sql.append(" FROM ").append(WeatherEntry.TABLE_NAME).toString();
+    }
+
+    /**
+     * @return the statement that copies every row of one weather table into another, converting
+     * the values into the other one's mode
+     */
+    static String buildCopySql(String from, String to, boolean toFixedPoint) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(to).append(" (");
+        appendPlainColumns(sql);
+        for (String column : SCALED_COLUMNS) {
+            sql.append(", ").append(column);
+        }
+        sql.append(") SELECT ");
+        appendPlainColumns(sql);
+        for (int i = 0; i < SCALED_COLUMNS.length; i++) {
+            sql.append(", ");
+            if (toFixedPoint) {
+                sql.append("CAST(ROUND(").append(SCALED_COLUMNS[i]).append(" * ")
+                        .append(SCALES[i]).append(") AS INTEGER)");
+            } else {
+                sql.append(SCALED_COLUMNS[i]).append(" / ").append(SCALES[i]).append(".0");
+            }
+        }
+        return sql.append(" FROM ").append(from).toString();
+    }
+
+    private static void appendPlainColumns(StringBuilder sql) {
+        for (int i = 0; i < PLAIN_COLUMNS.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(PLAIN_COLUMNS[i]);
+        }
+    }
+
+    /**
+     * @return true if the weather table in the database stores its values as fixed point
+     */
+    static boolean isFixedPoint(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + WeatherEntry.TABLE_NAME + ")", null);
+        try {
+            int nameColumn = cursor.getColumnIndex("name");
+            int typeColumn = cursor.getColumnIndex("type");
+            while (cursor.moveToNext()) {
+                if (SCALED_COLUMNS[0].equals(cursor.getString(nameColumn))) {
+                    return getValueType(true).equalsIgnoreCase(cursor.getString(typeColumn));
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -17,33 +17,61 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import java.util.ArrayList;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private ChangeNotificationBatcher mNotifier;
+    private final ForecastCache mForecastCache = new ForecastCache();
+    // Set while applyBatch runs on a thread, so every weather write in the batch is tallied,
+    // and notified, together.
+    private final ThreadLocal<WeatherBulkInserter> mBatchInserter =
+            new ThreadLocal<WeatherBulkInserter>();
+
+    // openweathermap gives every request for a city the same coordinates, so a location this
+    // close with the same city name is the same city.
+    static final double SAME_CITY_RADIUS_KM = 1;
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int LOCATION_NEAR = 301;
+    static final int LOCATION_SEARCH = 302;
+    static final int HOURLY = 400;
+    static final int HOURLY_WITH_LOCATION = 401;
+    static final int HOURLY_DAYS = 402;
+    static final int ARCHIVE = 500;
+    static final int ARCHIVE_WITH_LOCATION = 501;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
         
         //This is an inner join which looks like
-        //weather INNER JOIN location ON weather.location_id = location._id
+        //weather_values AS weather INNER JOIN location ON weather.location_id = location._id
+        //Reading through the view gives the values in the contract's units in either storage mode.
         sWeatherByLocationSettingQueryBuilder.setTables(
-                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                WeatherFixedPoint.DECODED_TABLE + " INNER JOIN " +
                         WeatherContract.LocationEntry.TABLE_NAME +
                         " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
@@ -51,19 +79,27 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
+    static final SQLiteQueryBuilder sHourlyQueryBuilder;
+
+    static{
+        sHourlyQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyQueryBuilder.setTables(WeatherContract.HourlyEntry.TABLE_NAME);
+        sHourlyQueryBuilder.setProjectionMap(HourlyForecastStore.sProjectionMap);
+    }
+
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
@@ -108,6 +144,90 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    /**
+     * Reads a location's hours in a time range, which is one range of the hourly table's _IDs.
+     */
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        // An unknown location comes back as -1, whose range holds no rows.
+        long locationId = findLocationId(db,
+                WeatherContract.HourlyEntry.getLocationSettingFromUri(uri));
+        return sHourlyQueryBuilder.query(db,
+                projection,
+                HourlyForecastStore.sKeyRangeSelection,
+                HourlyForecastStore.buildKeyRangeArgs(locationId,
+                        WeatherContract.HourlyEntry.getStartTimeFromUri(uri),
+                        WeatherContract.HourlyEntry.getEndTimeFromUri(uri)),
+                null,
+                null,
+                sortOrder != null ? sortOrder : WeatherContract.HourlyEntry._ID
+        );
+    }
+
+    /**
+     * Derives a location's days in a time range from its hours.
+     */
+    private Cursor getDaysFromHourly(Uri uri) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long locationId = findLocationId(db,
+                WeatherContract.HourlyEntry.getLocationSettingFromUri(uri));
+        Cursor hours = db.query(WeatherContract.HourlyEntry.TABLE_NAME,
+                HourlyForecastStore.STORED_COLUMNS,
+                HourlyForecastStore.sKeyRangeSelection,
+                HourlyForecastStore.buildKeyRangeArgs(locationId,
+                        WeatherContract.HourlyEntry.getStartTimeFromUri(uri),
+                        WeatherContract.HourlyEntry.getEndTimeFromUri(uri)),
+                null,
+                null,
+                WeatherContract.HourlyEntry._ID);
+        return HourlyForecastStore.aggregateDays(hours);
+    }
+
+    /**
+     * Reads a location's archived days in a date range.
+     */
+    private Cursor getArchiveByLocationSetting(Uri uri) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long locationId = findLocationId(db,
+                WeatherContract.ArchiveEntry.getLocationSettingFromUri(uri));
+        return ForecastArchive.query(db, locationId,
+                WeatherContract.ArchiveEntry.getStartDateFromUri(uri),
+                WeatherContract.ArchiveEntry.getEndDateFromUri(uri));
+    }
+
+    /**
+     * Answers a weather/&lt;setting&gt; query from the forecast cache, or from the database and
+     * then the cache.
+     */
+    private Cursor queryForecast(Uri uri, String[] projection, String sortOrder) {
+        if (!ForecastCache.isSupported()) {
+            return queryForecastFromDatabase(uri, projection, sortOrder);
+        }
+        String key = ForecastCache.buildKey(uri, projection, sortOrder);
+        Cursor cursor = mForecastCache.get(key);
+        if (cursor != null) {
+            return cursor;
+        }
+        long generation = mForecastCache.getGeneration();
+        cursor = queryForecastFromDatabase(uri, projection, sortOrder);
+        if (mOpenHelper.getReadableDatabase().inTransaction()) {
+            // This thread is in the middle of a write; what it reads may not be committed.
+            return cursor;
+        }
+        return mForecastCache.put(key, generation, cursor);
+    }
+
+    private Cursor queryForecastFromDatabase(Uri uri, String[] projection, String sortOrder) {
+        if (sUriMatcher.match(uri) == WEATHER_WITH_LOCATION_AND_DATE) {
+            return getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+        }
+        return getWeatherByLocationSetting(uri, projection, sortOrder);
+    }
+
+    ForecastCache getForecastCache() {
+        return mForecastCache;
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +250,18 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/"
+                + WeatherContract.LocationEntry.PATH_NEAR, LOCATION_NEAR);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/"
+                + WeatherContract.LocationEntry.PATH_SEARCH + "/*", LOCATION_SEARCH);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*/"
+                + WeatherContract.HourlyEntry.PATH_DAYS, HOURLY_DAYS);
+
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE, ARCHIVE);
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE + "/*", ARCHIVE_WITH_LOCATION);
         return matcher;
     }
 
@@ -140,6 +272,7 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        mNotifier = new ChangeNotificationBatcher(getContext().getContentResolver());
         return true;
     }
 
@@ -163,7 +296,17 @@ public class WeatherProvider extends ContentProvider {
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
+            case LOCATION_NEAR:
+            case LOCATION_SEARCH:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case HOURLY_DAYS:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case ARCHIVE:
+            case ARCHIVE_WITH_LOCATION:
+                return WeatherContract.ArchiveEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -178,19 +321,15 @@ public class WeatherProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = queryForecast(uri, projection, sortOrder);
                 break;
             }
             // "weather"
             case WEATHER: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherFixedPoint.DECODED_TABLE,
                         projection,
                         selection,
                         selectionArgs,
@@ -213,6 +352,68 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "location/near"
+            case LOCATION_NEAR: {
+                retCursor = LocationGrid.queryNear(mOpenHelper.getReadableDatabase(),
+                        WeatherContract.LocationEntry.getLatitudeFromUri(uri),
+                        WeatherContract.LocationEntry.getLongitudeFromUri(uri),
+                        WeatherContract.LocationEntry.getRadiusFromUri(uri),
+                        projection,
+                        sortOrder
+                );
+                break;
+            }
+            // "location/search/*"
+            case LOCATION_SEARCH: {
+                retCursor = LocationSearch.query(mOpenHelper.getReadableDatabase(),
+                        WeatherContract.LocationEntry.getSearchTextFromUri(uri),
+                        projection,
+                        sortOrder,
+                        WeatherContract.LocationEntry.getLimitFromUri(uri)
+                );
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = sHourlyQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly/*/days"
+            case HOURLY_DAYS: {
+                retCursor = getDaysFromHourly(uri);
+                break;
+            }
+            // "archive"
+            case ARCHIVE: {
+                // The blocks as they are stored, still compressed.
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.ArchiveEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "archive/*"
+            case ARCHIVE_WITH_LOCATION: {
+                retCursor = getArchiveByLocationSetting(uri);
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -223,6 +424,11 @@ public class WeatherProvider extends ContentProvider {
 
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
+
+        Inserting a location whose setting is already stored returns the stored row instead,
+        so a batch can look up or add a location in one operation and back-reference its ID.
+        So does inserting one that openweathermap resolved to a city already stored under
+        another setting, like a misspelling of it, so the city isn't stored and synced twice.
      */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
@@ -233,7 +439,7 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = upsertWeather(db, getWeatherInserter(db), values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
@@ -241,17 +447,32 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
-                    returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
-                else
+                long _id = findLocation(db, values);
+                if (_id == -1) {
+                    _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                    if (_id <= 0) {
+                        throw new android.database.SQLException(
+                                "Failed to insert row into " + uri);
+                    }
+                    mNotifier.notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+                }
+                returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                break;
+            }
+            case HOURLY: {
+                long _id = HourlyForecastStore.insert(db, values);
+                if (_id == -1) {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                }
+                returnUri = ContentUris.withAppendedId(
+                        WeatherContract.HourlyEntry.CONTENT_URI, _id);
+                mNotifier.notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        mForecastCache.invalidate();
         return returnUri;
     }
 
@@ -263,21 +484,106 @@ public class WeatherProvider extends ContentProvider {
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
+                boolean committed = false;
+                mNotifier.beginBatch();
+                try {
+                    db.beginTransaction();
+                    try {
+                        // Find out whose forecast is about to change while the rows are still
+                        // there.
+                        LongSparseArray<Boolean> locationIds =
+                                queryWeatherLocationIds(db, selection, selectionArgs);
+                        if (WeatherContract.WeatherEntry.isArchivingUri(uri)
+                                && ForecastArchive.archive(db, selection, selectionArgs) != 0) {
+                            mNotifier.notifyChange(WeatherContract.ArchiveEntry.CONTENT_URI);
+                        }
+                        rowsDeleted = db.delete(
+                                WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                        if (rowsDeleted != 0) {
+                            notifyWeatherChange(db, locationIds);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        mForecastCache.invalidate();
+                    }
+                    committed = true;
+                } finally {
+                    mNotifier.endBatch(committed);
+                }
+                break;
+            }
+            case LOCATION: {
+                int blocksDeleted = 0;
+                int hoursDeleted = 0;
+                db.beginTransaction();
+                try {
+                    // The archive's blocks and the hourly rows are only tied to a location by
+                    // their keys, so they are deleted along with it rather than left behind.
+                    Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                            new String[]{WeatherContract.LocationEntry._ID}, selection,
+                            selectionArgs, null, null, null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            long locationId = cursor.getLong(0);
+                            blocksDeleted += ForecastArchive.deleteLocation(db, locationId);
+                            hoursDeleted += HourlyForecastStore.deleteLocation(db, locationId);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    rowsDeleted = db.delete(
+                            WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    mForecastCache.invalidate();
+                }
+                // Because a null deletes all rows
+                if (rowsDeleted != 0) {
+                    mNotifier.notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+                }
+                if (blocksDeleted != 0) {
+                    mNotifier.notifyChange(WeatherContract.ArchiveEntry.CONTENT_URI);
+                }
+                if (hoursDeleted != 0) {
+                    mNotifier.notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
+                }
+                break;
+            }
+            case HOURLY:
                 rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    mNotifier.notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
+                }
                 break;
-            case LOCATION:
+            case ARCHIVE:
+                // Whole blocks; the selection is on their columns, not on the days in them.
                 rowsDeleted = db.delete(
-                        WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                        WeatherContract.ArchiveEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    mNotifier.notifyChange(WeatherContract.ArchiveEntry.CONTENT_URI);
+                }
                 break;
+            case HOURLY_WITH_LOCATION: {
+                // The selection is ignored; the URI's location and time range say what to delete.
+                long locationId = findLocationId(db,
+                        WeatherContract.HourlyEntry.getLocationSettingFromUri(uri));
+                rowsDeleted = db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                        HourlyForecastStore.sKeyRangeSelection,
+                        HourlyForecastStore.buildKeyRangeArgs(locationId,
+                                WeatherContract.HourlyEntry.getStartTimeFromUri(uri),
+                                WeatherContract.HourlyEntry.getEndTimeFromUri(uri)));
+                if (rowsDeleted != 0) {
+                    mNotifier.notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
+                }
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        // Because a null deletes all rows
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
         return rowsDeleted;
     }
 
@@ -297,51 +603,358 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                if (WeatherContract.WeatherEntry.isUpsertUri(uri)) {
+                    WeatherBulkInserter inserter = getWeatherInserter(db);
+                    int changed = inserter.getResult().changed();
+                    upsertWeather(db, inserter, values);
+                    rowsUpdated = inserter.getResult().changed() - changed;
+                    mForecastCache.invalidate();
+                    break;
+                }
+                boolean committed = false;
+                mNotifier.beginBatch();
+                try {
+                    db.beginTransaction();
+                    try {
+                        LongSparseArray<Boolean> locationIds =
+                                queryWeatherLocationIds(db, selection, selectionArgs);
+                        rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                                mOpenHelper.isFixedPoint()
+                                        ? WeatherFixedPoint.encode(values) : values,
+                                selection, selectionArgs);
+                        if (rowsUpdated != 0) {
+                            // Rows moved to another location change that location's forecast
+                            // too.
+                            Long newLocationId =
+                                    values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                            if (locationIds != null && newLocationId != null) {
+                                locationIds.put(newLocationId, Boolean.TRUE);
+                            }
+                            notifyWeatherChange(db, locationIds);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        mForecastCache.invalidate();
+                    }
+                    committed = true;
+                } finally {
+                    mNotifier.endBatch(committed);
+                }
                 break;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                mForecastCache.invalidate();
+                if (rowsUpdated != 0) {
+                    mNotifier.notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
         return rowsUpdated;
     }
 
+    /**
+     * Inserts or updates weather rows. Each row is matched to the stored day with the same date
+     * and location: new days are inserted, stored days are only updated if they differ, and days
+     * that haven't changed are not written at all. Their _IDs stay the same either way, and
+     * observers are only notified if something changed.
+     *
+     * @return the number of rows inserted or updated; 0 means the stored forecast already
+     * matched the values
+     */
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
-            case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
+            case WEATHER: {
+                WeatherBulkInserter inserter =
+                        new WeatherBulkInserter(db, mOpenHelper.isFixedPoint());
+                boolean committed = false;
+                mNotifier.beginBatch();
+                try {
+                    db.beginTransaction();
+                    try {
+                        inserter.bulkInsert(values);
+                        notifyWeatherChange(db, inserter.getResult());
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        mForecastCache.invalidate();
+                    }
+                    committed = true;
+                } finally {
+                    mNotifier.endBatch(committed);
+                }
+                WeatherBulkInserter.Result result = inserter.getResult();
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                    Log.d(LOG_TAG, "bulkInsert: " + result);
+                }
+                return result.changed();
+            }
+            case HOURLY: {
+                int written;
+                boolean committed = false;
+                mNotifier.beginBatch();
                 try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+                    db.beginTransaction();
+                    try {
+                        written = HourlyForecastStore.bulkInsert(db, values);
+                        if (written != 0) {
+                            mNotifier.notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
                         }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
                     }
-                    db.setTransactionSuccessful();
+                    committed = true;
                 } finally {
-                    db.endTransaction();
+                    mNotifier.endBatch(committed);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                return written;
+            }
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Applies the operations in a single transaction: either all of them are written or none
+     * are, with one commit between them. Change notifications are held until the batch is done,
+     * and the weather rows it wrote are notified once per location, as with bulkInsert.
+     *
+     * This is how a sync stores its results. Looking up or adding each location (see
+     * {@link #insert}), upserting its days with the location's ID back-referenced into them,
+     * and deleting the days that have passed would otherwise be a commit each.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (mBatchInserter.get() != null) {
+            // A batch applied from inside another one already shares its transaction.
+            return super.applyBatch(operations);
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        WeatherBulkInserter inserter = new WeatherBulkInserter(db, mOpenHelper.isFixedPoint());
+        boolean committed = false;
+        mNotifier.beginBatch();
+        try {
+            ContentProviderResult[] results;
+            db.beginTransaction();
+            try {
+                mBatchInserter.set(inserter);
+                results = super.applyBatch(operations);
+                notifyWeatherChange(db, inserter.getResult());
+                db.setTransactionSuccessful();
+            } finally {
+                mBatchInserter.remove();
+                db.endTransaction();
+                mForecastCache.invalidate();
+            }
+            committed = true;
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                Log.d(LOG_TAG, "applyBatch: " + operations.size() + " operations, weather "
+                        + inserter.getResult());
+            }
+            return results;
+        } finally {
+            mNotifier.endBatch(committed);
+        }
+    }
+
+    /**
+     * @return the inserter of the batch running on this thread, or a new one for a single write
+     */
+    private WeatherBulkInserter getWeatherInserter(SQLiteDatabase db) {
+        WeatherBulkInserter inserter = mBatchInserter.get();
+        return inserter != null
+                ? inserter : new WeatherBulkInserter(db, mOpenHelper.isFixedPoint());
+    }
+
+    /**
+     * Writes one weather row through {@link WeatherBulkInserter#upsert}. Outside a batch its
+     * observers are notified here; inside one, once the batch is done.
+     *
+     * @param inserter What {@link #getWeatherInserter} returned
+     *
+     * @return the row ID of the day, or -1 if it couldn't be written
+     */
+    private long upsertWeather(SQLiteDatabase db, WeatherBulkInserter inserter,
+                               ContentValues values) {
+        long _id = inserter.upsert(values);
+        if (inserter != mBatchInserter.get()) {
+            // Nothing is sent if the day was already stored exactly like this.
+            notifyWeatherChange(db, inserter.getResult());
+        }
+        return _id;
+    }
+
+    /**
+     * @return the _ID of the stored location with the same setting as the values, or else of
+     * the one with the same city name at the same place, or -1
+     */
+    private static long findLocation(SQLiteDatabase db, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            return -1;
+        }
+        long locationId = findLocationId(db, locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        String cityName = values.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME);
+        Double lat = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        Double lon = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        if (cityName == null || lat == null || lon == null) {
+            return -1;
+        }
+        Cursor cursor = LocationGrid.queryNear(db, lat, lon, SAME_CITY_RADIUS_KM,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_NAME}, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cityName.equalsIgnoreCase(cursor.getString(1))) {
+                    return cursor.getLong(0);
+                }
+            }
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the _ID of the location with the given setting, or -1 if it isn't stored
+     */
+    private static long findLocationId(SQLiteDatabase db, String locationSetting) {
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Handles {@link WeatherContract.WeatherEntry#METHOD_GET_FORECAST_SNAPSHOT}, which reads a
+     * location's forecast through the same cache as a weather/&lt;setting&gt; query but hands it
+     * back as one parcelable, rather than a cursor its caller has to walk.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!WeatherContract.WeatherEntry.METHOD_GET_FORECAST_SNAPSHOT.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        if (arg == null) {
+            throw new IllegalArgumentException("No location setting given to " + method);
+        }
+        long startDate = 0;
+        int numDays = Integer.MAX_VALUE;
+        if (extras != null) {
+            startDate = extras.getLong(WeatherContract.WeatherEntry.EXTRA_START_DATE, 0);
+            numDays = extras.getInt(WeatherContract.WeatherEntry.EXTRA_NUM_DAYS, numDays);
+        }
+        Uri uri = startDate == 0
+                ? WeatherContract.WeatherEntry.buildWeatherLocation(arg)
+                : WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(arg, startDate);
+
+        ForecastSnapshot snapshot;
+        Cursor cursor = queryForecast(uri, ForecastSnapshot.COLUMNS,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            snapshot = ForecastSnapshot.fromCursor(arg, cursor, numDays);
+        } finally {
+            cursor.close();
+        }
+        Bundle result = new Bundle();
+        result.putParcelable(WeatherContract.WeatherEntry.EXTRA_FORECAST_SNAPSHOT, snapshot);
+        return result;
+    }
+
+    /**
+     * @return the location_id of every weather row the selection matches, or null if it matches
+     * the whole table
+     */
+    private static LongSparseArray<Boolean> queryWeatherLocationIds(
+            SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (selection == null || "1".equals(selection)) {
+            return null;
+        }
+        LongSparseArray<Boolean> locationIds = new LongSparseArray<Boolean>();
+        Cursor cursor = db.query(true, WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                locationIds.put(cursor.getLong(0), Boolean.TRUE);
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationIds;
+    }
+
+    private void notifyWeatherChange(SQLiteDatabase db, WeatherBulkInserter.Result result) {
+        if (result.changed() == 0) {
+            return;
+        }
+        notifyWeatherChange(db, result.changedUnknownLocation ? null : result.changedLocations);
+    }
+
+    /**
+     * Tells the observers of weather/&lt;setting&gt; for each of the given locations that their
+     * forecast changed, and only them. Observers of other locations don't have to reload.
+     *
+     * @param locationIds The locations whose weather rows changed, or null if that isn't known,
+     *                    in which case every weather observer is told
+     */
+    private void notifyWeatherChange(SQLiteDatabase db, LongSparseArray<Boolean> locationIds) {
+        if (locationIds == null) {
+            mNotifier.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+            return;
+        }
+        if (locationIds.size() == 0) {
+            return;
+        }
+
+        StringBuilder selection = new StringBuilder(WeatherContract.LocationEntry._ID)
+                .append(" IN (");
+        String[] selectionArgs = new String[locationIds.size()];
+        for (int i = 0; i < locationIds.size(); i++) {
+            selection.append(i > 0 ? ", ?" : "?");
+            selectionArgs[i] = Long.toString(locationIds.keyAt(i));
+        }
+        selection.append(')');
+
+        int found = 0;
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                selection.toString(), selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                mNotifier.notifyChange(
+                        WeatherContract.WeatherEntry.buildWeatherLocation(cursor.getString(0)));
+                found++;
+            }
+        } finally {
+            cursor.close();
+        }
+        if (found < locationIds.size()) {
+            // Rows for a location we don't know the setting of; fall back to telling everyone.
+            mNotifier.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -23,6 +23,7 @@ import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 import com.google.android.apps.muzei.api.Artwork;
 import com.google.android.apps.muzei.api.MuzeiArtSource;
 
@@ -52,6 +53,19 @@ public class WeatherMuzeiSource extends MuzeiArtSource {
         }
     }
 
+    @Override
+    protected void onEnabled() {
+        super.onEnabled();
+        // The wallpaper shows the forecast all day, so the sync scheduler keeps it fresher.
+        SyncScheduler.setMuzeiEnabled(this, true);
+    }
+
+    @Override
+    protected void onDisabled() {
+        super.onDisabled();
+        SyncScheduler.setMuzeiEnabled(this, false);
+    }
+
     @Override
     protected void onUpdate(int reason) {
         String location = Utility.getPreferredLocation(this);
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The HTTP side of the forecast sync. Every request asks for a gzip-compressed body, has
+ * connect and read timeouts so a stalled server can't hold the sync forever, and leaves the
+ * connection in HttpURLConnection's keep-alive pool when it's done, so syncing several
+ * locations in a row only pays for one TCP handshake.
+ *
+ * Compression is negotiated by hand rather than left to HttpURLConnection: once it handles gzip
+ * transparently it hides both the Content-Encoding and the compressed length, and we want to
+ * know how many bytes actually went over the wire.
+ */
+class ForecastHttpClient {
+    private static final String LOG_TAG = ForecastHttpClient.class.getSimpleName();
+
+    static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 15 * 1000;
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+
+    private final AtomicLong mTotalWireBytes = new AtomicLong();
+    private final AtomicLong mTotalDecodedBytes = new AtomicLong();
+
+    /**
+     * Sends a GET for the given URL.
+     *
+     * @param url The forecast URL
+     * @param validators If not null, the request is made conditional on the validators this
+     *                   cache holds for the URL
+     * @return the response, which must be closed once the body has been read
+     */
+    Response get(URL url, ForecastValidatorCache validators) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        try {
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+            if (validators != null) {
+                validators.addValidators(urlConnection, url.toString());
+            }
+            urlConnection.connect();
+            return new Response(url, urlConnection, start);
+        } catch (IOException e) {
+            // The connection is in an unknown state, so make sure it isn't reused.
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of response bytes received over the wire since this client was created
+     */
+    long getTotalWireBytes() {
+        return mTotalWireBytes.get();
+    }
+
+    /**
+     * @return the number of response bytes after decompression since this client was created
+     */
+    long getTotalDecodedBytes() {
+        return mTotalDecodedBytes.get();
+    }
+
+    /**
+     * A response whose body is decompressed on the fly. Closing it reads whatever is left of the
+     * body so the underlying connection can go back to the keep-alive pool.
+     */
+    class Response implements Closeable {
+        private final URL mUrl;
+        private final HttpURLConnection mConnection;
+        private final long mStartMillis;
+        private final int mResponseCode;
+        private final CountingInputStream mWireStream;
+        private final CountingInputStream mDecodedStream;
+        private boolean mClosed;
+
+        private Response(URL url, HttpURLConnection connection, long startMillis)
+                throws IOException {
+            mUrl = url;
+            mConnection = connection;
+            mStartMillis = startMillis;
+            mResponseCode = connection.getResponseCode();
+
+            InputStream raw;
+            if (mResponseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                // The error body still has to be read for the connection to be reused.
+                raw = connection.getErrorStream();
+            } else {
+                raw = connection.getInputStream();
+            }
+            if (raw == null) {
+                raw = new ByteArrayInputStream(new byte[0]);
+            }
+            mWireStream = new CountingInputStream(raw);
+
+            InputStream decoded = mWireStream;
+            if (ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding())
+                    && mayHaveBody(connection, mResponseCode)) {
+                // GZIPInputStream reads the gzip header at once, and throws on an empty body,
+                // which some servers send marked as gzip all the same.
+                PushbackInputStream body = new PushbackInputStream(mWireStream);
+                int first = body.read();
+                if (first == -1) {
+                    decoded = body;
+                } else {
+                    body.unread(first);
+                    decoded = new GZIPInputStream(body);
+                }
+            }
+            mDecodedStream = new CountingInputStream(decoded);
+        }
+
+        /**
+         * @return false if the response can't have a body, whatever its headers say
+         */
+        private boolean mayHaveBody(HttpURLConnection connection, int responseCode) {
+            return !"HEAD".equals(connection.getRequestMethod())
+                    && responseCode >= HttpURLConnection.HTTP_OK
+                    && responseCode != HttpURLConnection.HTTP_NO_CONTENT
+                    && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED
+                    && connection.getContentLength() != 0;
+        }
+
+        int getResponseCode() {
+            return mResponseCode;
+        }
+
+        String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return the decompressed body
+         */
+        InputStream getBody() {
+            return mDecodedStream;
+        }
+
+        /**
+         * @return the number of body bytes read off the wire so far
+         */
+        long getWireBytes() {
+            return mWireStream.getCount();
+        }
+
+        /**
+         * @return the number of decompressed body bytes read so far
+         */
+        long getDecodedBytes() {
+            return mDecodedStream.getCount();
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                // Only a fully consumed body lets HttpURLConnection reuse the socket.
+                byte[] buffer = new byte[4096];
+                while (mDecodedStream.read(buffer) != -1) {
+                    // Discard
+                }
+                mDecodedStream.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error draining response, dropping the connection", e);
+                mConnection.disconnect();
+            }
+
+            mTotalWireBytes.addAndGet(getWireBytes());
+            mTotalDecodedBytes.addAndGet(getDecodedBytes());
+            Log.d(LOG_TAG, "GET " + mUrl.getPath() + " " + mResponseCode + ": "
+                    + getWireBytes() + " bytes on the wire, " + getDecodedBytes()
+                    + " decoded, " + (SystemClock.elapsedRealtime() - mStartMillis) + " ms");
+        }
+    }
+
+    /**
+     * Counts the bytes that pass through it.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            // Resetting would make us count the same bytes twice.
+            return false;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.os.Build;
+import android.text.format.Time;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/**
+ * Turns an OpenWeatherMap daily forecast response into weather {@link ContentValues}.
+ *
+ * There are two ways in: the original org.json path, which needs the whole response as a String
+ * and builds a complete object tree before anything is extracted, and a pull-based path on top of
+ * {@link JsonReader} which reads straight from the network stream and fills in each day's values
+ * as soon as they go by.  The streaming path is the one to use on Honeycomb and above; the tree
+ * path is kept for Gingerbread, where JsonReader isn't available.
+ *
+ * The weather values returned don't carry a location key, since the location row is only known
+ * once the "city" object has been read (and that can come after the "list" array).
+ */
+public class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // The three-hourly forecast's own names. Each entry keeps its temperature, pressure and
+    // humidity in a "main" object, and its wind in a "wind" object.
+    static final String OWM_TIME = "dt";
+    static final String OWM_MAIN = "main";
+    static final String OWM_WIND = "wind";
+
+    // Every day read from the stream has to provide all of these, just like the org.json path
+    // (which throws as soon as one of them is missing).
+    private static final String[] REQUIRED_DAY_COLUMNS = {
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    // Every hour read from the stream has to provide all of these.
+    private static final String[] REQUIRED_HOUR_COLUMNS = {
+            HourlyEntry.COLUMN_TIME,
+            HourlyEntry.COLUMN_TEMP,
+            HourlyEntry.COLUMN_PRESSURE,
+            HourlyEntry.COLUMN_HUMIDITY,
+            HourlyEntry.COLUMN_WIND_SPEED,
+            HourlyEntry.COLUMN_DEGREES,
+            HourlyEntry.COLUMN_WEATHER_ID
+    };
+
+    /**
+     * Everything the sync adapter needs out of a forecast response.
+     */
+    public static class Forecast {
+        // The "cod" value of the response, HTTP_OK if the response didn't carry one.
+        public int messageCode = HttpURLConnection.HTTP_OK;
+        public String cityName;
+        public double cityLatitude;
+        public double cityLongitude;
+        // One entry per day, in order, without the location key.
+        public final ArrayList<ContentValues> days = new ArrayList<ContentValues>(16);
+
+        boolean hasCity;
+        boolean hasList;
+    }
+
+    /**
+     * Take the String representing the complete forecast in JSON Format and
+     * pull out the data we need to construct the Strings needed for the wireframes.
+     *
+     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
+     * into an Object hierarchy for us.
+     *
+     * @param forecastJsonStr The complete response body
+     * @param julianStartDay The Julian day of the first forecast in the response
+     */
+    public static Forecast parse(String forecastJsonStr, int julianStartDay)
+            throws JSONException {
+        Forecast forecast = new Forecast();
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
+            forecast.messageCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (forecast.messageCode != HttpURLConnection.HTTP_OK) {
+                return forecast;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        forecast.cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        forecast.cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+        forecast.cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+        forecast.hasCity = true;
+
+        // we work exclusively in UTC
+        Time dayTime = new Time();
+
+        for(int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            ContentValues weatherValues = new ContentValues();
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            weatherValues.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(julianStartDay + i));
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, dayForecast.getInt(OWM_HUMIDITY));
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, dayForecast.getDouble(OWM_PRESSURE));
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, dayForecast.getDouble(OWM_WINDSPEED));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, dayForecast.getDouble(OWM_WIND_DIRECTION));
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, temperatureObject.getDouble(OWM_MAX));
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, temperatureObject.getDouble(OWM_MIN));
+
+            // Description is in a child array called "weather", which is 1 element long.
+            // That element also contains a weather code.
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, weatherObject.getString(OWM_DESCRIPTION));
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherObject.getInt(OWM_WEATHER_ID));
+
+            forecast.days.add(weatherValues);
+        }
+        forecast.hasList = true;
+        return forecast;
+    }
+
+    /**
+     * Pull-parses the forecast straight off a character stream, without ever holding the whole
+     * response or an object tree for it.  Each day's {@link ContentValues} is built while its
+     * object is being read.
+     *
+     * @param in The response body.  It is not closed here.
+     * @param julianStartDay The Julian day of the first forecast in the response
+     * @throws MalformedJsonException if the response isn't a forecast we understand
+     * @throws IOException if the stream fails, or ends before the response is complete
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static Forecast parse(Reader in, int julianStartDay) throws IOException {
+        Forecast forecast = new Forecast();
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    // OWM sends this as a string on success and as a number on some errors.
+                    // nextInt() copes with both.
+                    forecast.messageCode = reader.nextInt();
+                    if (forecast.messageCode != HttpURLConnection.HTTP_OK) {
+                        // Same as the tree path: an error code means there's nothing else
+                        // worth reading.
+                        return forecast;
+                    }
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, forecast);
+                } else if (OWM_LIST.equals(name)) {
+                    readDays(reader, forecast, julianStartDay);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports a value of the wrong type this way.
+            throw new MalformedJsonException(e.getMessage());
+        }
+
+        if (!forecast.hasList || !forecast.hasCity) {
+            throw new MalformedJsonException("Forecast is missing its city or list");
+        }
+        return forecast;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Forecast forecast) throws IOException {
+        boolean hasLatitude = false;
+        boolean hasLongitude = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                forecast.cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        forecast.cityLatitude = reader.nextDouble();
+                        hasLatitude = true;
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        forecast.cityLongitude = reader.nextDouble();
+                        hasLongitude = true;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        forecast.hasCity = forecast.cityName != null && hasLatitude && hasLongitude;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readDays(JsonReader reader, Forecast forecast, int julianStartDay)
+            throws IOException {
+        // we work exclusively in UTC
+        Time dayTime = new Time();
+
+        reader.beginArray();
+        for (int i = 0; reader.hasNext(); i++) {
+            ContentValues weatherValues = new ContentValues();
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            weatherValues.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(julianStartDay + i));
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_PRESSURE.equals(name)) {
+                    weatherValues.put(WeatherEntry.COLUMN_PRESSURE, reader.nextDouble());
+                } else if (OWM_HUMIDITY.equals(name)) {
+                    // getInt() in the tree path truncates, so do the same here.
+                    weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, (int) reader.nextDouble());
+                } else if (OWM_WINDSPEED.equals(name)) {
+                    weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, reader.nextDouble());
+                } else if (OWM_WIND_DIRECTION.equals(name)) {
+                    weatherValues.put(WeatherEntry.COLUMN_DEGREES, reader.nextDouble());
+                } else if (OWM_TEMPERATURE.equals(name)) {
+                    readTemperatures(reader, weatherValues);
+                } else if (OWM_WEATHER.equals(name)) {
+                    readWeather(reader, weatherValues);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            for (String column : REQUIRED_DAY_COLUMNS) {
+                if (!weatherValues.containsKey(column)) {
+                    throw new MalformedJsonException("Day " + i + " has no " + column);
+                }
+            }
+            forecast.days.add(weatherValues);
+        }
+        reader.endArray();
+        forecast.hasList = true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readTemperatures(JsonReader reader, ContentValues weatherValues)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MAX.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, reader.nextDouble());
+            } else if (OWM_MIN.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, reader.nextDouble());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readWeather(JsonReader reader, ContentValues weatherValues)
+            throws IOException {
+        // Description is in a child array called "weather".  Only its first element is used;
+        // that element also contains a weather code.
+        reader.beginArray();
+        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, reader.nextString());
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, reader.nextInt());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Pull-parses an OpenWeatherMap three-hourly forecast response into hourly
+     * {@link ContentValues}, without the location key. Only the "list" is read; the city is the
+     * same one the daily forecast already named.
+     *
+     * @param in The response body.  It is not closed here.
+     * @return the hours in order, or an empty list if the response carries an error code
+     * @throws MalformedJsonException if the response isn't a forecast we understand
+     * @throws IOException if the stream fails, or ends before the response is complete
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static ArrayList<ContentValues> parseHourly(Reader in) throws IOException {
+        ArrayList<ContentValues> hours = new ArrayList<ContentValues>(40);
+        boolean hasList = false;
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    if (reader.nextInt() != HttpURLConnection.HTTP_OK) {
+                        hours.clear();
+                        return hours;
+                    }
+                } else if (OWM_LIST.equals(name)) {
+                    readHours(reader, hours);
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+
+        if (!hasList) {
+            throw new MalformedJsonException("Hourly forecast is missing its list");
+        }
+        return hours;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readHours(JsonReader reader, ArrayList<ContentValues> hours)
+            throws IOException {
+        reader.beginArray();
+        for (int i = 0; reader.hasNext(); i++) {
+            ContentValues hourValues = new ContentValues();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_TIME.equals(name)) {
+                    // OWM sends seconds since the epoch.
+                    hourValues.put(HourlyEntry.COLUMN_TIME, reader.nextLong() * 1000);
+                } else if (OWM_MAIN.equals(name)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String mainName = reader.nextName();
+                        if (OWM_TEMPERATURE.equals(mainName)) {
+                            hourValues.put(HourlyEntry.COLUMN_TEMP, reader.nextDouble());
+                        } else if (OWM_PRESSURE.equals(mainName)) {
+                            hourValues.put(HourlyEntry.COLUMN_PRESSURE, reader.nextDouble());
+                        } else if (OWM_HUMIDITY.equals(mainName)) {
+                            hourValues.put(HourlyEntry.COLUMN_HUMIDITY, reader.nextDouble());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else if (OWM_WIND.equals(name)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String windName = reader.nextName();
+                        if (OWM_WINDSPEED.equals(windName)) {
+                            hourValues.put(HourlyEntry.COLUMN_WIND_SPEED, reader.nextDouble());
+                        } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                            hourValues.put(HourlyEntry.COLUMN_DEGREES, reader.nextDouble());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else if (OWM_WEATHER.equals(name)) {
+                    readWeather(reader, hourValues);
+                    // The hourly table goes by the weather id alone.
+                    hourValues.remove(WeatherEntry.COLUMN_SHORT_DESC);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            for (String column : REQUIRED_HOUR_COLUMNS) {
+                if (!hourValues.containsKey(column)) {
+                    throw new MalformedJsonException("Hour " + i + " has no " + column);
+                }
+            }
+            hours.add(hourValues);
+        }
+        reader.endArray();
+    }
+}
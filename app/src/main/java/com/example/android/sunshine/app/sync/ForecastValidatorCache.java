@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Remembers the HTTP validators (ETag and Last-Modified) of the last forecast we stored for each
+ * request URL, so the next sync can ask the server whether anything changed instead of
+ * downloading and parsing the whole forecast again.
+ *
+ * The validators are kept in their own preferences file, keyed by the full forecast URL, so a
+ * change of location or units never reuses validators from a different response.
+ */
+class ForecastValidatorCache {
+    private static final String PREFS_NAME = "forecast_validators";
+
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String SUFFIX_ETAG = "#etag";
+    private static final String SUFFIX_LAST_MODIFIED = "#last_modified";
+
+    private final SharedPreferences mPrefs;
+
+    ForecastValidatorCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds the conditional request headers for the given URL, if we have validators for it.
+     * Must be called before the connection is opened.
+     *
+     * @return true if the request was made conditional
+     */
+    boolean addValidators(HttpURLConnection urlConnection, String url) {
+        String eTag = mPrefs.getString(url + SUFFIX_ETAG, null);
+        String lastModified = mPrefs.getString(url + SUFFIX_LAST_MODIFIED, null);
+        if (eTag != null) {
+            urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, eTag);
+        }
+        if (lastModified != null) {
+            // Echo the server's own date string back rather than re-formatting it.
+            urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+        return eTag != null || lastModified != null;
+    }
+
+    /**
+     * Remembers the validators of a response whose body has been stored. Validators the server
+     * no longer sends (passed as null) are dropped.
+     */
+    void storeValidators(String url, String eTag, String lastModified) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        putOrRemove(editor, url + SUFFIX_ETAG, eTag);
+        putOrRemove(editor, url + SUFFIX_LAST_MODIFIED, lastModified);
+        editor.commit();
+    }
+
+    /**
+     * Forgets the validators for the given URL, so the next request downloads the full forecast.
+     */
+    void clearValidators(String url) {
+        mPrefs.edit()
+                .remove(url + SUFFIX_ETAG)
+                .remove(url + SUFFIX_LAST_MODIFIED)
+                .commit();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value != null) {
+            editor.putString(key, value);
+        } else {
+            editor.remove(key);
+        }
+    }
+}
@@ -3,15 +3,19 @@ package com.example.android.sunshine.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,35 +26,47 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.text.format.Time;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
 import com.bumptech.glide.Glide;
 import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.CityGazetteer;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -62,6 +78,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // Most forecast downloads to run at once when several locations are synced.
+    static final int MAX_SYNC_THREADS = 4;
 
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
@@ -87,8 +105,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    private final ForecastHttpClient mHttpClient;
+    private final ForecastValidatorCache mValidatorCache;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mHttpClient = new ForecastHttpClient();
+        mValidatorCache = new ForecastValidatorCache(context);
     }
 
     @Override
@@ -96,265 +119,579 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         Log.d(LOG_TAG, "Starting sync");
         String locationQuery = Utility.getPreferredLocation(getContext());
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        // The preferred location goes first: its result is the one reported through the
+        // location status.
+        Map<String, URL> locations = new LinkedHashMap<String, URL>();
+        CityGazetteer gazetteer = CityGazetteer.getInstance(getContext());
+        try {
+            locations.put(locationQuery, buildForecastUrl(locationQuery, gazetteer));
+            for (String syncedLocation : getSyncedLocations()) {
+                if (!locations.containsKey(syncedLocation)) {
+                    locations.put(syncedLocation, buildForecastUrl(syncedLocation, gazetteer));
+                }
+            }
+        } catch (MalformedURLException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            syncResult.stats.numParseExceptions++;
+            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            return;
+        }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        // Every location that failed is in the sync result, whichever one it was.
+        int rowsChanged = syncForecasts(locations, MAX_SYNC_THREADS, syncResult);
+        if (syncResult.hasError()) {
+            SyncScheduler.onSyncFailed(getContext());
+        } else {
+            SyncScheduler.onSyncFinished(getContext(), rowsChanged);
+        }
+    }
 
+    private static URL buildForecastUrl(String locationQuery, CityGazetteer gazetteer)
+            throws MalformedURLException {
         String format = "json";
         String units = "metric";
         int numDays = 14;
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String FORECAST_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/forecast/daily?";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri builtUri = appendLocationQuery(Uri.parse(FORECAST_BASE_URL).buildUpon(),
+                locationQuery, gazetteer)
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+    /**
+     * Asks for the location by the name or postal code in its setting, by coordinates for a
+     * setting made from a position, or by ID for a "name,CC" setting of a city in the
+     * gazetteer, which spares the server guessing which of several cities of that name it is.
+     */
+    private static Uri.Builder appendLocationQuery(Uri.Builder builder, String locationQuery,
+                                                   CityGazetteer gazetteer) {
+        final String QUERY_PARAM = "q";
+        final String LAT_PARAM = "lat";
+        final String LON_PARAM = "lon";
+        final String ID_PARAM = "id";
+
+        if (WeatherContract.LocationEntry.isCoordinateSetting(locationQuery)) {
+            return builder
+                    .appendQueryParameter(LAT_PARAM,
+                            WeatherContract.LocationEntry.getLatitudeFromSetting(locationQuery))
+                    .appendQueryParameter(LON_PARAM,
+                            WeatherContract.LocationEntry.getLongitudeFromSetting(locationQuery));
+        }
+        if (gazetteer != null) {
+            CityGazetteer.City city = gazetteer.findBySetting(locationQuery);
+            if (city != null && city.getLocationSetting().equalsIgnoreCase(locationQuery)) {
+                return builder.appendQueryParameter(ID_PARAM, Integer.toString(city.cityId));
             }
         }
-        return;
+        return builder.appendQueryParameter(QUERY_PARAM, locationQuery);
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return the URL of the three-hourly forecast for a location, in the same units as the
+     * daily one
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    private static URL buildHourlyForecastUrl(String locationQuery, CityGazetteer gazetteer)
+            throws MalformedURLException {
+        final String FORECAST_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/forecast?";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String APPID_PARAM = "APPID";
+
+        Uri builtUri = appendLocationQuery(Uri.parse(FORECAST_BASE_URL).buildUpon(),
+                locationQuery, gazetteer)
+                .appendQueryParameter(FORMAT_PARAM, "json")
+                .appendQueryParameter(UNITS_PARAM, "metric")
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+    /**
+     * @return the location setting of every stored location chosen to be synced
+     */
+    private List<String> getSyncedLocations() {
+        List<String> locations = new ArrayList<String>();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry.COLUMN_SYNC + " = 1", null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                locations.add(cursor.getString(0));
+            }
+            cursor.close();
+        }
+        return locations;
+    }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+    /**
+     * Syncs a single location. See {@link #syncForecasts(Map, int, SyncResult)}.
+     */
+    int syncForecast(String locationQuery, URL url) {
+        return syncForecasts(Collections.singletonMap(locationQuery, url), 1);
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * Syncs the locations without reporting their failures anywhere but the location status
+     * and the log. See {@link #syncForecasts(Map, int, SyncResult)}.
+     */
+    int syncForecasts(Map<String, URL> locations, int maxThreads) {
+        return syncForecasts(locations, maxThreads, new SyncResult());
+    }
 
-        final String OWM_MESSAGE_CODE = "cod";
+    /**
+     * Downloads and stores the forecasts of several locations. The downloads and parsing run on
+     * up to maxThreads threads; the results are then written from this thread in one
+     * applyBatch: each location is looked up or added, its days are upserted with its ID
+     * back-referenced into them, and the days that have passed are deleted, all in a single
+     * provider transaction that triggers one change notification per location, one widget
+     * broadcast and one Muzei update.
+     *
+     * When the three-hourly forecast is turned on, each location that came back with a new daily
+     * forecast has its three-hourly one downloaded too, and its stored hours are replaced by the
+     * new ones in the same batch.
+     *
+     * If we still have a forecast for a location, its request is made conditional on the
+     * validators of the response we last stored, and a 304 from the server leaves that location
+     * alone. If every location comes back unchanged, nothing is written at all.
+     *
+     * @param locations The forecast URL for each location setting. The location status is set
+     *                  from the result of the first one.
+     * @param maxThreads The most downloads to run at once
+     * @param syncResult Has a failure counted in its stats for every location that failed: an
+     *                   I/O error for one that couldn't be downloaded or stored, a parse error for
+     *                   one the server didn't know or sent something unusable for
+     * @return the number of forecast rows the provider wrote, 0 if nothing changed or every
+     * request failed
+     */
+    int syncForecasts(Map<String, URL> locations, int maxThreads, SyncResult syncResult) {
+        if (locations.isEmpty()) {
+            return 0;
+        }
+        long startMillis = SystemClock.elapsedRealtime();
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        // The hourly forecast is read with JsonReader, so it isn't offered before Honeycomb.
+        boolean syncHourly = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Utility.isSyncHourly(getContext());
+        List<FetchResult> results =
+                fetchForecasts(locations, julianStartDay, syncHourly, maxThreads);
+
+        // Everything from here on touches the database, so it stays on this thread.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        // The positions of the day upserts, the only operations whose counts are forecast rows.
+        BitSet dayOperations = new BitSet();
+        int days = 0;
+        int notModified = 0;
+        for (FetchResult result : results) {
+            if (result.notModified) {
+                notModified++;
+            }
+            if (result.forecast == null) {
+                continue;
+            }
+            switch (result.forecast.messageCode) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    result.status = LOCATION_STATUS_INVALID;
+                    continue;
+                default:
+                    result.status = LOCATION_STATUS_SERVER_DOWN;
+                    continue;
+            }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+            int locationOperation = operations.size();
+            result.locationOperation = locationOperation;
+            operations.add(buildLocationOperation(result.locationSetting,
+                    result.forecast.cityName, result.forecast.cityLatitude,
+                    result.forecast.cityLongitude));
+            for (ContentValues weatherValues : result.forecast.days) {
+                dayOperations.set(operations.size());
+                operations.add(ContentProviderOperation
+                        .newUpdate(WeatherContract.WeatherEntry.buildWeatherUpsertUri())
+                        .withValues(weatherValues)
+                        .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                                locationOperation)
+                        .build());
+            }
+            days += result.forecast.days.size();
+            // An empty list means OWM answered with an error; keep the hours we have.
+            if (result.hours != null && !result.hours.isEmpty()) {
+                // By the location the batch stores the hours under, which may be a stored city
+                // with another setting (see WeatherProvider.findLocation).
+                operations.add(ContentProviderOperation
+                        .newDelete(WeatherContract.HourlyEntry.CONTENT_URI)
+                        .withSelection(WeatherContract.HourlyEntry.LOCATION_ID_SELECTION,
+                                new String[2])
+                        .withSelectionBackReference(0, locationOperation)
+                        .withSelectionBackReference(1, locationOperation)
+                        .build());
+                for (ContentValues hourValues : result.hours) {
+                    operations.add(ContentProviderOperation
+                            .newInsert(WeatherContract.HourlyEntry.CONTENT_URI)
+                            .withValues(hourValues)
+                            .withValueBackReference(WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+                                    locationOperation)
+                            .build());
                 }
             }
+            result.status = LOCATION_STATUS_OK;
+        }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
+        // add to database
+        int written = 0;
+        if (days > 0) {
+            // move the days that have passed into the archive, so the weather table only holds
+            // the forecast
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.WeatherEntry.buildWeatherArchivingUri())
+                    .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))})
+                    .build());
+            // and drop the hours before today, including those of locations that aren't synced
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.HourlyEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.HourlyEntry.BEFORE_TIME_SELECTION,
+                            new String[] {Long.toString(dayTime.setJulianDay(julianStartDay))})
+                    .build());
+        }
+        if (!operations.isEmpty()) {
+            try {
+                ContentProviderResult[] applied = getContext().getContentResolver().applyBatch(
+                        WeatherContract.CONTENT_AUTHORITY, operations);
+                followStoredLocations(results, applied);
+                // Each upsert counts 1 if it wrote its day.
+                for (int i = dayOperations.nextSetBit(0); i >= 0;
+                     i = dayOperations.nextSetBit(i + 1)) {
+                    if (applied[i].count != null) {
+                        written += applied[i].count;
+                    }
+                }
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(LOG_TAG, "Failed to store the forecasts", e);
+                for (FetchResult result : results) {
+                    if (result.status == LOCATION_STATUS_OK) {
+                        result.status = LOCATION_STATUS_UNKNOWN;
+                    }
+                }
+            }
+        }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+        // The provider only reports rows it actually inserted or updated, so a forecast that
+        // came back identical to the stored one doesn't wake up the widgets or Muzei.
+        if (written > 0) {
+            updateWidgets();
+            updateMuzei();
+            notifyWeather();
+        }
 
-                double high;
-                double low;
+        // Only remember validators for responses that made it into the database, so a failed
+        // parse or store always falls back to a full download next time.
+        for (FetchResult result : results) {
+            if (result.forecast == null) {
+                continue;
+            }
+            String cacheKey = result.url.toString();
+            if (result.status == LOCATION_STATUS_OK && !result.forecast.days.isEmpty()) {
+                mValidatorCache.storeValidators(cacheKey, result.eTag, result.lastModified);
+            } else {
+                mValidatorCache.clearValidators(cacheKey);
+            }
+        }
 
-                String description;
-                int weatherId;
+        for (FetchResult result : results) {
+            switch (result.status) {
+                case LOCATION_STATUS_OK:
+                    continue;
+                case LOCATION_STATUS_SERVER_DOWN:
+                case LOCATION_STATUS_UNKNOWN:
+                    syncResult.stats.numIoExceptions++;
+                    break;
+                default:
+                    syncResult.stats.numParseExceptions++;
+            }
+            Log.w(LOG_TAG, "Couldn't sync " + result.locationSetting + ", status "
+                    + result.status);
+        }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+        Log.d(LOG_TAG, "Sync Complete. " + results.size() + " locations, "
+                + written + " Inserted, " + notModified + " not modified, in "
+                + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+        setLocationStatus(getContext(), results.get(0).status);
+        return written;
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    /**
+     * The provider stores a location under the setting of a city it already has, if that is
+     * where openweathermap placed it, like "Seatle" for Seattle. If the preferred location was
+     * one of those, it is changed to the stored setting, so its forecast is shown and synced
+     * under that one from now on.
+     */
+    private void followStoredLocations(List<FetchResult> results,
+                                       ContentProviderResult[] applied) {
+        String preferredLocation = Utility.getPreferredLocation(getContext());
+        for (FetchResult result : results) {
+            if (result.locationOperation == -1
+                    || !result.locationSetting.equals(preferredLocation)) {
+                continue;
+            }
+            long locationId = ContentUris.parseId(applied[result.locationOperation].uri);
+            Cursor cursor = getContext().getContentResolver().query(
+                    WeatherContract.LocationEntry.CONTENT_URI,
+                    new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                    WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)}, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                if (cursor.moveToFirst() && !preferredLocation.equals(cursor.getString(0))) {
+                    setPreferredLocation(getContext(), cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+    /**
+     * What came back for one location: either a parsed forecast, a "not modified", or neither
+     * and the status to report for it.
+     */
+    static class FetchResult {
+        final String locationSetting;
+        final URL url;
+        @LocationStatus int status = LOCATION_STATUS_SERVER_DOWN;
+        boolean notModified;
+        // The position of the location's operation in the batch, if it had one.
+        int locationOperation = -1;
+        ForecastJsonParser.Forecast forecast;
+        // The three-hourly forecast, if it was asked for and downloaded.
+        ArrayList<ContentValues> hours;
+        String eTag;
+        String lastModified;
+
+        FetchResult(String locationSetting, URL url) {
+            this.locationSetting = locationSetting;
+            this.url = url;
+        }
+    }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    /**
+     * Runs {@link #fetchForecast} for every location, on a pool of at most maxThreads threads.
+     *
+     * @return the results, in the same order as the locations
+     */
+    private List<FetchResult> fetchForecasts(Map<String, URL> locations,
+                                             final int julianStartDay, final boolean syncHourly,
+                                             int maxThreads) {
+        List<FetchResult> results = new ArrayList<FetchResult>(locations.size());
+        int threads = Math.min(maxThreads, locations.size());
+        if (threads <= 1) {
+            for (Map.Entry<String, URL> location : locations.entrySet()) {
+                results.add(fetchForecast(location.getKey(), location.getValue(), julianStartDay,
+                        syncHourly));
+            }
+            return results;
+        }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<FetchResult>> futures = new ArrayList<Future<FetchResult>>();
+            for (final Map.Entry<String, URL> location : locations.entrySet()) {
+                futures.add(executor.submit(new Callable<FetchResult>() {
+                    @Override
+                    public FetchResult call() {
+                        return fetchForecast(location.getKey(), location.getValue(),
+                                julianStartDay, syncHourly);
+                    }
+                }));
+            }
+            Iterator<Map.Entry<String, URL>> locationIterator = locations.entrySet().iterator();
+            for (Future<FetchResult> future : futures) {
+                Map.Entry<String, URL> location = locationIterator.next();
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error syncing " + location.getKey(), e.getCause());
+                    results.add(new FetchResult(location.getKey(), location.getValue()));
+                } catch (InterruptedException e) {
+                    // The sync was cancelled; whatever didn't finish counts as failed.
+                    Thread.currentThread().interrupt();
+                    results.add(new FetchResult(location.getKey(), location.getValue()));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    /**
+     * Downloads and parses the forecast for one location, without writing anything to the
+     * database. Safe to call from several threads at once.
+     *
+     * @param syncHourly Whether to download the three-hourly forecast as well, if the daily one
+     *                   has changed
+     */
+    private FetchResult fetchForecast(String locationQuery, URL url, int julianStartDay,
+                                      boolean syncHourly) {
+        FetchResult result = new FetchResult(locationQuery, url);
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        ForecastHttpClient.Response response = null;
 
-                cVVector.add(weatherValues);
+        try {
+            // A 304 is only useful if there is still something in the database to show, so don't
+            // send the validators if the forecast has been wiped in the meantime.
+            response = mHttpClient.get(url,
+                    hasForecast(locationQuery) ? mValidatorCache : null);
+
+            switch (response.getResponseCode()) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_MODIFIED:
+                    result.notModified = true;
+                    result.status = LOCATION_STATUS_OK;
+                    return result;
+                default:
+                    Log.e(LOG_TAG, "Unexpected response " + response.getResponseCode());
+                    return result;
             }
+            result.eTag = response.getHeaderField(ForecastValidatorCache.HEADER_ETAG);
+            result.lastModified =
+                    response.getHeaderField(ForecastValidatorCache.HEADER_LAST_MODIFIED);
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(response.getBody(), "UTF-8"));
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                // Parse the days straight off the connection; an empty stream shows up as an
+                // IOException, just like any other failed download.
+                result.forecast = ForecastJsonParser.parse(reader, julianStartDay);
+            } else {
+                // JsonReader isn't available here, so read the input stream into a String and
+                // let org.json build the tree.
+                StringBuilder buffer = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
+                    // But it does make debugging a *lot* easier if you print out the completed
+                    // buffer for debugging.
+                    buffer.append(line).append('\n');
+                }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
+                if (buffer.length() == 0) {
+                    // Stream was empty.  No point in parsing.
+                    return result;
+                }
+                result.forecast = ForecastJsonParser.parse(buffer.toString(), julianStartDay);
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
-
+            if (syncHourly && result.forecast != null
+                    && result.forecast.messageCode == HttpURLConnection.HTTP_OK) {
+                result.hours = fetchHourlyForecast(locationQuery);
+            }
+        } catch (MalformedJsonException e) {
+            // Thrown by the streaming parser when the server sends something we can't use.
+            Log.e(LOG_TAG, e.getMessage(), e);
+            result.status = LOCATION_STATUS_SERVER_INVALID;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            result.status = LOCATION_STATUS_SERVER_DOWN;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            result.status = LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            // Closing the response rather than disconnecting keeps the connection alive for the
+            // next request; the reader only wraps the response body, so it needs no closing of
+            // its own.
+            if (response != null) {
+                response.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Downloads and parses the three-hourly forecast for a location. It is only fetched after a
+     * new daily forecast, so it is always downloaded in full.
+     *
+     * @return the hours, or null if they couldn't be downloaded; the daily forecast is stored
+     * either way
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private ArrayList<ContentValues> fetchHourlyForecast(String locationQuery) {
+        ForecastHttpClient.Response response = null;
+        try {
+            response = mHttpClient.get(buildHourlyForecastUrl(locationQuery,
+                    CityGazetteer.getInstance(getContext())), null);
+            if (response.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.e(LOG_TAG, "Unexpected hourly response " + response.getResponseCode());
+                return null;
+            }
+            return ForecastJsonParser.parseHourly(new BufferedReader(
+                    new InputStreamReader(response.getBody(), "UTF-8")));
+        } catch (IOException e) {
+            // MalformedJsonException included.
+            Log.e(LOG_TAG, "Error fetching the hourly forecast", e);
+            return null;
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the database holds at least one forecast day for the location
+     */
+    private boolean hasForecast(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
         }
     }
 
@@ -484,53 +821,30 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
+     * Builds the operation that adds a location to the weather database. The provider returns
+     * the stored row instead if the location setting is already there, so either way the
+     * operation's result carries the location's row ID for the weather rows to back-reference.
      *
      * @param locationSetting The location string used to request updates from the server.
      * @param cityName A human-readable city name, e.g "Mountain View"
      * @param lat the latitude of the city
      * @param lon the longitude of the city
-     * @return the row ID of the added location.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+    static ContentProviderOperation buildLocationOperation(String locationSetting,
+                                                           String cityName, double lat,
+                                                           double lon) {
+        // Create a ContentValues object to hold the data you want to insert, along with the
+        // corresponding name of the data type, so the content provider knows what kind of
+        // value is being inserted.
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+
+        return ContentProviderOperation.newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValues(locationValues)
+                .build();
     }
 
     /**
@@ -624,6 +938,17 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         getSyncAccount(context);
     }
 
+    /**
+     * Sets the location setting into shared preference.  This function should not be called
+     * from the UI thread because it uses commit to write to the shared preferences.
+     */
+    static private void setPreferredLocation(Context c, String locationSetting) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        SharedPreferences.Editor spe = sp.edit();
+        spe.putString(c.getString(R.string.pref_location_key), locationSetting);
+        spe.commit();
+    }
+
     /**
      * Sets the location status into shared preference.  This function should not be called from
      * the UI thread because it uses commit to write to the shared preferences.
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.android.sunshine.app.widget.DetailWidgetProvider;
+import com.example.android.sunshine.app.widget.TodayWidgetProvider;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Picks the periodic sync interval from what the last syncs found and from who is looking at the
+ * forecast. Forecasts that keep coming back unchanged, and an app nobody has opened in days,
+ * stretch the interval. Home screen widgets and the Muzei wallpaper show the forecast without
+ * the app being opened, so they shorten it again. The sunshinewearface watch face would be
+ * another such surface, but the app has no data link to it, so there is no way to tell from
+ * here whether it is showing the forecast.
+ *
+ * Every decision is logged on one line of key=value pairs, e.g.
+ * <pre>
+ * sync_decision trigger=sync rows_changed=0 unchanged_syncs=2 idle_hours=5 widgets=1 muzei=0 interval_s=21600 previous_s=10800
+ * </pre>
+ * so the effect on wakeups can be graphed from a logcat capture.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_scheduler";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_UNCHANGED_SYNCS = "unchanged_syncs";
+    private static final String KEY_LAST_APP_OPEN = "last_app_open";
+    private static final String KEY_MUZEI_ENABLED = "muzei_enabled";
+
+    // Bounds on the interval, in seconds.
+    static final int MIN_SYNC_INTERVAL = 60 * 60;
+    static final int MAX_SYNC_INTERVAL = 60 * 60 * 24;
+
+    // Each unchanged sync in a row doubles the interval, up to this many times.
+    static final int MAX_UNCHANGED_DOUBLINGS = 2;
+
+    // How long the app can go unopened before we sync less often.
+    static final long IDLE_MILLIS = 1000L * 60 * 60 * 24 * 3;
+    static final long LONG_IDLE_MILLIS = 1000L * 60 * 60 * 24 * 14;
+
+    private static final String TRIGGER_SYNC = "sync";
+    private static final String TRIGGER_SYNC_FAILED = "sync_failed";
+    private static final String TRIGGER_APP_OPENED = "app_opened";
+
+    // One thread, so that opening the app over and over reschedules one open at a time.
+    private static final Executor APP_OPEN_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Works out the sync interval for the given signals.
+     *
+     * @param unchangedSyncs The number of syncs in a row that didn't change any stored rows
+     * @param idleMillis The time since MainActivity was last opened
+     * @param widgets The number of Sunshine widgets on the home screen
+     * @param muzeiEnabled Whether Sunshine is the active Muzei source
+     * @return the interval, in seconds
+     */
+    static int chooseInterval(int unchangedSyncs, long idleMillis, int widgets,
+                              boolean muzeiEnabled) {
+        long interval = SunshineSyncAdapter.SYNC_INTERVAL;
+        interval <<= Math.min(unchangedSyncs, MAX_UNCHANGED_DOUBLINGS);
+
+        boolean visible = widgets > 0 || muzeiEnabled;
+        if (visible) {
+            // Someone sees the forecast all day, whether or not they open the app.
+            interval /= 2;
+        } else if (idleMillis >= LONG_IDLE_MILLIS) {
+            interval *= 4;
+        } else if (idleMillis >= IDLE_MILLIS) {
+            interval *= 2;
+        }
+        return (int) Math.max(MIN_SYNC_INTERVAL, Math.min(MAX_SYNC_INTERVAL, interval));
+    }
+
+    /**
+     * Records that MainActivity was opened. If the interval had been stretched because the app
+     * wasn't being used, it is brought back down straight away.
+     *
+     * This is called from onResume, so the work is done on {@link #APP_OPEN_EXECUTOR}: it reads
+     * and writes the preferences, asks the AppWidgetManager for the widgets, and may re-register
+     * the periodic sync through the AccountManager.
+     */
+    public static void onAppOpened(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final long openedMillis = System.currentTimeMillis();
+        APP_OPEN_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                onAppOpenedInBackground(appContext, openedMillis);
+            }
+        });
+    }
+
+    private static synchronized void onAppOpenedInBackground(Context context, long openedMillis) {
+        SharedPreferences prefs = getPrefs(context);
+        prefs.edit().putLong(KEY_LAST_APP_OPEN, openedMillis).apply();
+        reschedule(context, prefs, TRIGGER_APP_OPENED, -1, prefs.getInt(KEY_UNCHANGED_SYNCS, 0));
+    }
+
+    /**
+     * Records whether Sunshine is the active Muzei source.
+     */
+    public static void setMuzeiEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit().putBoolean(KEY_MUZEI_ENABLED, enabled).apply();
+    }
+
+    /**
+     * Reschedules after a successful sync.
+     *
+     * @param rowsChanged The number of forecast rows the sync changed; 0 when the server said
+     *                    nothing was modified
+     */
+    static synchronized void onSyncFinished(Context context, int rowsChanged) {
+        SharedPreferences prefs = getPrefs(context);
+        int unchangedSyncs = rowsChanged > 0 ? 0 : prefs.getInt(KEY_UNCHANGED_SYNCS, 0) + 1;
+        prefs.edit().putInt(KEY_UNCHANGED_SYNCS, unchangedSyncs).commit();
+        reschedule(context, prefs, TRIGGER_SYNC, rowsChanged, unchangedSyncs);
+    }
+
+    /**
+     * Reschedules after a failed sync. A failure says nothing about how often the forecast
+     * changes, so the unchanged count is left as it is.
+     */
+    static synchronized void onSyncFailed(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        reschedule(context, prefs, TRIGGER_SYNC_FAILED, -1,
+                prefs.getInt(KEY_UNCHANGED_SYNCS, 0));
+    }
+
+    /**
+     * Synchronized, like its callers, because the app-open executor and the sync thread can
+     * both get here: each reads the counts and the interval and may write them back, and two
+     * at once could re-register the periodic sync and then store the other one's interval.
+     */
+    private static synchronized void reschedule(Context context, SharedPreferences prefs,
+                                                String trigger, int rowsChanged,
+                                                int unchangedSyncs) {
+        long lastAppOpen = prefs.getLong(KEY_LAST_APP_OPEN, 0);
+        long idleMillis = lastAppOpen == 0 ? 0 : System.currentTimeMillis() - lastAppOpen;
+        int widgets = countWidgets(context);
+        boolean muzeiEnabled = prefs.getBoolean(KEY_MUZEI_ENABLED, false);
+        int previous = prefs.getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+        int interval = chooseInterval(unchangedSyncs, idleMillis, widgets, muzeiEnabled);
+
+        Log.i(LOG_TAG, "sync_decision trigger=" + trigger
+                + " rows_changed=" + rowsChanged
+                + " unchanged_syncs=" + unchangedSyncs
+                + " idle_hours=" + (idleMillis / (1000 * 60 * 60))
+                + " widgets=" + widgets
+                + " muzei=" + (muzeiEnabled ? 1 : 0)
+                + " interval_s=" + interval
+                + " previous_s=" + previous);
+
+        // Re-registering the periodic sync resets its timer, so only do it when it changes.
+        if (interval != previous) {
+            SunshineSyncAdapter.configurePeriodicSync(context, interval, interval / 3);
+            prefs.edit().putInt(KEY_INTERVAL, interval).apply();
+        }
+    }
+
+    private static int countWidgets(Context context) {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        return appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, TodayWidgetProvider.class)).length
+                + appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, DetailWidgetProvider.class)).length;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}